@@ -0,0 +1,165 @@
+package de.bananajoh.sv650overlay;
+
+import android.util.Log;
+
+
+/* Evaluates the alert rules of a profile on every data frame. The rules on payload channels are compiled into one 256
+ * entry table of rule bits per involved channel, so a frame costs one lookup per channel regardless of the number of
+ * rules. Raw 0 of zero-is-zero channels is no reading and neither raises nor clears an alert. Rules on derived channels
+ * are checked on their converted values one by one. Not thread safe, evaluate() has to be called from one thread at a
+ * time. */
+public class AlertEngine {
+    public static final int MAX_RULES = 64;
+    private static final String TAG = "AlertEngine";
+
+    public final DecodePlan plan;
+    private final AlertRule[] rules;
+    private final int[] derivedRules;
+    private final int[] channels;
+    private final long[] exceededTable;
+    private final long[] clearedTable;
+    private final long[] sinceMs;
+    private long exceededMask = 0;
+    private long activeMask = 0;
+
+
+    /* Constructor, rules without a channel of the plan and the ones beyond MAX_RULES are ignored and logged */
+    public AlertEngine(DecodePlan plan, AlertRule[] rules) {
+        this.plan = plan;
+        this.rules = rules;
+        sinceMs = new long[rules.length];
+
+        int[] channelSlots = new int[plan.payloadChannelCount];
+        int channelCount = 0;
+        int derivedRuleCount = 0;
+        for(int channel = 0; channel < channelSlots.length; channel++) {
+            channelSlots[channel] = -1;
+        }
+        for(int rule = 0; rule < rules.length; rule++) {
+            int channel = rules[rule].channel;
+            if(rule >= MAX_RULES || channel < 0 || channel >= plan.channelCount) {
+                Log.w(TAG, "Alert rule " + rule + " on " + rules[rule].label + " ignored, channel " + channel + " not in the plan or too many rules");
+            } else if(channel >= channelSlots.length) {
+                derivedRuleCount++;
+            } else if(channelSlots[channel] < 0) {
+                channelSlots[channel] = channelCount++;
+            }
+        }
+
+        derivedRules = new int[derivedRuleCount];
+        derivedRuleCount = 0;
+        for(int rule = 0; rule < rules.length && rule < MAX_RULES; rule++) {
+            int channel = rules[rule].channel;
+            if(channel >= channelSlots.length && channel < plan.channelCount) {
+                derivedRules[derivedRuleCount++] = rule;
+            }
+        }
+
+        channels = new int[channelCount];
+        exceededTable = new long[channelCount * 256];
+        clearedTable = new long[channelCount * 256];
+        for(int channel = 0; channel < channelSlots.length; channel++) {
+            if(channelSlots[channel] > -1) {
+                channels[channelSlots[channel]] = channel;
+            }
+        }
+        for(int rule = 0; rule < rules.length && rule < MAX_RULES; rule++) {
+            int channel = rules[rule].channel;
+            if(channel < 0 || channel >= channelSlots.length) {
+                continue;
+            }
+            int tableOffset = channelSlots[channel] << 8;
+            for(int raw = 0; raw < 256; raw++) {
+                if(plan.isNoReading(channel, raw)) {
+                    /* No reading, e.g. the battery voltage before the ECU reports it, leaves the rule as it is */
+                    continue;
+                }
+                float value = plan.convert(channel, raw);
+                if(rules[rule].isExceeded(value)) {
+                    exceededTable[tableOffset + raw] |= 1L << rule;
+                }
+                if(rules[rule].isCleared(value)) {
+                    clearedTable[tableOffset + raw] |= 1L << rule;
+                }
+            }
+        }
+    }
+
+
+    /* Update the rule states with a data frame (type 0x01), returns the bits of the firing rules */
+    public long evaluate(SensorFrame frame, long nowMs) {
+        long exceeded = 0;
+        long cleared = 0;
+        for(int slot = 0; slot < channels.length; slot++) {
+            if(channels[slot] >= frame.payloadLength) {
+                continue;
+            }
+            int index = (slot << 8) | frame.raw[channels[slot]];
+            exceeded |= exceededTable[index];
+            cleared |= clearedTable[index];
+        }
+        for(int rule : derivedRules) {
+            int channel = rules[rule].channel;
+            if(channel >= frame.channelCount) {
+                continue;
+            }
+            float value = frame.values[channel];
+            if(rules[rule].isExceeded(value)) {
+                exceeded |= 1L << rule;
+            } else if(rules[rule].isCleared(value)) {
+                cleared |= 1L << rule;
+            }
+        }
+
+        /* A rule stays exceeded until its value is back beyond the hysteresis */
+        long previousExceededMask = exceededMask;
+        exceededMask = (exceededMask | exceeded) & ~cleared;
+        long started = exceededMask & ~previousExceededMask;
+        while(started != 0) {
+            int rule = Long.numberOfTrailingZeros(started);
+            sinceMs[rule] = nowMs;
+            started &= started - 1;
+        }
+
+        /* Only rules still waiting for their minimum duration are checked individually */
+        activeMask &= exceededMask;
+        long pending = exceededMask & ~activeMask;
+        while(pending != 0) {
+            int rule = Long.numberOfTrailingZeros(pending);
+            if(nowMs - sinceMs[rule] >= rules[rule].minDurationMs) {
+                activeMask |= 1L << rule;
+            }
+            pending &= pending - 1;
+        }
+        return activeMask;
+    }
+
+
+    /* Forget the states of all rules */
+    public void reset() {
+        exceededMask = 0;
+        activeMask = 0;
+    }
+
+
+    /* Colour of the first firing rule, 0 if none is firing */
+    public int getColor(long mask) {
+        if(mask == 0) {
+            return 0;
+        }
+        return rules[Long.numberOfTrailingZeros(mask)].color;
+    }
+
+
+    /* Check if one of the firing rules wants the overlay to blink */
+    public boolean isBlinking(long mask) {
+        while(mask != 0) {
+            int rule = Long.numberOfTrailingZeros(mask);
+            if(rules[rule].blink) {
+                return true;
+            }
+            mask &= mask - 1;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,35 @@
+package de.bananajoh.sv650overlay;
+
+
+/* Threshold on the converted value of a channel, fires after the threshold is exceeded for minDurationMs and clears once
+ * the value is back by more than the hysteresis */
+public class AlertRule {
+    public String label;
+    public int channel = -1;
+    public boolean above;
+    public float threshold;
+    public float hysteresis = 0.0f;
+    public long minDurationMs = 0;
+    public int color;
+    public boolean blink = false;
+
+
+    public AlertRule(String label, boolean above, float threshold, int color) {
+        this.label = label;
+        this.above = above;
+        this.threshold = threshold;
+        this.color = color;
+    }
+
+
+    /* Check if a value exceeds the threshold */
+    public boolean isExceeded(float value) {
+        return above ? (value > threshold) : (value < threshold);
+    }
+
+
+    /* Check if a value is back inside the threshold including the hysteresis */
+    public boolean isCleared(float value) {
+        return above ? (value <= threshold - hysteresis) : (value >= threshold + hysteresis);
+    }
+}
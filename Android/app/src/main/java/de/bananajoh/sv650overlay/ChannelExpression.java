@@ -0,0 +1,311 @@
+package de.bananajoh.sv650overlay;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* Arithmetic expression over the converted values of other channels, compiled into a flat postfix program of int
+ * instructions (opcode in the low byte, argument above) which is evaluated with a preallocated stack. Grammar:
+ *   expression = term { ("+" | "-") term }
+ *   term       = unary { ("*" | "/") unary }
+ *   unary      = "-" unary | primary
+ *   primary    = number | label | function "(" expression { "," expression } ")" | "(" expression ")"
+ * Functions: abs(x), min(x, y), max(x, y), rate(x) in units per second and smooth(x, seconds), a first order low pass.
+ * rate and smooth keep state between frames in slots of a state array provided by the caller. */
+public class ChannelExpression {
+    public static final int MAX_STACK_DEPTH = 16;
+
+    private static final int OP_CHANNEL = 0;
+    private static final int OP_CONSTANT = 1;
+    private static final int OP_ADD = 2;
+    private static final int OP_SUBTRACT = 3;
+    private static final int OP_MULTIPLY = 4;
+    private static final int OP_DIVIDE = 5;
+    private static final int OP_NEGATE = 6;
+    private static final int OP_ABS = 7;
+    private static final int OP_MIN = 8;
+    private static final int OP_MAX = 9;
+    private static final int OP_RATE = 10;
+    private static final int OP_SMOOTH = 11;
+
+    private static final String[] FUNCTIONS = { "abs", "min", "max", "rate", "smooth" };
+    private static final int[] FUNCTION_OPS = { OP_ABS, OP_MIN, OP_MAX, OP_RATE, OP_SMOOTH };
+    private static final int[] FUNCTION_ARGUMENTS = { 1, 2, 2, 1, 2 };
+    /* State slots per call: rate keeps the previous input and result, smooth the previous result */
+    private static final int[] FUNCTION_STATE_SLOTS = { 0, 0, 0, 2, 1 };
+
+    public final String text;
+    /* Number of state slots the expression needs */
+    public final int stateSize;
+    private final int[] code;
+    private final float[] constants;
+
+
+    /* Constructor, use compile() */
+    private ChannelExpression(String text, int[] code, float[] constants, int stateSize) {
+        this.text = text;
+        this.code = code;
+        this.constants = constants;
+        this.stateSize = stateSize;
+    }
+
+
+    /* Compile an expression, labels are looked up in the first channelCount entries */
+    public static ChannelExpression compile(String text, DataInfoEntry[] entries, int channelCount) throws ParseException {
+        Compiler compiler = new Compiler(text, entries, channelCount);
+        compiler.parseExpression();
+        compiler.skipSpaces();
+        if(compiler.position < text.length()) {
+            throw new ParseException("Unexpected '" + text.charAt(compiler.position) + "'", compiler.position);
+        }
+        int[] code = new int[compiler.code.size()];
+        for(int i = 0; i < code.length; i++) {
+            code[i] = compiler.code.get(i);
+        }
+        float[] constants = new float[compiler.constants.size()];
+        for(int i = 0; i < constants.length; i++) {
+            constants[i] = compiler.constants.get(i);
+        }
+        return new ChannelExpression(text, code, constants, compiler.stateSize);
+    }
+
+
+    /* Evaluate on the converted values of a frame. The stack holds at least MAX_STACK_DEPTH values, the state slots of
+     * this expression start at stateOffset. dtS is the time since the previous frame, reset discards the state. */
+    public float evaluate(float[] values, float[] stack, float[] state, int stateOffset, float dtS, boolean reset) {
+        int top = -1;
+        for(int i = 0; i < code.length; i++) {
+            int instruction = code[i];
+            int argument = instruction >> 8;
+            switch(instruction & 0xFF) {
+                case OP_CHANNEL:
+                    stack[++top] = values[argument];
+                    break;
+                case OP_CONSTANT:
+                    stack[++top] = constants[argument];
+                    break;
+                case OP_ADD:
+                    top--;
+                    stack[top] += stack[top + 1];
+                    break;
+                case OP_SUBTRACT:
+                    top--;
+                    stack[top] -= stack[top + 1];
+                    break;
+                case OP_MULTIPLY:
+                    top--;
+                    stack[top] *= stack[top + 1];
+                    break;
+                case OP_DIVIDE:
+                    top--;
+                    stack[top] /= stack[top + 1];
+                    break;
+                case OP_NEGATE:
+                    stack[top] = -stack[top];
+                    break;
+                case OP_ABS:
+                    stack[top] = Math.abs(stack[top]);
+                    break;
+                case OP_MIN:
+                    top--;
+                    stack[top] = Math.min(stack[top], stack[top + 1]);
+                    break;
+                case OP_MAX:
+                    top--;
+                    stack[top] = Math.max(stack[top], stack[top + 1]);
+                    break;
+                case OP_RATE: {
+                    int slot = stateOffset + argument;
+                    float input = stack[top];
+                    if(reset) {
+                        state[slot + 1] = 0.0f;
+                    } else if(dtS > 0.0f) {
+                        state[slot + 1] = (input - state[slot]) / dtS;
+                    }
+                    if(reset || dtS > 0.0f) {
+                        state[slot] = input;
+                    }
+                    stack[top] = state[slot + 1];
+                    break;
+                }
+                case OP_SMOOTH: {
+                    int slot = stateOffset + argument;
+                    float timeConstantS = stack[top--];
+                    float input = stack[top];
+                    if(reset || timeConstantS <= 0.0f) {
+                        state[slot] = input;
+                    } else {
+                        state[slot] += (input - state[slot]) * (1.0f - (float) Math.exp(-dtS / timeConstantS));
+                    }
+                    stack[top] = state[slot];
+                    break;
+                }
+            }
+        }
+        return stack[0];
+    }
+
+
+    /* Recursive descent parser emitting postfix code while parsing */
+    private static class Compiler {
+        final String text;
+        final DataInfoEntry[] entries;
+        final int channelCount;
+        final List<Integer> code = new ArrayList<>();
+        final List<Float> constants = new ArrayList<>();
+        int position = 0;
+        int depth = 0;
+        int stateSize = 0;
+
+
+        Compiler(String text, DataInfoEntry[] entries, int channelCount) {
+            this.text = text;
+            this.entries = entries;
+            this.channelCount = channelCount;
+        }
+
+
+        /* Append an instruction and track the stack depth it leads to */
+        void emit(int op, int argument, int depthChange) throws ParseException {
+            code.add(op | (argument << 8));
+            depth += depthChange;
+            if(depth > MAX_STACK_DEPTH) {
+                throw new ParseException("Expression nested too deeply", position);
+            }
+        }
+
+
+        void skipSpaces() {
+            while(position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+
+        /* Consume a character if it is next, skipping spaces before it */
+        boolean accept(char c) {
+            skipSpaces();
+            if(position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+
+        void expect(char c) throws ParseException {
+            if(!accept(c)) {
+                throw new ParseException("Expected '" + c + "'", position);
+            }
+        }
+
+
+        void parseExpression() throws ParseException {
+            parseTerm();
+            while(true) {
+                if(accept('+')) {
+                    parseTerm();
+                    emit(OP_ADD, 0, -1);
+                } else if(accept('-')) {
+                    parseTerm();
+                    emit(OP_SUBTRACT, 0, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+
+        void parseTerm() throws ParseException {
+            parseUnary();
+            while(true) {
+                if(accept('*')) {
+                    parseUnary();
+                    emit(OP_MULTIPLY, 0, -1);
+                } else if(accept('/')) {
+                    parseUnary();
+                    emit(OP_DIVIDE, 0, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+
+        void parseUnary() throws ParseException {
+            if(accept('-')) {
+                parseUnary();
+                emit(OP_NEGATE, 0, 0);
+            } else {
+                parsePrimary();
+            }
+        }
+
+
+        void parsePrimary() throws ParseException {
+            if(accept('(')) {
+                parseExpression();
+                expect(')');
+                return;
+            }
+            skipSpaces();
+            int start = position;
+            if(position >= text.length()) {
+                throw new ParseException("Unexpected end of expression", position);
+            }
+            char c = text.charAt(position);
+            if(Character.isDigit(c) || c == '.') {
+                while(position < text.length() && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.')) {
+                    position++;
+                }
+                try {
+                    constants.add(Float.parseFloat(text.substring(start, position)));
+                } catch(NumberFormatException e) {
+                    throw new ParseException("Invalid number", start);
+                }
+                emit(OP_CONSTANT, constants.size() - 1, 1);
+                return;
+            }
+            if(!Character.isLetter(c) && c != '_') {
+                throw new ParseException("Unexpected '" + c + "'", position);
+            }
+            while(position < text.length() && (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_')) {
+                position++;
+            }
+            String name = text.substring(start, position);
+            if(accept('(')) {
+                parseFunction(name, start);
+                return;
+            }
+            for(int channel = 0; channel < channelCount; channel++) {
+                if(entries[channel].label.equals(name)) {
+                    emit(OP_CHANNEL, channel, 1);
+                    return;
+                }
+            }
+            throw new ParseException("Unknown channel " + name, start);
+        }
+
+
+        /* Arguments and call of a function, the opening parenthesis is consumed already */
+        void parseFunction(String name, int start) throws ParseException {
+            for(int function = 0; function < FUNCTIONS.length; function++) {
+                if(!FUNCTIONS[function].equals(name)) {
+                    continue;
+                }
+                for(int argument = 0; argument < FUNCTION_ARGUMENTS[function]; argument++) {
+                    if(argument > 0) {
+                        expect(',');
+                    }
+                    parseExpression();
+                }
+                expect(')');
+                emit(FUNCTION_OPS[function], stateSize, 1 - FUNCTION_ARGUMENTS[function]);
+                stateSize += FUNCTION_STATE_SLOTS[function];
+                return;
+            }
+            throw new ParseException("Unknown function " + name, start);
+        }
+    }
+}
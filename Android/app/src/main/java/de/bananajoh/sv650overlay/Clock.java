@@ -0,0 +1,19 @@
+package de.bananajoh.sv650overlay;
+
+import android.os.SystemClock;
+
+
+/* Monotonic time source of the receive pipeline, replaced in tests running on a plain JVM */
+public interface Clock {
+    /* SystemClock.elapsedRealtimeNanos() */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+
+    /* Nanoseconds since an arbitrary fixed point, including deep sleep */
+    long elapsedRealtimeNanos();
+}
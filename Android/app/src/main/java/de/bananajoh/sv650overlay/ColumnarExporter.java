@@ -0,0 +1,329 @@
+package de.bananajoh.sv650overlay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/* Converts a csv session log into a columnar file:
+ *   "SVCOL" 0x01, row count (int), column count (int)
+ *   column data, the timestamp column (long, ms since epoch) first, then one float column per channel
+ *   footer, per column: label (UTF), unit (UTF), type (byte), data offset (long), min (double), max (double)
+ *   footer offset (long), "SVCOL"
+ * All values are big endian as written by DataOutputStream. The channel columns are taken from the header line of the
+ * log, not from the active profile: channels with a label of the profile get its unit, raw payload bytes are converted
+ * with it, all other columns are exported as logged. Only one batch of rows is held in memory, the columns are
+ * collected in temporary files and concatenated at the end. */
+public class ColumnarExporter {
+    private static final byte[] MAGIC = { 'S', 'V', 'C', 'O', 'L' };
+    private static final byte FORMAT_VERSION = 0x01;
+    public static final byte TYPE_INT64 = 0x00;
+    public static final byte TYPE_FLOAT32 = 0x01;
+    private static final String HEADER_PREFIX = "Date,Time,";
+    private static final String ELAPSED_LABEL = "ElapsedUs";
+    private static final String ANCHOR_PREFIX = "#Anchor,";
+    private static final int BATCH_ROWS = 16384;
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private final ExecutorService executor;
+    private final int threadCount;
+
+
+    /* Statistics and temporary storage of one column */
+    private static class Column {
+        final String label;
+        final String unit;
+        final byte type;
+        /* Payload channel of the active profile the raw log values are converted with, -1 for values logged as they are */
+        final int rawChannel;
+        final File tempFile;
+        final DataOutputStream output;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        long dataOffset = 0;
+
+
+        Column(String label, String unit, byte type, int rawChannel, File tempFile) throws IOException {
+            this.label = label;
+            this.unit = unit;
+            this.type = type;
+            this.rawChannel = rawChannel;
+            this.tempFile = tempFile;
+            this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        }
+    }
+
+
+    /* Outcome of an export */
+    public static class Result {
+        /* Rows exported */
+        public int rows = 0;
+        /* Data lines skipped because they do not match the header, and the number of the first one (1 based, 0 if none) */
+        public int skippedLines = 0;
+        public int firstSkippedLine = 0;
+    }
+
+
+    /* Constructor, batches are converted in one block of columns per processor */
+    public ColumnarExporter() {
+        threadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+        executor = Executors.newFixedThreadPool(threadCount);
+    }
+
+
+    /* Release the conversion threads */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    /* Export a session log */
+    public Result export(File logFile, File exportFile) throws IOException {
+        DecodePlan plan = DataInfo.PLAN;
+        DataInfoEntry[] entries = plan.entries;
+        File tempDirectory = exportFile.getParentFile();
+        Result result = new Result();
+        List<Column> columns = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(logFile));
+        try {
+            String header = reader.readLine();
+            if(header == null || !header.startsWith(HEADER_PREFIX)) {
+                throw new IOException(logFile.getName() + " has no header line");
+            }
+            String[] labels = header.split(",");
+            int valueOffset = (labels.length > 2 && labels[2].equals(ELAPSED_LABEL)) ? 3 : 2;
+            columns.add(new Column("Timestamp", "ms", TYPE_INT64, -1, File.createTempFile("column", ".tmp", tempDirectory)));
+            for(int i = valueOffset; i < labels.length; i++) {
+                int channel = findChannel(entries, labels[i]);
+                String unit = (channel >= 0) ? entries[channel].unit : "";
+                int rawChannel = (channel >= 0 && channel < plan.payloadChannelCount) ? channel : -1;
+                columns.add(new Column(labels[i], unit, TYPE_FLOAT32, rawChannel, File.createTempFile("column", ".tmp", tempDirectory)));
+            }
+
+            long[] timestamps = new long[BATCH_ROWS];
+            int[][] values = new int[columns.size() - 1][BATCH_ROWS];
+            int batchRows = 0;
+            long anchorWallClockMs = -1;
+            SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+            int lineNumber = 1;
+            String line;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(line.startsWith("#")) {
+                    if(line.startsWith(ANCHOR_PREFIX)) {
+                        anchorWallClockMs = parseAnchor(line);
+                    }
+                    continue;
+                }
+                if(line.startsWith(HEADER_PREFIX)) {
+                    /* The logger appends to an existing file with a new header */
+                    if(!line.equals(header)) {
+                        throw new IOException(logFile.getName() + " changes its columns at line " + lineNumber);
+                    }
+                    continue;
+                }
+                int parsed = parseLine(columns, line, valueOffset, anchorWallClockMs, timestampFormat, timestamps, values, batchRows);
+                if(parsed > 0) {
+                    batchRows++;
+                    if(batchRows == BATCH_ROWS) {
+                        writeBatch(plan, columns, timestamps, values, batchRows);
+                        result.rows += batchRows;
+                        batchRows = 0;
+                    }
+                } else if(parsed < 0) {
+                    result.skippedLines++;
+                    if(result.firstSkippedLine == 0) {
+                        result.firstSkippedLine = lineNumber;
+                    }
+                }
+            }
+            writeBatch(plan, columns, timestamps, values, batchRows);
+            result.rows += batchRows;
+
+            for(Column column : columns) {
+                column.output.close();
+            }
+            writeExportFile(exportFile, columns, result.rows);
+        } finally {
+            reader.close();
+            for(Column column : columns) {
+                column.output.close();
+                column.tempFile.delete();
+            }
+        }
+        return result;
+    }
+
+
+    /* Channel of a label in the profile, -1 if the profile does not have it */
+    private static int findChannel(DataInfoEntry[] entries, String label) {
+        for(int channel = 0; channel < entries.length; channel++) {
+            if(entries[channel].label.equals(label)) {
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+
+    /* Wall clock of the anchor line "#Anchor,date,time,wallClockMs,elapsedNs", -1 if it cannot be parsed */
+    private static long parseAnchor(String line) {
+        String[] fields = line.split(",");
+        if(fields.length < 4) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[3]);
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /* Parse a data line of the log into the batch, returns 1 for a data row, 0 for a text message line and -1 for a line
+     * not matching the header. The timestamp is the anchor plus the elapsed time of the line, date and time are only
+     * used for logs without them. Columns not converted by the profile are kept as float bits. */
+    private static int parseLine(List<Column> columns, String line, int valueOffset, long anchorWallClockMs, SimpleDateFormat timestampFormat, long[] timestamps, int[][] values, int row) {
+        String[] fields = line.split(",");
+        if(fields.length != valueOffset + values.length) {
+            return isNumeric(fields, valueOffset) ? -1 : 0;
+        }
+        try {
+            for(int i = 0; i < values.length; i++) {
+                String field = fields[valueOffset + i];
+                if(columns.get(i + 1).rawChannel >= 0) {
+                    values[i][row] = Integer.parseInt(field);
+                } else {
+                    values[i][row] = Float.floatToIntBits(Float.parseFloat(field));
+                }
+            }
+            if(valueOffset == 3 && anchorWallClockMs >= 0) {
+                timestamps[row] = anchorWallClockMs + Long.parseLong(fields[2]) / 1000;
+            } else {
+                timestamps[row] = timestampFormat.parse(fields[0] + fields[1]).getTime();
+            }
+        } catch(NumberFormatException | ParseException e) {
+            return -1;
+        }
+        return 1;
+    }
+
+
+    /* Check if all fields from an index on are numbers, text message lines are not */
+    private static boolean isNumeric(String[] fields, int from) {
+        if(fields.length <= from) {
+            return true;
+        }
+        for(int i = from; i < fields.length; i++) {
+            try {
+                Float.parseFloat(fields[i]);
+            } catch(NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /* Convert and append a batch of rows, the channel columns are split into one block per thread */
+    private void writeBatch(final DecodePlan plan, final List<Column> columns, long[] timestamps, final int[][] values, final int rows) throws IOException {
+        if(rows == 0) {
+            return;
+        }
+        Column timestampColumn = columns.get(0);
+        for(int row = 0; row < rows; row++) {
+            timestampColumn.output.writeLong(timestamps[row]);
+            timestampColumn.min = Math.min(timestampColumn.min, timestamps[row]);
+            timestampColumn.max = Math.max(timestampColumn.max, timestamps[row]);
+        }
+
+        int blockSize = (values.length + threadCount - 1) / threadCount;
+        List<Future<Void>> futures = new ArrayList<>();
+        for(int block = 0; block < values.length; block += blockSize) {
+            final int first = block;
+            final int last = Math.min(values.length, block + blockSize);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for(int i = first; i < last; i++) {
+                        writeColumn(plan, columns.get(i + 1), values[i], rows);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for(Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch(InterruptedException | ExecutionException e) {
+                throw new IOException("Converting column failed", e);
+            }
+        }
+    }
+
+
+    /* Convert and append the values of one column */
+    private static void writeColumn(DecodePlan plan, Column column, int[] values, int rows) throws IOException {
+        for(int row = 0; row < rows; row++) {
+            float value = (column.rawChannel >= 0) ? plan.convert(column.rawChannel, values[row]) : Float.intBitsToFloat(values[row]);
+            column.output.writeFloat(value);
+            column.min = Math.min(column.min, value);
+            column.max = Math.max(column.max, value);
+        }
+    }
+
+
+    /* Concatenate the temporary column files and append the footer */
+    private static void writeExportFile(File exportFile, List<Column> columns, int rowCount) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(exportFile)));
+        try {
+            output.write(MAGIC);
+            output.writeByte(FORMAT_VERSION);
+            output.writeInt(rowCount);
+            output.writeInt(columns.size());
+            long offset = MAGIC.length + 1 + 4 + 4;
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for(Column column : columns) {
+                column.dataOffset = offset;
+                offset += column.tempFile.length();
+                BufferedInputStream input = new BufferedInputStream(new FileInputStream(column.tempFile));
+                try {
+                    int length;
+                    while((length = input.read(buffer)) > 0) {
+                        output.write(buffer, 0, length);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+
+            long footerOffset = offset;
+            for(Column column : columns) {
+                output.writeUTF(column.label);
+                output.writeUTF(column.unit);
+                output.writeByte(column.type);
+                output.writeLong(column.dataOffset);
+                output.writeDouble(rowCount > 0 ? column.min : 0.0);
+                output.writeDouble(rowCount > 0 ? column.max : 0.0);
+            }
+            output.writeLong(footerOffset);
+            output.write(MAGIC);
+        } finally {
+            output.close();
+        }
+    }
+}
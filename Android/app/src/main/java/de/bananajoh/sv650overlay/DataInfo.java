@@ -1,64 +1,320 @@
 package de.bananajoh.sv650overlay;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Color;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Arrays;
+
+
+/* Channel layout of the active ECU profile, loaded from the bundled schema (res/raw/channel_profiles.json). Derived
+ * channels of the profile ("derived") and the ones defined by the user in the same format are appended to its payload
+ * channels, e.g. { "label": "DUTY", "unit": "%", "decimals": 1, "pos": 12, "expression": "FUEL1a * RPM / 1200" }. Without
+ * a "pos" a derived channel is shown after the last position in use, -1 hides it.
+ * Alert rules of the user are appended to the ones of the profile ("alerts") and may refer to any channel, e.g.
+ * { "label": "DUTY", "above": 80, "hysteresis": 5, "minDurationMs": 1000, "color": "#FFA000", "blink": false } */
 public class DataInfo {
-    public static final DataInfoEntry[] ENTRIES = {
-        new DataInfoEntry("0", "", -1),
-        new DataInfoEntry("1", "", -1),
-        new DataInfoEntry("2", "", -1),
-        new DataInfoEntry("3", "", -1),
-        new DataInfoEntry("4", "", -1),
-        new DataInfoEntry("5", "", -1),
-        new DataInfoEntry("6?", "", -1),
-        new DataInfoEntry("7", "", -1),
-        new DataInfoEntry("8", "", -1),
-        new DataInfoEntry("9", "", -1),
-        new DataInfoEntry("10", "", -1),
-        new DataInfoEntry("11", "", -1),
-        new DataInfoEntry("12", "", -1),
-        new DataInfoEntry("13", "", -1),
-        new DataInfoEntry("14", "", -1),
-        new DataInfoEntry("15", "", -1),
-        new DataInfoEntry("16", "", -1),
-        new DataInfoEntry("RPM", "", 0),
-        new DataInfoEntry("18", "", -1),
-        new DataInfoEntry("TPS", " %", 1),
-        new DataInfoEntry("IAP1", "", 6),
-        new DataInfoEntry("ECT", " °C", 3),
-        new DataInfoEntry("IAT", " °C", 4),
-        new DataInfoEntry("23", "", -1),
-        new DataInfoEntry("BATT", " V", 2),
-        new DataInfoEntry("HO2", "", 8),
-        new DataInfoEntry("GPS", "", 5),
-        new DataInfoEntry("IAP2", "", 7),
-        new DataInfoEntry("IDLE", "", 11),
-        new DataInfoEntry("ISCV", "", 14),
-        new DataInfoEntry("30", "", -1),
-        new DataInfoEntry("FUEL1a", "", 9),
-        new DataInfoEntry("FUEL1b", "", 12),
-        new DataInfoEntry("FUEL2a", "", 10),
-        new DataInfoEntry("FUEL2b", "", 13),
-        new DataInfoEntry("35", "", -1),
-        new DataInfoEntry("36", "", -1),
-        new DataInfoEntry("37", "", -1),
-        new DataInfoEntry("38", "", -1),
-        new DataInfoEntry("39", "", -1),
-        new DataInfoEntry("40", "", -1),
-        new DataInfoEntry("IGN1", "", 15),
-        new DataInfoEntry("IGN2", "", 16),
-        new DataInfoEntry("43", "", -1),
-        new DataInfoEntry("44", "", -1),
-        new DataInfoEntry("45", "", -1),
-        new DataInfoEntry("STV", "", 17),
-        new DataInfoEntry("47", "", -1),
-        new DataInfoEntry("48", "", -1),
-        new DataInfoEntry("49", "", -1),
-        new DataInfoEntry("50", "", -1),
-        new DataInfoEntry("PAIR", "", 18),
-        new DataInfoEntry("C/M/TO", "", 19),
-        new DataInfoEntry("N", "", 20),
-        new DataInfoEntry("54", "", -1),
-        new DataInfoEntry("55", "", -1),
-        new DataInfoEntry("SUM", "", -1)
-    };
+    public static final String DEFAULT_PROFILE_ID = "sv650_k7";
+    public static final String PREFERENCE_PROFILE_ID = "profileId";
+    public static final String PREFERENCE_DERIVED_CHANNELS = "derivedChannels";
+    public static final String PREFERENCE_ALERT_RULES = "alertRules";
+    public static final int MAX_POSITION = 255;
+    public static final int MAX_DECIMALS = 6;
+
+    /* Active profile, its entries and alert rules are published together with the plan */
+    public static volatile DecodePlan PLAN = new DecodePlan(new DataInfoEntry[0], 0, -1);
+    private static String profileId = null;
+    private static JSONArray profiles = null;
+
+
+    /* Invalid derived channel definition, index is the one in the definitions of the user (-1 if it is one of the
+     * profile) and field the name of the invalid field */
+    public static class DefinitionException extends JSONException {
+        public final int index;
+        public final String field;
+
+
+        public DefinitionException(String message, int index, String field) {
+            super(message);
+            this.index = index;
+            this.field = field;
+        }
+    }
+
+
+    /* Load the profile saved in the preferences, if no profile has been loaded yet */
+    public static synchronized void init(Context context) {
+        if(profileId != null) {
+            return;
+        }
+        SharedPreferences sharedPreferences = context.getSharedPreferences(context.getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        if(!load(context, sharedPreferences.getString(PREFERENCE_PROFILE_ID, DEFAULT_PROFILE_ID))) {
+            load(context, DEFAULT_PROFILE_ID);
+        }
+    }
+
+
+    /* Compile a profile of the schema with the derived channels of the user and make it the active one */
+    public static synchronized boolean load(Context context, String id) {
+        try {
+            JSONObject profile = findProfile(context, id);
+            if(profile == null) {
+                return false;
+            }
+            JSONArray userDerivedChannels = new JSONArray(getDerivedChannels(context));
+            try {
+                compile(profile, userDerivedChannels, new JSONArray(getAlertRules(context)));
+            } catch(JSONException e) {
+                /* Definitions of the user referring to channels this profile does not have are left out, alert rules
+                 * first as they may refer to the derived channels */
+                e.printStackTrace();
+                try {
+                    compile(profile, userDerivedChannels, null);
+                } catch(JSONException derivedException) {
+                    derivedException.printStackTrace();
+                    compile(profile, null, null);
+                }
+            }
+            profileId = id;
+            return true;
+        } catch(JSONException | IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+
+    /* Definitions of the derived channels of the user as entered, a JSON array */
+    public static String getDerivedChannels(Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(context.getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        return sharedPreferences.getString(PREFERENCE_DERIVED_CHANNELS, "[]");
+    }
+
+
+    /* Compile the active profile with new derived channels of the user and save them, nothing changes if they are invalid */
+    public static synchronized void setDerivedChannels(Context context, String definitions) throws JSONException, IOException {
+        JSONObject profile = findProfile(context, profileId);
+        if(profile == null) {
+            throw new JSONException("No active profile");
+        }
+        compile(profile, new JSONArray(definitions), new JSONArray(getAlertRules(context)));
+        SharedPreferences sharedPreferences = context.getSharedPreferences(context.getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        sharedPreferences.edit().putString(PREFERENCE_DERIVED_CHANNELS, definitions).apply();
+    }
+
+
+    /* Definitions of the alert rules of the user as entered, a JSON array */
+    public static String getAlertRules(Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(context.getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        return sharedPreferences.getString(PREFERENCE_ALERT_RULES, "[]");
+    }
+
+
+    /* Compile the active profile with new alert rules of the user and save them, nothing changes if they are invalid */
+    public static synchronized void setAlertRules(Context context, String definitions) throws JSONException, IOException {
+        JSONObject profile = findProfile(context, profileId);
+        if(profile == null) {
+            throw new JSONException("No active profile");
+        }
+        compile(profile, new JSONArray(getDerivedChannels(context)), new JSONArray(definitions));
+        SharedPreferences sharedPreferences = context.getSharedPreferences(context.getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        sharedPreferences.edit().putString(PREFERENCE_ALERT_RULES, definitions).apply();
+    }
+
+
+    /* Identifier of the active profile */
+    public static synchronized String getProfileId() {
+        return profileId;
+    }
+
+
+    /* Profile definitions of the bundled schema, read once */
+    public static synchronized JSONArray getProfiles(Context context) throws JSONException, IOException {
+        if(profiles == null) {
+            InputStream inputStream = context.getResources().openRawResource(R.raw.channel_profiles);
+            ByteArrayOutputStream schema = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[4096];
+                int length;
+                while((length = inputStream.read(buffer)) > 0) {
+                    schema.write(buffer, 0, length);
+                }
+            } finally {
+                inputStream.close();
+            }
+            profiles = new JSONObject(schema.toString("UTF-8")).getJSONArray("profiles");
+        }
+        return profiles;
+    }
+
+
+    /* Profile of the schema with an identifier, null if there is none */
+    private static JSONObject findProfile(Context context, String id) throws JSONException, IOException {
+        JSONArray schemaProfiles = getProfiles(context);
+        for(int i = 0; i < schemaProfiles.length(); i++) {
+            JSONObject profile = schemaProfiles.getJSONObject(i);
+            if(profile.getString("id").equals(id)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+
+    /* Build entries for every payload byte of a profile, append the derived channels of the profile and the user (may be
+     * null) and compile them into a decode plan, together with the alert rules of the profile and the user (may be null) */
+    private static void compile(JSONObject profile, JSONArray userDerivedChannels, JSONArray userAlertRules) throws JSONException {
+        int frameLength = profile.getInt("frameLength");
+        boolean showAllChannels = profile.optBoolean("showAllChannels", false);
+        DataInfoEntry[] entries = new DataInfoEntry[frameLength - DecodePlan.PAYLOAD_OFFSET];
+        for(int i = 0; i < entries.length; i++) {
+            entries[i] = new DataInfoEntry(Integer.toString(i), "", showAllChannels ? i : -1);
+        }
+
+        JSONArray channels = profile.getJSONArray("channels");
+        for(int i = 0; i < channels.length(); i++) {
+            JSONObject channel = channels.getJSONObject(i);
+            int index = channel.getInt("offset") - DecodePlan.PAYLOAD_OFFSET;
+            if(index < 0 || index >= entries.length) {
+                throw new JSONException("Channel offset out of frame: " + channel.getInt("offset"));
+            }
+            DataInfoEntry entry = new DataInfoEntry(channel.getString("label"), channel.optString("unit", ""), channel.optInt("pos", -1));
+            entry.discrete = channel.optBoolean("discrete", false);
+            JSONObject conversion = channel.optJSONObject("conversion");
+            if(conversion != null) {
+                entry.add = conversion.optInt("add", 0);
+                entry.mul = conversion.optInt("mul", 1);
+                entry.div = conversion.optInt("div", 1);
+                entry.step = conversion.optInt("step", 1);
+                entry.decimals = conversion.optInt("decimals", 0);
+                entry.zeroIsZero = conversion.optBoolean("zeroIsZero", false);
+            }
+            entries[index] = entry;
+        }
+
+        entries = compileDerivedChannels(entries, profile.optJSONArray("derived"), userDerivedChannels);
+        AlertRule[] alertRules = compileAlertRules(entries, profile.optJSONArray("alerts"), userAlertRules);
+
+        /* Consumers pick the new plan up with the next frame */
+        PLAN = new DecodePlan(entries, alertRules, frameLength, profile.optInt("gearOffset", -1));
+    }
+
+
+    /* Append the derived channels of the profile and the user (both may be null) to the payload entries, an expression
+     * may refer to payload channels and derived channels defined before it */
+    private static DataInfoEntry[] compileDerivedChannels(DataInfoEntry[] entries, JSONArray profileDefinitions, JSONArray userDefinitions) throws JSONException {
+        JSONArray[] definitionLists = { profileDefinitions, userDefinitions };
+        int derivedCount = 0;
+        for(JSONArray definitions : definitionLists) {
+            derivedCount += (definitions != null) ? definitions.length() : 0;
+        }
+        if(derivedCount > DecodePlan.MAX_DERIVED_CHANNELS) {
+            throw new JSONException("Too many derived channels: " + derivedCount);
+        }
+        DataInfoEntry[] allEntries = Arrays.copyOf(entries, entries.length + derivedCount);
+        int channel = entries.length;
+        int nextPos = 0;
+        for(DataInfoEntry entry : entries) {
+            nextPos = Math.max(nextPos, entry.showAtPos + 1);
+        }
+        for(JSONArray definitions : definitionLists) {
+            for(int i = 0; definitions != null && i < definitions.length(); i++) {
+                /* Errors in the definitions of the user name the definition and the field */
+                int userIndex = (definitions == userDefinitions) ? i : -1;
+                JSONObject definition = definitions.getJSONObject(i);
+                String label = definition.optString("label", "").trim();
+                if(label.isEmpty()) {
+                    throw new DefinitionException("Channel without label", userIndex, "label");
+                }
+                for(int other = 0; other < channel; other++) {
+                    if(allEntries[other].label.equals(label)) {
+                        throw new DefinitionException("Duplicate channel label: " + label, userIndex, "label");
+                    }
+                }
+                int pos = optInteger(definition, "pos", nextPos, -1, MAX_POSITION, userIndex);
+                nextPos = Math.max(nextPos, pos + 1);
+                DataInfoEntry entry = new DataInfoEntry(label, definition.optString("unit", ""), pos);
+                entry.decimals = optInteger(definition, "decimals", 0, 0, MAX_DECIMALS, userIndex);
+                try {
+                    entry.expression = ChannelExpression.compile(definition.optString("expression", ""), allEntries, channel);
+                } catch(ParseException e) {
+                    throw new DefinitionException(label + ": " + e.getMessage() + " at position " + (e.getErrorOffset() + 1), userIndex, "expression");
+                }
+                allEntries[channel++] = entry;
+            }
+        }
+        return allEntries;
+    }
+
+
+    /* Integer field of a derived channel definition within min and max, the default if the field is left out */
+    private static int optInteger(JSONObject definition, String field, int defaultValue, int min, int max, int userIndex) throws DefinitionException {
+        if(!definition.has(field)) {
+            return defaultValue;
+        }
+        Object value = definition.opt(field);
+        if(!(value instanceof Integer)) {
+            throw new DefinitionException(field + " is not a whole number: " + value, userIndex, field);
+        }
+        int number = (Integer) value;
+        if(number < min || number > max) {
+            throw new DefinitionException(field + " out of range " + min + " to " + max + ": " + number, userIndex, field);
+        }
+        return number;
+    }
+
+
+    /* Build the alert rules of the profile and the user, every rule refers to a payload or derived channel by its label */
+    private static AlertRule[] compileAlertRules(DataInfoEntry[] entries, JSONArray... definitionLists) throws JSONException {
+        int ruleCount = 0;
+        for(JSONArray definitions : definitionLists) {
+            ruleCount += (definitions != null) ? definitions.length() : 0;
+        }
+        if(ruleCount > AlertEngine.MAX_RULES) {
+            throw new JSONException("Too many alert rules: " + ruleCount);
+        }
+        AlertRule[] alertRules = new AlertRule[ruleCount];
+        int rule = 0;
+        for(JSONArray definitions : definitionLists) {
+            for(int i = 0; definitions != null && i < definitions.length(); i++) {
+                JSONObject alert = definitions.getJSONObject(i);
+                boolean above = alert.has("above");
+                if(above == alert.has("below")) {
+                    throw new JSONException("Alert needs either above or below: " + alert.optString("label"));
+                }
+                int color;
+                try {
+                    color = Color.parseColor(alert.optString("color", "#FF0000"));
+                } catch(IllegalArgumentException e) {
+                    throw new JSONException("Invalid alert color: " + alert.optString("color"));
+                }
+                AlertRule alertRule = new AlertRule(alert.getString("label"), above, (float) alert.getDouble(above ? "above" : "below"), color);
+                alertRule.hysteresis = (float) alert.optDouble("hysteresis", 0.0);
+                alertRule.minDurationMs = alert.optLong("minDurationMs", 0);
+                alertRule.blink = alert.optBoolean("blink", false);
+                if(alertRule.hysteresis < 0.0f || alertRule.minDurationMs < 0) {
+                    throw new JSONException("Negative hysteresis or duration of alert: " + alertRule.label);
+                }
+                for(int channel = 0; channel < entries.length; channel++) {
+                    if(entries[channel].label.equals(alertRule.label)) {
+                        alertRule.channel = channel;
+                        break;
+                    }
+                }
+                if(alertRule.channel < 0) {
+                    throw new JSONException("Alert on unknown channel: " + alertRule.label);
+                }
+                alertRules[rule++] = alertRule;
+            }
+        }
+        return alertRules;
+    }
 }
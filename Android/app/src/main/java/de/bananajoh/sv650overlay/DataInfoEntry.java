@@ -6,10 +6,37 @@ public class DataInfoEntry {
     public String unit;
     public int showAtPos;
 
+    /* Conversion of the raw byte: ((raw + add) * mul / div), truncated if no decimals, then multiplied by step */
+    public int add = 0;
+    public int mul = 1;
+    public int div = 1;
+    public int step = 1;
+    public int decimals = 0;
+    public boolean zeroIsZero = false;
+
+    /* Discrete values like gear or switches must not be interpolated */
+    public boolean discrete = false;
+
+    /* Derived channels are computed from other channels instead of a payload byte */
+    public ChannelExpression expression = null;
+
 
     public DataInfoEntry(String label, String unit, int showAtPos) {
         this.label = label;
         this.unit = unit;
         this.showAtPos = showAtPos;
     }
-}
\ No newline at end of file
+
+
+    /* Convert a raw (unsigned) byte value */
+    public float convert(int raw) {
+        if(zeroIsZero && raw == 0) {
+            return 0.0f;
+        }
+        float value = (raw + add) * mul / (float) div;
+        if(decimals == 0) {
+            value = (int) value;
+        }
+        return value * step;
+    }
+}
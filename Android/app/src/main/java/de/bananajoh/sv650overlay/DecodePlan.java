@@ -0,0 +1,214 @@
+package de.bananajoh.sv650overlay;
+
+import java.util.Locale;
+
+
+/* Channel layout of a profile compiled into lookup tables, so decoding a frame costs one array access per channel.
+ * Derived channels follow the payload channels and are computed from them by their compiled expressions. The plan also
+ * holds the entries and alert rules it was built from, so everything taken from one plan belongs to the same profile. */
+public class DecodePlan {
+    public static final int PAYLOAD_OFFSET = 2;
+    public static final int MAX_DERIVED_CHANNELS = 32;
+    private static final long MAX_DERIVE_GAP_NS = 2000000000L;
+
+    public final int frameLength;
+    public final int channelCount;
+    public final int payloadChannelCount;
+    public final int gearOffset;
+    public final int[] displayChannels;
+    /* Entries and alert rules of the profile, not to be modified */
+    public final DataInfoEntry[] entries;
+    public final AlertRule[] alertRules;
+    private final String[] labels;
+    private final float[] lookupTable;
+    private final int[] decimals;
+    private final boolean[] discrete;
+    private final boolean[] zeroIsZero;
+    private final ChannelExpression[] expressions;
+    private final int[] stateOffsets;
+    private final int stateSize;
+
+
+    /* Stack and state of the derived channels for one stream of frames, used by one thread at a time */
+    public static class DerivedState {
+        public final DecodePlan plan;
+        private final float[] stack = new float[ChannelExpression.MAX_STACK_DEPTH];
+        private final float[] state;
+        private long lastTimeNs = 0;
+        private boolean reset = true;
+
+
+        private DerivedState(DecodePlan plan) {
+            this.plan = plan;
+            state = new float[plan.stateSize];
+        }
+
+
+        /* Start over, e.g. rates are 0 for the next frame */
+        public void reset() {
+            reset = true;
+        }
+    }
+
+
+    /* Constructor of a plan without alert rules */
+    public DecodePlan(DataInfoEntry[] entries, int frameLength, int gearOffset) {
+        this(entries, new AlertRule[0], frameLength, gearOffset);
+    }
+
+
+    /* Constructor, compiles the conversions of all payload entries for every possible raw value. Entries with an
+     * expression are derived channels and have to come after all payload entries. */
+    public DecodePlan(DataInfoEntry[] entries, AlertRule[] alertRules, int frameLength, int gearOffset) {
+        this.entries = entries.clone();
+        this.alertRules = alertRules.clone();
+        this.frameLength = frameLength;
+        this.channelCount = entries.length;
+        this.gearOffset = gearOffset;
+        int payloadChannels = 0;
+        while(payloadChannels < entries.length && entries[payloadChannels].expression == null) {
+            payloadChannels++;
+        }
+        payloadChannelCount = payloadChannels;
+
+        int maxShowAtPos = -1;
+        for(DataInfoEntry entry : entries) {
+            maxShowAtPos = Math.max(maxShowAtPos, entry.showAtPos);
+        }
+        displayChannels = new int[maxShowAtPos + 1];
+        for(int pos = 0; pos < displayChannels.length; pos++) {
+            displayChannels[pos] = -1;
+        }
+
+        lookupTable = new float[payloadChannelCount * 256];
+        labels = new String[channelCount];
+        decimals = new int[channelCount];
+        discrete = new boolean[channelCount];
+        zeroIsZero = new boolean[payloadChannelCount];
+        expressions = new ChannelExpression[channelCount - payloadChannelCount];
+        stateOffsets = new int[expressions.length];
+        int stateOffset = 0;
+        for(int channel = 0; channel < channelCount; channel++) {
+            DataInfoEntry entry = entries[channel];
+            labels[channel] = entry.label;
+            if(entry.showAtPos > -1) {
+                displayChannels[entry.showAtPos] = channel;
+            }
+            decimals[channel] = entry.decimals;
+            discrete[channel] = entry.discrete || (channel + PAYLOAD_OFFSET == gearOffset);
+            if(channel >= payloadChannelCount) {
+                if(entry.expression == null) {
+                    throw new IllegalArgumentException("Payload channel after derived channels: " + entry.label);
+                }
+                expressions[channel - payloadChannelCount] = entry.expression;
+                stateOffsets[channel - payloadChannelCount] = stateOffset;
+                stateOffset += entry.expression.stateSize;
+                continue;
+            }
+            zeroIsZero[channel] = entry.zeroIsZero;
+            for(int raw = 0; raw < 256; raw++) {
+                lookupTable[channel * 256 + raw] = entry.convert(raw);
+            }
+        }
+        stateSize = stateOffset;
+    }
+
+
+    /* Converted value of a payload channel for a raw (unsigned) byte value */
+    public float convert(int channel, int raw) {
+        return lookupTable[(channel << 8) | (raw & 0xFF)];
+    }
+
+
+    /* Raw (unsigned) value of a channel out of a data frame (type 0x01), -1 if the frame is too short */
+    public int raw(byte[] frame, int channel) {
+        int offset = channel + PAYLOAD_OFFSET;
+        if(offset >= frame.length) {
+            return -1;
+        }
+        return frame[offset] & 0xFF;
+    }
+
+
+    /* Convert all payload channels contained in a data frame (type 0x01), returns the number of converted channels */
+    public int decode(byte[] frame, float[] values) {
+        int count = Math.min(Math.min(payloadChannelCount, frame.length - PAYLOAD_OFFSET), values.length);
+        for(int channel = 0; channel < count; channel++) {
+            values[channel] = lookupTable[(channel << 8) | (frame[channel + PAYLOAD_OFFSET] & 0xFF)];
+        }
+        return count;
+    }
+
+
+    /* Convert raw (unsigned) values of the payload bytes, returns the number of converted channels */
+    public int convert(int[] raw, int count, float[] values) {
+        count = Math.min(Math.min(payloadChannelCount, count), values.length);
+        for(int channel = 0; channel < count; channel++) {
+            values[channel] = lookupTable[(channel << 8) | raw[channel]];
+        }
+        return count;
+    }
+
+
+    /* New state for computing the derived channels of a stream of frames */
+    public DerivedState newDerivedState() {
+        return new DerivedState(this);
+    }
+
+
+    /* Compute the derived channels behind the converted payload channels, returns the number of valid channels. Derived
+     * channels are only computed if all payload channels are there. The state is reset if frames are too far apart. */
+    public int derive(float[] values, int count, long timeNs, DerivedState state) {
+        if(expressions.length == 0 || count < payloadChannelCount || values.length < channelCount) {
+            return count;
+        }
+        long dtNs = timeNs - state.lastTimeNs;
+        boolean reset = state.reset || dtNs < 0 || dtNs > MAX_DERIVE_GAP_NS;
+        float dtS = dtNs / 1000000000.0f;
+        for(int i = 0; i < expressions.length; i++) {
+            values[payloadChannelCount + i] = expressions[i].evaluate(values, state.stack, state.state, stateOffsets[i], dtS, reset);
+        }
+        state.lastTimeNs = timeNs;
+        state.reset = false;
+        return channelCount;
+    }
+
+
+    /* Check if a raw value of a payload channel means no reading, i.e. raw 0 of a channel converting it to 0 */
+    public boolean isNoReading(int channel, int raw) {
+        return raw == 0 && zeroIsZero[channel];
+    }
+
+
+    /* Label of a channel */
+    public String getLabel(int channel) {
+        return labels[channel];
+    }
+
+
+    /* Check if a channel is computed by an expression */
+    public boolean isDerived(int channel) {
+        return channel >= payloadChannelCount;
+    }
+
+
+    /* Number of decimals to show for a channel */
+    public int getDecimals(int channel) {
+        return decimals[channel];
+    }
+
+
+    /* Check if a channel holds discrete values, the gear channel always does */
+    public boolean isDiscrete(int channel) {
+        return discrete[channel];
+    }
+
+
+    /* Format a converted value with the number of decimals of its channel */
+    public String format(int channel, float value) {
+        if(decimals[channel] == 0) {
+            return Integer.toString((int) value);
+        }
+        return String.format(Locale.getDefault(), "%." + decimals[channel] + "f", value);
+    }
+}
@@ -0,0 +1,80 @@
+package de.bananajoh.sv650overlay;
+
+
+/* Restores full data frames (type 0x01) out of delta frames (type 0x03) sent with protocol version 2. Frames are buffers
+ * of the SensorFrame pool, the ones passed in belong to the expander, which releases the ones it does not return. */
+public class DeltaFrameExpander {
+    private static final int MAX_FRAME_LENGTH = 255;
+
+    /* Copy of the last full frame, the frames handed out go back to the pool once consumed */
+    private final byte[] reference = new byte[MAX_FRAME_LENGTH];
+    private int referenceLength = 0;
+    private long droppedFrames = 0;
+
+
+    /* Forget the reference frame, deltas are dropped until the next keyframe arrives */
+    public void reset() {
+        referenceLength = 0;
+    }
+
+
+    /* Number of delta frames which could not be expanded */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+
+    /* Return the full frame for data and delta frames, other frames are passed through, null if a delta cannot be applied */
+    public byte[] expand(byte[] frame) {
+        if(frame.length < 2) {
+            return frame;
+        }
+        if(frame[0] == 0x01) {
+            /* Keyframe */
+            if(frame.length <= MAX_FRAME_LENGTH) {
+                System.arraycopy(frame, 0, reference, 0, frame.length);
+                referenceLength = frame.length;
+            } else {
+                referenceLength = 0;
+            }
+            return frame;
+        } else if(frame[0] != 0x03) {
+            return frame;
+        }
+
+        if(referenceLength == 0) {
+            return drop(frame);
+        }
+
+        /* Delta frame: bitmap of changed values (LSB first), followed by the changed values in order */
+        int payloadSize = referenceLength - 2;
+        int bitmapSize = (payloadSize + 7) / 8;
+        if(frame.length < 2 + bitmapSize) {
+            referenceLength = 0;
+            return drop(frame);
+        }
+        int valueIndex = 2 + bitmapSize;
+        for(int i = 0; i < payloadSize; i++) {
+            if((frame[2 + i / 8] & (1 << (i % 8))) != 0) {
+                if(valueIndex >= frame.length) {
+                    /* Bitmap and values do not match, wait for the next keyframe */
+                    referenceLength = 0;
+                    return drop(frame);
+                }
+                reference[2 + i] = frame[valueIndex++];
+            }
+        }
+        SensorFrame.releaseBuffer(frame);
+        byte[] fullFrame = SensorFrame.obtainBuffer(referenceLength);
+        System.arraycopy(reference, 0, fullFrame, 0, referenceLength);
+        return fullFrame;
+    }
+
+
+    /* Count and release a delta frame which cannot be expanded */
+    private byte[] drop(byte[] frame) {
+        droppedFrames++;
+        SensorFrame.releaseBuffer(frame);
+        return null;
+    }
+}
@@ -0,0 +1,147 @@
+package de.bananajoh.sv650overlay;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* Adapters seen before with their type, last seen time and signal strength, kept in the preferences so the device list
+ * can offer them right away and reconnects know the transport without a discovery. Use getInstance() to share one
+ * cache between activities and the service. Changes stay in memory until save() is called, e.g. when a scan stops or
+ * on connect, as scans report every adapter many times per second. */
+public class DeviceCache {
+    public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+    private static final String PREFERENCE_DEVICE_CACHE = "deviceCache";
+    private static final int MAX_ENTRIES = 16;
+
+    private static DeviceCache instance = null;
+
+    private final SharedPreferences sharedPreferences;
+    private final List<Entry> entries = new ArrayList<>();
+    private boolean changed = false;
+
+
+    /* Cached adapter */
+    public static class Entry {
+        public String address;
+        public String name;
+        public int type = BluetoothDevice.DEVICE_TYPE_UNKNOWN;
+        public long lastSeenMs = 0;
+        public int rssi = RSSI_UNKNOWN;
+    }
+
+
+    /* Shared cache, loaded from the preferences on first use */
+    public static synchronized DeviceCache getInstance(Context context) {
+        if(instance == null) {
+            instance = new DeviceCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+
+    /* Constructor, entries are stored newest first */
+    private DeviceCache(Context context) {
+        sharedPreferences = context.getSharedPreferences(context.getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        try {
+            JSONArray array = new JSONArray(sharedPreferences.getString(PREFERENCE_DEVICE_CACHE, "[]"));
+            for(int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                Entry entry = new Entry();
+                entry.address = object.getString("address");
+                entry.name = object.optString("name", null);
+                entry.type = object.optInt("type", BluetoothDevice.DEVICE_TYPE_UNKNOWN);
+                entry.lastSeenMs = object.optLong("lastSeenMs", 0);
+                entry.rssi = object.optInt("rssi", RSSI_UNKNOWN);
+                entries.add(entry);
+            }
+        } catch(JSONException ex) {
+            /* Broken cache, start over */
+            entries.clear();
+        }
+    }
+
+
+    /* Cached entry of an address, null if the adapter has not been seen yet */
+    public synchronized Entry get(String address) {
+        for(Entry entry : entries) {
+            if(entry.address.equals(address)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+
+    /* Copy of all entries, newest first */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+
+    /* Remember an adapter as seen now, unknown name, type or RSSI keep the values seen before, not saved yet */
+    public synchronized void put(String address, String name, int type, int rssi) {
+        Entry entry = get(address);
+        if(entry == null) {
+            entry = new Entry();
+            entry.address = address;
+        } else {
+            entries.remove(entry);
+        }
+        if(name != null) {
+            entry.name = name;
+        }
+        if(type != BluetoothDevice.DEVICE_TYPE_UNKNOWN) {
+            entry.type = type;
+        }
+        if(rssi != RSSI_UNKNOWN) {
+            entry.rssi = rssi;
+        }
+        entry.lastSeenMs = System.currentTimeMillis();
+        entries.add(0, entry);
+        while(entries.size() > MAX_ENTRIES) {
+            entries.remove(entries.size() - 1);
+        }
+        changed = true;
+    }
+
+
+    /* Type of a cached adapter, DEVICE_TYPE_UNKNOWN if it has not been seen yet */
+    public synchronized int getType(String address) {
+        Entry entry = get(address);
+        return (entry != null) ? entry.type : BluetoothDevice.DEVICE_TYPE_UNKNOWN;
+    }
+
+
+    /* Write the entries to the preferences if they have changed */
+    public synchronized void save() {
+        if(!changed) {
+            return;
+        }
+        changed = false;
+        JSONArray array = new JSONArray();
+        try {
+            for(Entry entry : entries) {
+                JSONObject object = new JSONObject();
+                object.put("address", entry.address);
+                if(entry.name != null) {
+                    object.put("name", entry.name);
+                }
+                object.put("type", entry.type);
+                object.put("lastSeenMs", entry.lastSeenMs);
+                object.put("rssi", entry.rssi);
+                array.put(object);
+            }
+        } catch(JSONException ex) {
+            return;
+        }
+        sharedPreferences.edit().putString(PREFERENCE_DEVICE_CACHE, array.toString()).apply();
+    }
+}
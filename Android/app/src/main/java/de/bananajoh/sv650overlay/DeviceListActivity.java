@@ -3,11 +3,19 @@ package de.bananajoh.sv650overlay;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.text.format.DateUtils;
 import android.text.Html;
 import android.text.Spanned;
 import android.view.Menu;
@@ -22,15 +30,23 @@ import android.widget.TextView;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 
 public class DeviceListActivity extends AppCompatActivity {
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
+    private static final long BLE_SCAN_DURATION_MS = 10000;
 
     private BluetoothAdapter bluetoothAdapter = null;
+    private BluetoothLeScanner bleScanner = null;
+    private boolean bleScanning = false;
+    private final Handler bleScanHandler = new Handler();
     private ProgressBar progressBar = null;
     private ArrayAdapter<Spanned> newDevicesArrayAdapter = null;
+    private final Set<String> newDeviceAddresses = new HashSet<>();
 
 
     /* Return the device type as string */
@@ -52,6 +68,28 @@ public class DeviceListActivity extends AppCompatActivity {
     }
 
 
+    /* Add a found device to the list of new devices once and remember it in the device cache */
+    private void addFoundDevice(BluetoothDevice device, int rssi) {
+        DeviceCache.getInstance(this).put(device.getAddress(), device.getName(), device.getType(), rssi);
+        if(device.getBondState() == BluetoothDevice.BOND_BONDED || !newDeviceAddresses.add(device.getAddress())) {
+            return;
+        }
+        newDevicesArrayAdapter.add(Html.fromHtml("<b>" + device.getName() + "</b> <i>" + deviceTypeString(device.getType()) + "</i><br>" + device.getAddress(), Html.FROM_HTML_MODE_LEGACY));
+    }
+
+
+    /* Scan or discovery has finished */
+    private void onSearchFinished() {
+        DeviceCache.getInstance(this).save();
+        progressBar.setIndeterminate(false);
+        setTitle(R.string.bluetooth_title_select_device);
+        if(newDevicesArrayAdapter.getCount() == 0) {
+            Spanned noDevices = Html.fromHtml("<i>" + getResources().getText(R.string.bluetooth_no_new_devices).toString() + "</i>", Html.FROM_HTML_MODE_LEGACY);
+            newDevicesArrayAdapter.add(noDevices);
+        }
+    }
+
+
     /* Listen for device discovery broadcasts */
     private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
         @Override
@@ -59,18 +97,45 @@ public class DeviceListActivity extends AppCompatActivity {
             String action = intent.getAction();
             if(action.equals(BluetoothDevice.ACTION_FOUND)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                if(device != null && device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    newDevicesArrayAdapter.add(Html.fromHtml("<b>" + device.getName() + "</b> <i>" + deviceTypeString(device.getType()) + "</i><br>" + device.getAddress()));
-                }
-            } else if(action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
-                progressBar.setIndeterminate(false);
-                setTitle(R.string.bluetooth_title_select_device);
-                if(newDevicesArrayAdapter.getCount() == 0) {
-                    Spanned noDevices = Html.fromHtml("<i>" + getResources().getText(R.string.bluetooth_no_new_devices).toString() + "</i>");
-                    newDevicesArrayAdapter.add(noDevices);
+                if(device != null) {
+                    addFoundDevice(device, intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceCache.RSSI_UNKNOWN));
                 }
+            } else if(action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED) && !bleScanning) {
+                onSearchFinished();
+            }
+        }
+    };
+
+
+    /* Receive results of the filtered BLE scan */
+    private final ScanCallback bleScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            addFoundDevice(result.getDevice(), result.getRssi());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for(ScanResult result : results) {
+                addFoundDevice(result.getDevice(), result.getRssi());
             }
         }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            bleScanning = false;
+            onSearchFinished();
+        }
+    };
+
+
+    /* End the BLE scan after its duration */
+    private final Runnable bleScanTimeout = new Runnable() {
+        @Override
+        public void run() {
+            stopBleScan();
+            onSearchFinished();
+        }
     };
 
 
@@ -78,6 +143,7 @@ public class DeviceListActivity extends AppCompatActivity {
     private AdapterView.OnItemClickListener deviceClickListener = new AdapterView.OnItemClickListener() {
         public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
             bluetoothAdapter.cancelDiscovery();
+            stopBleScan();
 
             /* Get the device MAC address, which is the last 17 chars in the View */
             String info = ((TextView) v).getText().toString();
@@ -94,20 +160,69 @@ public class DeviceListActivity extends AppCompatActivity {
     };
 
 
-    /* Discover nearby Bluetooth devices */
-    private void bluetoothDiscovery() {
+    /* Clear the list of new devices and indicate searching in the title */
+    private void startSearch() {
         newDevicesArrayAdapter.clear();
-        /* Indicate scanning in the title */
+        newDeviceAddresses.clear();
         progressBar.setIndeterminate(true);
         setTitle(R.string.bluetooth_title_scanning);
         findViewById(R.id.bluetooth_title_new_devices).setVisibility(View.VISIBLE);
         if(bluetoothAdapter.isDiscovering()) {
             bluetoothAdapter.cancelDiscovery();
         }
+        stopBleScan();
+    }
+
+
+    /* Discover all nearby classic Bluetooth devices, takes about 12 seconds */
+    private void bluetoothDiscovery() {
+        startSearch();
         bluetoothAdapter.startDiscovery();
     }
 
 
+    /* Scan for BLE devices offering the SPP service only, finds an advertising adapter within about a second */
+    private void bleScan() {
+        bleScanner = bluetoothAdapter.getBluetoothLeScanner();
+        if(bleScanner == null) {
+            bluetoothDiscovery();
+            return;
+        }
+        startSearch();
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(DeviceSession.BLE_SPP_SERVICE_UUID)).build());
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+        bleScanner.startScan(filters, settings, bleScanCallback);
+        bleScanning = true;
+        bleScanHandler.postDelayed(bleScanTimeout, BLE_SCAN_DURATION_MS);
+    }
+
+
+    /* Stop a running BLE scan */
+    private void stopBleScan() {
+        bleScanHandler.removeCallbacks(bleScanTimeout);
+        if(bleScanning && bleScanner != null && bluetoothAdapter.isEnabled()) {
+            bleScanner.stopScan(bleScanCallback);
+        }
+        bleScanning = false;
+    }
+
+
+    /* Fill the list of adapters seen before, newest first, so known devices can be picked without waiting for a scan */
+    private void showCachedDevices(ArrayAdapter<Spanned> cachedDevicesArrayAdapter) {
+        List<DeviceCache.Entry> entries = DeviceCache.getInstance(this).getEntries();
+        if(entries.isEmpty()) {
+            return;
+        }
+        findViewById(R.id.bluetooth_title_cached_devices).setVisibility(View.VISIBLE);
+        for(DeviceCache.Entry entry : entries) {
+            CharSequence seen = DateUtils.getRelativeTimeSpanString(entry.lastSeenMs);
+            String details = (entry.rssi != DeviceCache.RSSI_UNKNOWN) ? getString(R.string.bluetooth_cached_device_seen, seen, entry.rssi) : getString(R.string.bluetooth_cached_device_seen_no_rssi, seen);
+            cachedDevicesArrayAdapter.add(Html.fromHtml("<b>" + entry.name + "</b> <i>" + deviceTypeString(entry.type) + ", " + details + "</i><br>" + entry.address, Html.FROM_HTML_MODE_LEGACY));
+        }
+    }
+
+
     /* Create callback */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -124,10 +239,16 @@ public class DeviceListActivity extends AppCompatActivity {
         /* Find the progress bar */
         progressBar = (ProgressBar) this.findViewById(R.id.progress_bar);
 
-        /* Initialize array adapters. One for already paired devices and one for newly discovered devices */
+        /* Initialize array adapters. One for devices seen before, one for already paired devices and one for newly discovered devices */
+        ArrayAdapter<Spanned> cachedDevicesArrayAdapter = new ArrayAdapter<Spanned>(this, R.layout.device_list_entry);
         ArrayAdapter<Spanned> pairedDevicesArrayAdapter = new ArrayAdapter<Spanned>(this, R.layout.device_list_entry);
         newDevicesArrayAdapter = new ArrayAdapter<Spanned>(this, R.layout.device_list_entry);
 
+        /* Find and set up the ListView for devices seen before */
+        ListView cachedListView = findViewById(R.id.bluetooth_cached_devices);
+        cachedListView.setAdapter(cachedDevicesArrayAdapter);
+        cachedListView.setOnItemClickListener(deviceClickListener);
+
         /* Find and set up the ListView for paired devices */
         ListView pairedListView = findViewById(R.id.bluetooth_paired_devices);
         pairedListView.setAdapter(pairedDevicesArrayAdapter);
@@ -149,6 +270,9 @@ public class DeviceListActivity extends AppCompatActivity {
         /* Get the local Bluetooth adapter */
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
+        /* List the devices seen before */
+        showCachedDevices(cachedDevicesArrayAdapter);
+
         /* Get a set of currently paired devices */
         Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
 
@@ -156,15 +280,15 @@ public class DeviceListActivity extends AppCompatActivity {
         if(pairedDevices.size() > 0) {
             findViewById(R.id.bluetooth_title_paired_devices).setVisibility(View.VISIBLE);
             for(BluetoothDevice device : pairedDevices) {
-                pairedDevicesArrayAdapter.add(Html.fromHtml("<b>" + device.getName() + "</b> <i>" + deviceTypeString(device.getType()) + "</i><br>" + device.getAddress()));
+                pairedDevicesArrayAdapter.add(Html.fromHtml("<b>" + device.getName() + "</b> <i>" + deviceTypeString(device.getType()) + "</i><br>" + device.getAddress(), Html.FROM_HTML_MODE_LEGACY));
             }
         } else {
-            Spanned noDevices = Html.fromHtml("<i>" + getResources().getText(R.string.bluetooth_no_paired_devices).toString() + "</i>");
+            Spanned noDevices = Html.fromHtml("<i>" + getResources().getText(R.string.bluetooth_no_paired_devices).toString() + "</i>", Html.FROM_HTML_MODE_LEGACY);
             pairedDevicesArrayAdapter.add(noDevices);
         }
 
-        /* Start device discovery */
-        bluetoothDiscovery();
+        /* Start the filtered BLE scan, the classic discovery is available in the menu */
+        bleScan();
     }
 
 
@@ -173,7 +297,9 @@ public class DeviceListActivity extends AppCompatActivity {
     public void onDestroy() {
         if(bluetoothAdapter != null) {
             bluetoothAdapter.cancelDiscovery();
+            stopBleScan();
         }
+        DeviceCache.getInstance(this).save();
         this.unregisterReceiver(broadcastReceiver);
         super.onDestroy();
     }
@@ -198,6 +324,9 @@ public class DeviceListActivity extends AppCompatActivity {
 
         //noinspection SimplifiableIfStatement
         if(id == R.id.action_scan_bluetooth) {
+            bleScan();
+            return true;
+        } else if(id == R.id.action_discover_classic) {
             bluetoothDiscovery();
             return true;
         }
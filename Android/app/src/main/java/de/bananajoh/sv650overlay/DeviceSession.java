@@ -0,0 +1,1070 @@
+package de.bananajoh.sv650overlay;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+
+/* Connection, decode pipeline, statistics and log of one Bluetooth device */
+public class DeviceSession {
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    public static final UUID BLE_SPP_SERVICE_UUID = UUID.fromString("0000ABF0-0000-1000-8000-00805F9B34FB");
+    private static final UUID BLE_SPP_CHAR_TX_UUID = UUID.fromString("0000ABF1-0000-1000-8000-00805F9B34FB");
+    private static final UUID BLE_SPP_CHAR_RX_UUID = UUID.fromString("0000ABF2-0000-1000-8000-00805F9B34FB");
+    private static final int BLE_REQUESTED_MTU = 128;
+    /* Connection interval range Android asks for with CONNECTION_PRIORITY_HIGH */
+    private static final String BLE_HIGH_PRIORITY_INTERVAL = "11.25-15";
+    public static final byte[] COMMAND_RESET = { (byte) 0xFF };
+    public static final byte[] COMMAND_GO    = { 0x01 };
+    public static final byte[] COMMAND_STOP  = { 0x00 };
+    public static final byte COMMAND_PROTOCOL_VERSION = 0x10;
+    public static final int PROTOCOL_VERSION_FULL = 1;
+    public static final int PROTOCOL_VERSION_DELTA = 2;
+    public static final int PROTOCOL_VERSION_SEQUENCE = 3;
+    private static final byte COMMAND_POLL_PROFILE = 0x11;
+    private static final int SENSOR_QUEUE_CAPACITY = 4096;
+    private static final int SENSOR_QUEUE_DRAIN_THRESHOLD = 64;
+    private static final int MAX_PENDING_FRAMES = 256;
+    /* Backlog of the pipeline above which the simulation merges frames instead of queueing more */
+    private static final int SIMULATION_BACKLOG_LIMIT = 32;
+    private static final long MAX_SIMULATION_STEP_MS = 1000;
+
+    private final Context context;
+    private final String address;
+    private final Listener listener;
+    private final Clock clock;
+    private final Executor mainExecutor;
+    private final HandlerThread pipelineThread;
+    private final Executor pipelineExecutor;
+    private final SessionLogger sessionLogger;
+    private PhoneSensorRecorder sensorRecorder = null;
+    private PhoneSensorRecorder.Queue sensorQueue = null;
+
+    private volatile boolean bluetoothBusy = false;
+    /* Socket of a classic connect in progress and whether the connect has been cancelled, guarded by connectLock */
+    private final Object connectLock = new Object();
+    private BluetoothSocket pendingSocket = null;
+    private boolean connectCancelled = false;
+    private BluetoothAdapter bluetoothAdapter = null;
+    private BluetoothDevice bluetoothDevice = null;
+    private volatile BluetoothSocket bluetoothSocket = null;
+    private OutputStream bluetoothOutputStream = null;
+    private InputStream bluetoothInputStream = null;
+    private Thread bluetoothWorkerThread = null;
+    /* Decoder of the current connection or simulation */
+    private volatile FrameDecoder frameDecoder = null;
+    private final FrameSequencer frameSequencer;
+    /* Frames between the receiving thread and the pipeline thread, a ring of MAX_PENDING_FRAMES guarded by pendingLock */
+    private final Object pendingLock = new Object();
+    private final byte[][] pendingData = new byte[MAX_PENDING_FRAMES][];
+    private final long[] pendingTimesNs = new long[MAX_PENDING_FRAMES];
+    private final int[] pendingMissing = new int[MAX_PENDING_FRAMES];
+    private final int[] pendingLate = new int[MAX_PENDING_FRAMES];
+    private int pendingHead = 0;
+    private int pendingCount = 0;
+    private int overflowFrames = 0;
+    private int overflowLateFrames = 0;
+    private boolean drainPosted = false;
+    private final Runnable drainPendingData = new Runnable() {
+        public void run() {
+            drainPendingData();
+        }
+    };
+    private DecodePlan.DerivedState derivedState = null;
+    private volatile boolean stopBluetoothWorkerThread = true;
+    private volatile BluetoothGatt bluetoothGatt = null;
+    private BluetoothGattCharacteristic bleTxCharacteristic = null;
+    private volatile boolean bleConnected = false;
+    private volatile int bleMtu = 23;
+    private volatile float bleConnectionIntervalMs = 0.0f;
+    private volatile String blePhy = "1M";
+    private final ArrayDeque<byte[]> bleCommandQueue = new ArrayDeque<>();
+    private boolean bleCommandPending = false;
+    private boolean autoReconnect = false;
+    private volatile long lastConnectAttemptMs = 0;
+    private volatile Thread simulationThread = null;
+    private volatile boolean stopSimulationThread = true;
+
+    /* Protocol state and statistics, written on the pipeline thread */
+    private volatile int protocolVersion = PROTOCOL_VERSION_FULL;
+    private volatile int requestedProtocolVersion = PROTOCOL_VERSION_SEQUENCE;
+    private int requestedPollProfile = OverlayService.POLL_PROFILE_NORMAL;
+    private volatile int pollProfile = -1;
+    private volatile int pollIntervalMs = 0;
+    private long lastDataFrameTimeMs = 0;
+    private volatile float averageFrameIntervalMs = 0.0f;
+    private volatile long receivedFrames = 0;
+    private volatile long receivedBytes = 0;
+
+
+    /* Receiver of session events */
+    public interface Listener {
+        /* Complete frame received at frame.receiveTimeNs (SystemClock.elapsedRealtimeNanos()), called on the pipeline thread of
+         * the session. The frame is released after the call, retain it to keep it longer. */
+        void onFrame(DeviceSession session, SensorFrame frame);
+
+        /* Connection established or lost, called on the main thread */
+        void onConnectionChanged(DeviceSession session, boolean connected);
+
+        /* Log file closed and complete, called on the main thread */
+        void onLogClosed(DeviceSession session, File logFile);
+    }
+
+
+    /* Constructor, has to be called on the main thread */
+    public DeviceSession(Context context, String address, Listener listener) {
+        this.context = context;
+        this.address = address;
+        this.listener = listener;
+        clock = Clock.SYSTEM;
+        sessionLogger = new SessionLogger(SessionCatalog.getInstance(context), address, clock);
+        mainExecutor = createHandlerExecutor(new Handler(Looper.getMainLooper()));
+        pipelineThread = new HandlerThread("DeviceSession " + address);
+        pipelineThread.start();
+        pipelineExecutor = createHandlerExecutor(new Handler(pipelineThread.getLooper()));
+        frameSequencer = createFrameSequencer();
+    }
+
+
+    /* Constructor for tests on a plain JVM without Bluetooth: main and pipeline thread work is run by the given executors,
+     * which the caller shuts down after close(), receive times come from the given clock and logs have no catalog entry */
+    DeviceSession(String address, Listener listener, Executor mainExecutor, Executor pipelineExecutor, Clock clock) {
+        this.context = null;
+        this.address = address;
+        this.listener = listener;
+        this.clock = clock;
+        sessionLogger = new SessionLogger(null, address, clock);
+        this.mainExecutor = mainExecutor;
+        pipelineThread = null;
+        this.pipelineExecutor = pipelineExecutor;
+        frameSequencer = createFrameSequencer();
+    }
+
+
+    /* Executor posting to a handler */
+    private static Executor createHandlerExecutor(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        };
+    }
+
+
+    /* Frame sequencer handing complete frames over to the pipeline thread */
+    private FrameSequencer createFrameSequencer() {
+        return new FrameSequencer(new FrameSequencer.Listener() {
+            @Override
+            public void onData(byte[] data, long receiveTimeNs, int missingFrames, int lateFrames) {
+                queueReceivedData(data, receiveTimeNs, missingFrames, lateFrames);
+            }
+        });
+    }
+
+
+    /* Queue a frame for the pipeline thread, one drain task is posted for all frames queued while it is pending. Frames
+     * not fitting into the queue are dropped and reported as missing with the next frame queued. */
+    private void queueReceivedData(byte[] data, long receiveTimeNs, int missingFrames, int lateFrames) {
+        boolean post;
+        synchronized(pendingLock) {
+            if(pendingCount == MAX_PENDING_FRAMES) {
+                overflowFrames += 1 + missingFrames;
+                overflowLateFrames += lateFrames;
+                SensorFrame.releaseBuffer(data);
+                return;
+            }
+            int index = (pendingHead + pendingCount) % MAX_PENDING_FRAMES;
+            pendingData[index] = data;
+            pendingTimesNs[index] = receiveTimeNs;
+            pendingMissing[index] = missingFrames + overflowFrames;
+            pendingLate[index] = lateFrames + overflowLateFrames;
+            overflowFrames = 0;
+            overflowLateFrames = 0;
+            pendingCount++;
+            post = !drainPosted;
+            drainPosted = true;
+        }
+        if(post) {
+            pipelineExecutor.execute(drainPendingData);
+        }
+    }
+
+
+    /* Hand the queued frames to processReceivedData, runs on the pipeline thread */
+    private void drainPendingData() {
+        while(true) {
+            byte[] data;
+            long receiveTimeNs;
+            int missingFrames;
+            int lateFrames;
+            synchronized(pendingLock) {
+                if(pendingCount == 0) {
+                    drainPosted = false;
+                    return;
+                }
+                data = pendingData[pendingHead];
+                receiveTimeNs = pendingTimesNs[pendingHead];
+                missingFrames = pendingMissing[pendingHead];
+                lateFrames = pendingLate[pendingHead];
+                pendingData[pendingHead] = null;
+                pendingHead = (pendingHead + 1) % MAX_PENDING_FRAMES;
+                pendingCount--;
+            }
+            processReceivedData(data, receiveTimeNs, missingFrames, lateFrames);
+        }
+    }
+
+
+    /* Number of frames waiting for the pipeline thread */
+    int getPendingFrameCount() {
+        synchronized(pendingLock) {
+            return pendingCount;
+        }
+    }
+
+
+    /* Show a message on the main thread */
+    private void showToast(final String text, final int duration) {
+        mainExecutor.execute(new Runnable() {
+            public void run() {
+                Toast.makeText(context, text, duration).show();
+            }
+        });
+    }
+
+
+    /* Notify listener about connection changes on the main thread */
+    private void notifyConnectionChanged(final boolean connected) {
+        mainExecutor.execute(new Runnable() {
+            public void run() {
+                listener.onConnectionChanged(DeviceSession.this, connected);
+            }
+        });
+    }
+
+
+    /* Device address */
+    public String getAddress() {
+        return address;
+    }
+
+
+    /* Device name, the address if the name is not known */
+    public String getName() {
+        if(bluetoothDevice != null && bluetoothDevice.getName() != null) {
+            return bluetoothDevice.getName();
+        }
+        return address;
+    }
+
+
+    /* Check whether the session should be reconnected after losing the connection */
+    public boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+
+    /* Handle command acknowledge frames (type 0x04), which consist of the command and the value now active */
+    private void processAcknowledge(byte[] data) {
+        if(data.length < 4) {
+            return;
+        }
+        if(data[2] == COMMAND_PROTOCOL_VERSION) {
+            protocolVersion = data[3];
+            if(protocolVersion < requestedProtocolVersion && requestedProtocolVersion == PROTOCOL_VERSION_SEQUENCE) {
+                /* Firmware without sequence numbers falls back to full frames, ask for delta frames instead */
+                setRequestedProtocolVersion(PROTOCOL_VERSION_DELTA);
+                mainExecutor.execute(new Runnable() {
+                    public void run() {
+                        writeCommand(new byte[] { COMMAND_PROTOCOL_VERSION, PROTOCOL_VERSION_DELTA });
+                    }
+                });
+            }
+        } else if(data[2] == COMMAND_POLL_PROFILE && data.length >= 6) {
+            pollProfile = data[3];
+            pollIntervalMs = ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+        }
+    }
+
+
+    /* Track the interval between data frames to get the effective refresh rate */
+    private void measureRefreshRate(long receiveTimeNs) {
+        long now = receiveTimeNs / 1000000;
+        if(lastDataFrameTimeMs > 0) {
+            long interval = now - lastDataFrameTimeMs;
+            if(averageFrameIntervalMs == 0.0f) {
+                averageFrameIntervalMs = interval;
+            } else {
+                averageFrameIntervalMs = averageFrameIntervalMs * 0.8f + interval * 0.2f;
+            }
+        }
+        lastDataFrameTimeMs = now;
+    }
+
+
+    /* Count, log and forward a received frame, runs on the pipeline thread */
+    private void processReceivedData(byte[] data, long receiveTimeNs, int missingFrames, int lateFrames) {
+        if(lateFrames > 0) {
+            sessionLogger.appendLate(lateFrames, receiveTimeNs);
+        }
+        if(missingFrames > 0) {
+            sessionLogger.appendGap(missingFrames, receiveTimeNs);
+        }
+        receivedFrames++;
+        receivedBytes += data.length;
+        if(data.length > 1 && data[0] == 0x04) {
+            processAcknowledge(data);
+            SensorFrame.releaseBuffer(data);
+            return;
+        }
+        if(data.length > 0 && data[0] == 0x01) {
+            measureRefreshRate(receiveTimeNs);
+        }
+
+        /* Decoded once here for all consumers, derived channels carry their state from frame to frame */
+        DecodePlan plan = DataInfo.PLAN;
+        if(derivedState == null || derivedState.plan != plan) {
+            derivedState = plan.newDerivedState();
+        }
+        SensorFrame frame = SensorFrame.obtain(address, data, receiveTimeNs, derivedState);
+        sessionLogger.append(frame);
+        listener.onFrame(this, frame);
+        frame.release();
+    }
+
+
+    /* Create a frame decoder which checks sequence numbers, expands delta frames and hands complete frames over to the pipeline
+     * thread, it becomes the decoder of the session */
+    private FrameDecoder createFrameDecoder() {
+        frameSequencer.reset();
+        FrameDecoder decoder = new FrameDecoder(frameSequencer);
+        decoder.setProtocolVersion(requestedProtocolVersion);
+        frameDecoder = decoder;
+        return decoder;
+    }
+
+
+    /* Remember the protocol version asked for, the decoder accepts frames up to that version from now on */
+    private void setRequestedProtocolVersion(int version) {
+        requestedProtocolVersion = version;
+        FrameDecoder decoder = frameDecoder;
+        if(decoder != null) {
+            decoder.setProtocolVersion(version);
+        }
+    }
+
+
+    /* Start data logging to the given file */
+    public void startDataLogging(final File logFile) {
+        pipelineExecutor.execute(new Runnable() {
+            public void run() {
+                sessionLogger.start(logFile);
+            }
+        });
+    }
+
+
+    /* Switch the log to rarer, larger flushes while only logging with the screen off */
+    public void setLowPower(final boolean lowPower) {
+        pipelineExecutor.execute(new Runnable() {
+            public void run() {
+                sessionLogger.setLowPower(lowPower);
+            }
+        });
+    }
+
+
+    /* Stop data logging */
+    public void stopDataLogging() {
+        pipelineExecutor.execute(new Runnable() {
+            public void run() {
+                stopLog();
+            }
+        });
+    }
+
+
+    /* Close the log and report the closed file, runs on the pipeline thread */
+    private void stopLog() {
+        final File logFile = sessionLogger.stop();
+        if(logFile == null) {
+            return;
+        }
+        mainExecutor.execute(new Runnable() {
+            public void run() {
+                listener.onLogClosed(DeviceSession.this, logFile);
+            }
+        });
+    }
+
+
+    /* Copy of the operating point map of the running log for a load channel (index into OperatingPointMap.LOAD_LABELS), null if not logging */
+    public OperatingPointMap copyOperatingPointMap(int load) {
+        return sessionLogger.copyOperatingPointMap(load);
+    }
+
+
+    /* Write the phone sensor samples of a recorder into the log, has to be called on the main thread. Samples are drained
+     * in batches on the merge thread of the logger, so the IMU rate does not add work to the frame pipeline. */
+    public void startSensorRecording(PhoneSensorRecorder recorder) {
+        if(sensorRecorder != null) {
+            return;
+        }
+        final PhoneSensorRecorder.Queue queue = new PhoneSensorRecorder.Queue(SENSOR_QUEUE_CAPACITY, SENSOR_QUEUE_DRAIN_THRESHOLD, new Runnable() {
+            public void run() {
+                sessionLogger.requestSensorDrain();
+            }
+        });
+        pipelineExecutor.execute(new Runnable() {
+            public void run() {
+                sessionLogger.setSensorQueue(queue);
+            }
+        });
+        recorder.addQueue(queue);
+        sensorRecorder = recorder;
+        sensorQueue = queue;
+    }
+
+
+    /* Stop writing phone sensor samples into the log, has to be called on the main thread */
+    public void stopSensorRecording() {
+        if(sensorRecorder == null) {
+            return;
+        }
+        sensorRecorder.removeQueue(sensorQueue);
+        sensorRecorder = null;
+        sensorQueue = null;
+        pipelineExecutor.execute(new Runnable() {
+            public void run() {
+                sessionLogger.setSensorQueue(null);
+            }
+        });
+    }
+
+
+    /* Setup and start a worker thread for receiving Bluetooth data */
+    private void startBluetoothWorkerThread() {
+        stopBluetoothWorkerThread = false;
+        final FrameDecoder decoder = createFrameDecoder();
+        bluetoothWorkerThread = new Thread(new Runnable() {
+            public void run() {
+                mainExecutor.execute(new Runnable() {
+                    public void run() {
+                        startDataStream();
+                    }
+                });
+
+                byte[] packetBytes = new byte[1024];
+                while(!Thread.currentThread().isInterrupted() && !stopBluetoothWorkerThread) {
+                    try {
+                        int bytesAvailable = bluetoothInputStream.available();
+                        if(bytesAvailable > 0) {
+                            int bytesRead = bluetoothInputStream.read(packetBytes, 0, Math.min(bytesAvailable, packetBytes.length));
+                            if(bytesRead > 0) {
+                                decoder.feed(packetBytes, 0, bytesRead, clock.elapsedRealtimeNanos());
+                            }
+                        }
+                    } catch(final IOException ex) {
+                        showToast(ex.toString(), Toast.LENGTH_LONG);
+                        notifyConnectionChanged(false);
+                        stopBluetoothWorkerThread = true;
+                    }
+                }
+            }
+        }, "DeviceSession " + address + " receive");
+        bluetoothWorkerThread.start();
+    }
+
+
+    /* Feed frames of a ride simulator through the decode pipeline instead of a Bluetooth connection, framesPerSecond sets
+     * the emit rate and modelIntervalMs the model time per frame (1000 / framesPerSecond for real-time), has to be called
+     * on the main thread */
+    public void startSimulation(final RideSimulator simulator, final float framesPerSecond, final long modelIntervalMs) {
+        stopSimulation();
+        stopSimulationThread = false;
+        final FrameDecoder decoder = createFrameDecoder();
+        /* A simulator may send frames of any protocol version */
+        decoder.setProtocolVersion(PROTOCOL_VERSION_SEQUENCE);
+        simulationThread = new Thread(new Runnable() {
+            public void run() {
+                long periodNs = (long) (1000000000L / framesPerSecond);
+                long nextFrameNs = clock.elapsedRealtimeNanos();
+                int mergedFrames = 0;
+                while(!stopSimulationThread) {
+                    long now = clock.elapsedRealtimeNanos();
+                    if(now < nextFrameNs) {
+                        LockSupport.parkNanos(nextFrameNs - now);
+                        continue;
+                    }
+                    nextFrameNs += periodNs;
+                    if(now - nextFrameNs > 1000000000L) {
+                        /* Simulation thread cannot keep up, skip instead of catching up with a burst */
+                        nextFrameNs = now;
+                    }
+                    if(getPendingFrameCount() >= SIMULATION_BACKLOG_LIMIT) {
+                        /* Pipeline is behind, the model time of this frame goes into the next one sent */
+                        mergedFrames++;
+                        continue;
+                    }
+                    long dtMs = Math.max(modelIntervalMs, Math.min(modelIntervalMs * (1 + mergedFrames), MAX_SIMULATION_STEP_MS));
+                    decoder.feed(simulator.nextFrame(dtMs), now);
+                    mergedFrames = 0;
+                }
+            }
+        }, "DeviceSession " + address + " simulation");
+        simulationThread.start();
+        notifyConnectionChanged(true);
+    }
+
+
+    /* Stop feeding simulated frames */
+    private void stopSimulation() {
+        stopSimulationThread = true;
+        Thread thread = simulationThread;
+        if(thread != null) {
+            try {
+                thread.join();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            simulationThread = null;
+        }
+    }
+
+
+    /* Negotiate the delta protocol and tell the device to start sending data, devices not knowing the command keep sending full frames */
+    private void startDataStream() {
+        protocolVersion = PROTOCOL_VERSION_FULL;
+        pollProfile = -1;
+        pollIntervalMs = 0;
+        pipelineExecutor.execute(new Runnable() {
+            public void run() {
+                lastDataFrameTimeMs = 0;
+                averageFrameIntervalMs = 0.0f;
+            }
+        });
+        setRequestedProtocolVersion(PROTOCOL_VERSION_SEQUENCE);
+        writeCommand(new byte[] { COMMAND_PROTOCOL_VERSION, PROTOCOL_VERSION_SEQUENCE });
+        writeCommand(COMMAND_GO);
+        writeCommand(new byte[] { COMMAND_POLL_PROFILE, (byte) requestedPollProfile });
+    }
+
+
+    /* Request a polling profile, sent right away if connected and again on every (re)connect */
+    public void setPollProfile(int profile) {
+        if(requestedPollProfile == profile) {
+            return;
+        }
+        requestedPollProfile = profile;
+        writeCommand(new byte[] { COMMAND_POLL_PROFILE, (byte) profile });
+    }
+
+
+    /* Send command to the connected device */
+    public void sendCommand(byte[] command) {
+        if(writeCommand(command)) {
+            Toast.makeText(context, R.string.command_sent, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+
+    /* Write command to the connected device without user feedback, BLE writes are queued as only one may be pending */
+    private boolean writeCommand(byte[] command) {
+        if(bluetoothOutputStream != null) {
+            try {
+                bluetoothOutputStream.write(command);
+                bluetoothOutputStream.flush();
+            } catch (final IOException ex) {
+                Toast.makeText(context, ex.toString(), Toast.LENGTH_LONG).show();
+                return false;
+            }
+            return true;
+        } else if(bluetoothGatt != null && bleTxCharacteristic != null) {
+            bleCommandQueue.add(command);
+            writeNextBleCommand();
+            return true;
+        }
+        return false;
+    }
+
+
+    /* Write the next queued command to the BLE characteristic if no other write is pending */
+    private void writeNextBleCommand() {
+        if(bleCommandPending || bleCommandQueue.isEmpty() || bluetoothGatt == null || bleTxCharacteristic == null) {
+            return;
+        }
+        bleTxCharacteristic.setValue(bleCommandQueue.poll());
+        bleCommandPending = bluetoothGatt.writeCharacteristic(bleTxCharacteristic);
+    }
+
+
+    /* Connect to the device with serial port profile (classic) or BLE SPP service, has to be called on the main thread */
+    public void connect(boolean invokeAutoReconnect) {
+        if(invokeAutoReconnect) {
+            autoReconnect = true;
+        }
+        lastConnectAttemptMs = clock.elapsedRealtimeNanos() / 1000000;
+        if(!bluetoothBusy && (bluetoothSocket != null || bluetoothGatt != null)) {
+            /* Release a connection which has been lost before setting up a new one */
+            disconnect(true);
+        }
+        synchronized(connectLock) {
+            connectCancelled = false;
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                if(bluetoothBusy) {
+                    showToast(context.getString(R.string.bluetooth_busy), Toast.LENGTH_LONG);
+                    return;
+                }
+                bluetoothBusy = true;
+
+                bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+                if(!bluetoothAdapter.isEnabled()) {
+                    showToast(context.getString(R.string.bluetooth_not_activated), Toast.LENGTH_LONG);
+                    bluetoothBusy = false;
+                    return;
+                }
+
+                /* Get the BluetoothDevice object and attempt to connect to the device */
+                bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
+                int deviceType = bluetoothDevice.getType();
+                if(deviceType == BluetoothDevice.DEVICE_TYPE_UNKNOWN) {
+                    /* Not seen by the stack since it started, take the type of an earlier scan or connection instead of discovering */
+                    deviceType = DeviceCache.getInstance(context).getType(address);
+                }
+                if(isConnectCancelled()) {
+                    /* Disconnected before the connect started */
+                } else if(deviceType == BluetoothDevice.DEVICE_TYPE_CLASSIC) {
+                    connectClassic();
+                } else if(deviceType == BluetoothDevice.DEVICE_TYPE_LE || deviceType == BluetoothDevice.DEVICE_TYPE_DUAL) {
+                    connectLowEnergy();
+                }
+                bluetoothBusy = false;
+            }
+        }, "DeviceSession " + address + " connect").start();
+    }
+
+
+    /* Connect with serial port profile, runs on the connect thread */
+    private void connectClassic() {
+        BluetoothSocket socket;
+        try {
+            socket = bluetoothDevice.createRfcommSocketToServiceRecord(SPP_UUID);
+        } catch (final IOException ex) {
+            showToast(ex.toString(), Toast.LENGTH_LONG);
+            return;
+        }
+        synchronized(connectLock) {
+            if(connectCancelled) {
+                return;
+            }
+            pendingSocket = socket;
+        }
+        try {
+            /* Blocks until connected or failed, closing the socket from disconnect() aborts it */
+            socket.connect();
+        } catch (final IOException ex) {
+            if(!isConnectCancelled()) {
+                showToast(ex.toString(), Toast.LENGTH_LONG);
+            }
+            return;
+        } finally {
+            synchronized(connectLock) {
+                pendingSocket = null;
+            }
+        }
+        try {
+            bluetoothOutputStream = socket.getOutputStream();
+            bluetoothInputStream = socket.getInputStream();
+        } catch (final IOException ex1) {
+            showToast(ex1.toString(), Toast.LENGTH_LONG);
+            try {
+                socket.close();
+            } catch (final IOException ex2) {
+                showToast(ex2.toString(), Toast.LENGTH_LONG);
+            }
+            bluetoothOutputStream = null;
+            bluetoothInputStream = null;
+            return;
+        }
+        bluetoothSocket = socket;
+        DeviceCache deviceCache = DeviceCache.getInstance(context);
+        deviceCache.put(address, bluetoothDevice.getName(), BluetoothDevice.DEVICE_TYPE_CLASSIC, DeviceCache.RSSI_UNKNOWN);
+        deviceCache.save();
+
+        /* Connection established */
+        final BluetoothSocket connectedSocket = socket;
+        mainExecutor.execute(new Runnable() {
+            public void run() {
+                if(bluetoothSocket != connectedSocket) {
+                    /* Disconnected in the meantime */
+                    return;
+                }
+                startBluetoothWorkerThread();
+                listener.onConnectionChanged(DeviceSession.this, true);
+            }
+        });
+    }
+
+
+    /* Connect to the BLE SPP service, runs on the connect thread */
+    private void connectLowEnergy() {
+        final FrameDecoder bleFrameDecoder = createFrameDecoder();
+        BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                if(newState == BluetoothProfile.STATE_CONNECTED) {
+                    bleConnected = true;
+                    DeviceCache deviceCache = DeviceCache.getInstance(context);
+                    deviceCache.put(address, bluetoothDevice.getName(), bluetoothDevice.getType(), DeviceCache.RSSI_UNKNOWN);
+                    deviceCache.save();
+                    bleFrameDecoder.reset();
+                    frameSequencer.reset();
+                    /* Ask for the shortest connection interval and the fastest PHY to keep the latency low */
+                    gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                    if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bluetoothAdapter.isLe2MPhySupported()) {
+                        gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                    }
+                    /* Request bigger MTU first, service discovery follows when it has been answered */
+                    if(!gatt.requestMtu(BLE_REQUESTED_MTU)) {
+                        gatt.discoverServices();
+                    }
+                    notifyConnectionChanged(true);
+                } else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    bleConnected = false;
+                    bleMtu = 23;
+                    bleConnectionIntervalMs = 0.0f;
+                    mainExecutor.execute(new Runnable() {
+                        public void run() {
+                            bleTxCharacteristic = null;
+                            bleCommandQueue.clear();
+                            bleCommandPending = false;
+                        }
+                    });
+                    notifyConnectionChanged(false);
+                }
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                if(status == BluetoothGatt.GATT_SUCCESS) {
+                    for(final BluetoothGattService service : gatt.getServices()) {
+                        if(service.getUuid().equals(BLE_SPP_SERVICE_UUID)) {
+                            for(final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                                if(characteristic.getUuid().equals(BLE_SPP_CHAR_RX_UUID)) {
+                                    gatt.setCharacteristicNotification(characteristic, true);
+                                    BluetoothGattDescriptor descriptor = characteristic.getDescriptors().get(0);
+                                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                                    gatt.writeDescriptor(descriptor);
+                                } else if(characteristic.getUuid().equals(BLE_SPP_CHAR_TX_UUID)) {
+                                    final BluetoothGattCharacteristic txCharacteristic = characteristic;
+                                    mainExecutor.execute(new Runnable() {
+                                        public void run() {
+                                            bleTxCharacteristic = txCharacteristic;
+                                        }
+                                    });
+                                }
+                            }
+                        }
+                    }
+                } else {
+                    showToast(context.getString(R.string.bluetooth_le_service_not_found), Toast.LENGTH_LONG);
+                }
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                if(status != BluetoothGatt.GATT_SUCCESS) {
+                    /* Without notifications no frame would ever arrive, drop the link and let the reconnect try again */
+                    showToast(context.getString(R.string.bluetooth_le_notifications_failed, status), Toast.LENGTH_LONG);
+                    mainExecutor.execute(new Runnable() {
+                        public void run() {
+                            disconnect(true);
+                        }
+                    });
+                    return;
+                }
+                /* Notifications are enabled, start the data stream */
+                mainExecutor.execute(new Runnable() {
+                    public void run() {
+                        startDataStream();
+                    }
+                });
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                mainExecutor.execute(new Runnable() {
+                    public void run() {
+                        bleCommandPending = false;
+                        writeNextBleCommand();
+                    }
+                });
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                if(status == BluetoothGatt.GATT_SUCCESS) {
+                    bleMtu = mtu;
+                }
+                reportBleLinkParameters();
+                gatt.discoverServices();
+            }
+
+            @Override
+            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                if(status == BluetoothGatt.GATT_SUCCESS) {
+                    blePhy = (rxPhy == BluetoothDevice.PHY_LE_2M) ? "2M" : (rxPhy == BluetoothDevice.PHY_LE_CODED) ? "Coded" : "1M";
+                    reportBleLinkParameters();
+                }
+            }
+
+            /* Hidden API callback invoked by the framework on connection parameter updates. It is not part of the public
+             * SDK, so it cannot be marked @Override and may not be called on every Android version or at all. The
+             * interval is best-effort, until it is reported the requested high priority range is shown. */
+            public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+                if(status == BluetoothGatt.GATT_SUCCESS) {
+                    /* Interval is given in units of 1.25 ms */
+                    bleConnectionIntervalMs = interval * 1.25f;
+                    reportBleLinkParameters();
+                }
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+                /* Notifications may carry partial or multiple frames, so reassemble them like the SPP stream */
+                long receiveTimeNs = clock.elapsedRealtimeNanos();
+                final byte[] data = characteristic.getValue();
+                if(data != null && data.length > 0) {
+                    bleFrameDecoder.feed(data, receiveTimeNs);
+                }
+            }
+        };
+        bluetoothGatt = bluetoothDevice.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+    }
+
+
+    /* Show negotiated BLE link parameters, the requested connection interval if the actual one has not been reported */
+    private void reportBleLinkParameters() {
+        String interval = (bleConnectionIntervalMs > 0.0f) ? String.format(Locale.US, "%.2f", bleConnectionIntervalMs) : context.getString(R.string.bluetooth_le_interval_requested, BLE_HIGH_PRIORITY_INTERVAL);
+        showToast(context.getString(R.string.bluetooth_le_link_parameters, bleMtu, interval, blePhy), Toast.LENGTH_SHORT);
+    }
+
+
+    /* Time of the last connection attempt (SystemClock.elapsedRealtime()), 0 if there was none */
+    public long getLastConnectAttemptMs() {
+        return lastConnectAttemptMs;
+    }
+
+
+    /* Check if the device is connected */
+    public boolean isConnected() {
+        if(simulationThread != null) {
+            return !stopSimulationThread;
+        }
+        BluetoothSocket socket = bluetoothSocket;
+        if(socket != null) {
+            return socket.isConnected() && !stopBluetoothWorkerThread;
+        } else if(bluetoothGatt != null) {
+            return bleConnected;
+        }
+        return false;
+    }
+
+
+    /* Check whether the connect in progress has been cancelled by disconnect() */
+    private boolean isConnectCancelled() {
+        synchronized(connectLock) {
+            return connectCancelled;
+        }
+    }
+
+
+    /* Cancel a connect in progress and wait for the connect thread to finish, whatever it has set up is released by the
+     * caller afterwards, has to be called on the main thread */
+    private void cancelConnect() {
+        synchronized(connectLock) {
+            connectCancelled = true;
+            if(pendingSocket != null) {
+                try {
+                    pendingSocket.close();
+                } catch(IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        /* Only the connect thread sets the flag while this runs on the main thread */
+        while(bluetoothBusy) {
+            SystemClock.sleep(1);
+        }
+    }
+
+
+    /* Disconnect the device if connected or cancel a connect in progress, has to be called on the main thread */
+    public void disconnect(boolean keepReconnecting) {
+        if(!keepReconnecting) {
+            autoReconnect = false;
+        }
+        cancelConnect();
+        if(simulationThread != null) {
+            stopSimulation();
+            listener.onConnectionChanged(this, false);
+            return;
+        }
+        if(bluetoothSocket == null && bluetoothGatt == null) {
+            return;
+        }
+        bluetoothBusy = true;
+        stopBluetoothWorkerThread = true;
+        if(bluetoothSocket != null) {
+            while(bluetoothWorkerThread != null && bluetoothWorkerThread.isAlive()) {
+                SystemClock.sleep(1);
+            }
+            if(bluetoothInputStream != null) {
+                try {
+                    bluetoothInputStream.close();
+                } catch(IOException ex) {
+                    Toast.makeText(context, ex.toString(), Toast.LENGTH_LONG).show();
+                }
+                bluetoothInputStream = null;
+            }
+            if(bluetoothOutputStream != null) {
+                try {
+                    bluetoothOutputStream.close();
+                } catch(IOException ex) {
+                    Toast.makeText(context, ex.toString(), Toast.LENGTH_LONG).show();
+                }
+                bluetoothOutputStream = null;
+            }
+            try {
+                bluetoothSocket.close();
+            } catch(IOException ex) {
+                Toast.makeText(context, ex.toString(), Toast.LENGTH_LONG).show();
+            }
+            bluetoothSocket = null;
+        }
+        bleTxCharacteristic = null;
+        bleCommandQueue.clear();
+        bleCommandPending = false;
+        if(bluetoothGatt != null) {
+            bluetoothGatt.disconnect();
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+            bleConnected = false;
+        }
+
+        listener.onConnectionChanged(this, false);
+        bluetoothBusy = false;
+    }
+
+
+    /* Disconnect, close the log and stop the pipeline thread, the session must not be used afterwards */
+    public void close() {
+        disconnect(false);
+        stopSensorRecording();
+        pipelineExecutor.execute(new Runnable() {
+            public void run() {
+                stopLog();
+                sessionLogger.close();
+            }
+        });
+        if(pipelineThread != null) {
+            pipelineThread.quitSafely();
+        }
+    }
+
+
+    /* Protocol version acknowledged by the device */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+
+    /* Polling profile acknowledged by the device, -1 if unknown */
+    public int getPollProfile() {
+        return pollProfile;
+    }
+
+
+    /* Post frame delay of the active polling profile in milliseconds, 0 if unknown */
+    public int getPollIntervalMs() {
+        return pollIntervalMs;
+    }
+
+
+    /* Measured rate of received data frames in Hz */
+    public float getRefreshRateHz() {
+        if(averageFrameIntervalMs <= 0.0f) {
+            return 0.0f;
+        }
+        return 1000.0f / averageFrameIntervalMs;
+    }
+
+
+    /* Granted BLE MTU, 23 if not negotiated or not connected via BLE */
+    public int getBleMtu() {
+        return bleMtu;
+    }
+
+
+    /* BLE connection interval in milliseconds as reported by the hidden onConnectionUpdated callback, best-effort, 0 if
+     * unknown */
+    public float getBleConnectionIntervalMs() {
+        return bleConnectionIntervalMs;
+    }
+
+
+    /* Number of frames received in this session */
+    public long getReceivedFrames() {
+        return receivedFrames;
+    }
+
+
+    /* Number of frame bytes received in this session */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+
+    /* Frames missing in the sequence (protocol version 3 only) */
+    public long getLostFrames() {
+        return frameSequencer.getLostFrames();
+    }
+
+
+    /* Frames received twice (protocol version 3 only) */
+    public long getDuplicateFrames() {
+        return frameSequencer.getDuplicateFrames();
+    }
+
+
+    /* Frames received after a newer one (protocol version 3 only) */
+    public long getReorderedFrames() {
+        return frameSequencer.getReorderedFrames();
+    }
+}
@@ -0,0 +1,113 @@
+package de.bananajoh.sv650overlay;
+
+
+/* Reassembles [type, length, payload ...] frames out of a byte stream which arrives in arbitrary chunks (SPP reads, BLE notifications),
+ * every frame carries the receive time of the chunk holding its first byte. A type or length the protocol version in use
+ * cannot send, e. g. the device dropped the rest of a split frame, throws the bytes away until a valid header follows. */
+public class FrameDecoder {
+    private static final int MIN_FRAME_LENGTH = 2;
+    private static final int MAX_FRAME_LENGTH = 255;
+    private static final int FRAME_FLAG_SEQUENCE = 0x80;
+    private static final int FRAME_TYPE_DATA = 0x01;
+    private static final int FRAME_TYPE_DELTA = 0x03;
+    private static final int FRAME_TYPE_ACK = 0x04;
+
+    private final Listener listener;
+    private final byte[] buffer = new byte[MAX_FRAME_LENGTH];
+    private int bufferPosition = 0;
+    private int frameLength = 0;
+    private long frameReceiveTimeNs = 0;
+    private long droppedBytes = 0;
+    /* Highest protocol version the device may send, set from other threads when a version is requested */
+    private volatile int protocolVersion = DeviceSession.PROTOCOL_VERSION_SEQUENCE;
+
+
+    /* Receiver of complete frames, called on the thread feeding the decoder. Frames are buffers of the SensorFrame pool,
+     * the listener owns them and releases them or hands them on. */
+    public interface Listener {
+        void onFrame(byte[] frame, long receiveTimeNs);
+    }
+
+
+    /* Constructor */
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /* Discard a partially received frame, e. g. after reconnecting */
+    public void reset() {
+        bufferPosition = 0;
+        frameLength = 0;
+    }
+
+
+    /* Number of bytes thrown away because of invalid type or length fields */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+
+    /* Set the highest protocol version the device may answer with, frames only newer versions know are invalid */
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+
+    /* Check whether a type byte can start a frame of the protocol version in use */
+    private boolean isValidType(int type) {
+        if((type & FRAME_FLAG_SEQUENCE) != 0 && protocolVersion < DeviceSession.PROTOCOL_VERSION_SEQUENCE) {
+            return false;
+        }
+        int baseType = type & ~FRAME_FLAG_SEQUENCE;
+        if(baseType == FRAME_TYPE_DELTA) {
+            return protocolVersion >= DeviceSession.PROTOCOL_VERSION_DELTA;
+        }
+        return baseType >= FRAME_TYPE_DATA && baseType <= FRAME_TYPE_ACK;
+    }
+
+
+    /* Shortest frame of a type, the header with the sequence number if flagged and at least one payload byte */
+    private static int minFrameLength(int type) {
+        return ((type & FRAME_FLAG_SEQUENCE) != 0) ? 4 : 3;
+    }
+
+
+    /* Feed bytes received at the given time (SystemClock.elapsedRealtimeNanos()), complete frames are passed to the listener */
+    public void feed(byte[] bytes, int offset, int count, long receiveTimeNs) {
+        for(int i = offset; i < offset + count; i++) {
+            if(bufferPosition == 0) {
+                frameReceiveTimeNs = receiveTimeNs;
+                if(!isValidType(bytes[i] & 0xFF)) {
+                    /* No frame starts with this byte, resynchronize with the next one */
+                    droppedBytes++;
+                    continue;
+                }
+            }
+            buffer[bufferPosition] = bytes[i];
+            if(bufferPosition == 1) {
+                /* As java bytes are signed, mask the byte to prevent sign extension and get an unsigned value */
+                frameLength = bytes[i] & 0xFF;
+                if(frameLength < minFrameLength(buffer[0] & 0xFF)) {
+                    /* Invalid length, drop type and length byte and resynchronize with the next byte */
+                    droppedBytes += 2;
+                    reset();
+                    continue;
+                }
+            }
+            bufferPosition++;
+            if(bufferPosition >= MIN_FRAME_LENGTH && bufferPosition == frameLength) {
+                byte[] frame = SensorFrame.obtainBuffer(frameLength);
+                System.arraycopy(buffer, 0, frame, 0, frameLength);
+                reset();
+                listener.onFrame(frame, frameReceiveTimeNs);
+            }
+        }
+    }
+
+
+    /* Feed a whole chunk of received bytes */
+    public void feed(byte[] bytes, long receiveTimeNs) {
+        feed(bytes, 0, bytes.length, receiveTimeNs);
+    }
+}
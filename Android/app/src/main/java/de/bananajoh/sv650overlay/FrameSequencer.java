@@ -0,0 +1,129 @@
+package de.bananajoh.sv650overlay;
+
+
+/* Receive side of the frame protocol between the decoder and the pipeline: checks the sequence numbers of protocol
+ * version 3 frames, strips them and expands delta frames. Duplicate and late frames are dropped, after a gap deltas
+ * are dropped until the next keyframe and the gap is reported with the first frame passed on. Late frames are
+ * reported the same way, so the missing frames reported add up to the frames counted as lost. Numbering starts over
+ * with the acknowledge of a protocol version. Called on the thread feeding the decoder. */
+public class FrameSequencer implements FrameDecoder.Listener {
+    private static final int FRAME_FLAG_SEQUENCE = 0x80;
+    private static final int FRAME_TYPE_ACK = 0x04;
+
+    private final Listener listener;
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+    private final DeltaFrameExpander expander = new DeltaFrameExpander();
+    /* Missing frames not reported yet because the frames after the gap could not be expanded */
+    private int pendingMissingFrames = 0;
+    /* Late frames of gaps reported already, not reported yet */
+    private int pendingLateFrames = 0;
+
+
+    /* Receiver of full frames */
+    public interface Listener {
+        /* Full frame in a buffer of the SensorFrame pool the listener owns, missingFrames were lost right before it,
+         * lateFrames counted as missing before have arrived since the previous call */
+        void onData(byte[] data, long receiveTimeNs, int missingFrames, int lateFrames);
+    }
+
+
+    /* Constructor */
+    public FrameSequencer(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /* Start over, e.g. after reconnecting, the statistics are kept */
+    public void reset() {
+        sequenceTracker.reset();
+        expander.reset();
+        pendingMissingFrames = 0;
+        pendingLateFrames = 0;
+    }
+
+
+    @Override
+    public void onFrame(byte[] frame, long receiveTimeNs) {
+        if((frame[0] & FRAME_FLAG_SEQUENCE) != 0) {
+            if(frame.length < 3) {
+                SensorFrame.releaseBuffer(frame);
+                return;
+            }
+            if(isProtocolAcknowledge(frame)) {
+                /* The sender may number from anywhere after switching the protocol */
+                sequenceTracker.reset();
+            }
+            int missing = sequenceTracker.track(frame[2]);
+            if(missing == SequenceTracker.DUPLICATE) {
+                SensorFrame.releaseBuffer(frame);
+                return;
+            }
+            if(missing == SequenceTracker.REORDERED) {
+                /* Late frame, its data is outdated and a delta cannot be applied out of order, but it is not lost */
+                if(pendingMissingFrames > 0) {
+                    pendingMissingFrames--;
+                } else {
+                    pendingLateFrames++;
+                }
+                SensorFrame.releaseBuffer(frame);
+                return;
+            }
+            if(missing > 0 || missing == SequenceTracker.RESYNCED) {
+                /* A missed delta frame would corrupt the following ones, wait for the next keyframe */
+                expander.reset();
+                pendingMissingFrames += Math.max(missing, 0);
+            }
+            frame = stripSequence(frame);
+        }
+        byte[] data = expander.expand(frame);
+        if(data == null) {
+            return;
+        }
+        int missingFrames = pendingMissingFrames;
+        int lateFrames = pendingLateFrames;
+        pendingMissingFrames = 0;
+        pendingLateFrames = 0;
+        listener.onData(data, receiveTimeNs, missingFrames, lateFrames);
+    }
+
+
+    /* Check if a sequenced frame acknowledges a protocol version: [0x04 | 0x80, length, sequence, command, version] */
+    private static boolean isProtocolAcknowledge(byte[] frame) {
+        return (frame[0] & 0x7F) == FRAME_TYPE_ACK && frame.length >= 5 && frame[3] == DeviceSession.COMMAND_PROTOCOL_VERSION;
+    }
+
+
+    /* Frame without the sequence byte in the format of protocol version 1 and 2, the sequenced frame is released */
+    private static byte[] stripSequence(byte[] frame) {
+        byte[] stripped = SensorFrame.obtainBuffer(frame.length - 1);
+        stripped[0] = (byte) (frame[0] & ~FRAME_FLAG_SEQUENCE);
+        stripped[1] = (byte) stripped.length;
+        System.arraycopy(frame, 3, stripped, 2, frame.length - 3);
+        SensorFrame.releaseBuffer(frame);
+        return stripped;
+    }
+
+
+    /* Frames missing in the sequence (protocol version 3 only) */
+    public long getLostFrames() {
+        return sequenceTracker.getLostFrames();
+    }
+
+
+    /* Frames received twice (protocol version 3 only) */
+    public long getDuplicateFrames() {
+        return sequenceTracker.getDuplicateFrames();
+    }
+
+
+    /* Frames received after a newer one (protocol version 3 only) */
+    public long getReorderedFrames() {
+        return sequenceTracker.getReorderedFrames();
+    }
+
+
+    /* Times the sender started numbering over without a reconnect or protocol negotiation (protocol version 3 only) */
+    public long getResyncs() {
+        return sequenceTracker.getResyncs();
+    }
+}
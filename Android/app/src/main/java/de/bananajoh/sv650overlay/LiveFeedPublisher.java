@@ -0,0 +1,144 @@
+package de.bananajoh.sv650overlay;
+
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import de.bananajoh.sv650overlay.livefeed.LiveFeed;
+
+
+/* Writes the latest data frame of the selected device into the shared memory region of the live feed, see LiveFeed for
+ * the layout. Only publishes while LiveFeedService has clients bound. SharedMemory needs API 27, below that the feed
+ * stays unavailable. */
+public class LiveFeedPublisher {
+    private static LiveFeedPublisher instance = null;
+
+    private SharedMemory sharedMemory = null;
+    private ByteBuffer region = null;
+    private volatile boolean active = false;
+    private DataInfoEntry[] publishedEntries = null;
+    private int sequence = 0;
+    private int layoutGeneration = 0;
+    private long frameCount = 0;
+
+
+    /* Constructor, use getInstance() */
+    private LiveFeedPublisher() {
+    }
+
+
+    /* Constructor publishing into a given region, for tests */
+    LiveFeedPublisher(ByteBuffer region) {
+        this.region = region.order(ByteOrder.LITTLE_ENDIAN);
+        initRegion();
+    }
+
+
+    /* Get the single instance */
+    public static synchronized LiveFeedPublisher getInstance() {
+        if(instance == null) {
+            instance = new LiveFeedPublisher();
+        }
+        return instance;
+    }
+
+
+    /* Shared memory of the region, created on first use, null if not supported or creation failed */
+    public synchronized SharedMemory getSharedMemory() {
+        if(sharedMemory == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            try {
+                sharedMemory = SharedMemory.create("sv650overlay-livefeed", LiveFeed.REGION_SIZE);
+                region = sharedMemory.mapReadWrite().order(ByteOrder.LITTLE_ENDIAN);
+                initRegion();
+                /* Clients only ever get a read-only mapping */
+                sharedMemory.setProtect(OsConstants.PROT_READ);
+            } catch(ErrnoException ex) {
+                ex.printStackTrace();
+                if(sharedMemory != null) {
+                    sharedMemory.close();
+                }
+                sharedMemory = null;
+                region = null;
+            }
+        }
+        return sharedMemory;
+    }
+
+
+    /* Write the header of an empty region */
+    private void initRegion() {
+        region.putInt(LiveFeed.OFFSET_MAGIC, LiveFeed.MAGIC);
+        region.putInt(LiveFeed.OFFSET_VERSION, LiveFeed.VERSION);
+        region.putInt(LiveFeed.OFFSET_GEAR, -1);
+    }
+
+
+    /* Enable or disable publishing, set by LiveFeedService when the first client binds and the last one unbinds */
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+
+    /* Publish a data frame (type 0x01), called on the pipeline thread of the selected device */
+    public void publish(SensorFrame frame) {
+        if(!active) {
+            return;
+        }
+        synchronized(this) {
+            if(region == null) {
+                return;
+            }
+            DataInfoEntry[] entries = frame.plan.entries;
+            int frameLength = Math.min(frame.data.length, LiveFeed.MAX_FRAME_LENGTH);
+            int channelCount = Math.min(frame.channelCount, LiveFeed.MAX_CHANNELS);
+
+            sequence++;
+            region.putInt(LiveFeed.OFFSET_SEQUENCE, sequence);
+            /* Odd sequence before the data */
+            LiveFeed.storeFence();
+
+            /* Labels of the profile the frame was decoded with */
+            if(entries != publishedEntries) {
+                publishedEntries = entries;
+                layoutGeneration++;
+                region.putInt(LiveFeed.OFFSET_LAYOUT_GENERATION, layoutGeneration);
+                writeLabels(entries);
+            }
+            frameCount++;
+            region.putLong(LiveFeed.OFFSET_FRAME_COUNT, frameCount);
+            region.putLong(LiveFeed.OFFSET_RECEIVE_TIME_NS, frame.receiveTimeNs);
+            region.putInt(LiveFeed.OFFSET_GEAR, frame.gear);
+            region.putInt(LiveFeed.OFFSET_FRAME_LENGTH, frameLength);
+            region.putInt(LiveFeed.OFFSET_CHANNEL_COUNT, channelCount);
+            region.position(LiveFeed.OFFSET_FRAME);
+            region.put(frame.data, 0, frameLength);
+            for(int channel = 0; channel < channelCount; channel++) {
+                region.putFloat(LiveFeed.OFFSET_VALUES + channel * 4, frame.values[channel]);
+            }
+
+            /* Data before the even sequence */
+            LiveFeed.storeFence();
+            sequence++;
+            region.putInt(LiveFeed.OFFSET_SEQUENCE, sequence);
+        }
+    }
+
+
+    /* Write "label\tunit\n" of every channel, cut off at the size of the label block */
+    private void writeLabels(DataInfoEntry[] entries) {
+        StringBuilder builder = new StringBuilder();
+        for(int channel = 0; channel < entries.length && channel < LiveFeed.MAX_CHANNELS; channel++) {
+            builder.append(entries[channel].label).append('\t').append(entries[channel].unit).append('\n');
+        }
+        byte[] labels = builder.toString().getBytes(Charset.forName("UTF-8"));
+        int length = Math.min(labels.length, LiveFeed.MAX_LABELS_LENGTH);
+        region.putInt(LiveFeed.OFFSET_LABELS_LENGTH, length);
+        region.position(LiveFeed.OFFSET_LABELS);
+        region.put(labels, 0, length);
+    }
+}
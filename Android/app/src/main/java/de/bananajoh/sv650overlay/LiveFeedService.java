@@ -0,0 +1,59 @@
+package de.bananajoh.sv650overlay;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+
+import de.bananajoh.sv650overlay.livefeed.LiveFeed;
+
+
+/* Exported service handing the shared memory region of the live feed to third-party dashboard apps holding the
+ * READ_LIVE_DATA permission. After the initial handshake the clients read the region directly, frames are not sent over
+ * Binder. */
+public class LiveFeedService extends Service {
+    /* Answer MSG_GET_REGION with the region, without one the data bundle stays empty */
+    private final Messenger messenger = new Messenger(new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message message) {
+            if(message.what != LiveFeed.MSG_GET_REGION || message.replyTo == null) {
+                return false;
+            }
+            Message reply = Message.obtain(null, LiveFeed.MSG_GET_REGION);
+            SharedMemory region = LiveFeedPublisher.getInstance().getSharedMemory();
+            if(region != null) {
+                Bundle data = new Bundle();
+                data.putParcelable(LiveFeed.KEY_REGION, region);
+                reply.setData(data);
+            }
+            try {
+                message.replyTo.send(reply);
+            } catch(RemoteException ex) {
+                ex.printStackTrace();
+            }
+            return true;
+        }
+    }));
+
+
+    /* First client bound, start publishing */
+    @Override
+    public IBinder onBind(Intent intent) {
+        LiveFeedPublisher.getInstance().setActive(true);
+        return messenger.getBinder();
+    }
+
+
+    /* Last client unbound, stop publishing */
+    @Override
+    public boolean onUnbind(Intent intent) {
+        LiveFeedPublisher.getInstance().setActive(false);
+        return false;
+    }
+}
@@ -3,34 +3,48 @@ package de.bananajoh.sv650overlay;
 import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.DialogInterface;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Settings;
-import android.text.Html;
-import android.text.Spanned;
+import android.security.NetworkSecurityPolicy;
+import android.text.TextUtils;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.view.WindowManager;
-import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.GridView;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
 
 public class MainActivity extends AppCompatActivity {
@@ -39,80 +53,98 @@ public class MainActivity extends AppCompatActivity {
     private static final int CODE_REQUEST_ENABLE_BLUETOOTH = 3;
     private static final int CODE_REQUEST_PERMISSION_DRAW_OVER_APPS = 10002;
     private static final int CODE_PERMISSIONS_REQUEST_ACCESS_FINE_LOCATION = 4;
+    private static final int CODE_REQUEST_ADD_DEVICE = 5;
+    private static final String[] SESSION_SORT_ORDERS = { SessionCatalog.SORT_START, SessionCatalog.SORT_DURATION, SessionCatalog.SORT_MAX_RPM };
 
     private BluetoothAdapter bluetoothAdapter = null;
     private Intent overlayService = null;
     private OverlayService overlayServiceBinding = null;
-    private ArrayAdapter<Spanned> gridArrayAdapter;
+    private ValueGridAdapter valueGridAdapter;
     private SharedPreferences sharedPreferences = null;
     private Menu menuMain = null;
-    private int dataInfoMaxShowAtPos = -1;
-
 
-    /* Listen for device message broadcasts from overlay service */
-    private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
+    /* Optional jitter buffer for displaying the decoded values at display refresh */
+    private float[] presentationValues = new float[0];
+    private boolean smoothValues = false;
+    private boolean presentationRunning = false;
+    private PresentationBuffer presentationBuffer = null;
+    private final Choreographer.FrameCallback presentationFrame = new Choreographer.FrameCallback() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            /* No extra intent action check as there is only one filter registered */
-            byte[] data = intent.getByteArrayExtra("data");
-            if(data.length < 2) {
+        public void doFrame(long frameTimeNanos) {
+            if(!presentationRunning) {
                 return;
             }
+            showPresentationFrame();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
 
-            if(data[0] == 0x02) {
+
+    /* Frames of the selected device and frames generated by the overlay service, decoded already */
+    private final OverlayService.FrameListener frameListener = new OverlayService.FrameListener() {
+        @Override
+        public void onFrame(SensorFrame frame) {
+            if(frame.type == SensorFrame.TYPE_TEXT) {
                 /* Handle text messages (type 0x02) */
                 try {
-                    final String text = new String(Arrays.copyOfRange(data, 2, data.length), "US-ASCII");
-                    Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
+                    final String text = new String(Arrays.copyOfRange(frame.data, 2, frame.data.length), "US-ASCII");
+                    Toast.makeText(MainActivity.this, text, Toast.LENGTH_SHORT).show();
                 } catch (UnsupportedEncodingException ex) {
-                    Toast.makeText(context, ex.toString(), Toast.LENGTH_LONG).show();
+                    Toast.makeText(MainActivity.this, ex.toString(), Toast.LENGTH_LONG).show();
                 }
-            } else if(data[0] == 0x01) {
-                /* Convert values from data messages (type 0x01) and collect them in the right order */
-                String entries[] = new String[dataInfoMaxShowAtPos + 1];
-                for(int i = 0; (i + 2) < data.length; i++) {
-                    if (i < DataInfo.ENTRIES.length && DataInfo.ENTRIES[i].showAtPos > -1) {
-                        entries[DataInfo.ENTRIES[i].showAtPos] = "<b>" + DataInfo.ENTRIES[i].label + "</b><br>";
-                        /* As java bytes are signed, mask the byte to prevent sign extension and get an unsigned value */
-                        int value = data[i + 2] & 0xFF;
-                        /* Data frame index is offset +8 */
-                        switch(i) {
-                            case 17: { /* RPM */
-                                value = value * 69 / 10 * 10;
-                                break;
-                            }
-                            case 19: { /* TPS */
-                                value = (value - 58) * 6 / 10;
-                                break;
-                            }
-                            case 21:   /* ECT */
-                            case 22: { /* IAT */
-                                value = value - 40;
-                                break;
-                            }
-                            case 24: { /* BATT */
-                                float fvalue = 0.0f;
-                                if (value > 0) {
-                                    fvalue = (value + 109) * 5 / 100.0f;
-                                }
-                                entries[DataInfo.ENTRIES[i].showAtPos] += String.format("%.1f", fvalue) + DataInfo.ENTRIES[i].unit;
-                                continue;
-                            }
-                        }
-                        entries[DataInfo.ENTRIES[i].showAtPos] += value + DataInfo.ENTRIES[i].unit;
+            } else if(frame.isData()) {
+                /* Values of data messages (type 0x01) are converted with the profile active when the frame arrived */
+                if(smoothValues) {
+                    if(presentationBuffer == null || presentationBuffer.plan != frame.plan) {
+                        presentationBuffer = new PresentationBuffer(frame.plan);
                     }
+                    presentationBuffer.push(frame.values, frame.channelCount, frame.receiveTimeNs / 1000000);
+                } else {
+                    showValues(frame.plan, frame.values, frame.channelCount);
                 }
-
-                /* Clear and rebuild the display grid */
-                gridArrayAdapter.clear();
-                for(int i = 0; i < entries.length; i++) {
-                    gridArrayAdapter.add(Html.fromHtml(entries[i]));
-                }
+                updateRefreshRateDisplay();
             }
         }
     };
 
 
+    /* Show converted values in the display grid, only cells whose text changed are updated */
+    private void showValues(DecodePlan plan, float[] values, int count) {
+        valueGridAdapter.showValues(plan, values, count);
+    }
+
+
+    /* Show the interpolated values for the current display frame */
+    private void showPresentationFrame() {
+        if(presentationBuffer == null || presentationBuffer.plan != DataInfo.PLAN) {
+            return;
+        }
+        DecodePlan plan = presentationBuffer.plan;
+        if(presentationValues.length != plan.channelCount) {
+            presentationValues = new float[plan.channelCount];
+        }
+        int count = presentationBuffer.sample(SystemClock.elapsedRealtime(), presentationValues);
+        if(count > 0) {
+            showValues(plan, presentationValues, count);
+        }
+    }
+
+
+    /* Start or stop displaying the values at display refresh */
+    private void setPresentationRunning(boolean running) {
+        if(running == presentationRunning) {
+            return;
+        }
+        presentationRunning = running;
+        if(running) {
+            Choreographer.getInstance().postFrameCallback(presentationFrame);
+        } else {
+            Choreographer.getInstance().removeFrameCallback(presentationFrame);
+            presentationBuffer = null;
+        }
+    }
+
+
     /* Binding to the local service for intercom */
     private ServiceConnection overlayServiceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
@@ -122,6 +154,9 @@ public class MainActivity extends AppCompatActivity {
                service that we know is running in our own process, we can
                cast its IBinder to a concrete class and directly access it. */
             overlayServiceBinding = ((OverlayService.LocalBinder)service).getService();
+            StartupTrace.mark("service_bound");
+            overlayServiceBinding.setUiVisible(true);
+            overlayServiceBinding.setFrameListener(frameListener);
             bluetoothReconnectOrDeviceList();
         }
 
@@ -179,6 +214,7 @@ public class MainActivity extends AppCompatActivity {
         if(!bluetoothReady()) {
             return;
         }
+        StartupTrace.mark("requirements_checked");
         startService(overlayService);
         if(!bindService(overlayService, overlayServiceConnection, Context.BIND_AUTO_CREATE)) {
             Toast.makeText(this, R.string.overlay_service_binding_failed, Toast.LENGTH_LONG).show();
@@ -194,16 +230,32 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
-    /* Try to connect to last connected device if it is still paired */
-    private void bluetoothReconnectOrDeviceList() {
-        if(overlayServiceBinding.isBluetoothConnected()) {
+    /* List discovered Bluetooth devices to add another device session */
+    public void showBluetoothDeviceListToAdd() {
+        Intent deviceListIntent = new Intent(this, DeviceListActivity.class);
+        startActivityForResult(deviceListIntent, CODE_REQUEST_ADD_DEVICE);
+        Toast.makeText(this, R.string.bluetooth_select_device, Toast.LENGTH_LONG).show();
+    }
+
+
+    /* Remember an additional device for reconnecting */
+    private void saveAdditionalDeviceAddress(String deviceAddress) {
+        List<String> deviceAddresses = OverlayService.getSavedDeviceAddresses(sharedPreferences);
+        if(deviceAddresses.contains(deviceAddress)) {
             return;
         }
-        String restoredDeviceAddress = sharedPreferences.getString("deviceAddress", null);
-        boolean restoredDeviceSecure = sharedPreferences.getBoolean("deviceSecure", true);
+        deviceAddresses.add(deviceAddress);
+        deviceAddresses.remove(sharedPreferences.getString("deviceAddress", null));
+        sharedPreferences.edit().putString("additionalDeviceAddresses", TextUtils.join(",", deviceAddresses)).apply();
+    }
+
 
-        if(restoredDeviceAddress != null) {
-            overlayServiceBinding.connectBluetooth(restoredDeviceAddress, restoredDeviceSecure, true);
+    /* Show the device list if the service has no saved device to reconnect to, reconnecting is started by the service itself */
+    private void bluetoothReconnectOrDeviceList() {
+        if(!overlayServiceBinding.getDeviceSessions().isEmpty()) {
+            return;
+        }
+        if(overlayServiceBinding.reconnectSavedDevices()) {
             return;
         }
 
@@ -212,6 +264,586 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    /* Show the recorded startup phases */
+    private void showStartupTrace() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_show_startup_trace)
+                .setMessage(StartupTrace.getSummary())
+                .show();
+    }
+
+
+    /* Start a simulated ride at the chosen frame rate or stop the running one */
+    private void showRideSimulation() {
+        if(overlayServiceBinding == null) {
+            return;
+        }
+        final float[] framesPerSecond = { 1000.0f / OverlayService.SIMULATION_MODEL_INTERVAL_MS, 100.0f, 1000.0f, 5000.0f };
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.action_simulate_ride)
+                .setItems(R.array.simulation_rate_names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if(overlayServiceBinding != null) {
+                            overlayServiceBinding.startSimulation(framesPerSecond[which]);
+                        }
+                    }
+                });
+        if(overlayServiceBinding.isSimulationRunning()) {
+            builder.setNeutralButton(R.string.simulation_stop, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    if(overlayServiceBinding != null) {
+                        overlayServiceBinding.stopSimulation();
+                    }
+                }
+            });
+        }
+        builder.show();
+    }
+
+
+    /* Query the recorded sessions out of the catalog in the background, then list them */
+    private void showSessionCatalog(final int sortIndex) {
+        new Thread(new Runnable() {
+            public void run() {
+                final List<SessionCatalog.Entry> entries = SessionCatalog.getInstance(MainActivity.this).query(SESSION_SORT_ORDERS[sortIndex]);
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        showSessionCatalog(sortIndex, entries);
+                    }
+                });
+            }
+        }).start();
+    }
+
+
+    /* List recorded sessions, the sort button switches to the next sort order */
+    private void showSessionCatalog(final int sortIndex, final List<SessionCatalog.Entry> entries) {
+        if(entries.isEmpty()) {
+            Toast.makeText(this, R.string.session_catalog_empty, Toast.LENGTH_LONG).show();
+            return;
+        }
+        DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        String[] entryNames = new String[entries.size()];
+        for(int i = 0; i < entries.size(); i++) {
+            SessionCatalog.Entry entry = entries.get(i);
+            entryNames[i] = getString(R.string.session_catalog_entry, dateFormat.format(new Date(entry.startMs)), formatDuration(entry.getDurationMs()), entry.maxRpm);
+        }
+        String[] sortNames = getResources().getStringArray(R.array.session_sort_names);
+
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.session_catalog_title, sortNames[sortIndex]))
+                .setItems(entryNames, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showSessionDetails(entries.get(which));
+                    }
+                })
+                .setNeutralButton(R.string.session_catalog_sort, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showSessionCatalog((sortIndex + 1) % SESSION_SORT_ORDERS.length);
+                    }
+                })
+                .show();
+    }
+
+
+    /* Show the statistics of a recorded session */
+    private void showSessionDetails(final SessionCatalog.Entry entry) {
+        String gearTimes = "";
+        for(int gear = 0; gear < SessionCatalog.GEAR_COUNT; gear++) {
+            if(entry.gearMs[gear] > 0) {
+                gearTimes += "\n" + ((gear == 0) ? "N" : Integer.toString(gear)) + ": " + formatDuration(entry.gearMs[gear]);
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(entry.fileName)
+                .setMessage(getString(R.string.session_catalog_details, entry.deviceAddress, formatDuration(entry.getDurationMs()), entry.frames, entry.fileSize / 1024, entry.maxRpm, entry.maxEct) + gearTimes)
+                .setPositiveButton(R.string.session_export, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        exportSession(entry);
+                    }
+                })
+                .setNeutralButton(R.string.session_operating_points, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        File logFile = new File(getExternalFilesDir(null), entry.fileName);
+                        loadOperatingPointMap(Collections.singletonList(SessionLogger.getOperatingPointMapFile(logFile)), 0);
+                    }
+                })
+                .show();
+    }
+
+
+    /* Choose the operating point map to show, of the running log or merged over all recorded sessions */
+    private void showOperatingPointSources() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_show_operating_points)
+                .setItems(R.array.operating_point_sources, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        int load = which % OperatingPointMap.LOAD_LABELS.length;
+                        if(which < OperatingPointMap.LOAD_LABELS.length) {
+                            OperatingPointMap map = (overlayServiceBinding != null) ? overlayServiceBinding.copyOperatingPointMap(load) : null;
+                            showOperatingPointMap(map);
+                        } else {
+                            loadRecordedOperatingPointMaps(load);
+                        }
+                    }
+                })
+                .show();
+    }
+
+
+    /* Load and merge the operating point maps of a load channel of all recorded sessions in the background, then show them */
+    private void loadRecordedOperatingPointMaps(final int load) {
+        new Thread(new Runnable() {
+            public void run() {
+                List<File> mapFiles = new ArrayList<>();
+                for(SessionCatalog.Entry entry : SessionCatalog.getInstance(MainActivity.this).query(SessionCatalog.SORT_START)) {
+                    mapFiles.add(SessionLogger.getOperatingPointMapFile(new File(getExternalFilesDir(null), entry.fileName)));
+                }
+                showMergedOperatingPointMap(mapFiles, load);
+            }
+        }).start();
+    }
+
+
+    /* Load and merge the operating point maps of a load channel out of session files in the background, then show them */
+    private void loadOperatingPointMap(final List<File> mapFiles, final int load) {
+        new Thread(new Runnable() {
+            public void run() {
+                showMergedOperatingPointMap(mapFiles, load);
+            }
+        }).start();
+    }
+
+
+    /* Merge the operating point maps of a load channel out of session files and show them, runs in the background */
+    private void showMergedOperatingPointMap(List<File> mapFiles, final int load) {
+        OperatingPointMap merged = new OperatingPointMap(load);
+        int sessions = 0;
+        for(File mapFile : mapFiles) {
+            if(!mapFile.exists()) {
+                continue;
+            }
+            try {
+                for(OperatingPointMap map : OperatingPointMap.load(mapFile)) {
+                    if(map.load == load) {
+                        merged.merge(map);
+                        sessions++;
+                    }
+                }
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        final OperatingPointMap result = (sessions > 0) ? merged : null;
+        runOnUiThread(new Runnable() {
+            public void run() {
+                showOperatingPointMap(result);
+            }
+        });
+    }
+
+
+    /* Show an operating point map as heatmap */
+    private void showOperatingPointMap(OperatingPointMap map) {
+        if(map == null) {
+            Toast.makeText(this, R.string.operating_points_empty, Toast.LENGTH_LONG).show();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.operating_points_title, OperatingPointMap.LOAD_LABELS[map.load]))
+                .setView(new OperatingPointMapView(this, map))
+                .show();
+    }
+
+
+    /* Export the log of a session into a columnar file next to it, in the background */
+    private void exportSession(SessionCatalog.Entry entry) {
+        final File logFile = new File(getExternalFilesDir(null), entry.fileName);
+        final File exportFile = new File(getExternalFilesDir(null), entry.fileName.replaceFirst("\\.log$", "") + ".col");
+        new Thread(new Runnable() {
+            public void run() {
+                ColumnarExporter exporter = new ColumnarExporter();
+                String result;
+                try {
+                    ColumnarExporter.Result exported = exporter.export(logFile, exportFile);
+                    result = getString(R.string.session_export_done, exported.rows, exportFile.getName());
+                    if(exported.skippedLines > 0) {
+                        result += "\n" + getString(R.string.session_export_skipped, exported.skippedLines, exported.firstSkippedLine);
+                    }
+                } catch(IOException e) {
+                    result = e.toString();
+                } finally {
+                    exporter.shutdown();
+                }
+                final String message = result;
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
+
+    /* Format milliseconds as minutes and seconds */
+    private static String formatDuration(long durationMs) {
+        long seconds = durationMs / 1000;
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+
+    /* Let the user choose the device shown in the grid and the overlay */
+    private void showDeviceSelection() {
+        final List<DeviceSession> sessions = overlayServiceBinding.getDeviceSessions();
+        if(sessions.isEmpty()) {
+            Toast.makeText(this, R.string.bluetooth_no_device_sessions, Toast.LENGTH_LONG).show();
+            return;
+        }
+        String[] sessionNames = new String[sessions.size()];
+        int checkedItem = -1;
+        for(int i = 0; i < sessions.size(); i++) {
+            DeviceSession session = sessions.get(i);
+            sessionNames[i] = getString(R.string.device_session_entry, session.getName(), getString(session.isConnected() ? R.string.device_session_connected : R.string.device_session_disconnected), session.getRefreshRateHz(), session.getReceivedFrames(), session.getLostFrames());
+            if(session.getAddress().equals(overlayServiceBinding.getSelectedDeviceAddress())) {
+                checkedItem = i;
+            }
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_show_device)
+                .setSingleChoiceItems(sessionNames, checkedItem, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        overlayServiceBinding.selectDevice(sessions.get(which).getAddress());
+                        valueGridAdapter.clear();
+                        dialog.dismiss();
+                    }
+                })
+                .show();
+    }
+
+
+    /* Show polling profile acknowledged by the device and the effective refresh rate */
+    private void updateRefreshRateDisplay() {
+        if(overlayServiceBinding == null || getSupportActionBar() == null) {
+            return;
+        }
+        int pollProfile = overlayServiceBinding.getPollProfile();
+        float refreshRate = overlayServiceBinding.getRefreshRateHz();
+        String[] pollProfileNames = getResources().getStringArray(R.array.poll_profile_names);
+        String subtitle;
+        if(pollProfile >= 0 && pollProfile < pollProfileNames.length) {
+            subtitle = getString(R.string.refresh_rate_profile, pollProfileNames[pollProfile], overlayServiceBinding.getPollIntervalMs(), refreshRate);
+        } else {
+            subtitle = getString(R.string.refresh_rate, refreshRate);
+        }
+        /* Report the latency added by smoothing */
+        if(presentationRunning && presentationBuffer != null) {
+            subtitle += getString(R.string.presentation_delay, presentationBuffer.getDelayMs());
+        }
+        getSupportActionBar().setSubtitle(subtitle);
+    }
+
+
+    /* Let the user choose the ECU profile defining the channel layout */
+    private void showProfileSelection() {
+        final String[] profileIds;
+        String[] profileNames;
+        int checkedItem = -1;
+        try {
+            JSONArray profiles = DataInfo.getProfiles(this);
+            profileIds = new String[profiles.length()];
+            profileNames = new String[profiles.length()];
+            for(int i = 0; i < profiles.length(); i++) {
+                profileIds[i] = profiles.getJSONObject(i).getString("id");
+                profileNames[i] = profiles.getJSONObject(i).getString("name");
+                if(profileIds[i].equals(DataInfo.getProfileId())) {
+                    checkedItem = i;
+                }
+            }
+        } catch(JSONException | IOException ex) {
+            Toast.makeText(this, ex.toString(), Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_select_profile)
+                .setSingleChoiceItems(profileNames, checkedItem, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if(DataInfo.load(MainActivity.this, profileIds[which])) {
+                            sharedPreferences.edit().putString(DataInfo.PREFERENCE_PROFILE_ID, profileIds[which]).apply();
+                            valueGridAdapter.clear();
+                        } else {
+                            Toast.makeText(MainActivity.this, R.string.profile_load_failed, Toast.LENGTH_LONG).show();
+                        }
+                        dialog.dismiss();
+                    }
+                })
+                .show();
+    }
+
+
+    /* Let the user pick one of the own derived channels to edit or add a new one */
+    private void showDerivedChannels() {
+        JSONArray definitions;
+        try {
+            definitions = new JSONArray(DataInfo.getDerivedChannels(this));
+        } catch(JSONException ex) {
+            Toast.makeText(this, ex.toString(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        final JSONArray channels = definitions;
+        String[] items = new String[channels.length() + 1];
+        for(int i = 0; i < channels.length(); i++) {
+            JSONObject channel = channels.optJSONObject(i);
+            items[i] = (channel != null) ? channel.optString("label") + " = " + channel.optString("expression") : "";
+        }
+        items[channels.length()] = getString(R.string.derived_channels_add);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_edit_derived_channels)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        JSONObject channel = channels.optJSONObject(which);
+                        showDerivedChannel(channels, which, (channel != null) ? channel : new JSONObject(), null, null);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+
+    /* Let the user edit a derived channel, index channels.length() adds a new one. Invalid input is shown again with the
+     * error at the field it is about, errors not about one field of this channel are shown as message. */
+    private void showDerivedChannel(final JSONArray channels, final int index, JSONObject definition, String errorField, String error) {
+        final String[] fields = { "label", "unit", "decimals", "pos", "expression" };
+        final boolean[] numeric = { false, false, true, true, false };
+        final int[] ids = { R.id.derived_channel_label, R.id.derived_channel_unit, R.id.derived_channel_decimals, R.id.derived_channel_pos, R.id.derived_channel_expression };
+        final View view = getLayoutInflater().inflate(R.layout.dialog_derived_channel, null);
+        final EditText[] texts = new EditText[fields.length];
+        for(int i = 0; i < fields.length; i++) {
+            texts[i] = view.findViewById(ids[i]);
+            texts[i].setText(definition.optString(fields[i]));
+            if(fields[i].equals(errorField)) {
+                texts[i].setError(error);
+                texts[i].requestFocus();
+            }
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.action_edit_derived_channels)
+                .setMessage((error != null && errorField == null) ? getString(R.string.derived_channels_invalid, error) : getString(R.string.derived_channels_help))
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        /* Fields left empty are left out, numbers the user did not enter as such are rejected by DataInfo */
+                        JSONObject edited = new JSONObject();
+                        try {
+                            for(int i = 0; i < fields.length; i++) {
+                                String value = texts[i].getText().toString().trim();
+                                if(value.isEmpty()) {
+                                    continue;
+                                }
+                                try {
+                                    edited.put(fields[i], numeric[i] ? (Object) Integer.valueOf(value) : value);
+                                } catch(NumberFormatException ex) {
+                                    edited.put(fields[i], value);
+                                }
+                            }
+                        } catch(JSONException ex) {
+                            ex.printStackTrace();
+                        }
+                        saveDerivedChannel(channels, index, edited);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null);
+        if(index < channels.length()) {
+            builder.setNeutralButton(R.string.derived_channels_delete, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    saveDerivedChannel(channels, index, null);
+                }
+            });
+        }
+        builder.show();
+    }
+
+
+    /* Replace, add (index channels.length()) or delete (definition null) a derived channel of the user, the dialog of the
+     * channel is shown again if the profile does not compile with the change */
+    private void saveDerivedChannel(JSONArray channels, int index, JSONObject definition) {
+        JSONArray edited = new JSONArray();
+        for(int i = 0; i < channels.length(); i++) {
+            if(i != index) {
+                edited.put(channels.opt(i));
+            } else if(definition != null) {
+                edited.put(definition);
+            }
+        }
+        if(index == channels.length()) {
+            edited.put(definition);
+        }
+        JSONObject shown = (definition != null) ? definition : channels.optJSONObject(index);
+        try {
+            DataInfo.setDerivedChannels(this, edited.toString());
+            valueGridAdapter.clear();
+            Toast.makeText(this, R.string.derived_channels_saved, Toast.LENGTH_SHORT).show();
+        } catch(DataInfo.DefinitionException ex) {
+            String errorField = (definition != null && ex.index == index) ? ex.field : null;
+            showDerivedChannel(channels, index, shown, errorField, ex.getMessage());
+        } catch(JSONException | IOException ex) {
+            showDerivedChannel(channels, index, shown, null, ex.getMessage());
+        }
+    }
+
+
+    /* Let the user edit the definitions of the own alert rules, invalid ones are shown again with the error */
+    private void showAlertRules(String definitions, String error) {
+        final EditText editText = new EditText(this);
+        editText.setText(definitions);
+        editText.setTextSize(14.0f);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_edit_alert_rules)
+                .setMessage((error != null) ? getString(R.string.alert_rules_invalid, error) : getString(R.string.alert_rules_help))
+                .setView(editText)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String definitions = editText.getText().toString();
+                        try {
+                            DataInfo.setAlertRules(MainActivity.this, definitions);
+                            Toast.makeText(MainActivity.this, R.string.alert_rules_saved, Toast.LENGTH_SHORT).show();
+                        } catch(JSONException | IOException ex) {
+                            showAlertRules(definitions, ex.getMessage());
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+
+    /* Let the user set the RPM range of the shift light and the size of the overlay, invalid values are shown again with the error */
+    private void showOverlaySettings(String startRpm, String shiftRpm, String scale, String error) {
+        final View view = getLayoutInflater().inflate(R.layout.dialog_overlay_settings, null);
+        final EditText startRpmText = view.findViewById(R.id.overlay_settings_start_rpm);
+        final EditText shiftRpmText = view.findViewById(R.id.overlay_settings_shift_rpm);
+        final EditText scaleText = view.findViewById(R.id.overlay_settings_scale);
+        startRpmText.setText(startRpm);
+        shiftRpmText.setText(shiftRpm);
+        scaleText.setText(scale);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_overlay_settings)
+                .setMessage(error)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String startRpm = startRpmText.getText().toString().trim();
+                        String shiftRpm = shiftRpmText.getText().toString().trim();
+                        String scale = scaleText.getText().toString().trim();
+                        try {
+                            int start = Integer.parseInt(startRpm);
+                            int shift = Integer.parseInt(shiftRpm);
+                            if(start >= shift) {
+                                showOverlaySettings(startRpm, shiftRpm, scale, getString(R.string.overlay_settings_rpm_invalid));
+                                return;
+                            }
+                            float scaleValue = Float.parseFloat(scale);
+                            if(!(scaleValue >= OverlayService.MIN_OVERLAY_SCALE && scaleValue <= OverlayService.MAX_OVERLAY_SCALE)) {
+                                showOverlaySettings(startRpm, shiftRpm, scale, getString(R.string.overlay_settings_scale_invalid, OverlayService.MIN_OVERLAY_SCALE, OverlayService.MAX_OVERLAY_SCALE));
+                                return;
+                            }
+                            overlayServiceBinding.setShiftLightRpm(start, shift);
+                            overlayServiceBinding.setOverlayScale(scaleValue);
+                        } catch(NumberFormatException ex) {
+                            showOverlaySettings(startRpm, shiftRpm, scale, getString(R.string.overlay_settings_number_invalid));
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+
+    /* Let the user choose the address the telemetry server listens on and start it, loopback keeps it to this device */
+    private void showTelemetryServerAddresses() {
+        final List<String> addresses = new ArrayList<>();
+        addresses.add("");
+        addresses.addAll(TelemetryServer.getLocalAddresses());
+        String[] names = new String[addresses.size()];
+        names[0] = getString(R.string.telemetry_server_loopback);
+        int checkedItem = 0;
+        for(int i = 1; i < names.length; i++) {
+            names[i] = addresses.get(i);
+            if(addresses.get(i).equals(overlayServiceBinding.getTelemetryServerAddress())) {
+                checkedItem = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_toggle_telemetry_server)
+                .setSingleChoiceItems(names, checkedItem, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        if(overlayServiceBinding == null) {
+                            return;
+                        }
+                        String address = addresses.get(which);
+                        if(overlayServiceBinding.setTelemetryServerEnabled(true, address)) {
+                            String host = address.isEmpty() ? "127.0.0.1" : address;
+                            Toast.makeText(MainActivity.this, getString(R.string.telemetry_server_enabled, host, OverlayService.TELEMETRY_SERVER_PORT), Toast.LENGTH_LONG).show();
+                        } else {
+                            Toast.makeText(MainActivity.this, R.string.telemetry_server_failed, Toast.LENGTH_LONG).show();
+                        }
+                    }
+                })
+                .show();
+    }
+
+
+    /* Let the user set the collection server the session logs are uploaded to */
+    private void showUploadEndpoint() {
+        final EditText editText = new EditText(this);
+        editText.setSingleLine(true);
+        editText.setText(overlayServiceBinding.getUploadEndpoint());
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_set_upload_endpoint)
+                .setMessage(getString(R.string.upload_endpoint_help, overlayServiceBinding.getPendingUploadCount()))
+                .setView(editText)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String endpoint = editText.getText().toString().trim();
+                        if(!endpoint.isEmpty() && !endpoint.startsWith("http://") && !endpoint.startsWith("https://")) {
+                            Toast.makeText(MainActivity.this, R.string.upload_endpoint_invalid, Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        /* The network security config only allows plain http to the collection server at home */
+                        String host = Uri.parse(endpoint).getHost();
+                        if(endpoint.startsWith("http://") && (host == null || !NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted(host))) {
+                            Toast.makeText(MainActivity.this, R.string.upload_endpoint_cleartext, Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        if(overlayServiceBinding != null) {
+                            overlayServiceBinding.setUploadEndpoint(endpoint);
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+
     /* Change GUI elements responsible for starting/stopping log recording according to logging state */
     private void guiSetLogging(boolean on) {
         if(on) {
@@ -246,7 +878,7 @@ public class MainActivity extends AppCompatActivity {
                     if(extras != null) {
                         String deviceAddress = extras.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
                         overlayServiceBinding.connectBluetooth(deviceAddress, true, true);
-                        sharedPreferences.edit().putString("deviceAddress", deviceAddress).putBoolean("deviceSecure", true).apply();
+                        sharedPreferences.edit().putString("deviceAddress", deviceAddress).putBoolean("deviceSecure", true).remove("additionalDeviceAddresses").apply();
                     }
                 }
                 break;
@@ -258,7 +890,23 @@ public class MainActivity extends AppCompatActivity {
                     if(extras != null) {
                         String deviceAddress = extras.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
                         overlayServiceBinding.connectBluetooth(deviceAddress, false, true);
-                        sharedPreferences.edit().putString("deviceAddress", deviceAddress).putBoolean("deviceSecure", false).apply();
+                        sharedPreferences.edit().putString("deviceAddress", deviceAddress).putBoolean("deviceSecure", false).remove("additionalDeviceAddresses").apply();
+                    }
+                }
+                break;
+            }
+            case CODE_REQUEST_ADD_DEVICE: {
+                /* When DeviceListActivity returns with a device to add next to the connected ones */
+                if(resultCode == Activity.RESULT_OK) {
+                    Bundle extras = data.getExtras();
+                    if(extras != null) {
+                        String deviceAddress = extras.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+                        overlayServiceBinding.connectBluetooth(deviceAddress, sharedPreferences.getBoolean("deviceSecure", true), true);
+                        if(sharedPreferences.getString("deviceAddress", null) == null) {
+                            sharedPreferences.edit().putString("deviceAddress", deviceAddress).apply();
+                        } else {
+                            saveAdditionalDeviceAddress(deviceAddress);
+                        }
                     }
                 }
                 break;
@@ -288,6 +936,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark("activity_create");
 
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
@@ -295,21 +944,19 @@ public class MainActivity extends AppCompatActivity {
         Toolbar toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
-        gridArrayAdapter = new ArrayAdapter<Spanned>(this, R.layout.grid_view_entry, R.id.grid_view_entry_text);
+        valueGridAdapter = new ValueGridAdapter(this);
         GridView logListView = findViewById(R.id.main_grid_view);
-        logListView.setAdapter(gridArrayAdapter);
+        logListView.setAdapter(valueGridAdapter);
 
         sharedPreferences = this.getSharedPreferences(this.getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        smoothValues = sharedPreferences.getBoolean("smoothValues", false);
+
+        /* Compile the channel layout of the selected ECU profile before any data arrives */
+        DataInfo.init(this);
+        StartupTrace.mark("activity_ready");
 
         overlayService = new Intent(this, OverlayService.class);
         startOverlayServiceIfRequirementsFulfilled();
-
-        /* Retrieve the maximum show-at position of all data fields as help for building the display grid */
-        for(int i = 0; i < DataInfo.ENTRIES.length; i++) {
-            if (DataInfo.ENTRIES[i].showAtPos > dataInfoMaxShowAtPos) {
-                dataInfoMaxShowAtPos = DataInfo.ENTRIES[i].showAtPos;
-            }
-        }
     }
 
 
@@ -325,14 +972,22 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onResume() {
         super.onResume();
-        LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver, new IntentFilter(String.valueOf(R.string.bluetooth_message_intent_action)));
+        setPresentationRunning(smoothValues);
+        if(overlayServiceBinding != null) {
+            overlayServiceBinding.setUiVisible(true);
+            overlayServiceBinding.setFrameListener(frameListener);
+        }
     }
 
 
     /* Pause callback */
     @Override
     protected void onPause() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
+        setPresentationRunning(false);
+        if(overlayServiceBinding != null) {
+            overlayServiceBinding.setFrameListener(null);
+            overlayServiceBinding.setUiVisible(false);
+        }
         super.onPause();
     }
 
@@ -362,6 +1017,68 @@ public class MainActivity extends AppCompatActivity {
             overlayServiceBinding.disconnectBluetooth(false);
             showBluetoothDeviceList();
             return true;
+        } else if(id == R.id.action_add_bluetooth_device) {
+            showBluetoothDeviceListToAdd();
+            return true;
+        } else if(id == R.id.action_show_device) {
+            showDeviceSelection();
+            return true;
+        } else if(id == R.id.action_toggle_smooth_values) {
+            smoothValues = !smoothValues;
+            sharedPreferences.edit().putBoolean("smoothValues", smoothValues).apply();
+            setPresentationRunning(smoothValues);
+            return true;
+        } else if(id == R.id.action_toggle_shift_light) {
+            if(overlayServiceBinding != null) {
+                overlayServiceBinding.setShiftLightEnabled(!overlayServiceBinding.isShiftLightEnabled());
+            }
+            return true;
+        } else if(id == R.id.action_toggle_phone_sensors) {
+            if(overlayServiceBinding != null) {
+                boolean enabled = !overlayServiceBinding.isPhoneSensorsEnabled();
+                overlayServiceBinding.setPhoneSensorsEnabled(enabled);
+                Toast.makeText(this, enabled ? R.string.phone_sensors_enabled : R.string.phone_sensors_disabled, Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        } else if(id == R.id.action_toggle_telemetry_server) {
+            if(overlayServiceBinding != null) {
+                if(overlayServiceBinding.isTelemetryServerEnabled()) {
+                    overlayServiceBinding.setTelemetryServerEnabled(false, overlayServiceBinding.getTelemetryServerAddress());
+                    Toast.makeText(this, R.string.telemetry_server_disabled, Toast.LENGTH_LONG).show();
+                } else {
+                    showTelemetryServerAddresses();
+                }
+            }
+            return true;
+        } else if(id == R.id.action_set_upload_endpoint) {
+            if(overlayServiceBinding != null) {
+                showUploadEndpoint();
+            }
+            return true;
+        } else if(id == R.id.action_show_operating_points) {
+            showOperatingPointSources();
+            return true;
+        } else if(id == R.id.action_show_sessions) {
+            showSessionCatalog(0);
+            return true;
+        } else if(id == R.id.action_show_startup_trace) {
+            showStartupTrace();
+            return true;
+        } else if(id == R.id.action_simulate_ride) {
+            showRideSimulation();
+            return true;
+        } else if(id == R.id.action_select_profile) {
+            showProfileSelection();
+            return true;
+        } else if(id == R.id.action_edit_derived_channels) {
+            showDerivedChannels();
+            return true;
+        } else if(id == R.id.action_overlay_settings) {
+            showOverlaySettings(Integer.toString(overlayServiceBinding.getShiftLightStartRpm()), Integer.toString(overlayServiceBinding.getShiftLightShiftRpm()), Float.toString(overlayServiceBinding.getOverlayScale()), null);
+            return true;
+        } else if(id == R.id.action_edit_alert_rules) {
+            showAlertRules(DataInfo.getAlertRules(this), null);
+            return true;
         } else if(id == R.id.action_send_reset) {
             overlayServiceBinding.sendResetCommand();
         } else if(id == R.id.action_send_start) {
@@ -0,0 +1,248 @@
+package de.bananajoh.sv650overlay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* Time spent and time weighted means of HO2, FUEL and IGN per RPM x load cell, updated frame by frame in fixed
+ * primitive arrays. The time between two data frames counts to the cell of the earlier one, gaps in the recording are
+ * skipped. Maps with the same load channel can be merged, e.g. over several sessions, and are stored in small binary
+ * files next to the session logs. */
+public class OperatingPointMap {
+    public static final String[] LOAD_LABELS = { "TPS", "IAP1" };
+    private static final float[] LOAD_MAXIMA = { 100.0f, 256.0f };
+    public static final String[] VALUE_LABELS = { "HO2", "FUEL1a", "FUEL2a", "IGN1", "IGN2" };
+    public static final int RPM_BIN_WIDTH = 500;
+    public static final int RPM_BINS = 24;
+    public static final int LOAD_BINS = 20;
+    public static final String FILE_SUFFIX = ".opmap";
+    private static final int CELLS = RPM_BINS * LOAD_BINS;
+    private static final long MAX_TIME_GAP_NS = 2000000000L;
+    private static final int FILE_MAGIC = 0x4F504D31;
+
+    public final int load;
+    private final float loadBinWidth;
+    private final long[] timeNs = new long[CELLS];
+    private final long[] valueTimeNs = new long[VALUE_LABELS.length * CELLS];
+    private final double[] valueSums = new double[VALUE_LABELS.length * CELLS];
+
+    /* Channels of the active profile, resolved again when the profile changes */
+    private DataInfoEntry[] resolvedEntries = null;
+    private int rpmChannel = -1;
+    private int loadChannel = -1;
+    private final int[] valueChannels = new int[VALUE_LABELS.length];
+
+    /* Cell and values of the previous frame, the time until the next frame is accounted to them */
+    private int lastCell = -1;
+    private long lastTimeNs = 0;
+    private final float[] lastValues = new float[VALUE_LABELS.length];
+
+
+    /* Constructor, load is an index into LOAD_LABELS */
+    public OperatingPointMap(int load) {
+        this.load = load;
+        loadBinWidth = LOAD_MAXIMA[load] / LOAD_BINS;
+    }
+
+
+    /* Cell index of a bin pair */
+    public static int cell(int rpmBin, int loadBin) {
+        return loadBin * RPM_BINS + rpmBin;
+    }
+
+
+    /* Account a data frame (type 0x01) */
+    public synchronized void update(SensorFrame frame) {
+        DataInfoEntry[] entries = frame.plan.entries;
+        if(entries != resolvedEntries) {
+            resolveChannels(entries);
+        }
+
+        long frameTimeNs = frame.receiveTimeNs;
+        if(lastCell > -1 && frameTimeNs > lastTimeNs && (frameTimeNs - lastTimeNs) <= MAX_TIME_GAP_NS) {
+            long dtNs = frameTimeNs - lastTimeNs;
+            timeNs[lastCell] += dtNs;
+            for(int value = 0; value < VALUE_LABELS.length; value++) {
+                if(!Float.isNaN(lastValues[value])) {
+                    valueTimeNs[value * CELLS + lastCell] += dtNs;
+                    valueSums[value * CELLS + lastCell] += (double) lastValues[value] * dtNs;
+                }
+            }
+        }
+
+        lastCell = -1;
+        lastTimeNs = frameTimeNs;
+        if(rpmChannel < 0 || rpmChannel >= frame.channelCount || loadChannel < 0 || loadChannel >= frame.channelCount) {
+            return;
+        }
+        int rpmBin = Math.max(0, Math.min(RPM_BINS - 1, (int) (frame.values[rpmChannel] / RPM_BIN_WIDTH)));
+        int loadBin = Math.max(0, Math.min(LOAD_BINS - 1, (int) (frame.values[loadChannel] / loadBinWidth)));
+        lastCell = cell(rpmBin, loadBin);
+        for(int value = 0; value < VALUE_LABELS.length; value++) {
+            int channel = valueChannels[value];
+            lastValues[value] = (channel > -1 && channel < frame.channelCount) ? frame.values[channel] : Float.NaN;
+        }
+    }
+
+
+    /* Do not account the time until the next frame, e.g. across missing frames */
+    public synchronized void breakTime() {
+        lastCell = -1;
+    }
+
+
+    /* Look up the channels of the labels in the active profile */
+    private void resolveChannels(DataInfoEntry[] entries) {
+        resolvedEntries = entries;
+        rpmChannel = findChannel(entries, "RPM");
+        loadChannel = findChannel(entries, LOAD_LABELS[load]);
+        for(int value = 0; value < VALUE_LABELS.length; value++) {
+            valueChannels[value] = findChannel(entries, VALUE_LABELS[value]);
+        }
+        lastCell = -1;
+    }
+
+
+    /* Channel index of a label, -1 if the profile does not have it */
+    private static int findChannel(DataInfoEntry[] entries, String label) {
+        for(int channel = 0; channel < entries.length; channel++) {
+            if(entries[channel].label.equals(label)) {
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+
+    /* Add the accumulated time and values of another map with the same load channel */
+    public synchronized void merge(OperatingPointMap other) {
+        if(other.load != load) {
+            throw new IllegalArgumentException("Load channels differ");
+        }
+        synchronized(other) {
+            for(int i = 0; i < CELLS; i++) {
+                timeNs[i] += other.timeNs[i];
+            }
+            for(int i = 0; i < valueSums.length; i++) {
+                valueTimeNs[i] += other.valueTimeNs[i];
+                valueSums[i] += other.valueSums[i];
+            }
+        }
+    }
+
+
+    /* Copy of the accumulated data, without the state of the previous frame */
+    public synchronized OperatingPointMap copy() {
+        OperatingPointMap copy = new OperatingPointMap(load);
+        System.arraycopy(timeNs, 0, copy.timeNs, 0, CELLS);
+        System.arraycopy(valueTimeNs, 0, copy.valueTimeNs, 0, valueTimeNs.length);
+        System.arraycopy(valueSums, 0, copy.valueSums, 0, valueSums.length);
+        return copy;
+    }
+
+
+    /* Time spent in a cell in nanoseconds */
+    public synchronized long getTimeNs(int cell) {
+        return timeNs[cell];
+    }
+
+
+    /* Time weighted mean of a value (index into VALUE_LABELS) in a cell, NaN if never seen there */
+    public synchronized float getMean(int value, int cell) {
+        long time = valueTimeNs[value * CELLS + cell];
+        return (time > 0) ? (float) (valueSums[value * CELLS + cell] / time) : Float.NaN;
+    }
+
+
+    /* Lower bound of a load bin in the unit of the load channel */
+    public float getLoadBinStart(int loadBin) {
+        return loadBin * loadBinWidth;
+    }
+
+
+    /* Write maps to a file, replacing it */
+    public static void save(File file, OperatingPointMap[] maps) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(maps.length);
+            for(OperatingPointMap map : maps) {
+                synchronized(map) {
+                    out.writeUTF(LOAD_LABELS[map.load]);
+                    out.writeInt(RPM_BINS);
+                    out.writeInt(LOAD_BINS);
+                    out.writeInt(VALUE_LABELS.length);
+                    for(int i = 0; i < CELLS; i++) {
+                        out.writeLong(map.timeNs[i]);
+                    }
+                    for(int i = 0; i < map.valueSums.length; i++) {
+                        out.writeLong(map.valueTimeNs[i]);
+                        out.writeDouble(map.valueSums[i]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if(!tempFile.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+
+    /* Read maps written by save(), maps of another layout or unknown load channel are skipped */
+    public static List<OperatingPointMap> load(File file) throws IOException {
+        List<OperatingPointMap> maps = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not an operating point map: " + file);
+            }
+            int count = in.readInt();
+            for(int m = 0; m < count; m++) {
+                String loadLabel = in.readUTF();
+                int rpmBins = in.readInt();
+                int loadBins = in.readInt();
+                int valueCount = in.readInt();
+                int load = -1;
+                for(int i = 0; i < LOAD_LABELS.length; i++) {
+                    if(LOAD_LABELS[i].equals(loadLabel)) {
+                        load = i;
+                    }
+                }
+                if(load < 0 || rpmBins != RPM_BINS || loadBins != LOAD_BINS || valueCount != VALUE_LABELS.length) {
+                    long skipBytes = (long) rpmBins * loadBins * (8 + valueCount * 16L);
+                    while(skipBytes > 0) {
+                        long skipped = in.skip(skipBytes);
+                        if(skipped <= 0) {
+                            throw new IOException("Truncated operating point map: " + file);
+                        }
+                        skipBytes -= skipped;
+                    }
+                    continue;
+                }
+                OperatingPointMap map = new OperatingPointMap(load);
+                for(int i = 0; i < CELLS; i++) {
+                    map.timeNs[i] = in.readLong();
+                }
+                for(int i = 0; i < map.valueSums.length; i++) {
+                    map.valueTimeNs[i] = in.readLong();
+                    map.valueSums[i] = in.readDouble();
+                }
+                maps.add(map);
+            }
+        } finally {
+            in.close();
+        }
+        return maps;
+    }
+}
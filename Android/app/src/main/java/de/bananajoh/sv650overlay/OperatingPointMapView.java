@@ -0,0 +1,133 @@
+package de.bananajoh.sv650overlay;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+
+/* Heatmap of an operating point map, RPM to the right and load upwards. Cells are colored by the share of time spent
+ * or by the mean of one of the values, tapping the view steps through them. Cells never visited stay empty. */
+public class OperatingPointMapView extends View {
+    private static final float AXIS_TEXT_SIZE_SP = 10.0f;
+    private static final float LEGEND_TEXT_SIZE_SP = 14.0f;
+    private static final int RPM_LABEL_EVERY_BINS = 4;
+    private static final int LOAD_LABEL_EVERY_BINS = 5;
+
+    private final OperatingPointMap map;
+    private final Paint cellPaint = new Paint();
+    private final Paint gridPaint = new Paint();
+    private final Paint axisTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint legendTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float[] hsv = { 0.0f, 1.0f, 1.0f };
+
+    /* -1 shows the time spent, otherwise the index into OperatingPointMap.VALUE_LABELS */
+    private int shownValue = -1;
+
+
+    /* Constructor */
+    public OperatingPointMapView(Context context, OperatingPointMap map) {
+        super(context);
+        this.map = map;
+        float scaledDensity = context.getResources().getDisplayMetrics().scaledDensity;
+        gridPaint.setColor(Color.LTGRAY);
+        gridPaint.setStyle(Paint.Style.STROKE);
+        axisTextPaint.setColor(Color.GRAY);
+        axisTextPaint.setTextSize(AXIS_TEXT_SIZE_SP * scaledDensity);
+        legendTextPaint.setColor(Color.DKGRAY);
+        legendTextPaint.setTextSize(LEGEND_TEXT_SIZE_SP * scaledDensity);
+        setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                shownValue = (shownValue + 2) % (OperatingPointMap.VALUE_LABELS.length + 1) - 1;
+                invalidate();
+            }
+        });
+    }
+
+
+    /* Keep the cells roughly square */
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int height = width * OperatingPointMap.LOAD_BINS / OperatingPointMap.RPM_BINS + (int) (3 * legendTextPaint.getTextSize());
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float left = axisTextPaint.measureText("000") + axisTextPaint.getTextSize() / 2;
+        float top = legendTextPaint.getTextSize() * 1.5f;
+        float right = getWidth() - axisTextPaint.getTextSize();
+        float bottom = getHeight() - axisTextPaint.getTextSize() * 1.5f;
+        float cellWidth = (right - left) / OperatingPointMap.RPM_BINS;
+        float cellHeight = (bottom - top) / OperatingPointMap.LOAD_BINS;
+
+        /* Range of the shown quantity over the visited cells */
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        long totalTimeNs = 0;
+        for(int cell = 0; cell < OperatingPointMap.RPM_BINS * OperatingPointMap.LOAD_BINS; cell++) {
+            totalTimeNs += map.getTimeNs(cell);
+            float value = getCellValue(cell);
+            if(!Float.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+
+        for(int loadBin = 0; loadBin < OperatingPointMap.LOAD_BINS; loadBin++) {
+            float cellBottom = bottom - loadBin * cellHeight;
+            for(int rpmBin = 0; rpmBin < OperatingPointMap.RPM_BINS; rpmBin++) {
+                float cellLeft = left + rpmBin * cellWidth;
+                float value = getCellValue(OperatingPointMap.cell(rpmBin, loadBin));
+                if(!Float.isNaN(value)) {
+                    /* Blue for the lowest up to red for the highest value */
+                    float position = (max > min) ? (value - min) / (max - min) : 1.0f;
+                    hsv[0] = 240.0f * (1.0f - position);
+                    cellPaint.setColor(Color.HSVToColor(hsv));
+                    canvas.drawRect(cellLeft, cellBottom - cellHeight, cellLeft + cellWidth, cellBottom, cellPaint);
+                }
+                canvas.drawRect(cellLeft, cellBottom - cellHeight, cellLeft + cellWidth, cellBottom, gridPaint);
+            }
+        }
+
+        /* Axes labelled in krpm and the unit of the load channel */
+        axisTextPaint.setTextAlign(Paint.Align.CENTER);
+        for(int rpmBin = 0; rpmBin <= OperatingPointMap.RPM_BINS; rpmBin += RPM_LABEL_EVERY_BINS) {
+            String label = Integer.toString(rpmBin * OperatingPointMap.RPM_BIN_WIDTH / 1000);
+            canvas.drawText(label, left + rpmBin * cellWidth, bottom + axisTextPaint.getTextSize(), axisTextPaint);
+        }
+        axisTextPaint.setTextAlign(Paint.Align.RIGHT);
+        for(int loadBin = 0; loadBin <= OperatingPointMap.LOAD_BINS; loadBin += LOAD_LABEL_EVERY_BINS) {
+            String label = Integer.toString((int) map.getLoadBinStart(loadBin));
+            canvas.drawText(label, left - axisTextPaint.getTextSize() / 4, bottom - loadBin * cellHeight + axisTextPaint.getTextSize() / 3, axisTextPaint);
+        }
+
+        String legend;
+        if(shownValue < 0) {
+            legend = getContext().getString(R.string.operating_points_time, totalTimeNs / 60000000000L, (totalTimeNs / 1000000000L) % 60,
+                    OperatingPointMap.LOAD_LABELS[map.load]);
+        } else if(min <= max) {
+            legend = getContext().getString(R.string.operating_points_value, OperatingPointMap.VALUE_LABELS[shownValue], min, max);
+        } else {
+            legend = getContext().getString(R.string.operating_points_no_value, OperatingPointMap.VALUE_LABELS[shownValue]);
+        }
+        canvas.drawText(legend, left, legendTextPaint.getTextSize(), legendTextPaint);
+    }
+
+
+    /* Shown quantity of a cell, the time on a logarithmic scale, NaN for cells never visited */
+    private float getCellValue(int cell) {
+        long timeNs = map.getTimeNs(cell);
+        if(timeNs <= 0) {
+            return Float.NaN;
+        }
+        if(shownValue < 0) {
+            return (float) Math.log10(timeNs);
+        }
+        return map.getMean(shownValue, cell);
+    }
+}
@@ -3,57 +3,54 @@ package de.bananajoh.sv650overlay;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.BluetoothSocket;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.graphics.BitmapFactory;
+import android.content.SharedPreferences;
 import android.graphics.PixelFormat;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelUuid;
 import android.os.SystemClock;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.WindowManager;
-import android.widget.ImageButton;
-import android.widget.ImageView;
 import android.widget.Toast;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetAddress;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.UUID;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static android.bluetooth.BluetoothDevice.ACTION_ACL_DISCONNECTED;
 
 
-public class OverlayService extends Service implements View.OnTouchListener, View.OnClickListener {
-    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    private static final UUID BLE_SPP_SERVICE_UUID = UUID.fromString("0000ABF0-0000-1000-8000-00805F9B34FB");
-    private static final UUID BLE_SPP_CHAR_TX_UUID = UUID.fromString("0000ABF1-0000-1000-8000-00805F9B34FB");
-    private static final UUID BLE_SPP_CHAR_RX_UUID = UUID.fromString("0000ABF2-0000-1000-8000-00805F9B34FB");
+public class OverlayService extends Service implements View.OnTouchListener, View.OnClickListener, DeviceSession.Listener {
     private static final long BLUETOOTH_RECONNECT_INTERVAL_MS = 15000;
-    private static final byte[] COMMAND_RESET = { (byte) 0xFF };
-    private static final byte[] COMMAND_GO    = { 0x01 };
-    private static final byte[] COMMAND_STOP  = { 0x00 };
-    private static final int GEAR_DATA_INDEX = 28;
+    private static final long BACKGROUND_SCAN_CONNECT_HOLDOFF_MS = 5000;
+    public static final int POLL_PROFILE_SLOW = 0;
+    public static final int POLL_PROFILE_NORMAL = 1;
+    public static final int POLL_PROFILE_FAST = 2;
+    public static final String SIMULATION_ADDRESS = "SIMULATION";
+    public static final long SIMULATION_MODEL_INTERVAL_MS = 100;
+    public static final int TELEMETRY_SERVER_PORT = 6650;
+    private static final int UPLOAD_CONCURRENCY = 2;
+    private static final int UPLOAD_CHUNK_SIZE = 256 * 1024;
+    private static final long UPLOAD_RETRY_DELAY_MS = 10000;
     private static final byte[] TEST_DATAFRAME = {
             0x01, 59, 0,  0,  0, 0, 0, 0, 0, 0,
             0,     0, 0,  0,  0, 0, 0, 0, 0, 0,
@@ -62,9 +59,16 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
             0,     0, 0,  0,  0, 0, 0, 0, 0, 0,
             0,     0, 0,  0,  0, 0, 0, 0, 0
     };
+    private static final float OVERLAY_ALPHA = 0.8f;
+    private static final float OVERLAY_ALPHA_BLINK_OFF = 0.2f;
+    private static final long ALERT_BLINK_INTERVAL_MS = 300;
+    private static final int SHIFT_LIGHT_START_RPM = 6000;
+    private static final int SHIFT_LIGHT_SHIFT_RPM = 9500;
+    public static final float MIN_OVERLAY_SCALE = 0.5f;
+    public static final float MAX_OVERLAY_SCALE = 3.0f;
 
     private WindowManager windowManager = null;
-    private ImageButton overlayButton = null;
+    private SevenSegmentView overlayView = null;
     private View topCenterView = null;
     private float eventRelativeX = 0.0f;
     private float eventRelativeY = 0.0f;
@@ -72,26 +76,44 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
     private int initialWidgetY = 0;
     private boolean widgetMoving = false;
 
-    private boolean bluetoothBusy = false;
-    private BluetoothAdapter bluetoothAdapter = null;
-    private BluetoothDevice bluetoothDevice = null;
-    private BluetoothSocket bluetoothSocket = null;
-    private OutputStream bluetoothOutputStream = null;
-    private InputStream bluetoothInputStream = null;
-    private Thread bluetoothWorkerThread = null;
-    private byte[] bluetoothReadBuffer = {0};
-    private int bluetoothReadBufferPosition = 0;
-    private int bluetoothReadDataLength = 0;
-    private volatile boolean stopBluetoothWorkerThread = true;
-    private BluetoothGatt bluetoothGatt = null;
-    private BluetoothGattCallback gattCallback = null;
-    private BluetoothGattCharacteristic bleTxCharacteristic = null;
-    private boolean bleConnected = false;
-    private String lastDeviceAddress = null;
-    private boolean lastDeviceSecure = false;
+    /* Device sessions by address, only accessed on the main thread */
+    private final Map<String, DeviceSession> deviceSessions = new LinkedHashMap<>();
+    private volatile String selectedDeviceAddress = null;
+    private Handler mainHandler = null;
     private Handler bluetoothReconnectHandler = null;
     private Runnable bluetoothReconnect = null;
-    private BufferedWriter logFileBuffer = null;
+    private volatile boolean uiVisible = false;
+    private volatile FrameListener frameListener = null;
+    /* Startup phases reached on the frame path, checked before marking so the steady state costs a single read */
+    private volatile boolean firstFrameMarked = false;
+    private volatile boolean firstGearMarked = false;
+
+    /* While the screen is off frames are only logged, the last frame of the selected device is kept to update the overlay on screen on */
+    private volatile boolean screenOn = true;
+    private final Object lastFrameLock = new Object();
+    private SensorFrame lastSelectedFrame = null;
+    private boolean dataLogging = false;
+    private PhoneSensorRecorder phoneSensorRecorder = null;
+
+    /* Optional stream of the frames of the selected device to the local network */
+    private final TelemetryServer telemetryServer = new TelemetryServer(TELEMETRY_SERVER_PORT);
+    private SessionUploader sessionUploader = null;
+
+    /* Alert rules of the active profile evaluated on the frames of the selected device */
+    private final Object alertLock = new Object();
+    private AlertEngine alertEngine = null;
+    private long alertMask = 0;
+    private Runnable alertBlink = null;
+    private boolean alertBlinkOff = false;
+
+    /* RPM bar next to the gear, only accessed on the main thread */
+    private DecodePlan shiftLightPlan = null;
+    private int shiftLightChannel = -1;
+    private float shiftLightStartRpm = 0.0f;
+    private float shiftLightShiftRpm = 0.0f;
+
+    /* Low duty cycle scan for BLE devices waiting to be reconnected, only accessed on the main thread */
+    private boolean backgroundScanning = false;
 
 
     /* Class for clients to access this service */
@@ -109,14 +131,47 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
         public void onReceive(Context context, Intent intent) {
             /* No extra intent action check as there is only one filter registered */
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            if(device.getAddress().equals(lastDeviceAddress)) {
-                Toast.makeText(overlayButton.getContext(), getString(R.string.bluetooth_connection_lost, device.getName()), Toast.LENGTH_LONG).show();
-                disconnectBluetooth(true);
+            DeviceSession session = deviceSessions.get(device.getAddress());
+            if(session != null) {
+                Toast.makeText(overlayView.getContext(), getString(R.string.bluetooth_connection_lost, device.getName()), Toast.LENGTH_LONG).show();
+                session.disconnect(true);
             }
         }
     };
 
 
+    /* Connect right away when a BLE device waiting to be reconnected starts advertising, e.g. when the bike powers up */
+    private final ScanCallback backgroundScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            DeviceSession session = deviceSessions.get(result.getDevice().getAddress());
+            if(session == null || !session.isAutoReconnect() || session.isConnected()) {
+                return;
+            }
+            /* Advertisements repeat, give a running connection attempt time instead of restarting it */
+            if(SystemClock.elapsedRealtime() - session.getLastConnectAttemptMs() < BACKGROUND_SCAN_CONNECT_HOLDOFF_MS) {
+                return;
+            }
+            DeviceCache.getInstance(OverlayService.this).put(session.getAddress(), result.getDevice().getName(), result.getDevice().getType(), result.getRssi());
+            session.connect(false);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            backgroundScanning = false;
+        }
+    };
+
+
+    /* Listen for screen on and off to switch between full pipeline and logging only */
+    private final BroadcastReceiver screenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
+
     /* Constructor */
     public OverlayService() {
     }
@@ -126,30 +181,26 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
     private void setupOverlay() {
         windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
 
-        /* Setup image button as overlay widget */
-        overlayButton = new ImageButton(this);
-        overlayButton.setImageResource(R.drawable.sevenseg_dot);
-        overlayButton.setPadding(0, 0, 0, 0);
-        overlayButton.setAlpha(0.8f);
-        overlayButton.setScaleType(ImageView.ScaleType.FIT_CENTER);
-        overlayButton.setOnTouchListener(this);
-        overlayButton.setOnClickListener(this);
-
-        /* Retrieve width and height of image */
-        BitmapFactory.Options dimensions = new BitmapFactory.Options();
-        dimensions.inJustDecodeBounds = true;
-        BitmapFactory.decodeResource(getResources(), R.drawable.sevenseg_empty, dimensions);
-        int imageWidth = dimensions.outWidth;
-        int imageHeight = dimensions.outHeight;
+        /* Setup seven-segment view as overlay widget */
+        SharedPreferences sharedPreferences = getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        overlayView = new SevenSegmentView(this);
+        overlayView.setScale(getOverlayScale());
+        overlayView.setSymbol(SevenSegmentView.SYMBOL_EMPTY, true);
+        overlayView.setBarEnabled(sharedPreferences.getBoolean("shiftLightEnabled", false));
+        shiftLightStartRpm = getShiftLightStartRpm();
+        shiftLightShiftRpm = getShiftLightShiftRpm();
+        overlayView.setAlpha(OVERLAY_ALPHA);
+        overlayView.setOnTouchListener(this);
+        overlayView.setOnClickListener(this);
 
         /* Add view for the image button to the window manager */
         WindowManager.LayoutParams params = new WindowManager.LayoutParams(WindowManager.LayoutParams.WRAP_CONTENT, WindowManager.LayoutParams.WRAP_CONTENT, WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY, WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE | WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL, PixelFormat.TRANSLUCENT);
         params.gravity = Gravity.CENTER_HORIZONTAL | Gravity.TOP;
         params.x = 0;
         params.y = 0;
-        params.width = imageWidth;
-        params.height = imageHeight;
-        windowManager.addView(overlayButton, params);
+        params.width = overlayView.getScaledWidth();
+        params.height = overlayView.getScaledHeight();
+        windowManager.addView(overlayView, params);
 
         /* Add another invisible view as reference point for handling touchscreen move events */
         topCenterView = new View(this);
@@ -163,466 +214,787 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
     }
 
 
-    /* Setup Bluetooth auto reconnect to last device */
+    /* Setup Bluetooth auto reconnect to all devices of the session list */
     private void setupBluetoothReconnect() {
         bluetoothReconnectHandler = new Handler();
         bluetoothReconnect = new Runnable() {
             @Override
             public void run() {
-                if(!isBluetoothConnected() && lastDeviceAddress != null) {
-                    connectBluetooth(lastDeviceAddress, lastDeviceSecure, false);
+                for(DeviceSession session : deviceSessions.values()) {
+                    if(session.isAutoReconnect() && !session.isConnected()) {
+                        session.connect(false);
+                    }
                 }
+                updateBackgroundScan();
                 bluetoothReconnectHandler.postDelayed(this, BLUETOOTH_RECONNECT_INTERVAL_MS);
             }
         };
     }
 
 
-    /* Retrieve gear out of received data for overlay */
-    private void updateGear(byte[] data) {
-        if(data.length < (GEAR_DATA_INDEX + 1)) {
+    /* Run the filtered low power BLE scan while a BLE device is waiting to be reconnected, has to be called on the main thread */
+    private void updateBackgroundScan() {
+        boolean waiting = false;
+        DeviceCache deviceCache = DeviceCache.getInstance(this);
+        for(DeviceSession session : deviceSessions.values()) {
+            int type = deviceCache.getType(session.getAddress());
+            if(session.isAutoReconnect() && !session.isConnected() && (type == BluetoothDevice.DEVICE_TYPE_LE || type == BluetoothDevice.DEVICE_TYPE_DUAL)) {
+                waiting = true;
+                break;
+            }
+        }
+        if(!waiting) {
+            stopBackgroundScan();
             return;
         }
-        switch(data[GEAR_DATA_INDEX]) {
-            case 0:  overlayButton.setImageResource(R.drawable.sevenseg_minus); break;
-            case 1:  overlayButton.setImageResource(R.drawable.sevenseg_1);     break;
-            case 2:  overlayButton.setImageResource(R.drawable.sevenseg_2);     break;
-            case 3:  overlayButton.setImageResource(R.drawable.sevenseg_3);     break;
-            case 4:  overlayButton.setImageResource(R.drawable.sevenseg_4);     break;
-            case 5:  overlayButton.setImageResource(R.drawable.sevenseg_5);     break;
-            case 6:  overlayButton.setImageResource(R.drawable.sevenseg_6);     break;
-            default: overlayButton.setImageResource(R.drawable.sevenseg_empty);
+        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if(backgroundScanning || bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
+            return;
+        }
+        BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if(scanner == null) {
+            return;
         }
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(DeviceSession.BLE_SPP_SERVICE_UUID)).build());
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_POWER).build();
+        scanner.startScan(filters, settings, backgroundScanCallback);
+        backgroundScanning = true;
     }
 
 
-    /* Send received data frame to MainActivity, append it to log and process gear information */
-    private void processReceivedData(byte[] data) {
-        if(data.length > 0 && data[0] == 0x01) {
-            updateGear(data);
+    /* Stop the background scan if running */
+    private void stopBackgroundScan() {
+        if(!backgroundScanning) {
+            return;
+        }
+        backgroundScanning = false;
+        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if(bluetoothAdapter != null && bluetoothAdapter.isEnabled() && bluetoothAdapter.getBluetoothLeScanner() != null) {
+            bluetoothAdapter.getBluetoothLeScanner().stopScan(backgroundScanCallback);
         }
-        sendDataBroadcastIntent(data);
-        appendLog(data);
     }
 
 
-    /* Start data logging to file */
-    public void startDataLogging() {
-        if(logFileBuffer != null) {
+    /* Saved devices to reconnect to, the first one is the primary device */
+    public static List<String> getSavedDeviceAddresses(SharedPreferences sharedPreferences) {
+        List<String> deviceAddresses = new ArrayList<>();
+        String restoredDeviceAddress = sharedPreferences.getString("deviceAddress", null);
+        if(restoredDeviceAddress != null) {
+            deviceAddresses.add(restoredDeviceAddress);
+        }
+        String additionalDeviceAddresses = sharedPreferences.getString("additionalDeviceAddresses", "");
+        for(String additionalDeviceAddress : additionalDeviceAddresses.split(",")) {
+            if(!additionalDeviceAddress.isEmpty() && !deviceAddresses.contains(additionalDeviceAddress)) {
+                deviceAddresses.add(additionalDeviceAddress);
+            }
+        }
+        return deviceAddresses;
+    }
+
+
+    /* Start connecting to the saved devices, returns false if there are none */
+    public boolean reconnectSavedDevices() {
+        SharedPreferences sharedPreferences = getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        List<String> restoredDeviceAddresses = getSavedDeviceAddresses(sharedPreferences);
+        if(restoredDeviceAddresses.isEmpty()) {
+            return false;
+        }
+        boolean restoredDeviceSecure = sharedPreferences.getBoolean("deviceSecure", true);
+        for(String restoredDeviceAddress : restoredDeviceAddresses) {
+            connectBluetooth(restoredDeviceAddress, restoredDeviceSecure, true);
+        }
+        updateBackgroundScan();
+        StartupTrace.mark("reconnect_started");
+        return true;
+    }
+
+
+    /* Receiver of the frames shown in the data display */
+    public interface FrameListener {
+        /* Frame of the selected device or generated by the service, called on the main thread. The frame is released after the call. */
+        void onFrame(SensorFrame frame);
+    }
+
+
+    /* Show the gear of a frame in the overlay */
+    private void updateGear(SensorFrame frame) {
+        if(!firstGearMarked && frame.gear >= 0) {
+            StartupTrace.mark("first_gear");
+            firstGearMarked = true;
+        }
+        /* The view only redraws if the gear actually changed */
+        if(frame.gear == 0) {
+            overlayView.setSymbol(SevenSegmentView.SYMBOL_MINUS, false);
+        } else if(frame.gear >= 1 && frame.gear <= 6) {
+            overlayView.setSymbol(frame.gear, false);
+        } else {
+            overlayView.setSymbol(SevenSegmentView.SYMBOL_EMPTY, false);
+        }
+    }
+
+
+    /* Frame received by a session, called on its pipeline thread: hand it to MainActivity and update the overlay for the selected device */
+    @Override
+    public void onFrame(DeviceSession session, SensorFrame frame) {
+        if(!firstFrameMarked) {
+            StartupTrace.mark("first_frame");
+            firstFrameMarked = true;
+        }
+        boolean selectedDevice = session.getAddress().equals(selectedDeviceAddress);
+        boolean selectedDataFrame = selectedDevice && frame.isData();
+        if(selectedDevice) {
+            telemetryServer.publish(frame);
+        }
+        if(selectedDataFrame) {
+            setLastSelectedFrame(frame);
+            LiveFeedPublisher.getInstance().publish(frame);
+        }
+
+        /* Low power mode with the screen off, the session has logged the frame already */
+        if(!screenOn) {
             return;
         }
-        String fileTimestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        File logFile = new File(this.getExternalFilesDir(null).getAbsolutePath(), "sensordata_" + fileTimestamp + ".log");
-        if(!logFile.exists()) {
-            try {
-                logFile.createNewFile();
-            } catch(IOException e) {
-                e.printStackTrace();
+        if(uiVisible && selectedDevice) {
+            postUiFrame(frame);
+        }
+        if(selectedDataFrame) {
+            postOverlayUpdate(frame);
+            evaluateAlerts(frame);
+        }
+    }
+
+
+    /* Keep the last data frame of the selected device to update the overlay on screen on, null to forget it */
+    private void setLastSelectedFrame(SensorFrame frame) {
+        SensorFrame previous;
+        synchronized(lastFrameLock) {
+            previous = lastSelectedFrame;
+            lastSelectedFrame = (frame != null) ? frame.retain() : null;
+        }
+        if(previous != null) {
+            previous.release();
+        }
+    }
+
+
+    /* Retained last data frame of the selected device, null if there is none */
+    private SensorFrame retainLastSelectedFrame() {
+        synchronized(lastFrameLock) {
+            return (lastSelectedFrame != null) ? lastSelectedFrame.retain() : null;
+        }
+    }
+
+
+    /* Show gear and RPM bar of a data frame on the main thread */
+    private void postOverlayUpdate(final SensorFrame frame) {
+        frame.retain();
+        mainHandler.post(new Runnable() {
+            public void run() {
+                if(overlayView != null) {
+                    updateGear(frame);
+                    updateShiftLight(frame);
+                }
+                frame.release();
+            }
+        });
+    }
+
+
+    /* Hand a frame to the data display on the main thread */
+    private void postUiFrame(final SensorFrame frame) {
+        frame.retain();
+        mainHandler.post(new Runnable() {
+            public void run() {
+                FrameListener listener = frameListener;
+                if(listener != null) {
+                    listener.onFrame(frame);
+                }
+                frame.release();
             }
+        });
+    }
+
+
+    /* Switch between the full pipeline and logging only with rarer log flushes */
+    private void setScreenOn(boolean on) {
+        if(screenOn == on) {
+            return;
         }
-        try {
-            logFileBuffer = new BufferedWriter(new FileWriter(logFile, true));
-            String logHeader = "Date,Time";
-            for(DataInfoEntry dataInfoEntry : DataInfo.ENTRIES) {
-                logHeader += "," + dataInfoEntry.label;
+        screenOn = on;
+        for(DeviceSession session : deviceSessions.values()) {
+            session.setLowPower(!on);
+        }
+        SensorFrame frame = on ? retainLastSelectedFrame() : null;
+        if(frame != null) {
+            postOverlayUpdate(frame);
+            frame.release();
+        }
+    }
+
+
+    /* Fill the RPM bar between start and shift RPM out of the RPM channel of the active profile */
+    private void updateShiftLight(SensorFrame frame) {
+        if(!overlayView.isBarEnabled()) {
+            return;
+        }
+        DecodePlan plan = frame.plan;
+        if(plan != shiftLightPlan) {
+            shiftLightPlan = plan;
+            shiftLightChannel = -1;
+            DataInfoEntry[] entries = plan.entries;
+            for(int channel = 0; channel < entries.length; channel++) {
+                if(entries[channel].label.equals("RPM")) {
+                    shiftLightChannel = channel;
+                    break;
+                }
             }
-            logFileBuffer.append(logHeader);
-            logFileBuffer.newLine();
-        } catch(IOException e) {
-            e.printStackTrace();
         }
+        if(shiftLightChannel < 0 || shiftLightChannel >= frame.channelCount) {
+            return;
+        }
+        if(shiftLightShiftRpm <= shiftLightStartRpm) {
+            return;
+        }
+        float rpm = frame.values[shiftLightChannel];
+        float level = (rpm - shiftLightStartRpm) / (shiftLightShiftRpm - shiftLightStartRpm);
+        overlayView.setBarLevel(level, rpm >= shiftLightShiftRpm);
+    }
+
+
+    /* Show or hide the RPM bar of the overlay and remember the choice */
+    public void setShiftLightEnabled(boolean enabled) {
+        getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).edit().putBoolean("shiftLightEnabled", enabled).apply();
+        if(overlayView == null) {
+            return;
+        }
+        overlayView.setBarEnabled(enabled);
+        overlayView.setBarLevel(0.0f, false);
+        WindowManager.LayoutParams params = (WindowManager.LayoutParams) overlayView.getLayoutParams();
+        params.width = overlayView.getScaledWidth();
+        windowManager.updateViewLayout(overlayView, params);
+    }
+
+
+    /* Check if the RPM bar of the overlay is shown */
+    public boolean isShiftLightEnabled() {
+        return overlayView != null && overlayView.isBarEnabled();
+    }
+
+
+    /* Set the RPM the bar starts to fill at and the one it is full and flashes at, throws if start is not below shift */
+    public void setShiftLightRpm(int startRpm, int shiftRpm) {
+        if(startRpm < 0 || startRpm >= shiftRpm) {
+            throw new IllegalArgumentException("Shift light start RPM " + startRpm + " not below shift RPM " + shiftRpm);
+        }
+        getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).edit().putInt("shiftLightStartRpm", startRpm).putInt("shiftLightShiftRpm", shiftRpm).apply();
+        shiftLightStartRpm = startRpm;
+        shiftLightShiftRpm = shiftRpm;
+    }
+
+
+    /* RPM the bar starts to fill at, the default if the saved range is invalid */
+    public int getShiftLightStartRpm() {
+        SharedPreferences sharedPreferences = getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        int startRpm = sharedPreferences.getInt("shiftLightStartRpm", SHIFT_LIGHT_START_RPM);
+        return (startRpm >= 0 && startRpm < sharedPreferences.getInt("shiftLightShiftRpm", SHIFT_LIGHT_SHIFT_RPM)) ? startRpm : SHIFT_LIGHT_START_RPM;
+    }
+
+
+    /* RPM the bar is full and flashes at, the default if the saved range is invalid */
+    public int getShiftLightShiftRpm() {
+        SharedPreferences sharedPreferences = getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE);
+        int shiftRpm = sharedPreferences.getInt("shiftLightShiftRpm", SHIFT_LIGHT_SHIFT_RPM);
+        int startRpm = sharedPreferences.getInt("shiftLightStartRpm", SHIFT_LIGHT_START_RPM);
+        return (startRpm >= 0 && startRpm < shiftRpm) ? shiftRpm : SHIFT_LIGHT_SHIFT_RPM;
+    }
+
+
+    /* Resize the overlay, throws if the scale is out of MIN_OVERLAY_SCALE to MAX_OVERLAY_SCALE */
+    public void setOverlayScale(float scale) {
+        if(!(scale >= MIN_OVERLAY_SCALE && scale <= MAX_OVERLAY_SCALE)) {
+            throw new IllegalArgumentException("Overlay scale out of range: " + scale);
+        }
+        getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).edit().putFloat("overlayScale", scale).apply();
+        if(overlayView == null) {
+            return;
+        }
+        overlayView.setScale(scale);
+        WindowManager.LayoutParams params = (WindowManager.LayoutParams) overlayView.getLayoutParams();
+        params.width = overlayView.getScaledWidth();
+        params.height = overlayView.getScaledHeight();
+        windowManager.updateViewLayout(overlayView, params);
+    }
+
+
+    /* Scale of the overlay, 1.0 if the saved one is out of range */
+    public float getOverlayScale() {
+        float scale = getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).getFloat("overlayScale", 1.0f);
+        return (scale >= MIN_OVERLAY_SCALE && scale <= MAX_OVERLAY_SCALE) ? scale : 1.0f;
+    }
+
+
+    /* Check the alert rules on a data frame, the overlay is only touched if the set of firing rules changes */
+    private void evaluateAlerts(SensorFrame frame) {
+        final int color;
+        final boolean blink;
+        synchronized(alertLock) {
+            DecodePlan plan = frame.plan;
+            if(alertEngine == null || alertEngine.plan != plan) {
+                alertEngine = new AlertEngine(plan, plan.alertRules);
+                alertMask = 0;
+            }
+            long mask = alertEngine.evaluate(frame, frame.receiveTimeNs / 1000000);
+            if(mask == alertMask) {
+                return;
+            }
+            alertMask = mask;
+            color = alertEngine.getColor(mask);
+            blink = alertEngine.isBlinking(mask);
+        }
+        mainHandler.post(new Runnable() {
+            public void run() {
+                updateAlertSignal(color, blink);
+            }
+        });
+    }
+
+
+    /* Tint the overlay with the colour of a firing rule (0 for none) and let it blink if requested */
+    private void updateAlertSignal(int color, boolean blink) {
+        if(overlayView == null) {
+            return;
+        }
+        overlayView.setTintColor(color);
+        mainHandler.removeCallbacks(alertBlink);
+        alertBlinkOff = false;
+        overlayView.setAlpha(OVERLAY_ALPHA);
+        if(blink) {
+            mainHandler.postDelayed(alertBlink, ALERT_BLINK_INTERVAL_MS);
+        }
+    }
+
+
+    /* Forget the alert states, e.g. when another device is shown */
+    private void resetAlerts() {
+        synchronized(alertLock) {
+            if(alertEngine != null) {
+                alertEngine.reset();
+            }
+            alertMask = 0;
+        }
+        updateAlertSignal(0, false);
+    }
+
+
+    /* Log of a session closed, queue it for upload */
+    @Override
+    public void onLogClosed(DeviceSession session, File logFile) {
+        if(sessionUploader != null) {
+            sessionUploader.enqueue(logFile);
+        }
+    }
+
+
+    /* Connection of a session changed, called on the main thread */
+    @Override
+    public void onConnectionChanged(DeviceSession session, boolean connected) {
+        if(connected) {
+            StartupTrace.mark("connected");
+        }
+        updateBackgroundScan();
+        if(overlayView == null || !session.getAddress().equals(selectedDeviceAddress)) {
+            return;
+        }
+        overlayView.setSymbol(SevenSegmentView.SYMBOL_EMPTY, !connected);
+    }
+
+
+    /* Start data logging to one file per device */
+    public void startDataLogging() {
+        if(dataLogging) {
+            return;
+        }
+        dataLogging = true;
+        if(sessionUploader != null) {
+            sessionUploader.setPaused(true);
+        }
+        String fileTimestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        for(DeviceSession session : deviceSessions.values()) {
+            session.startDataLogging(createLogFile(fileTimestamp, session));
+        }
+        updatePhoneSensorRecording();
+        updatePollProfile();
+    }
+
+
+    /* Log file of a device, the address is part of the name to keep the files of concurrent sessions apart */
+    private File createLogFile(String fileTimestamp, DeviceSession session) {
+        String deviceSuffix = session.getAddress().replace(":", "");
+        return new File(this.getExternalFilesDir(null).getAbsolutePath(), "sensordata_" + fileTimestamp + "_" + deviceSuffix + ".log");
     }
 
 
     /* Stop data logging to file */
     public void stopDataLogging() {
-        if(logFileBuffer == null) {
+        if(!dataLogging) {
             return;
         }
-        try {
-            logFileBuffer.flush();
-            logFileBuffer.close();
-        } catch(IOException e) {
-            e.printStackTrace();
+        dataLogging = false;
+        updatePhoneSensorRecording();
+        for(DeviceSession session : deviceSessions.values()) {
+            session.stopDataLogging();
+        }
+        updatePollProfile();
+        if(sessionUploader != null) {
+            sessionUploader.setPaused(false);
+        }
+    }
+
+
+    /* Record phone GNSS and IMU samples into the logs while data logging, if enabled */
+    private void updatePhoneSensorRecording() {
+        boolean record = dataLogging && isPhoneSensorsEnabled();
+        if(record) {
+            phoneSensorRecorder.start();
+        }
+        for(DeviceSession session : deviceSessions.values()) {
+            if(record) {
+                session.startSensorRecording(phoneSensorRecorder);
+            } else {
+                session.stopSensorRecording();
+            }
+        }
+        if(!record) {
+            phoneSensorRecorder.stop();
         }
-        logFileBuffer = null;
+    }
+
+
+    /* Enable or disable recording phone sensors alongside the frames and remember the choice */
+    public void setPhoneSensorsEnabled(boolean enabled) {
+        getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).edit().putBoolean("recordPhoneSensors", enabled).apply();
+        updatePhoneSensorRecording();
+    }
+
+
+    /* Check if phone sensors are recorded alongside the frames */
+    public boolean isPhoneSensorsEnabled() {
+        return getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).getBoolean("recordPhoneSensors", false);
+    }
+
+
+    /* Run the telemetry server if enabled, on the chosen local address or loopback */
+    private void updateTelemetryServer() {
+        telemetryServer.stop();
+        if(isTelemetryServerEnabled()) {
+            String address = getTelemetryServerAddress();
+            try {
+                telemetryServer.start(address.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address));
+            } catch(IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+
+    /* Enable or disable streaming frames and remember the choice, address is the local IP address to listen on, empty for
+     * loopback only. Returns true if the server runs as requested. */
+    public boolean setTelemetryServerEnabled(boolean enabled, String address) {
+        getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).edit().putBoolean("telemetryServerEnabled", enabled).putString("telemetryServerAddress", address).apply();
+        updateTelemetryServer();
+        return telemetryServer.isRunning() == enabled;
+    }
+
+
+    /* Local IP address the telemetry server listens on, empty for loopback only */
+    public String getTelemetryServerAddress() {
+        return getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).getString("telemetryServerAddress", "");
+    }
+
+
+    /* Check if frames are streamed to the local network */
+    public boolean isTelemetryServerEnabled() {
+        return getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).getBoolean("telemetryServerEnabled", false);
+    }
+
+
+    /* Run the session uploader if an endpoint is set, all sessions not uploaded yet are queued */
+    private void updateSessionUploader() {
+        String endpoint = getUploadEndpoint();
+        if(sessionUploader != null && sessionUploader.getEndpoint().equals(endpoint)) {
+            return;
+        }
+        if(sessionUploader != null) {
+            sessionUploader.shutdown();
+            sessionUploader = null;
+        }
+        if(endpoint.isEmpty()) {
+            return;
+        }
+        SessionCatalog sessionCatalog = SessionCatalog.getInstance(this);
+        sessionUploader = new SessionUploader(endpoint, sessionCatalog, UPLOAD_CONCURRENCY, UPLOAD_CHUNK_SIZE, UPLOAD_RETRY_DELAY_MS);
+        sessionUploader.setPaused(dataLogging);
+        for(SessionCatalog.Entry entry : sessionCatalog.queryPendingUploads()) {
+            File logFile = new File(this.getExternalFilesDir(null).getAbsolutePath(), entry.fileName);
+            if(logFile.exists()) {
+                sessionUploader.enqueue(logFile);
+            }
+        }
+    }
+
+
+    /* Set the collection server URL closed session logs are uploaded to and remember it, empty to stop uploading */
+    public void setUploadEndpoint(String endpoint) {
+        getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).edit().putString("uploadEndpoint", endpoint.trim()).apply();
+        updateSessionUploader();
+    }
+
+
+    /* Collection server URL closed session logs are uploaded to, empty if not uploading */
+    public String getUploadEndpoint() {
+        return getSharedPreferences(getPackageName() + ".preferences", Context.MODE_PRIVATE).getString("uploadEndpoint", "");
+    }
+
+
+    /* Number of session logs waiting for or in upload */
+    public int getPendingUploadCount() {
+        return (sessionUploader != null) ? sessionUploader.getPendingCount() : 0;
+    }
+
+
+    /* Copy of the operating point map of the running log of the selected device, null if there is none */
+    public OperatingPointMap copyOperatingPointMap(int load) {
+        DeviceSession session = deviceSessions.get(selectedDeviceAddress);
+        return (session != null) ? session.copyOperatingPointMap(load) : null;
     }
 
 
     /* Check if data is written to log */
     public boolean isDataLogging() {
-        return logFileBuffer != null;
+        return dataLogging;
     }
 
 
-    /* Write sensor data to end of log file */
-    public void appendLog(byte[] data) {
-        if(logFileBuffer == null || data.length < 2) {
+    /* Set the receiver of the frames shown in the data display, null to stop. A new receiver gets the last frame of the
+     * selected device right away, or the test frame if there is none yet. */
+    public void setFrameListener(FrameListener listener) {
+        frameListener = listener;
+        if(listener == null) {
             return;
         }
-        try {
-            String logLine = new SimpleDateFormat("yyyyMMdd,HHmmssSSS").format(new Date());
-            if(data[0] == 0x02) {
-                logLine += "," + new String(Arrays.copyOfRange(data, 2, data.length), "US-ASCII");
-            } else if(data[0] == 0x01) {
-                /* Just append the actual data, so start at index 2 */
-                for(int i = 2; i < data.length; i++) {
-                    /* As java bytes are signed, mask the byte to prevent sign extension and get an unsigned value */
-                    logLine += "," + Integer.toString(data[i] & 0xFF);
-                }
-            }
-            logFileBuffer.append(logLine);
-            logFileBuffer.newLine();
-        } catch(IOException e) {
-            e.printStackTrace();
+        SensorFrame frame = retainLastSelectedFrame();
+        if(frame == null) {
+            frame = SensorFrame.obtain(null, TEST_DATAFRAME, SystemClock.elapsedRealtimeNanos());
         }
+        postUiFrame(frame);
+        frame.release();
     }
 
 
-    /* Send data to main activity */
-    private void sendDataBroadcastIntent(byte[] data) {
-        Intent intent = new Intent(String.valueOf(R.string.bluetooth_message_intent_action));
-        intent.putExtra("data", data);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    /* Session of the device shown in the overlay and MainActivity */
+    private DeviceSession getSelectedSession() {
+        if(selectedDeviceAddress == null) {
+            return null;
+        }
+        return deviceSessions.get(selectedDeviceAddress);
     }
 
 
-    /* Setup and start a worker thread for receiving Bluetooth data */
-    private void startBluetoothWorkerThread() {
-        final Handler handler = new Handler();
+    /* Select the device shown in the overlay and MainActivity */
+    public void selectDevice(String address) {
+        DeviceSession session = deviceSessions.get(address);
+        if(session == null) {
+            return;
+        }
+        selectedDeviceAddress = address;
+        setLastSelectedFrame(null);
+        resetAlerts();
+        onConnectionChanged(session, session.isConnected());
+    }
 
-        stopBluetoothWorkerThread = false;
-        bluetoothReadBufferPosition = 0;
-        bluetoothReadDataLength = 0;
-        bluetoothReadBuffer = new byte[1024];
-        bluetoothWorkerThread = new Thread(new Runnable() {
-            public void run() {
-                handler.post(new Runnable() {
-                    public void run() {
-                        sendCommand(COMMAND_GO);
-                    }
-                });
-
-                while(!Thread.currentThread().isInterrupted() && !stopBluetoothWorkerThread) {
-                    try {
-                        int bytesAvailable = bluetoothInputStream.available();
-                        if(bytesAvailable > 0) {
-                            byte[] packetBytes = new byte[bytesAvailable];
-                            bluetoothInputStream.read(packetBytes);
-                            for(int i = 0; i < bytesAvailable; i++) {
-                                bluetoothReadBuffer[bluetoothReadBufferPosition] = packetBytes[i];
-                                if(bluetoothReadBufferPosition == 1) {
-                                    bluetoothReadDataLength = packetBytes[i];
-                                } else if(bluetoothReadBufferPosition > 1 && bluetoothReadBufferPosition >= (bluetoothReadDataLength - 1)) {
-                                    final byte[] data = new byte[bluetoothReadBufferPosition + 1];
-                                    System.arraycopy(bluetoothReadBuffer, 0, data, 0, data.length);
-                                    bluetoothReadBufferPosition = 0;
-                                    bluetoothReadDataLength     = 0;
-
-                                    handler.post(new Runnable() {
-                                        public void run() {
-                                            processReceivedData(data);
-                                        }
-                                    });
-                                    continue;
-                                }
-                                bluetoothReadBufferPosition++;
-                            }
-                        }
-                    } catch(final IOException ex) {
-                        handler.post(new Runnable() {
-                            public void run() {
-                                Toast.makeText(overlayButton.getContext(), ex.toString(), Toast.LENGTH_LONG).show();
-                            }
-                        });
-                        overlayButton.setImageResource(R.drawable.sevenseg_dot);
-                        stopBluetoothWorkerThread = true;
-                    }
-                }
-            }
-        });
-        bluetoothWorkerThread.start();
+
+    /* Address of the device shown in the overlay and MainActivity */
+    public String getSelectedDeviceAddress() {
+        return selectedDeviceAddress;
+    }
+
+
+    /* Sessions of all devices, in the order they have been added */
+    public List<DeviceSession> getDeviceSessions() {
+        return new ArrayList<>(deviceSessions.values());
     }
 
 
-    /* Tell connected device to reset */
+    /* Tell selected device to reset */
     public void sendResetCommand() {
-        sendCommand(COMMAND_RESET);
+        sendCommand(DeviceSession.COMMAND_RESET);
     }
 
 
-    /* Tell connected device to start */
+    /* Tell selected device to start */
     public void sendStartCommand() {
-        sendCommand(COMMAND_GO);
+        sendCommand(DeviceSession.COMMAND_GO);
     }
 
 
-    /* Tell connected device to stop */
+    /* Tell selected device to stop */
     public void sendStopCommand() {
-        sendCommand(COMMAND_STOP);
+        sendCommand(DeviceSession.COMMAND_STOP);
     }
 
 
-    /* Send command to the connected device */
+    /* Send command to the selected device */
     public void sendCommand(byte[] command) {
-        if(bluetoothOutputStream != null) {
-            try {
-                bluetoothOutputStream.write(command);
-                bluetoothOutputStream.flush();
-            } catch (final IOException ex) {
-                Toast.makeText(overlayButton.getContext(), ex.toString(), Toast.LENGTH_LONG).show();
-                return;
+        DeviceSession session = getSelectedSession();
+        if(session != null) {
+            session.sendCommand(command);
+        }
+    }
+
+
+    /* Poll fast while values are shown or recorded, slow if only the gear is needed for the overlay */
+    private void updatePollProfile() {
+        int profile = (uiVisible || dataLogging) ? POLL_PROFILE_FAST : POLL_PROFILE_SLOW;
+        for(DeviceSession session : deviceSessions.values()) {
+            session.setPollProfile(profile);
+        }
+    }
+
+
+    /* Tell the service whether the data display is visible */
+    public void setUiVisible(boolean visible) {
+        if(uiVisible == visible) {
+            return;
+        }
+        uiVisible = visible;
+        updatePollProfile();
+    }
+
+
+    /* Polling profile acknowledged by the selected device, -1 if unknown */
+    public int getPollProfile() {
+        DeviceSession session = getSelectedSession();
+        return (session != null) ? session.getPollProfile() : -1;
+    }
+
+
+    /* Post frame delay of the polling profile of the selected device in milliseconds, 0 if unknown */
+    public int getPollIntervalMs() {
+        DeviceSession session = getSelectedSession();
+        return (session != null) ? session.getPollIntervalMs() : 0;
+    }
+
+
+    /* Measured rate of data frames of the selected device in Hz */
+    public float getRefreshRateHz() {
+        DeviceSession session = getSelectedSession();
+        return (session != null) ? session.getRefreshRateHz() : 0.0f;
+    }
+
+
+    /* Session of a device, created with the current poll profile and logging state if there is none yet */
+    private DeviceSession getOrCreateSession(String deviceAddress) {
+        DeviceSession session = deviceSessions.get(deviceAddress);
+        if(session == null) {
+            session = new DeviceSession(this, deviceAddress, this);
+            session.setLowPower(!screenOn);
+            deviceSessions.put(deviceAddress, session);
+            int profile = (uiVisible || dataLogging) ? POLL_PROFILE_FAST : POLL_PROFILE_SLOW;
+            session.setPollProfile(profile);
+            if(dataLogging) {
+                session.startDataLogging(createLogFile(new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()), session));
+                if(phoneSensorRecorder.isRunning()) {
+                    session.startSensorRecording(phoneSensorRecorder);
+                }
             }
-            Toast.makeText(this, R.string.command_sent, Toast.LENGTH_SHORT).show();
-        } else if(bluetoothGatt != null && bleTxCharacteristic != null) {
-            bleTxCharacteristic.setValue(command);
-            bluetoothGatt.writeCharacteristic(bleTxCharacteristic);
-            Toast.makeText(this, R.string.command_sent, Toast.LENGTH_SHORT).show();
         }
+        if(selectedDeviceAddress == null) {
+            selectedDeviceAddress = deviceAddress;
+        }
+        return session;
     }
 
 
-    /* Connect to Bluetooth device with serial port profile */
+    /* Connect to Bluetooth device, additional devices get their own session next to the existing ones */
     public void connectBluetooth(final String deviceAddress, final boolean deviceSecure, final boolean invokeAutoReconnect) {
-        final Handler handler = new Handler();
-        new Thread(new Runnable() {
-            public void run() {
-                if(bluetoothBusy) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            Toast.makeText(overlayButton.getContext(), R.string.bluetooth_busy, Toast.LENGTH_LONG).show();
-                        }
-                    });
-                    return;
-                }
-                bluetoothBusy = true;
-
-                bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-                if(!bluetoothAdapter.isEnabled()) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            Toast.makeText(overlayButton.getContext(), R.string.bluetooth_not_activated, Toast.LENGTH_LONG).show();
-                        }
-                    });
-                    return;
-                }
+        DeviceSession session = getOrCreateSession(deviceAddress);
+        if(invokeAutoReconnect) {
+            bluetoothReconnectHandler.removeCallbacks(bluetoothReconnect);
+            bluetoothReconnectHandler.postDelayed(bluetoothReconnect, BLUETOOTH_RECONNECT_INTERVAL_MS);
+        }
+        session.connect(invokeAutoReconnect);
+    }
 
-                /* Save data to for auto reconnect and activate reconnecting */
-                lastDeviceAddress = deviceAddress;
-                lastDeviceSecure = deviceSecure;
-                if(invokeAutoReconnect) {
-                    bluetoothReconnectHandler.postDelayed(bluetoothReconnect, BLUETOOTH_RECONNECT_INTERVAL_MS);
-                }
 
-                /* Get the BluetoothDevice object and attempt to connect to the device */
-                bluetoothDevice = bluetoothAdapter.getRemoteDevice(deviceAddress);
-                int deviceType = bluetoothDevice.getType();
-                if(deviceType == BluetoothDevice.DEVICE_TYPE_CLASSIC) {
-                    try {
-                        bluetoothSocket = bluetoothDevice.createRfcommSocketToServiceRecord(SPP_UUID);
-                    } catch (final IOException ex) {
-                        handler.post(new Runnable() {
-                            public void run() {
-                                Toast.makeText(overlayButton.getContext(), ex.toString(), Toast.LENGTH_LONG).show();
-                            }
-                        });
-                        bluetoothSocket = null;
-                        bluetoothBusy = false;
-                        return;
-                    }
-                    try {
-                        bluetoothSocket.connect();
-                    } catch (final IOException ex) {
-                        handler.post(new Runnable() {
-                            public void run() {
-                                if (overlayButton != null) {
-                                    Toast.makeText(overlayButton.getContext(), ex.toString(), Toast.LENGTH_LONG).show();
-                                }
-                            }
-                        });
-                        bluetoothSocket = null;
-                        bluetoothBusy = false;
-                        return;
-                    }
-                    try {
-                        bluetoothOutputStream = bluetoothSocket.getOutputStream();
-                        bluetoothInputStream = bluetoothSocket.getInputStream();
-                    } catch (final IOException ex1) {
-                        handler.post(new Runnable() {
-                            public void run() {
-                                Toast.makeText(overlayButton.getContext(), ex1.toString(), Toast.LENGTH_LONG).show();
-                            }
-                        });
-                        try {
-                            bluetoothSocket.close();
-                        } catch (final IOException ex2) {
-                            handler.post(new Runnable() {
-                                public void run() {
-                                    Toast.makeText(overlayButton.getContext(), ex2.toString(), Toast.LENGTH_LONG).show();
-                                }
-                            });
-                            bluetoothSocket = null;
-                        }
-                        bluetoothOutputStream = null;
-                        bluetoothInputStream = null;
-                        bluetoothBusy = false;
-                        return;
-                    }
+    /* Start a simulated ride as an additional device, frames are emitted at the given rate with SIMULATION_MODEL_INTERVAL_MS
+     * of model time each, so rates above the real-time rate compress the ride */
+    public void startSimulation(float framesPerSecond) {
+        DeviceSession session = getOrCreateSession(SIMULATION_ADDRESS);
+        DecodePlan plan = DataInfo.PLAN;
+        RideSimulator simulator = new RideSimulator(plan, plan.entries, System.currentTimeMillis());
+        session.startSimulation(simulator, framesPerSecond, SIMULATION_MODEL_INTERVAL_MS);
+        selectDevice(SIMULATION_ADDRESS);
+    }
+
 
-                    /* Connection established */
-                    handler.post(new Runnable() {
-                        public void run() {
-                            startBluetoothWorkerThread();
-                            overlayButton.setImageResource(R.drawable.sevenseg_empty);
-                        }
-                    });
-                } else if(deviceType == BluetoothDevice.DEVICE_TYPE_LE || deviceType == BluetoothDevice.DEVICE_TYPE_DUAL) {
-                    gattCallback = new BluetoothGattCallback() {
-                        @Override
-                        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                            if(newState == BluetoothProfile.STATE_CONNECTED) {
-                                bleConnected = true;
-                                bluetoothGatt.discoverServices();
-                                handler.post(new Runnable() {
-                                    public void run() {
-                                        overlayButton.setImageResource(R.drawable.sevenseg_empty);
-                                    }
-                                });
-                            } else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
-                                bleConnected = false;
-                                bleTxCharacteristic = null;
-                                handler.post(new Runnable() {
-                                    public void run() {
-                                        if(overlayButton != null) {
-                                            overlayButton.setImageResource(R.drawable.sevenseg_dot);
-                                        }
-                                    }
-                                });
-                            }
-                        }
-
-                        @Override
-                        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                            if(status == BluetoothGatt.GATT_SUCCESS) {
-                                for(final BluetoothGattService service : gatt.getServices()) {
-                                    if(service.getUuid().equals(BLE_SPP_SERVICE_UUID)) {
-                                        for(final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                                            if(characteristic.getUuid().equals(BLE_SPP_CHAR_RX_UUID)) {
-                                                bluetoothGatt.setCharacteristicNotification(characteristic, true);
-                                                BluetoothGattDescriptor descriptor = characteristic.getDescriptors().get(0);
-                                                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                                                bluetoothGatt.writeDescriptor(descriptor);
-                                            } else if(characteristic.getUuid().equals(BLE_SPP_CHAR_TX_UUID)) {
-                                                bleTxCharacteristic = characteristic;
-                                            }
-                                        }
-
-                                        handler.postDelayed(new Runnable() {
-                                            public void run() {
-                                                /* Request bigger MTU to receive whole data frames (59 bytes) */
-                                                bluetoothGatt.requestMtu(128);
-                                            }
-                                        }, 100);
-                                        handler.postDelayed(new Runnable() {
-                                            public void run() {
-                                                sendCommand(COMMAND_GO);
-                                            }
-                                        }, 500);
-                                    }
-                                }
-                            } else {
-                                handler.post(new Runnable() {
-                                    public void run() {
-                                        Toast.makeText(overlayButton.getContext(), R.string.bluetooth_le_service_not_found, Toast.LENGTH_LONG).show();
-                                    }
-                                });
-                            }
-                        }
-
-                        @Override
-                        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-                            final byte[] data = characteristic.getValue();
-                            if(data != null && data.length > 0) {
-                                handler.post(new Runnable() {
-                                    public void run() {
-                                        processReceivedData(data);
-                                    }
-                                });
-                            }
-                        }
-                    };
-                    bluetoothGatt = bluetoothDevice.connectGatt(overlayButton.getContext(), false, gattCallback);
+    /* Stop and remove the simulated ride */
+    public void stopSimulation() {
+        DeviceSession session = deviceSessions.remove(SIMULATION_ADDRESS);
+        if(session == null) {
+            return;
+        }
+        session.close();
+        if(SIMULATION_ADDRESS.equals(selectedDeviceAddress)) {
+            selectedDeviceAddress = null;
+            if(!deviceSessions.isEmpty()) {
+                selectDevice(deviceSessions.keySet().iterator().next());
+            } else {
+                resetAlerts();
+                if(overlayView != null) {
+                    overlayView.setSymbol(SevenSegmentView.SYMBOL_EMPTY, true);
                 }
-                bluetoothBusy = false;
             }
-        }).start();
+        }
     }
 
 
-    /* Check if Bluetooth is connected */
+    /* Check if a simulated ride is running */
+    public boolean isSimulationRunning() {
+        DeviceSession session = deviceSessions.get(SIMULATION_ADDRESS);
+        return session != null && session.isConnected();
+    }
+
+
+    /* Check if any device is connected */
     public boolean isBluetoothConnected() {
-        if(bluetoothSocket != null) {
-            return bluetoothSocket.isConnected();
-        } else if(bluetoothGatt != null) {
-            return bleConnected;
+        for(DeviceSession session : deviceSessions.values()) {
+            if(session.isConnected()) {
+                return true;
+            }
         }
-
         return false;
     }
 
 
-    /* Disconnect Bluetooth device if connected */
+    /* Disconnect all devices, sessions are closed and removed if they should not be reconnected */
     public void disconnectBluetooth(boolean keepReconnecting) {
         if(!keepReconnecting) {
             bluetoothReconnectHandler.removeCallbacksAndMessages(null);
-        }
-        if(bluetoothBusy) {
-            Toast.makeText(this, R.string.bluetooth_busy, Toast.LENGTH_LONG).show();
-            return;
-        }
-        if(!isBluetoothConnected()) {
-            return;
-        }
-        bluetoothBusy = true;
-        stopBluetoothWorkerThread = true;
-        if(bluetoothSocket != null) {
-            while (bluetoothWorkerThread.isAlive()) {
-                SystemClock.sleep(1);
+            for(DeviceSession session : deviceSessions.values()) {
+                session.close();
             }
-            if(bluetoothInputStream != null) {
-                try {
-                    bluetoothInputStream.close();
-                } catch(IOException ex) {
-                    Toast.makeText(this, ex.toString(), Toast.LENGTH_LONG).show();
-                }
-                bluetoothInputStream = null;
-            }
-            if(bluetoothOutputStream != null) {
-                try {
-                    bluetoothOutputStream.close();
-                } catch(IOException ex) {
-                    Toast.makeText(this, ex.toString(), Toast.LENGTH_LONG).show();
-                }
-                bluetoothOutputStream = null;
-            }
-            if(bluetoothSocket != null) {
-                try {
-                    bluetoothSocket.close();
-                } catch(IOException ex) {
-                    Toast.makeText(this, ex.toString(), Toast.LENGTH_LONG).show();
-                }
-                bluetoothSocket = null;
+            deviceSessions.clear();
+            stopBackgroundScan();
+            selectedDeviceAddress = null;
+            if(overlayView != null) {
+                overlayView.setSymbol(SevenSegmentView.SYMBOL_EMPTY, true);
             }
+            return;
         }
-        bleTxCharacteristic = null;
-        if(bluetoothGatt != null) {
-            bluetoothGatt.disconnect();
-            bluetoothGatt.close();
-            bluetoothGatt = null;
+        for(DeviceSession session : deviceSessions.values()) {
+            session.disconnect(true);
         }
-
-        overlayButton.setImageResource(R.drawable.sevenseg_dot);
-        bluetoothBusy = false;
     }
 
 
@@ -637,10 +1009,32 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
     @Override
     public void onCreate() {
         super.onCreate();
-        sendDataBroadcastIntent(TEST_DATAFRAME);
+        StartupTrace.mark("service_create");
+        DataInfo.init(this);
+        mainHandler = new Handler();
+        phoneSensorRecorder = new PhoneSensorRecorder(this);
+        alertBlink = new Runnable() {
+            public void run() {
+                if(overlayView != null) {
+                    alertBlinkOff = !alertBlinkOff;
+                    overlayView.setAlpha(alertBlinkOff ? OVERLAY_ALPHA_BLINK_OFF : OVERLAY_ALPHA);
+                    mainHandler.postDelayed(this, ALERT_BLINK_INTERVAL_MS);
+                }
+            }
+        };
         this.registerReceiver(broadcastReceiver, new IntentFilter(ACTION_ACL_DISCONNECTED));
-        setupOverlay();
+        IntentFilter screenStateFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenStateFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        this.registerReceiver(screenStateReceiver, screenStateFilter);
+
+        /* Reconnecting takes longest, so start it before setting up the overlay instead of waiting for MainActivity to bind */
         setupBluetoothReconnect();
+        reconnectSavedDevices();
+
+        setupOverlay();
+        StartupTrace.mark("overlay_ready");
+        updateTelemetryServer();
+        updateSessionUploader();
     }
 
 
@@ -648,13 +1042,20 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
     @Override
     public void onDestroy() {
         this.unregisterReceiver(broadcastReceiver);
-        disconnectBluetooth(false);
+        this.unregisterReceiver(screenStateReceiver);
         stopDataLogging();
+        disconnectBluetooth(false);
+        telemetryServer.stop();
+        if(sessionUploader != null) {
+            sessionUploader.shutdown();
+            sessionUploader = null;
+        }
+        mainHandler.removeCallbacks(alertBlink);
 
-        if(overlayButton != null) {
-            windowManager.removeView(overlayButton);
+        if(overlayView != null) {
+            windowManager.removeView(overlayView);
             windowManager.removeView(topCenterView);
-            overlayButton = null;
+            overlayView = null;
             topCenterView = null;
         }
         super.onDestroy();
@@ -673,9 +1074,9 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
 
             /* Retrieve absolute (top center) position of widget */
             int[] location = new int[2];
-            overlayButton.getLocationOnScreen(location);
+            overlayView.getLocationOnScreen(location);
             /* Offset to horizontal center of widget as this is the reference point (invisible view) */
-            initialWidgetX = location[0] + overlayButton.getWidth()/2;
+            initialWidgetX = location[0] + overlayView.getWidth()/2;
             initialWidgetY = location[1];
 
             /* Calculate relative position of touch event to top center position of widget */
@@ -687,7 +1088,7 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
             float moveEventY = event.getRawY();
 
             /* Calculate new relative position */
-            WindowManager.LayoutParams params = (WindowManager.LayoutParams) overlayButton.getLayoutParams();
+            WindowManager.LayoutParams params = (WindowManager.LayoutParams) overlayView.getLayoutParams();
             int newX = (int) (eventRelativeX + moveEventX);
             int newY = (int) (eventRelativeY + moveEventY);
 
@@ -703,7 +1104,7 @@ public class OverlayService extends Service implements View.OnTouchListener, Vie
             /* Calculate and apply new absolute position of overlay widget with position of invisible view */
             params.x = newX - (topCenterLocationOnScreen[0]);
             params.y = newY - (topCenterLocationOnScreen[1]);
-            windowManager.updateViewLayout(overlayButton, params);
+            windowManager.updateViewLayout(overlayView, params);
 
             /* Set flag that widget has been moved */
             widgetMoving = true;
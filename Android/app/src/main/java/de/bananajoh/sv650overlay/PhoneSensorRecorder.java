@@ -0,0 +1,228 @@
+package de.bananajoh.sv650overlay;
+
+import android.Manifest;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* Records phone GNSS fixes and accelerometer / gyroscope samples on an own thread at their native rates. Every sample
+ * is stamped with SystemClock.elapsedRealtimeNanos() based time like the ECU frames and handed to bounded queues, one
+ * per session log, which the loggers drain on their merge threads. GNSS fixes are delivered as broadcasts received on
+ * the sensor thread, which needs no LocationListener with its deprecated status callback. */
+public class PhoneSensorRecorder implements SensorEventListener {
+    private static final String ACTION_LOCATION = "de.bananajoh.sv650overlay.PhoneSensorRecorder.LOCATION";
+    public static final int SOURCE_ACCELEROMETER = 0;
+    public static final int SOURCE_GYROSCOPE = 1;
+    public static final int SOURCE_GNSS = 2;
+    private static final int IMU_SAMPLING_PERIOD_US = 10000;
+    private static final int IMU_MAX_REPORT_LATENCY_US = 100000;
+    private static final long GNSS_MIN_TIME_MS = 0;
+
+    private final Context context;
+    private final List<Queue> queues = new ArrayList<>();
+    private HandlerThread sensorThread = null;
+    private PendingIntent locationIntent = null;
+    private final BroadcastReceiver locationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Location location = intent.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED);
+            if(location != null) {
+                onLocationChanged(location);
+            }
+        }
+    };
+
+
+    /* Sample of one source, values are x, y, z for the IMU and latitude, longitude, altitude, speed, bearing, accuracy for GNSS */
+    public static class Sample {
+        public final int source;
+        public final long timeNs;
+        public final double[] values;
+
+        /* Constructor */
+        public Sample(int source, long timeNs, double[] values) {
+            this.source = source;
+            this.timeNs = timeNs;
+            this.values = values;
+        }
+    }
+
+
+    /* Bounded queue of samples for one consumer, the oldest sample is dropped when full. The listener is called on the
+     * sensor thread once the queue holds drainThreshold samples and again only after it has been drained. */
+    public static class Queue {
+        private final int capacity;
+        private final int drainThreshold;
+        private final ArrayDeque<Sample> samples;
+        private final Runnable drainListener;
+        private boolean drainRequested = false;
+        private long droppedSamples = 0;
+
+        /* Constructor, the drain listener may be null */
+        public Queue(int capacity, int drainThreshold, Runnable drainListener) {
+            this.capacity = capacity;
+            this.drainThreshold = drainThreshold;
+            this.drainListener = drainListener;
+            samples = new ArrayDeque<>(capacity);
+        }
+
+
+        /* Add a sample, called on the sensor thread */
+        void offer(Sample sample) {
+            boolean requestDrain;
+            synchronized(this) {
+                if(samples.size() == capacity) {
+                    samples.poll();
+                    droppedSamples++;
+                }
+                samples.add(sample);
+                requestDrain = !drainRequested && samples.size() >= drainThreshold;
+                drainRequested |= requestDrain;
+            }
+            if(requestDrain && drainListener != null) {
+                drainListener.run();
+            }
+        }
+
+
+        /* Move all queued samples to a list, oldest first */
+        public synchronized void drainTo(List<Sample> target) {
+            target.addAll(samples);
+            samples.clear();
+            drainRequested = false;
+        }
+
+
+        /* Number of samples dropped because the consumer did not keep up */
+        public synchronized long getDroppedSamples() {
+            return droppedSamples;
+        }
+    }
+
+
+    /* Constructor */
+    public PhoneSensorRecorder(Context context) {
+        this.context = context;
+    }
+
+
+    /* Start recording, GNSS is left out if the location permission has not been granted */
+    public void start() {
+        if(sensorThread != null) {
+            return;
+        }
+        sensorThread = new HandlerThread("PhoneSensorRecorder");
+        sensorThread.start();
+        Handler sensorHandler = new Handler(sensorThread.getLooper());
+
+        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if(sensorManager != null) {
+            for(int type : new int[] { Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_GYROSCOPE }) {
+                Sensor sensor = sensorManager.getDefaultSensor(type);
+                if(sensor != null) {
+                    /* Batching keeps the wakeups low, the samples keep their own timestamps */
+                    sensorManager.registerListener(this, sensor, IMU_SAMPLING_PERIOD_US, IMU_MAX_REPORT_LATENCY_US, sensorHandler);
+                }
+            }
+        }
+
+        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        if(locationManager != null && context.checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            context.registerReceiver(locationReceiver, new IntentFilter(ACTION_LOCATION), null, sensorHandler);
+            Intent intent = new Intent(ACTION_LOCATION).setPackage(context.getPackageName());
+            locationIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, GNSS_MIN_TIME_MS, 0.0f, locationIntent);
+        }
+    }
+
+
+    /* Stop recording, queued samples stay available to their consumers */
+    public void stop() {
+        if(sensorThread == null) {
+            return;
+        }
+        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if(sensorManager != null) {
+            sensorManager.unregisterListener(this);
+        }
+        if(locationIntent != null) {
+            LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+            if(locationManager != null) {
+                locationManager.removeUpdates(locationIntent);
+            }
+            locationIntent.cancel();
+            locationIntent = null;
+            context.unregisterReceiver(locationReceiver);
+        }
+        sensorThread.quitSafely();
+        sensorThread = null;
+    }
+
+
+    /* Check if recording */
+    public boolean isRunning() {
+        return sensorThread != null;
+    }
+
+
+    /* Add a consumer queue */
+    public void addQueue(Queue queue) {
+        synchronized(queues) {
+            queues.add(queue);
+        }
+    }
+
+
+    /* Remove a consumer queue */
+    public void removeQueue(Queue queue) {
+        synchronized(queues) {
+            queues.remove(queue);
+        }
+    }
+
+
+    /* Hand a sample to all consumers, called on the sensor thread */
+    private void publish(Sample sample) {
+        synchronized(queues) {
+            for(Queue queue : queues) {
+                queue.offer(sample);
+            }
+        }
+    }
+
+
+    /* Sensor sample callback, the event timestamp uses the elapsedRealtimeNanos() time base */
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        int source = (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) ? SOURCE_GYROSCOPE : SOURCE_ACCELEROMETER;
+        publish(new Sample(source, event.timestamp, new double[] { event.values[0], event.values[1], event.values[2] }));
+    }
+
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+
+    /* GNSS fix, stamped with the time of the fix instead of the delivery, called on the sensor thread */
+    private void onLocationChanged(Location location) {
+        publish(new Sample(SOURCE_GNSS, location.getElapsedRealtimeNanos(), new double[] {
+                location.getLatitude(), location.getLongitude(), location.getAltitude(), location.getSpeed(), location.getBearing(), location.getAccuracy() }));
+    }
+}
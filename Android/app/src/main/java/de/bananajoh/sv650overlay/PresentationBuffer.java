@@ -0,0 +1,92 @@
+package de.bananajoh.sv650overlay;
+
+
+/* Jitter buffer for displaying decoded values at display refresh: samples are shown with a small delay adapted to the
+ * measured frame interval and jitter, numeric channels are interpolated between the two surrounding samples, discrete
+ * channels (gear, neutral switch) always show the value of the older sample. Not thread safe, use from one thread. */
+public class PresentationBuffer {
+    private static final int CAPACITY = 16;
+    public static final long MAX_DELAY_MS = 400;
+    private static final float SMOOTHING = 0.125f;
+
+    public final DecodePlan plan;
+    private final float[][] samples;
+    private final int[] sampleCounts = new int[CAPACITY];
+    private final long[] sampleTimesMs = new long[CAPACITY];
+    private int newest = -1;
+    private int size = 0;
+    private float averageIntervalMs = 0.0f;
+    private float averageJitterMs = 0.0f;
+    private long delayMs = 0;
+
+
+    /* Constructor, allocates the sample storage for all channels of a plan */
+    public PresentationBuffer(DecodePlan plan) {
+        this.plan = plan;
+        samples = new float[CAPACITY][plan.channelCount];
+    }
+
+
+    /* Add decoded values received at the given time, the oldest sample is dropped if the buffer is full */
+    public void push(float[] values, int count, long timeMs) {
+        if(size > 0) {
+            long intervalMs = timeMs - sampleTimesMs[newest];
+            if(averageIntervalMs == 0.0f) {
+                averageIntervalMs = intervalMs;
+            } else {
+                averageJitterMs += (Math.abs(intervalMs - averageIntervalMs) - averageJitterMs) * SMOOTHING;
+                averageIntervalMs += (intervalMs - averageIntervalMs) * SMOOTHING;
+            }
+            /* One interval to have a sample to interpolate towards, twice the jitter to cover late frames */
+            delayMs = Math.min(MAX_DELAY_MS, Math.round(averageIntervalMs + 2 * averageJitterMs));
+        }
+        newest = (newest + 1) % CAPACITY;
+        int sampleCount = Math.min(count, samples[newest].length);
+        System.arraycopy(values, 0, samples[newest], 0, sampleCount);
+        sampleCounts[newest] = sampleCount;
+        sampleTimesMs[newest] = timeMs;
+        size = Math.min(size + 1, CAPACITY);
+    }
+
+
+    /* Values to display at the given time, returns the number of valid channels (0 if there is no sample yet) */
+    public int sample(long nowMs, float[] values) {
+        if(size == 0) {
+            return 0;
+        }
+        long targetMs = nowMs - delayMs;
+
+        /* Search the newest sample not after the target time, hold the oldest or newest one outside the buffered range */
+        int older = newest;
+        int age = 0;
+        while(sampleTimesMs[older] > targetMs && age < size - 1) {
+            older = (older + CAPACITY - 1) % CAPACITY;
+            age++;
+        }
+        int count = Math.min(sampleCounts[older], values.length);
+        if(older == newest || sampleTimesMs[older] > targetMs) {
+            System.arraycopy(samples[older], 0, values, 0, count);
+            return count;
+        }
+
+        int newer = (older + 1) % CAPACITY;
+        count = Math.min(count, sampleCounts[newer]);
+        float fraction = (targetMs - sampleTimesMs[older]) / (float) (sampleTimesMs[newer] - sampleTimesMs[older]);
+        float[] olderValues = samples[older];
+        float[] newerValues = samples[newer];
+        for(int channel = 0; channel < count; channel++) {
+            if(plan.isDiscrete(channel)) {
+                values[channel] = olderValues[channel];
+            } else {
+                values[channel] = olderValues[channel] + (newerValues[channel] - olderValues[channel]) * fraction;
+            }
+        }
+        return count;
+    }
+
+
+    /* Current presentation delay added to the display latency */
+    public long getDelayMs() {
+        return delayMs;
+    }
+}
@@ -0,0 +1,177 @@
+package de.bananajoh.sv650overlay;
+
+import java.util.Random;
+
+
+/* Generates data frames (type 0x01) of a simple vehicle model for load and regression testing without a motorbike:
+ * the rider picks a throttle every few seconds, speed follows throttle and drag, RPM follows speed through the gear
+ * ratio and shifts happen at RPM thresholds, the coolant warms up with load and the battery sags at idle. The same
+ * seed always produces the same ride. Not thread safe, use from one thread. */
+public class RideSimulator {
+    private static final float[] RPM_PER_KMH = { 0.0f, 133.0f, 95.0f, 75.0f, 63.0f, 55.0f, 49.0f };
+    private static final float IDLE_RPM = 1300.0f;
+    private static final float SHIFT_UP_RPM_FULL = 9500.0f;
+    private static final float SHIFT_UP_RPM_PART = 6000.0f;
+    private static final float SHIFT_DOWN_RPM = 3000.0f;
+    private static final float MAX_ACCELERATION_KMH_S = 14.0f;
+    private static final float BRAKE_DECELERATION_KMH_S = 9.0f;
+    private static final float DRAG = 0.0009f;
+    private static final float AMBIENT_C = 20.0f;
+    private static final float[] THROTTLE_CHOICES = { 0.0f, 0.15f, 0.3f, 0.5f, 0.9f };
+
+    public final DecodePlan plan;
+    private final Random random;
+    private final int rpmChannel;
+    private final int tpsChannel;
+    private final int ectChannel;
+    private final int iatChannel;
+    private final int battChannel;
+    private final int neutralChannel;
+
+    /* Model state */
+    private float throttle = 0.0f;
+    private float targetThrottle = 0.0f;
+    private long riderTimeLeftMs = 0;
+    private float speedKmh = 0.0f;
+    private int gear = 0;
+    private float rpm = IDLE_RPM;
+    private float ectC = AMBIENT_C;
+    private float iatC = AMBIENT_C;
+    private float battV = 12.6f;
+    private long standstillMs = 0;
+
+
+    /* Constructor, channels are looked up by their labels, missing ones are left at raw 0 */
+    public RideSimulator(DecodePlan plan, DataInfoEntry[] entries, long seed) {
+        this.plan = plan;
+        random = new Random(seed);
+        rpmChannel = findChannel(plan, entries, "RPM");
+        tpsChannel = findChannel(plan, entries, "TPS");
+        ectChannel = findChannel(plan, entries, "ECT");
+        iatChannel = findChannel(plan, entries, "IAT");
+        battChannel = findChannel(plan, entries, "BATT");
+        neutralChannel = findChannel(plan, entries, "N");
+    }
+
+
+    /* Channel index of a label, -1 if the profile does not have it */
+    private static int findChannel(DecodePlan plan, DataInfoEntry[] entries, String label) {
+        for(int channel = 0; channel < entries.length && channel < plan.payloadChannelCount; channel++) {
+            if(entries[channel].label.equals(label)) {
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+
+    /* Advance the model by dtMs and return a new data frame of the current state */
+    public byte[] nextFrame(long dtMs) {
+        step(dtMs);
+        byte[] frame = new byte[plan.frameLength];
+        frame[0] = 0x01;
+        frame[1] = (byte) plan.frameLength;
+        setValue(frame, rpmChannel, rpm + (random.nextFloat() - 0.5f) * 60.0f);
+        setValue(frame, tpsChannel, throttle * 100.0f);
+        setValue(frame, ectChannel, ectC);
+        setValue(frame, iatChannel, iatC);
+        setValue(frame, battChannel, battV + (random.nextFloat() - 0.5f) * 0.1f);
+        setValue(frame, neutralChannel, (gear == 0) ? 1.0f : 0.0f);
+        if(plan.gearOffset >= DecodePlan.PAYLOAD_OFFSET && plan.gearOffset < frame.length) {
+            frame[plan.gearOffset] = (byte) gear;
+        }
+        return frame;
+    }
+
+
+    /* Advance the vehicle model */
+    private void step(long dtMs) {
+        float dt = dtMs / 1000.0f;
+
+        /* Rider: new throttle every 2 to 8 s, stops now and then */
+        riderTimeLeftMs -= dtMs;
+        if(riderTimeLeftMs <= 0) {
+            targetThrottle = THROTTLE_CHOICES[random.nextInt(THROTTLE_CHOICES.length)];
+            riderTimeLeftMs = 2000 + random.nextInt(6000);
+        }
+        throttle += (targetThrottle - throttle) * Math.min(1.0f, dt * 4.0f);
+
+        /* Speed, the rider engages the first gear to pull away */
+        if(gear == 0 && targetThrottle > 0.05f) {
+            gear = 1;
+        }
+        float acceleration = throttle * MAX_ACCELERATION_KMH_S * ((gear > 0) ? (RPM_PER_KMH[1] / RPM_PER_KMH[gear]) : 0.0f);
+        if(throttle < 0.05f) {
+            acceleration -= BRAKE_DECELERATION_KMH_S;
+        }
+        speedKmh = Math.max(0.0f, speedKmh + (acceleration - DRAG * speedKmh * speedKmh) * dt);
+
+        /* Gear and RPM */
+        if(gear > 0) {
+            float wheelRpm = speedKmh * RPM_PER_KMH[gear];
+            float shiftUpRpm = (throttle > 0.6f) ? SHIFT_UP_RPM_FULL : SHIFT_UP_RPM_PART;
+            if(wheelRpm > shiftUpRpm && gear < RPM_PER_KMH.length - 1) {
+                gear++;
+            } else if(wheelRpm < SHIFT_DOWN_RPM && gear > 1) {
+                gear--;
+            }
+        }
+        if(speedKmh < 1.0f && targetThrottle < 0.05f) {
+            standstillMs += dtMs;
+            if(standstillMs > 3000) {
+                gear = 0;
+            }
+        } else {
+            standstillMs = 0;
+        }
+        float targetRpm = (gear > 0) ? Math.max(IDLE_RPM, speedKmh * RPM_PER_KMH[gear]) : IDLE_RPM + throttle * 4000.0f;
+        rpm += (targetRpm - rpm) * Math.min(1.0f, dt * 10.0f);
+
+        /* Coolant warms up towards the thermostat temperature, more with load and less airflow */
+        float load = rpm / 10000.0f * (0.3f + throttle);
+        float targetEctC = 85.0f + load * 10.0f + ((speedKmh < 10.0f) ? 12.0f : 0.0f);
+        ectC += (targetEctC - ectC) * Math.min(1.0f, dt / 120.0f);
+        float targetIatC = AMBIENT_C + ((speedKmh < 10.0f) ? 25.0f : 5.0f) * (ectC - AMBIENT_C) / 80.0f;
+        iatC += (targetIatC - iatC) * Math.min(1.0f, dt / 30.0f);
+
+        /* Charging voltage needs some RPM, sags at idle */
+        float targetBattV = 12.3f + Math.min(1.9f, Math.max(0.0f, rpm - 1000.0f) / 1500.0f);
+        battV += (targetBattV - battV) * Math.min(1.0f, dt * 2.0f);
+    }
+
+
+    /* Write the raw value which converts closest to a model value */
+    private void setValue(byte[] frame, int channel, float value) {
+        if(channel < 0 || channel + DecodePlan.PAYLOAD_OFFSET >= frame.length) {
+            return;
+        }
+        int bestRaw = 0;
+        float bestError = Float.MAX_VALUE;
+        for(int raw = 0; raw < 256; raw++) {
+            float error = Math.abs(plan.convert(channel, raw) - value);
+            if(error < bestError) {
+                bestError = error;
+                bestRaw = raw;
+            }
+        }
+        frame[channel + DecodePlan.PAYLOAD_OFFSET] = (byte) bestRaw;
+    }
+
+
+    /* Current gear of the model, 0 = neutral */
+    public int getGear() {
+        return gear;
+    }
+
+
+    /* Current engine speed of the model */
+    public float getRpm() {
+        return rpm;
+    }
+
+
+    /* Current road speed of the model */
+    public float getSpeedKmh() {
+        return speedKmh;
+    }
+}
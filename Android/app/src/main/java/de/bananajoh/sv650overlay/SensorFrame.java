@@ -0,0 +1,159 @@
+package de.bananajoh.sv650overlay;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/* Frame decoded once on the pipeline thread and shared by the logger, the overlay, the alerts and the UI: the raw value
+ * of every payload byte, the converted value of every channel of the active profile including the derived ones and the
+ * gear. Frames come from a pool and are reference counted, a consumer keeping a frame beyond the call it got it in
+ * retains it and releases it when done, the last release returns the frame to the pool. Frames must not be changed by
+ * consumers. */
+public class SensorFrame {
+    public static final int TYPE_DATA = 0x01;
+    public static final int TYPE_TEXT = 0x02;
+    public static final int MAX_PAYLOAD_LENGTH = 256;
+    private static final int POOL_SIZE = 64;
+    private static final int MAX_POOLED_BUFFER_LENGTH = 255;
+
+    private static final ArrayDeque<SensorFrame> pool = new ArrayDeque<>(POOL_SIZE);
+    /* Frame buffers by length, the frames of one stream have the same length so the decoder gets the buffers of released
+     * frames back */
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<byte[]>[] bufferPools = new ArrayDeque[MAX_POOLED_BUFFER_LENGTH + 1];
+
+    /* Complete frame [type, length, payload] as received, owned by the frame and never changed, the buffer goes back to
+     * the pool with the frame */
+    public byte[] data = null;
+    public int type = -1;
+    public long receiveTimeNs = 0;
+    /* Address of the device, null for frames generated by the app */
+    public String address = null;
+    /* Plan the channels were converted with, the active one when the frame was decoded */
+    public DecodePlan plan = null;
+    public int payloadLength = 0;
+    public final int[] raw = new int[MAX_PAYLOAD_LENGTH];
+    /* Converted values of data frames, valid up to channelCount */
+    public int channelCount = 0;
+    public final float[] values = new float[MAX_PAYLOAD_LENGTH + DecodePlan.MAX_DERIVED_CHANNELS];
+    /* Gear of data frames, 0 for neutral, -1 if unknown */
+    public int gear = -1;
+    private final AtomicInteger references = new AtomicInteger();
+
+
+    /* Get a frame out of the pool decoded with the active profile, the caller holds the only reference. Derived channels
+     * start over, e.g. rates are 0. */
+    public static SensorFrame obtain(String address, byte[] data, long receiveTimeNs) {
+        return obtain(address, data, receiveTimeNs, DataInfo.PLAN.newDerivedState());
+    }
+
+
+    /* Get a frame out of the pool decoded with the plan of a derived state, which carries rates and filters of the derived
+     * channels over from the previous frame of the stream */
+    public static SensorFrame obtain(String address, byte[] data, long receiveTimeNs, DecodePlan.DerivedState derivedState) {
+        SensorFrame frame;
+        synchronized(pool) {
+            frame = pool.poll();
+        }
+        if(frame == null) {
+            frame = new SensorFrame();
+        }
+        frame.references.set(1);
+        frame.decode(address, data, receiveTimeNs, derivedState);
+        return frame;
+    }
+
+
+    /* Get a frame buffer of a length out of the pool, it belongs to whoever it is handed to until released */
+    public static byte[] obtainBuffer(int length) {
+        if(length <= MAX_POOLED_BUFFER_LENGTH) {
+            synchronized(bufferPools) {
+                ArrayDeque<byte[]> buffers = bufferPools[length];
+                if(buffers != null && !buffers.isEmpty()) {
+                    return buffers.pop();
+                }
+            }
+        }
+        return new byte[length];
+    }
+
+
+    /* Return a frame buffer nobody refers to any more */
+    public static void releaseBuffer(byte[] buffer) {
+        if(buffer.length > MAX_POOLED_BUFFER_LENGTH) {
+            return;
+        }
+        synchronized(bufferPools) {
+            ArrayDeque<byte[]> buffers = bufferPools[buffer.length];
+            if(buffers == null) {
+                buffers = new ArrayDeque<>(POOL_SIZE);
+                bufferPools[buffer.length] = buffers;
+            }
+            if(buffers.size() < POOL_SIZE) {
+                buffers.push(buffer);
+            }
+        }
+    }
+
+
+    /* Fill in all fields from a received frame */
+    private void decode(String address, byte[] data, long receiveTimeNs, DecodePlan.DerivedState derivedState) {
+        DecodePlan plan = derivedState.plan;
+        this.data = data;
+        this.address = address;
+        this.receiveTimeNs = receiveTimeNs;
+        this.plan = plan;
+        type = (data.length > 0) ? data[0] & 0xFF : -1;
+        payloadLength = Math.max(0, Math.min(data.length - DecodePlan.PAYLOAD_OFFSET, MAX_PAYLOAD_LENGTH));
+        for(int i = 0; i < payloadLength; i++) {
+            raw[i] = data[i + DecodePlan.PAYLOAD_OFFSET] & 0xFF;
+        }
+        channelCount = 0;
+        gear = -1;
+        if(type == TYPE_DATA) {
+            channelCount = plan.convert(raw, payloadLength, values);
+            channelCount = plan.derive(values, channelCount, receiveTimeNs, derivedState);
+            int gearChannel = plan.gearOffset - DecodePlan.PAYLOAD_OFFSET;
+            if(gearChannel >= 0 && gearChannel < payloadLength && raw[gearChannel] <= 6) {
+                gear = raw[gearChannel];
+            }
+        }
+    }
+
+
+    /* Take an additional reference, returns the frame for chaining */
+    public SensorFrame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+
+    /* Give up a reference, the last one returns the frame to the pool */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if(remaining > 0) {
+            return;
+        }
+        if(remaining < 0) {
+            throw new IllegalStateException("SensorFrame released more often than retained");
+        }
+        byte[] buffer = data;
+        data = null;
+        address = null;
+        plan = null;
+        if(buffer != null) {
+            releaseBuffer(buffer);
+        }
+        synchronized(pool) {
+            if(pool.size() < POOL_SIZE) {
+                pool.push(this);
+            }
+        }
+    }
+
+
+    /* Check if this is a data frame (type 0x01) */
+    public boolean isData() {
+        return type == TYPE_DATA;
+    }
+}
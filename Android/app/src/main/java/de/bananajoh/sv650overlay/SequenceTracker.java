@@ -0,0 +1,114 @@
+package de.bananajoh.sv650overlay;
+
+
+/* Checks the 8 bit sequence numbers of frames sent with protocol version 3 for gaps, duplicates and reordering. The
+ * tracker has to be reset whenever the sender may start numbering over, i.e. on connect and protocol negotiation. A
+ * sender restarting without that is detected by a frame too far off to be a late one or by a run of duplicates, the
+ * tracker then starts over from that frame without counting a gap, as the number of frames in between is unknown. */
+public class SequenceTracker {
+    public static final int IN_ORDER = 0;
+    public static final int DUPLICATE = -1;
+    public static final int REORDERED = -2;
+    public static final int RESYNCED = -3;
+    private static final int HISTORY_SIZE = 64;
+    private static final int RESYNC_DUPLICATES = 4;
+
+    private int lastSequence = -1;
+    private long history = 0;
+    private long counted = 0;
+    private int duplicateRun = 0;
+    private volatile long lostFrames = 0;
+    private volatile long duplicateFrames = 0;
+    private volatile long reorderedFrames = 0;
+    private volatile long resyncs = 0;
+
+
+    /* Start over, the next sequence number is accepted as it is */
+    public void reset() {
+        lastSequence = -1;
+        history = 0;
+        counted = 0;
+        duplicateRun = 0;
+    }
+
+
+    /* Check the sequence number of a received frame, returns the number of frames missing right before it (0 = in order),
+     * RESYNCED for a frame which is accepted after the numbering started over, or DUPLICATE / REORDERED for frames which
+     * should be dropped. A REORDERED frame has been counted as missing before and is not any more. */
+    public int track(int sequence) {
+        sequence &= 0xFF;
+        if(lastSequence < 0) {
+            startOver(sequence);
+            return IN_ORDER;
+        }
+
+        int ahead = (sequence - lastSequence) & 0xFF;
+        if(ahead > 0 && ahead < 128) {
+            /* Newer frame, bit i of the history stands for sequence number (lastSequence - i), counted marks the
+             * sequence numbers which have been either received or counted as lost */
+            history = (ahead < HISTORY_SIZE) ? ((history << ahead) | 1) : 1;
+            counted = (ahead < HISTORY_SIZE) ? ((counted << ahead) | ((1L << ahead) - 1)) : -1L;
+            lastSequence = sequence;
+            duplicateRun = 0;
+            lostFrames += ahead - 1;
+            return ahead - 1;
+        }
+
+        int behind = (lastSequence - sequence) & 0xFF;
+        if(behind >= HISTORY_SIZE) {
+            /* Too old to be a late frame, the sender started numbering over */
+            startOver(sequence);
+            resyncs++;
+            return RESYNCED;
+        }
+        if((counted & (1L << behind)) != 0 && (history & (1L << behind)) == 0) {
+            /* Arrived late, it has been counted as lost before */
+            history |= 1L << behind;
+            duplicateRun = 0;
+            lostFrames--;
+            reorderedFrames++;
+            return REORDERED;
+        }
+        duplicateFrames++;
+        if(++duplicateRun >= RESYNC_DUPLICATES) {
+            /* Duplicates do not come in runs, the sender started numbering over just behind the last number */
+            startOver(sequence);
+            resyncs++;
+            return RESYNCED;
+        }
+        return DUPLICATE;
+    }
+
+
+    /* Take a sequence number as the first one */
+    private void startOver(int sequence) {
+        lastSequence = sequence;
+        history = 1;
+        counted = 1;
+        duplicateRun = 0;
+    }
+
+
+    /* Frames missing in the sequence */
+    public long getLostFrames() {
+        return lostFrames;
+    }
+
+
+    /* Frames received more than once */
+    public long getDuplicateFrames() {
+        return duplicateFrames;
+    }
+
+
+    /* Frames received after a newer one */
+    public long getReorderedFrames() {
+        return reorderedFrames;
+    }
+
+
+    /* Times the numbering started over without a reset */
+    public long getResyncs() {
+        return resyncs;
+    }
+}
@@ -0,0 +1,224 @@
+package de.bananajoh.sv650overlay;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* SQLite catalog of the recorded sessions, so rides can be listed without opening the log files. It also keeps the upload
+ * state of the log files. */
+public class SessionCatalog extends SQLiteOpenHelper implements SessionUploader.Store {
+    private static final String DATABASE_NAME = "sessions.db";
+    private static final int DATABASE_VERSION = 2;
+    private static final String TABLE_SESSIONS = "sessions";
+    public static final int GEAR_COUNT = 7;
+    public static final String SORT_START = "start_ms DESC";
+    public static final String SORT_DURATION = "(end_ms - start_ms) DESC";
+    public static final String SORT_MAX_RPM = "max_rpm DESC";
+
+    private static SessionCatalog instance = null;
+
+
+    /* Summary of one recorded session */
+    public static class Entry {
+        public long id = -1;
+        public String fileName;
+        public String deviceAddress;
+        public long startMs;
+        public long endMs;
+        public long frames = 0;
+        public long fileSize = 0;
+        public float maxRpm = 0.0f;
+        public float maxEct = 0.0f;
+        public final long[] gearMs = new long[GEAR_COUNT];
+        /* Upload state, only changed by setUploadProgress() */
+        public long uploadOffset = 0;
+        public boolean uploaded = false;
+
+
+        /* Recorded time in milliseconds */
+        public long getDurationMs() {
+            return endMs - startMs;
+        }
+
+
+        /* Copy to hand over to another thread */
+        public Entry copy() {
+            Entry entry = new Entry();
+            entry.id = id;
+            entry.fileName = fileName;
+            entry.deviceAddress = deviceAddress;
+            entry.startMs = startMs;
+            entry.endMs = endMs;
+            entry.frames = frames;
+            entry.fileSize = fileSize;
+            entry.maxRpm = maxRpm;
+            entry.maxEct = maxEct;
+            System.arraycopy(gearMs, 0, entry.gearMs, 0, GEAR_COUNT);
+            entry.uploadOffset = uploadOffset;
+            entry.uploaded = uploaded;
+            return entry;
+        }
+    }
+
+
+    /* Shared instance, SQLiteOpenHelper serializes access from several threads */
+    public static synchronized SessionCatalog getInstance(Context context) {
+        if(instance == null) {
+            instance = new SessionCatalog(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+
+    /* Constructor */
+    private SessionCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        String gearColumns = "";
+        for(int gear = 0; gear < GEAR_COUNT; gear++) {
+            gearColumns += ", gear" + gear + "_ms INTEGER NOT NULL DEFAULT 0";
+        }
+        db.execSQL("CREATE TABLE " + TABLE_SESSIONS + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, file_name TEXT NOT NULL, device_address TEXT,"
+                + " start_ms INTEGER NOT NULL, end_ms INTEGER NOT NULL, frames INTEGER NOT NULL DEFAULT 0, file_size INTEGER NOT NULL DEFAULT 0,"
+                + " max_rpm REAL NOT NULL DEFAULT 0, max_ect REAL NOT NULL DEFAULT 0" + gearColumns + ","
+                + " upload_offset INTEGER NOT NULL DEFAULT 0, uploaded INTEGER NOT NULL DEFAULT 0)");
+    }
+
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if(oldVersion == 1) {
+            /* Version 2 added the upload state, the recorded sessions are kept */
+            db.execSQL("ALTER TABLE " + TABLE_SESSIONS + " ADD COLUMN upload_offset INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_SESSIONS + " ADD COLUMN uploaded INTEGER NOT NULL DEFAULT 0");
+            return;
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SESSIONS);
+        onCreate(db);
+    }
+
+
+    /* Add a new session and remember its row id in the entry */
+    public void insert(Entry entry) {
+        entry.id = getWritableDatabase().insert(TABLE_SESSIONS, null, toContentValues(entry));
+    }
+
+
+    /* Write the current state of a session added before */
+    public void update(Entry entry) {
+        if(entry.id < 0) {
+            return;
+        }
+        getWritableDatabase().update(TABLE_SESSIONS, toContentValues(entry), "_id = ?", new String[] { Long.toString(entry.id) });
+    }
+
+
+    /* Remove a session from the catalog, the log file is not touched */
+    public void delete(long id) {
+        getWritableDatabase().delete(TABLE_SESSIONS, "_id = ?", new String[] { Long.toString(id) });
+    }
+
+
+    /* All sessions in the given order (one of the SORT_ constants) */
+    public List<Entry> query(String sortOrder) {
+        return query(null, sortOrder);
+    }
+
+
+    /* Sessions not uploaded completely yet, oldest first */
+    public List<Entry> queryPendingUploads() {
+        return query("uploaded = 0", "start_ms ASC");
+    }
+
+
+    /* Sessions matching a selection in the given order */
+    private List<Entry> query(String selection, String sortOrder) {
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_SESSIONS, null, selection, null, null, null, sortOrder);
+        try {
+            while(cursor.moveToNext()) {
+                Entry entry = new Entry();
+                entry.id = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
+                entry.fileName = cursor.getString(cursor.getColumnIndexOrThrow("file_name"));
+                entry.deviceAddress = cursor.getString(cursor.getColumnIndexOrThrow("device_address"));
+                entry.startMs = cursor.getLong(cursor.getColumnIndexOrThrow("start_ms"));
+                entry.endMs = cursor.getLong(cursor.getColumnIndexOrThrow("end_ms"));
+                entry.frames = cursor.getLong(cursor.getColumnIndexOrThrow("frames"));
+                entry.fileSize = cursor.getLong(cursor.getColumnIndexOrThrow("file_size"));
+                entry.maxRpm = cursor.getFloat(cursor.getColumnIndexOrThrow("max_rpm"));
+                entry.maxEct = cursor.getFloat(cursor.getColumnIndexOrThrow("max_ect"));
+                for(int gear = 0; gear < GEAR_COUNT; gear++) {
+                    entry.gearMs[gear] = cursor.getLong(cursor.getColumnIndexOrThrow("gear" + gear + "_ms"));
+                }
+                entry.uploadOffset = cursor.getLong(cursor.getColumnIndexOrThrow("upload_offset"));
+                entry.uploaded = cursor.getInt(cursor.getColumnIndexOrThrow("uploaded")) != 0;
+                entries.add(entry);
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+
+    /* Bytes of a log file acknowledged by the collection server, 0 for files not in the catalog */
+    @Override
+    public long getUploadOffset(String fileName) {
+        Cursor cursor = getReadableDatabase().query(TABLE_SESSIONS, new String[] { "upload_offset" }, "file_name = ?", new String[] { fileName }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /* Remember the acknowledged bytes of a log file */
+    @Override
+    public void setUploadProgress(String fileName, long offset, boolean complete) {
+        ContentValues values = new ContentValues();
+        values.put("upload_offset", offset);
+        values.put("uploaded", complete ? 1 : 0);
+        getWritableDatabase().update(TABLE_SESSIONS, values, "file_name = ?", new String[] { fileName });
+    }
+
+
+    /* Check if a log file has been uploaded completely */
+    @Override
+    public boolean isUploaded(String fileName) {
+        Cursor cursor = getReadableDatabase().query(TABLE_SESSIONS, new String[] { "uploaded" }, "file_name = ?", new String[] { fileName }, null, null, null);
+        try {
+            return cursor.moveToFirst() && cursor.getInt(0) != 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    /* Column values of an entry */
+    private static ContentValues toContentValues(Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put("file_name", entry.fileName);
+        values.put("device_address", entry.deviceAddress);
+        values.put("start_ms", entry.startMs);
+        values.put("end_ms", entry.endMs);
+        values.put("frames", entry.frames);
+        values.put("file_size", entry.fileSize);
+        values.put("max_rpm", entry.maxRpm);
+        values.put("max_ect", entry.maxEct);
+        for(int gear = 0; gear < GEAR_COUNT; gear++) {
+            values.put("gear" + gear + "_ms", entry.gearMs[gear]);
+        }
+        return values;
+    }
+}
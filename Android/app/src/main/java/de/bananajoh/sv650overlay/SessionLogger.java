@@ -0,0 +1,597 @@
+package de.bananajoh.sv650overlay;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+
+/* Writes the frames of one device session as csv lines to a log file, all calls except requestSensorDrain() have to be
+ * made on the same thread. Lines are stamped with the monotonic receive time of the frame in microseconds since the
+ * start of the log, date and time are derived from a single wall clock anchor written after the header, so they never
+ * jump within a log. Phone sensor samples can be recorded alongside as #Acc, #Gyro and #Gnss lines on the same clock.
+ * While they are, a merge thread formats the samples and holds all lines back for a merge window to write them in time
+ * order, the frame lines are only handed over to it. Without sensors frame lines are written directly. */
+public class SessionLogger {
+    private static final long FLUSH_INTERVAL_MS = 10000;
+    private static final long FLUSH_INTERVAL_LOW_POWER_MS = 60000;
+    private static final int LOG_BUFFER_SIZE = 65536;
+    private static final long MAX_GEAR_TIME_GAP_MS = 2000;
+    private static final long MERGE_WINDOW_NS = 1000000000L;
+    private static final int MAX_PENDING_LINES = 8192;
+    private static final String[] SENSOR_LINE_PREFIXES = { "#Acc", "#Gyro", "#Gnss" };
+
+    private final SessionCatalog sessionCatalog;
+    private final String deviceAddress;
+    private final Clock clock;
+    /* Writes catalog entries and operating point maps, so database and file I/O stay off the pipeline thread */
+    private final ExecutorService catalogExecutor;
+    /* Row of the catalog entry of the current log, catalog thread only */
+    private long catalogRowId = -1;
+    private BufferedWriter logFileBuffer = null;
+    private File logFile = null;
+    private final SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyyMMdd,HHmmssSSS");
+    private final StringBuilder lineBuilder = new StringBuilder(256);
+    private long anchorWallClockMs = 0;
+    private long anchorElapsedNs = 0;
+    private SessionCatalog.Entry catalogEntry = null;
+    private long lastCatalogUpdateMs = 0;
+    private long flushIntervalMs = FLUSH_INTERVAL_MS;
+    private long lastDataFrameMs = 0;
+    private int lastGear = -1;
+    /* Profile the columns of the last header line were written for */
+    private DecodePlan logPlan = null;
+    private int rpmChannel = -1;
+    private int ectChannel = -1;
+    private final OperatingPointMap[] operatingPointMaps = new OperatingPointMap[OperatingPointMap.LOAD_LABELS.length];
+
+    /* Phone sensor recording, the merge thread exists while a sensor queue is set */
+    private PhoneSensorRecorder.Queue sensorQueue = null;
+    private volatile ExecutorService mergeExecutor = null;
+    private long droppedSensorSamples = 0;
+    private boolean sensorsRecorded = false;
+
+    /* Streaming merge of frames and phone sensor samples on the merge thread, lines are written once they are older than
+     * the newest by the merge window. The log is handed over to the merge thread while it runs. */
+    private BufferedWriter mergeLog = null;
+    private long mergeAnchorWallClockMs = 0;
+    private long mergeAnchorElapsedNs = 0;
+    private final SimpleDateFormat mergeDateTimeFormat = new SimpleDateFormat("yyyyMMdd,HHmmssSSS");
+    private PhoneSensorRecorder.Queue mergeSensorQueue = null;
+    private final List<PhoneSensorRecorder.Sample> drainedSamples = new ArrayList<>();
+    private final PriorityQueue<PendingLine> pendingLines = new PriorityQueue<>();
+    private long pendingLineSequence = 0;
+    private long newestLineNs = Long.MIN_VALUE;
+    private long lastWrittenLineNs = Long.MIN_VALUE;
+    private long outOfOrderLines = 0;
+    private final Runnable drainSensorSamples = new Runnable() {
+        public void run() {
+            drainSensorSamples();
+        }
+    };
+
+
+    /* Log line held back for the merge, lines of equal time keep their order */
+    private static class PendingLine implements Comparable<PendingLine> {
+        final long timeNs;
+        final long sequence;
+        final String line;
+
+        /* Constructor */
+        PendingLine(long timeNs, long sequence, String line) {
+            this.timeNs = timeNs;
+            this.sequence = sequence;
+            this.line = line;
+        }
+
+        /* Older lines first */
+        @Override
+        public int compareTo(PendingLine other) {
+            if(timeNs != other.timeNs) {
+                return (timeNs < other.timeNs) ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+
+    /* Constructor, the catalog gets an entry per log file which is updated while recording, null to log without catalog.
+     * The clock has to be the one frame receive times are taken from. */
+    public SessionLogger(SessionCatalog sessionCatalog, String deviceAddress, Clock clock) {
+        this.sessionCatalog = sessionCatalog;
+        this.deviceAddress = deviceAddress;
+        this.clock = clock;
+        catalogExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SessionLogger catalog " + deviceAddress);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /* Release the catalog and merge threads after the last log has been stopped, the logger must not be used afterwards */
+    public void close() {
+        setSensorQueue(null);
+        catalogExecutor.shutdown();
+    }
+
+
+    /* Start data logging to file */
+    public void start(File logFile) {
+        if(logFileBuffer != null) {
+            return;
+        }
+        if(!logFile.exists()) {
+            try {
+                logFile.createNewFile();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            logFileBuffer = new BufferedWriter(new FileWriter(logFile, true), LOG_BUFFER_SIZE);
+            logPlan = DataInfo.PLAN;
+            logFileBuffer.append(headerLine(logPlan));
+            logFileBuffer.newLine();
+
+            /* Anchor: wall clock and monotonic clock taken at the same moment */
+            anchorWallClockMs = System.currentTimeMillis();
+            anchorElapsedNs = clock.elapsedRealtimeNanos();
+            logFileBuffer.append("#Anchor," + dateTimeFormat.format(new Date(anchorWallClockMs)) + "," + anchorWallClockMs + "," + anchorElapsedNs);
+            logFileBuffer.newLine();
+            droppedSensorSamples = 0;
+            sensorsRecorded = (sensorQueue != null);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        if(logFileBuffer != null) {
+            this.logFile = logFile;
+            if(mergeExecutor != null) {
+                startMerge(true);
+            } else {
+                /* No merge thread yet, the one started with the sensors sees these */
+                newestLineNs = Long.MIN_VALUE;
+                lastWrittenLineNs = Long.MIN_VALUE;
+                outOfOrderLines = 0;
+            }
+            startCatalogEntry();
+        }
+    }
+
+
+    /* Add the catalog entry of a new log file */
+    private void startCatalogEntry() {
+        rpmChannel = findChannel(logPlan, "RPM");
+        ectChannel = findChannel(logPlan, "ECT");
+        lastDataFrameMs = 0;
+        lastGear = -1;
+        synchronized(operatingPointMaps) {
+            for(int load = 0; load < operatingPointMaps.length; load++) {
+                operatingPointMaps[load] = new OperatingPointMap(load);
+            }
+        }
+        catalogEntry = new SessionCatalog.Entry();
+        catalogEntry.fileName = logFile.getName();
+        catalogEntry.deviceAddress = deviceAddress;
+        catalogEntry.startMs = anchorWallClockMs;
+        catalogEntry.endMs = catalogEntry.startMs;
+        lastCatalogUpdateMs = catalogEntry.startMs;
+        final SessionCatalog.Entry entry = catalogEntry.copy();
+        final File file = logFile;
+        catalogExecutor.execute(new Runnable() {
+            public void run() {
+                entry.fileSize = file.length();
+                if(sessionCatalog != null) {
+                    sessionCatalog.insert(entry);
+                }
+                catalogRowId = entry.id;
+            }
+        });
+    }
+
+
+    /* Header line naming the columns of the data lines of a profile */
+    private static String headerLine(DecodePlan plan) {
+        StringBuilder logHeader = new StringBuilder("Date,Time,ElapsedUs");
+        for(DataInfoEntry dataInfoEntry : plan.entries) {
+            logHeader.append(',').append(dataInfoEntry.label);
+        }
+        return logHeader.toString();
+    }
+
+
+    /* Channel index of a label in a profile, -1 if the profile does not have it */
+    private static int findChannel(DecodePlan plan, String label) {
+        DataInfoEntry[] entries = plan.entries;
+        for(int channel = 0; channel < entries.length; channel++) {
+            if(entries[channel].label.equals(label)) {
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+
+    /* Account a data frame (type 0x01) to the statistics of the catalog entry and the operating point maps */
+    private void updateCatalogEntry(SensorFrame frame, long now) {
+        for(OperatingPointMap map : operatingPointMaps) {
+            map.update(frame);
+        }
+        catalogEntry.frames++;
+        catalogEntry.endMs = now;
+        if(rpmChannel > -1 && rpmChannel < frame.channelCount) {
+            catalogEntry.maxRpm = Math.max(catalogEntry.maxRpm, frame.values[rpmChannel]);
+        }
+        if(ectChannel > -1 && ectChannel < frame.channelCount) {
+            catalogEntry.maxEct = Math.max(catalogEntry.maxEct, frame.values[ectChannel]);
+        }
+
+        /* The time between two frames counts to the gear of the earlier one, gaps in the recording are skipped */
+        if(lastGear > -1 && (now - lastDataFrameMs) <= MAX_GEAR_TIME_GAP_MS) {
+            catalogEntry.gearMs[lastGear] += now - lastDataFrameMs;
+        }
+        lastGear = (frame.gear < SessionCatalog.GEAR_COUNT) ? frame.gear : -1;
+        lastDataFrameMs = now;
+
+        if((now - lastCatalogUpdateMs) >= flushIntervalMs) {
+            writeCatalogEntry();
+        }
+    }
+
+
+    /* Mark missing frames in the log, so analytics do not interpolate across them */
+    public void appendGap(int missingFrames, long receiveTimeNs) {
+        if(logFileBuffer == null) {
+            return;
+        }
+        appendFrameCount("#Gap", missingFrames, receiveTimeNs);
+        /* Time across the gap is not accounted to a gear or operating point */
+        lastGear = -1;
+        for(OperatingPointMap map : operatingPointMaps) {
+            map.breakTime();
+        }
+    }
+
+
+    /* Correct earlier gaps by frames which arrived late, their data is not in the log but they are not lost either. The
+     * sum of all #Gap minus all #Late lines is the number of frames lost. */
+    public void appendLate(int lateFrames, long receiveTimeNs) {
+        if(logFileBuffer == null) {
+            return;
+        }
+        appendFrameCount("#Late", lateFrames, receiveTimeNs);
+    }
+
+
+    /* Write a "prefix,date,time,elapsedUs,frames" line */
+    private void appendFrameCount(String prefix, int frames, long receiveTimeNs) {
+        long elapsedUs = (receiveTimeNs - anchorElapsedNs) / 1000;
+        try {
+            writeLine(receiveTimeNs, prefix + "," + dateTimeFormat.format(new Date(anchorWallClockMs + elapsedUs / 1000)) + "," + elapsedUs + "," + frames);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /* Flush log and catalog entry rarely in low power mode, data since the last flush is lost if the app gets killed */
+    public void setLowPower(boolean lowPower) {
+        flushIntervalMs = lowPower ? FLUSH_INTERVAL_LOW_POWER_MS : FLUSH_INTERVAL_MS;
+    }
+
+
+    /* Flush the log (BufferedWriter is synchronized, the merge thread may be appending) and have the statistics of the catalog entry and the operating point maps written in the background */
+    private void writeCatalogEntry() {
+        try {
+            logFileBuffer.flush();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        lastCatalogUpdateMs = catalogEntry.endMs;
+        submitCatalogEntry();
+    }
+
+
+    /* Hand copies of the catalog entry and the operating point maps over to the catalog thread, which saves the maps next
+     * to the log file and updates the database */
+    private Future<?> submitCatalogEntry() {
+        final SessionCatalog.Entry entry = catalogEntry.copy();
+        final OperatingPointMap[] maps = new OperatingPointMap[operatingPointMaps.length];
+        for(int load = 0; load < maps.length; load++) {
+            maps[load] = operatingPointMaps[load].copy();
+        }
+        final File file = logFile;
+        return catalogExecutor.submit(new Runnable() {
+            public void run() {
+                try {
+                    OperatingPointMap.save(getOperatingPointMapFile(file), maps);
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+                entry.fileSize = file.length();
+                entry.id = catalogRowId;
+                if(sessionCatalog != null) {
+                    sessionCatalog.update(entry);
+                }
+            }
+        });
+    }
+
+
+    /* File of the operating point maps of a log file */
+    public static File getOperatingPointMapFile(File logFile) {
+        return new File(logFile.getPath() + OperatingPointMap.FILE_SUFFIX);
+    }
+
+
+    /* Copy of the operating point map of the running session for a load channel (index into OperatingPointMap.LOAD_LABELS), null if not logging */
+    public OperatingPointMap copyOperatingPointMap(int load) {
+        synchronized(operatingPointMaps) {
+            return (operatingPointMaps[load] != null) ? operatingPointMaps[load].copy() : null;
+        }
+    }
+
+
+    /* Write a line stamped with timeNs, handed over to the merge thread while phone sensors are recorded */
+    private void writeLine(final long timeNs, final String line) throws IOException {
+        ExecutorService executor = mergeExecutor;
+        if(executor == null) {
+            logFileBuffer.append(line);
+            logFileBuffer.newLine();
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                mergeLine(timeNs, line);
+            }
+        });
+    }
+
+
+    /* Run a task on the merge thread and wait for it */
+    private void runOnMergeThread(Runnable task) {
+        try {
+            mergeExecutor.submit(task).get();
+        } catch(InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /* Hand the log over to the merge thread, newLog to start its statistics over */
+    private void startMerge(final boolean newLog) {
+        final BufferedWriter log = logFileBuffer;
+        final long wallClockMs = anchorWallClockMs;
+        final long elapsedNs = anchorElapsedNs;
+        runOnMergeThread(new Runnable() {
+            public void run() {
+                mergeLog = log;
+                mergeAnchorWallClockMs = wallClockMs;
+                mergeAnchorElapsedNs = elapsedNs;
+                if(newLog) {
+                    newestLineNs = Long.MIN_VALUE;
+                    lastWrittenLineNs = Long.MIN_VALUE;
+                    outOfOrderLines = 0;
+                }
+            }
+        });
+    }
+
+
+    /* Write all lines held back and take the log back from the merge thread */
+    private void finishMerge() {
+        runOnMergeThread(new Runnable() {
+            public void run() {
+                drainSensorSamples();
+                writePendingLines(Long.MAX_VALUE);
+                mergeLog = null;
+            }
+        });
+    }
+
+
+    /* Hold a line back for the merge, runs on the merge thread */
+    private void mergeLine(long timeNs, String line) {
+        if(mergeLog == null) {
+            return;
+        }
+        pendingLines.add(new PendingLine(timeNs, pendingLineSequence++, line));
+        newestLineNs = Math.max(newestLineNs, timeNs);
+        writePendingLines(newestLineNs - MERGE_WINDOW_NS);
+    }
+
+
+    /* Write the held back lines up to a time in time order, the oldest ones also if too many are held back. Lines
+     * arriving later than the merge window are still written, never dropped, and counted as out of order. Runs on the
+     * merge thread. */
+    private void writePendingLines(long untilNs) {
+        try {
+            while(!pendingLines.isEmpty() && (pendingLines.peek().timeNs <= untilNs || pendingLines.size() > MAX_PENDING_LINES)) {
+                PendingLine pendingLine = pendingLines.poll();
+                if(pendingLine.timeNs < lastWrittenLineNs) {
+                    outOfOrderLines++;
+                } else {
+                    lastWrittenLineNs = pendingLine.timeNs;
+                }
+                mergeLog.append(pendingLine.line);
+                mergeLog.newLine();
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /* Record the phone sensor samples of a queue alongside the frames, null to stop and write what is left. Starts and
+     * stops the merge thread. */
+    public void setSensorQueue(final PhoneSensorRecorder.Queue queue) {
+        if(queue == sensorQueue) {
+            return;
+        }
+        if(sensorQueue != null) {
+            droppedSensorSamples += sensorQueue.getDroppedSamples();
+        }
+        sensorQueue = queue;
+        if(queue == null) {
+            if(logFileBuffer != null) {
+                finishMerge();
+            }
+            mergeExecutor.shutdown();
+            mergeExecutor = null;
+            return;
+        }
+        sensorsRecorded = sensorsRecorded || logFileBuffer != null;
+        if(mergeExecutor == null) {
+            mergeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "SessionLogger merge " + deviceAddress);
+                }
+            });
+            if(logFileBuffer != null) {
+                startMerge(false);
+            }
+        }
+        runOnMergeThread(new Runnable() {
+            public void run() {
+                drainSensorSamples();
+                mergeSensorQueue = queue;
+            }
+        });
+    }
+
+
+    /* Have the queued phone sensor samples moved into the merge, may be called on any thread */
+    public void requestSensorDrain() {
+        ExecutorService executor = mergeExecutor;
+        if(executor == null) {
+            return;
+        }
+        try {
+            executor.execute(drainSensorSamples);
+        } catch(RejectedExecutionException e) {
+            /* Recording stopped, the remaining samples have been drained already */
+        }
+    }
+
+
+    /* Format the queued phone sensor samples and move them into the merge, samples from before the start of the log or
+     * without log are skipped. Runs on the merge thread. */
+    private void drainSensorSamples() {
+        if(mergeSensorQueue == null) {
+            return;
+        }
+        mergeSensorQueue.drainTo(drainedSamples);
+        if(mergeLog != null) {
+            for(PhoneSensorRecorder.Sample sample : drainedSamples) {
+                if(sample.timeNs < mergeAnchorElapsedNs) {
+                    continue;
+                }
+                long elapsedUs = (sample.timeNs - mergeAnchorElapsedNs) / 1000;
+                StringBuilder line = new StringBuilder(SENSOR_LINE_PREFIXES[sample.source]);
+                line.append(',').append(mergeDateTimeFormat.format(new Date(mergeAnchorWallClockMs + elapsedUs / 1000))).append(',').append(elapsedUs);
+                for(double value : sample.values) {
+                    line.append(',').append(value);
+                }
+                mergeLine(sample.timeNs, line.toString());
+            }
+        }
+        drainedSamples.clear();
+    }
+
+
+    /* Stop data logging to file, returns the closed log file, null if none was open */
+    public File stop() {
+        if(logFileBuffer == null) {
+            return null;
+        }
+        if(mergeExecutor != null) {
+            finishMerge();
+        }
+        try {
+            if(sensorsRecorded) {
+                long droppedSamples = droppedSensorSamples + ((sensorQueue != null) ? sensorQueue.getDroppedSamples() : 0);
+                logFileBuffer.append("#Merge," + droppedSamples + "," + outOfOrderLines);
+                logFileBuffer.newLine();
+            }
+            logFileBuffer.flush();
+            logFileBuffer.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        logFileBuffer = null;
+        /* The final state is written before the file is reported closed */
+        try {
+            submitCatalogEntry().get();
+        } catch(InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+        File closedLogFile = logFile;
+        catalogEntry = null;
+        logFile = null;
+        return closedLogFile;
+    }
+
+
+    /* Check if data is written to log */
+    public boolean isActive() {
+        return logFileBuffer != null;
+    }
+
+
+    /* Write sensor data to end of log file */
+    public void append(SensorFrame frame) {
+        if(logFileBuffer == null || frame.data.length < 2) {
+            return;
+        }
+        if(frame.type != SensorFrame.TYPE_DATA && frame.type != SensorFrame.TYPE_TEXT) {
+            return;
+        }
+        try {
+            if(frame.type == SensorFrame.TYPE_DATA && frame.plan != logPlan) {
+                /* Profile changed while logging, the following lines get the header of the new columns */
+                logPlan = frame.plan;
+                rpmChannel = findChannel(logPlan, "RPM");
+                ectChannel = findChannel(logPlan, "ECT");
+                writeLine(frame.receiveTimeNs, headerLine(logPlan));
+            }
+            long elapsedUs = (frame.receiveTimeNs - anchorElapsedNs) / 1000;
+            long wallClockMs = anchorWallClockMs + elapsedUs / 1000;
+            lineBuilder.setLength(0);
+            lineBuilder.append(dateTimeFormat.format(new Date(wallClockMs))).append(',').append(elapsedUs);
+            if(frame.type == SensorFrame.TYPE_TEXT) {
+                lineBuilder.append(',').append(new String(Arrays.copyOfRange(frame.data, 2, frame.data.length), "US-ASCII"));
+            } else {
+                /* Raw unsigned payload bytes as decoded by the frame, followed by the converted derived channels */
+                for(int i = 0; i < frame.payloadLength; i++) {
+                    lineBuilder.append(',').append(frame.raw[i]);
+                }
+                for(int channel = frame.plan.payloadChannelCount; channel < frame.channelCount; channel++) {
+                    lineBuilder.append(',').append(frame.values[channel]);
+                }
+            }
+            writeLine(frame.receiveTimeNs, lineBuilder.toString());
+            if(frame.type == SensorFrame.TYPE_DATA) {
+                updateCatalogEntry(frame, wallClockMs);
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
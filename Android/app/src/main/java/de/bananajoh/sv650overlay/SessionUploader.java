@@ -0,0 +1,220 @@
+package de.bananajoh.sv650overlay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/* Uploads closed session logs in chunks to a collection server, a few files at a time on low priority threads. Every
+ * chunk is sent as
+ *   POST <endpoint>/<file name>
+ *   Upload-Offset: <position of the chunk in the file>
+ *   Upload-Length: <size of the file>
+ * and acknowledged by the server with a 2xx status once stored. A server which has a different amount of the file
+ * answers 409 with its own Upload-Offset, e.g. after an acknowledgement got lost, and the upload continues from there.
+ * A 409 with the offset just sent makes no progress and is retried like a failure.
+ * The acknowledged offset is kept in a store, so an interrupted upload resumes with the next chunk and completely
+ * uploaded files are never sent again. Failed chunks are retried with an increasing delay, no chunk is started while
+ * paused. */
+public class SessionUploader {
+    public static final String HEADER_UPLOAD_OFFSET = "Upload-Offset";
+    public static final String HEADER_UPLOAD_LENGTH = "Upload-Length";
+    private static final int TIMEOUT_MS = 15000;
+    private static final long MAX_RETRY_DELAY_MS = 300000;
+
+    private final String endpoint;
+    private final Store store;
+    private final int chunkSize;
+    private final long retryDelayMs;
+    private final ExecutorService executor;
+    private final Set<String> queuedNames = new HashSet<>();
+    private final Object pauseLock = new Object();
+    private boolean paused = false;
+
+
+    /* Persistent upload state per file name */
+    public interface Store {
+        /* Bytes of a file acknowledged by the server so far */
+        long getUploadOffset(String name);
+
+        /* Remember the acknowledged bytes of a file, complete once the server has all of it */
+        void setUploadProgress(String name, long offset, boolean complete);
+
+        /* Check if a file has been uploaded completely */
+        boolean isUploaded(String name);
+    }
+
+
+    /* Constructor, at most maxConcurrentUploads files are uploaded at the same time */
+    public SessionUploader(String endpoint, Store store, int maxConcurrentUploads, int chunkSize, long retryDelayMs) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.store = store;
+        this.chunkSize = chunkSize;
+        this.retryDelayMs = retryDelayMs;
+        executor = Executors.newFixedThreadPool(maxConcurrentUploads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SessionUploader");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /* Endpoint the files are uploaded to */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+
+    /* Queue a closed file for upload, files uploaded or queued already are ignored. The store is only read on the upload
+     * threads, so this may be called on the main thread. */
+    public void enqueue(final File file) {
+        final String name = file.getName();
+        synchronized(queuedNames) {
+            if(!queuedNames.add(name)) {
+                return;
+            }
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if(!store.isUploaded(name)) {
+                        upload(file);
+                    }
+                } finally {
+                    synchronized(queuedNames) {
+                        queuedNames.remove(name);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /* Number of files queued or being uploaded */
+    public int getPendingCount() {
+        synchronized(queuedNames) {
+            return queuedNames.size();
+        }
+    }
+
+
+    /* Hold back further chunks, e.g. while logging so the uploads do not compete with the recording */
+    public void setPaused(boolean paused) {
+        synchronized(pauseLock) {
+            this.paused = paused;
+            pauseLock.notifyAll();
+        }
+    }
+
+
+    /* Stop all uploads, chunks in flight are abandoned and sent again by the next uploader */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    /* Upload a file chunk by chunk until complete, retrying failed chunks until shut down */
+    private void upload(File file) {
+        long delayMs = retryDelayMs;
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                synchronized(pauseLock) {
+                    while(paused) {
+                        pauseLock.wait();
+                    }
+                }
+                if(!file.exists()) {
+                    return;
+                }
+                try {
+                    if(uploadChunk(file)) {
+                        return;
+                    }
+                    delayMs = retryDelayMs;
+                } catch(IOException e) {
+                    e.printStackTrace();
+                    Thread.sleep(delayMs);
+                    delayMs = Math.min(delayMs * 2, MAX_RETRY_DELAY_MS);
+                }
+            }
+        } catch(InterruptedException e) {
+            /* Shut down */
+        }
+    }
+
+
+    /* Send the chunk after the acknowledged offset, returns true once the server has the whole file */
+    private boolean uploadChunk(File file) throws IOException {
+        String name = file.getName();
+        long length = file.length();
+        long offset = Math.min(store.getUploadOffset(name), length);
+        long sentOffset = offset;
+        byte[] chunk = new byte[(int) Math.min(chunkSize, length - offset)];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(offset);
+            input.readFully(chunk);
+        } finally {
+            input.close();
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + "/" + URLEncoder.encode(name, "UTF-8")).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(chunk.length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty(HEADER_UPLOAD_OFFSET, Long.toString(offset));
+            connection.setRequestProperty(HEADER_UPLOAD_LENGTH, Long.toString(length));
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(chunk);
+            } finally {
+                output.close();
+            }
+            int status = connection.getResponseCode();
+            if(status / 100 == 2) {
+                InputStream response = connection.getInputStream();
+                response.close();
+                offset += chunk.length;
+            } else if(status == HttpURLConnection.HTTP_CONFLICT && connection.getHeaderField(HEADER_UPLOAD_OFFSET) != null) {
+                try {
+                    offset = Long.parseLong(connection.getHeaderField(HEADER_UPLOAD_OFFSET).trim());
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid " + HEADER_UPLOAD_OFFSET + " for " + name);
+                }
+                if(offset < 0 || offset > length) {
+                    throw new IOException("Server has " + offset + " of " + length + " bytes of " + name);
+                }
+                if(offset == sentOffset) {
+                    /* The server rejects the chunk at the offset it asks for, sending it again right away would not help */
+                    throw new IOException("Server rejected " + name + " at its own offset " + offset);
+                }
+            } else {
+                throw new IOException("Upload of " + name + " failed: HTTP " + status);
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        boolean complete = (offset == length);
+        store.setUploadProgress(name, offset, complete);
+        return complete;
+    }
+}
@@ -0,0 +1,290 @@
+package de.bananajoh.sv650overlay;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.view.View;
+
+
+/* Seven-segment digit with decimal point and optional RPM bar drawn from cached paths, only redrawn if the shown state
+ * changes or the shift light blinks */
+public class SevenSegmentView extends View {
+    public static final int SYMBOL_EMPTY = -1;
+    public static final int SYMBOL_MINUS = -2;
+
+    /* Size of the former bitmap assets, the segment geometry below is given in this coordinate system */
+    private static final float BASE_WIDTH = 118.0f;
+    private static final float BASE_HEIGHT = 145.0f;
+    private static final float DIGIT_LEFT = 32.0f;
+    private static final float DIGIT_RIGHT = 84.0f;
+    private static final float DIGIT_TOP = 24.0f;
+    private static final float DIGIT_MIDDLE = 72.0f;
+    private static final float DIGIT_BOTTOM = 120.0f;
+    private static final float SEGMENT_THICKNESS = 11.0f;
+    private static final float SEGMENT_GAP = 1.5f;
+    private static final float SLANT = -0.12f;
+    private static final float DOT_X = 96.0f;
+    private static final float DOT_Y = 117.0f;
+    private static final float DOT_RADIUS = 6.5f;
+    private static final float CORNER_RADIUS = 6.0f;
+    private static final float BAR_WIDTH = 26.0f;
+    private static final float BAR_LEFT = 110.0f;
+    private static final float BAR_BLOCK_WIDTH = 16.0f;
+    private static final float BAR_BLOCK_GAP = 2.0f;
+    private static final int BAR_BLOCKS = 8;
+    private static final int BAR_BLOCKS_GREEN = 4;
+    private static final int BAR_BLOCKS_YELLOW = 2;
+    private static final long SHIFT_BLINK_INTERVAL_MS = 100;
+
+    /* Segments a to g as bits 0 to 6 for the digits 0 to 9 */
+    private static final int[] DIGIT_SEGMENTS = { 0x3F, 0x06, 0x5B, 0x4F, 0x66, 0x6D, 0x7D, 0x07, 0x7F, 0x6F };
+    private static final int MINUS_SEGMENTS = 0x40;
+
+    public static final int DEFAULT_BACKGROUND_COLOR = 0xFFD4F5D0;
+    public static final int DEFAULT_OFF_COLOR = 0xFFBFE6BA;
+    public static final int DEFAULT_ON_COLOR = 0xFF000000;
+    public static final int BAR_GREEN_COLOR = 0xFF00A000;
+    public static final int BAR_YELLOW_COLOR = 0xFFE0B000;
+    public static final int BAR_RED_COLOR = 0xFFE00000;
+
+    private final Path[] segmentPaths = new Path[7];
+    private final float[] dotCenter = new float[2];
+    private float dotRadius = DOT_RADIUS;
+    private final RectF backgroundRect = new RectF();
+    private final Paint backgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint offPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint onPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF[] barBlockRects = new RectF[BAR_BLOCKS];
+    private final Paint[] barBlockPaints = new Paint[BAR_BLOCKS];
+    private final Paint shiftPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private float scale = 1.0f;
+    private int backgroundColor = DEFAULT_BACKGROUND_COLOR;
+    private int tintColor = 0;
+    private int segments = 0;
+    private boolean dot = false;
+    private boolean barEnabled = false;
+    private int barLitBlocks = 0;
+    private boolean barShift = false;
+
+
+    /* Constructor */
+    public SevenSegmentView(Context context) {
+        super(context);
+        for(int i = 0; i < segmentPaths.length; i++) {
+            segmentPaths[i] = new Path();
+        }
+        for(int i = 0; i < BAR_BLOCKS; i++) {
+            barBlockRects[i] = new RectF();
+            barBlockPaints[i] = new Paint(Paint.ANTI_ALIAS_FLAG);
+            barBlockPaints[i].setColor((i < BAR_BLOCKS_GREEN) ? BAR_GREEN_COLOR : (i < BAR_BLOCKS_GREEN + BAR_BLOCKS_YELLOW) ? BAR_YELLOW_COLOR : BAR_RED_COLOR);
+        }
+        shiftPaint.setColor(BAR_RED_COLOR);
+        backgroundPaint.setColor(backgroundColor);
+        offPaint.setColor(DEFAULT_OFF_COLOR);
+        onPaint.setColor(DEFAULT_ON_COLOR);
+    }
+
+
+    /* Show a digit (0 to 9), SYMBOL_MINUS or SYMBOL_EMPTY, with or without decimal point */
+    public void setSymbol(int symbol, boolean dot) {
+        int segments = 0;
+        if(symbol >= 0 && symbol < DIGIT_SEGMENTS.length) {
+            segments = DIGIT_SEGMENTS[symbol];
+        } else if(symbol == SYMBOL_MINUS) {
+            segments = MINUS_SEGMENTS;
+        }
+        if(segments == this.segments && dot == this.dot) {
+            return;
+        }
+        this.segments = segments;
+        this.dot = dot;
+        invalidate();
+    }
+
+
+    /* Colours of lit segments, unlit segments and background */
+    public void setColors(int onColor, int offColor, int backgroundColor) {
+        onPaint.setColor(onColor);
+        offPaint.setColor(offColor);
+        this.backgroundColor = backgroundColor;
+        backgroundPaint.setColor((tintColor != 0) ? tintColor : backgroundColor);
+        invalidate();
+    }
+
+
+    /* Replace the background colour, e.g. to signal an alert, 0 restores the normal background */
+    public void setTintColor(int tintColor) {
+        if(tintColor == this.tintColor) {
+            return;
+        }
+        this.tintColor = tintColor;
+        backgroundPaint.setColor((tintColor != 0) ? tintColor : backgroundColor);
+        invalidate();
+    }
+
+
+    /* Show or hide the RPM bar right of the digit, the view gets wider */
+    public void setBarEnabled(boolean barEnabled) {
+        if(barEnabled == this.barEnabled) {
+            return;
+        }
+        this.barEnabled = barEnabled;
+        requestLayout();
+        invalidate();
+    }
+
+
+    /* Check if the RPM bar is shown */
+    public boolean isBarEnabled() {
+        return barEnabled;
+    }
+
+
+    /* Fill the RPM bar to a level from 0 to 1, all blocks blink once the shift point is reached */
+    public void setBarLevel(float level, boolean shift) {
+        int litBlocks = Math.max(0, Math.min(BAR_BLOCKS, Math.round(level * BAR_BLOCKS)));
+        if(litBlocks == barLitBlocks && shift == barShift) {
+            return;
+        }
+        barLitBlocks = litBlocks;
+        barShift = shift;
+        if(barEnabled) {
+            invalidate();
+        }
+    }
+
+
+    /* Size relative to the original 118 x 145 px digit */
+    public void setScale(float scale) {
+        if(scale == this.scale) {
+            return;
+        }
+        this.scale = scale;
+        requestLayout();
+    }
+
+
+    /* Width in pixels at the current scale */
+    public int getScaledWidth() {
+        return Math.round(getBaseWidth() * scale);
+    }
+
+
+    /* Unscaled width including the RPM bar if shown */
+    private float getBaseWidth() {
+        return barEnabled ? (BASE_WIDTH + BAR_WIDTH) : BASE_WIDTH;
+    }
+
+
+    /* Height in pixels at the current scale */
+    public int getScaledHeight() {
+        return Math.round(BASE_HEIGHT * scale);
+    }
+
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        setMeasuredDimension(resolveSize(getScaledWidth(), widthMeasureSpec), resolveSize(getScaledHeight(), heightMeasureSpec));
+    }
+
+
+    /* Build the segment paths for the new size, slanted like the former assets */
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        float baseWidth = getBaseWidth();
+        float sizeScale = Math.min(width / baseWidth, height / BASE_HEIGHT);
+        float offsetX = (width - baseWidth * sizeScale) / 2;
+        float offsetY = (height - BASE_HEIGHT * sizeScale) / 2;
+        Matrix matrix = new Matrix();
+        matrix.setSkew(SLANT, 0.0f, BASE_WIDTH / 2, BASE_HEIGHT / 2);
+        matrix.postScale(sizeScale, sizeScale);
+        matrix.postTranslate(offsetX, offsetY);
+
+        setHorizontalSegment(segmentPaths[0], DIGIT_TOP);
+        setVerticalSegment(segmentPaths[1], DIGIT_RIGHT, DIGIT_TOP, DIGIT_MIDDLE);
+        setVerticalSegment(segmentPaths[2], DIGIT_RIGHT, DIGIT_MIDDLE, DIGIT_BOTTOM);
+        setHorizontalSegment(segmentPaths[3], DIGIT_BOTTOM);
+        setVerticalSegment(segmentPaths[4], DIGIT_LEFT, DIGIT_MIDDLE, DIGIT_BOTTOM);
+        setVerticalSegment(segmentPaths[5], DIGIT_LEFT, DIGIT_TOP, DIGIT_MIDDLE);
+        setHorizontalSegment(segmentPaths[6], DIGIT_MIDDLE);
+        for(Path segmentPath : segmentPaths) {
+            segmentPath.transform(matrix);
+        }
+        dotCenter[0] = DOT_X;
+        dotCenter[1] = DOT_Y;
+        matrix.mapPoints(dotCenter);
+        dotRadius = DOT_RADIUS * sizeScale;
+        backgroundRect.set(0.0f, 0.0f, width, height);
+
+        /* Bar blocks from bottom to top, between the top and bottom segment of the digit */
+        float blockHeight = (DIGIT_BOTTOM - DIGIT_TOP + SEGMENT_THICKNESS) / BAR_BLOCKS;
+        for(int i = 0; i < BAR_BLOCKS; i++) {
+            float blockBottom = DIGIT_BOTTOM + SEGMENT_THICKNESS / 2 - i * blockHeight;
+            barBlockRects[i].set(offsetX + BAR_LEFT * sizeScale, offsetY + (blockBottom - blockHeight + BAR_BLOCK_GAP) * sizeScale,
+                    offsetX + (BAR_LEFT + BAR_BLOCK_WIDTH) * sizeScale, offsetY + blockBottom * sizeScale);
+        }
+    }
+
+
+    /* Horizontal hexagon segment centred on y */
+    private static void setHorizontalSegment(Path path, float y) {
+        float half = SEGMENT_THICKNESS / 2;
+        float left = DIGIT_LEFT + SEGMENT_GAP;
+        float right = DIGIT_RIGHT - SEGMENT_GAP;
+        path.reset();
+        path.moveTo(left, y);
+        path.lineTo(left + half, y - half);
+        path.lineTo(right - half, y - half);
+        path.lineTo(right, y);
+        path.lineTo(right - half, y + half);
+        path.lineTo(left + half, y + half);
+        path.close();
+    }
+
+
+    /* Vertical hexagon segment centred on x */
+    private static void setVerticalSegment(Path path, float x, float top, float bottom) {
+        float half = SEGMENT_THICKNESS / 2;
+        top += SEGMENT_GAP;
+        bottom -= SEGMENT_GAP;
+        path.reset();
+        path.moveTo(x, top);
+        path.lineTo(x + half, top + half);
+        path.lineTo(x + half, bottom - half);
+        path.lineTo(x, bottom);
+        path.lineTo(x - half, bottom - half);
+        path.lineTo(x - half, top + half);
+        path.close();
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float cornerRadius = CORNER_RADIUS * backgroundRect.height() / BASE_HEIGHT;
+        canvas.drawRoundRect(backgroundRect, cornerRadius, cornerRadius, backgroundPaint);
+        for(int i = 0; i < segmentPaths.length; i++) {
+            canvas.drawPath(segmentPaths[i], ((segments & (1 << i)) != 0) ? onPaint : offPaint);
+        }
+        canvas.drawCircle(dotCenter[0], dotCenter[1], dotRadius, dot ? onPaint : offPaint);
+        if(!barEnabled) {
+            return;
+        }
+        if(barShift) {
+            /* Blink with the display refresh until the shift point is left */
+            boolean shiftOn = ((SystemClock.uptimeMillis() / SHIFT_BLINK_INTERVAL_MS) % 2) == 0;
+            for(RectF barBlockRect : barBlockRects) {
+                canvas.drawRect(barBlockRect, shiftOn ? shiftPaint : offPaint);
+            }
+            postInvalidateOnAnimation();
+        } else {
+            for(int i = 0; i < BAR_BLOCKS; i++) {
+                canvas.drawRect(barBlockRects[i], (i < barLitBlocks) ? barBlockPaints[i] : offPaint);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package de.bananajoh.sv650overlay;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/* Timestamps of the startup phases from process start until the first gear is shown, each phase is recorded once */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    private static final List<String> phases = new ArrayList<>();
+    private static final List<Long> phaseTimesMs = new ArrayList<>();
+
+
+    /* Record the time of a phase relative to process start, repeated marks of the same phase are ignored */
+    public static void mark(String phase) {
+        long timeMs = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        synchronized(phases) {
+            if(phases.contains(phase)) {
+                return;
+            }
+            long previousTimeMs = phaseTimesMs.isEmpty() ? 0 : phaseTimesMs.get(phaseTimesMs.size() - 1);
+            phases.add(phase);
+            phaseTimesMs.add(timeMs);
+            Log.i(TAG, phase + " at " + timeMs + " ms (+" + (timeMs - previousTimeMs) + " ms)");
+        }
+    }
+
+
+    /* Check if a phase has been recorded already */
+    public static boolean isMarked(String phase) {
+        synchronized(phases) {
+            return phases.contains(phase);
+        }
+    }
+
+
+    /* All recorded phases with their time since process start and since the previous phase */
+    public static String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        synchronized(phases) {
+            long previousTimeMs = 0;
+            for(int i = 0; i < phases.size(); i++) {
+                long timeMs = phaseTimesMs.get(i);
+                summary.append(phases.get(i)).append(": ").append(timeMs).append(" ms (+").append(timeMs - previousTimeMs).append(" ms)\n");
+                previousTimeMs = timeMs;
+            }
+        }
+        return summary.toString();
+    }
+}
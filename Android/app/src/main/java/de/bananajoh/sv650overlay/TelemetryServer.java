@@ -0,0 +1,571 @@
+package de.bananajoh.sv650overlay;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/* Small TCP / WebSocket server streaming the frames of the selected device to clients on the local network, e.g. a
+ * laptop in the pits. It listens on loopback unless started on the address of a network interface and serves at most
+ * MAX_CLIENTS connections, further ones are closed right away. Every client has an own bounded queue and sender thread,
+ * the oldest frames of a slow client are dropped, so publishing never blocks the pipeline thread. WebSocket clients also
+ * get a reader thread answering pings and close frames, their data messages are ignored.
+ *
+ * A client starts with one request line:
+ *   "STREAM <raw|decoded> [batch]" for a plain TCP stream
+ *   "GET /<raw|decoded>?batch=<n> HTTP/1.1" plus headers for a WebSocket
+ * Raw records are [receiveTimeNs (8 bytes), length (2 bytes), frame], big endian, sent as binary messages on a
+ * WebSocket. Decoded records are text lines "receiveTimeNs,value,..." of the data frames, preceded by a
+ * "#Channels,label,..." line whenever the profile changes and a "#Dropped,count" line whenever frames had to be
+ * dropped for the client, sent as text messages on a WebSocket. Up to batch records go into one write / message. */
+public class TelemetryServer {
+    public static final int FORMAT_RAW = 0;
+    public static final int FORMAT_DECODED = 1;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_BATCH = 64;
+    private static final long BATCH_TIMEOUT_MS = 50;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int MAX_REQUEST_LINE_LENGTH = 1024;
+    private static final int MAX_CLIENTS = 4;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int port;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    /* Connections accepted and not closed yet, including the ones in the handshake */
+    private final AtomicInteger connections = new AtomicInteger();
+    private ServerSocket serverSocket = null;
+    private Thread acceptThread = null;
+
+
+    /* Constructor, port 0 picks a free port */
+    public TelemetryServer(int port) {
+        this.port = port;
+    }
+
+
+    /* Start listening on loopback, only reachable from this device */
+    public void start() throws IOException {
+        start(InetAddress.getLoopbackAddress());
+    }
+
+
+    /* Start listening on a local address, e.g. the one of the WLAN interface */
+    public synchronized void start(InetAddress bindAddress) throws IOException {
+        if(serverSocket != null) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket(port, 0, bindAddress);
+        serverSocket = socket;
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptClients(socket);
+            }
+        }, "TelemetryServer");
+        acceptThread.start();
+    }
+
+
+    /* Stop listening and disconnect all clients */
+    public synchronized void stop() {
+        if(serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch(IOException ex) {
+            ex.printStackTrace();
+        }
+        try {
+            acceptThread.join();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for(Client client : clients) {
+            client.close();
+        }
+        serverSocket = null;
+        acceptThread = null;
+    }
+
+
+    /* Check if listening */
+    public synchronized boolean isRunning() {
+        return serverSocket != null;
+    }
+
+
+    /* Address listening on, null if not running */
+    public synchronized InetAddress getBindAddress() {
+        return (serverSocket != null) ? serverSocket.getInetAddress() : null;
+    }
+
+
+    /* Port listening on, -1 if not running */
+    public synchronized int getPort() {
+        return (serverSocket != null) ? serverSocket.getLocalPort() : -1;
+    }
+
+
+    /* Number of clients currently streaming */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+
+    /* Queue a frame for all clients, every client retains it until sent or dropped. Called on the pipeline thread, never
+     * blocks on the network. */
+    public void publish(SensorFrame frame) {
+        for(Client client : clients) {
+            client.offer(frame);
+        }
+    }
+
+
+    /* Site local IPv4 addresses of this device, to tell the user where to connect to */
+    public static List<String> getLocalAddresses() {
+        List<String> addresses = new ArrayList<>();
+        try {
+            for(NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                for(InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if(address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                        addresses.add(address.getHostAddress());
+                    }
+                }
+            }
+        } catch(IOException | NullPointerException ex) {
+            ex.printStackTrace();
+        }
+        return addresses;
+    }
+
+
+    /* Accept loop, every client gets an own thread for the handshake and sending, clients beyond MAX_CLIENTS are closed */
+    private void acceptClients(ServerSocket socket) {
+        while(!socket.isClosed()) {
+            try {
+                Socket clientSocket = socket.accept();
+                if(connections.incrementAndGet() > MAX_CLIENTS) {
+                    connections.decrementAndGet();
+                    clientSocket.close();
+                    continue;
+                }
+                clientSocket.setTcpNoDelay(true);
+                new Thread(new Client(clientSocket), "TelemetryClient").start();
+            } catch(IOException ex) {
+                /* Socket closed by stop() */
+            }
+        }
+    }
+
+
+    /* Connection to one client */
+    private class Client implements Runnable {
+        private final Socket socket;
+        private final ArrayDeque<SensorFrame> queue = new ArrayDeque<>(QUEUE_CAPACITY);
+        /* Shared by the sender and the reader thread, writes are synchronized on it */
+        private OutputStream out = null;
+        private int format = FORMAT_RAW;
+        private int batch = 1;
+        private boolean webSocket = false;
+        private boolean closed = false;
+        private long droppedFrames = 0;
+        private long reportedDroppedFrames = 0;
+        private DecodePlan sentPlan = null;
+
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+
+
+        /* Queue a frame, the oldest frame is dropped when full */
+        void offer(SensorFrame frame) {
+            SensorFrame dropped = null;
+            synchronized(this) {
+                if(closed) {
+                    return;
+                }
+                if(queue.size() == QUEUE_CAPACITY) {
+                    dropped = queue.poll();
+                    droppedFrames++;
+                }
+                queue.add(frame.retain());
+                if(queue.size() == 1 || queue.size() == batch) {
+                    notify();
+                }
+            }
+            if(dropped != null) {
+                dropped.release();
+            }
+        }
+
+
+        /* Number of frames dropped because the client did not keep up */
+        synchronized long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+
+        /* Disconnect, wakes up the sender and releases the queued frames */
+        void close() {
+            synchronized(this) {
+                closed = true;
+                for(SensorFrame frame : queue) {
+                    frame.release();
+                }
+                queue.clear();
+                notify();
+            }
+            try {
+                socket.close();
+            } catch(IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+
+        /* Handshake, then send batches until the client is gone */
+        @Override
+        public void run() {
+            try {
+                out = new BufferedOutputStream(socket.getOutputStream());
+                final InputStream in = socket.getInputStream();
+                if(!handshake(in, out)) {
+                    return;
+                }
+                clients.add(this);
+                if(!isRunning()) {
+                    return;
+                }
+                if(webSocket) {
+                    new Thread(new Runnable() {
+                        public void run() {
+                            readWebSocketFrames(new DataInputStream(in));
+                        }
+                    }, "TelemetryClientReader").start();
+                }
+                List<SensorFrame> frames = new ArrayList<>(batch);
+                while(takeBatch(frames)) {
+                    try {
+                        send(out, frames);
+                    } finally {
+                        for(SensorFrame frame : frames) {
+                            frame.release();
+                        }
+                        frames.clear();
+                    }
+                }
+            } catch(IOException ex) {
+                /* Client gone */
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                clients.remove(this);
+                close();
+                connections.decrementAndGet();
+            }
+        }
+
+
+        /* Answer the control frames of a WebSocket client until it closes or is gone, client frames are always masked */
+        private void readWebSocketFrames(DataInputStream in) {
+            try {
+                while(true) {
+                    int opcode = in.readUnsignedByte() & 0x0F;
+                    int second = in.readUnsignedByte();
+                    long length = second & 0x7F;
+                    if(length == 126) {
+                        length = in.readUnsignedShort();
+                    } else if(length == 127) {
+                        length = in.readLong();
+                    }
+                    boolean control = (opcode & 0x8) != 0;
+                    if((second & 0x80) == 0 || length < 0 || (control && length > MAX_CONTROL_PAYLOAD)) {
+                        /* Protocol error */
+                        break;
+                    }
+                    byte[] mask = new byte[4];
+                    in.readFully(mask);
+                    if(!control) {
+                        /* Data messages of the client are not used */
+                        skipFully(in, length);
+                        continue;
+                    }
+                    byte[] payload = new byte[(int) length];
+                    in.readFully(payload);
+                    for(int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i & 3];
+                    }
+                    if(opcode == OPCODE_CLOSE) {
+                        /* Echo the status code and close */
+                        writeControlFrame(OPCODE_CLOSE, payload, Math.min(payload.length, 2));
+                        break;
+                    } else if(opcode == OPCODE_PING) {
+                        writeControlFrame(OPCODE_PONG, payload, payload.length);
+                    }
+                }
+            } catch(IOException ex) {
+                /* Client gone or closed */
+            }
+            close();
+        }
+
+
+        /* Send a control frame, in between the messages of the sender thread */
+        private void writeControlFrame(int opcode, byte[] payload, int length) throws IOException {
+            synchronized(out) {
+                writeWebSocketHeader(out, opcode, length);
+                out.write(payload, 0, length);
+                out.flush();
+            }
+        }
+
+
+        /* Parse the request line of a plain stream or the HTTP request of a WebSocket and answer it */
+        private boolean handshake(InputStream in, OutputStream out) throws IOException {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            String requestLine = readLine(in);
+            if(requestLine == null) {
+                return false;
+            }
+            String[] parts = requestLine.trim().split("\\s+");
+            if(parts.length >= 2 && parts[0].equals("STREAM")) {
+                format = parseFormat(parts[1]);
+                batch = (parts.length >= 3) ? parseBatch(parts[2]) : 1;
+            } else if(parts.length >= 2 && parts[0].equals("GET")) {
+                String key = null;
+                String line;
+                while((line = readLine(in)) != null && !line.isEmpty()) {
+                    int separator = line.indexOf(':');
+                    if(separator > 0 && line.substring(0, separator).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                        key = line.substring(separator + 1).trim();
+                    }
+                }
+                if(key == null) {
+                    out.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+                    out.flush();
+                    return false;
+                }
+                String path = parts[1];
+                int query = path.indexOf('?');
+                format = parseFormat(path.substring(path.startsWith("/") ? 1 : 0, (query < 0) ? path.length() : query));
+                if(query >= 0) {
+                    for(String parameter : path.substring(query + 1).split("&")) {
+                        if(parameter.startsWith("batch=")) {
+                            batch = parseBatch(parameter.substring(6));
+                        }
+                    }
+                }
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: "
+                        + webSocketAccept(key) + "\r\n\r\n").getBytes(ASCII));
+                out.flush();
+                webSocket = true;
+            } else {
+                return false;
+            }
+            socket.setSoTimeout(0);
+            return true;
+        }
+
+
+        /* Wait for the first frame, then up to BATCH_TIMEOUT_MS for the batch to fill, returns false when closed */
+        private synchronized boolean takeBatch(List<SensorFrame> frames) throws InterruptedException {
+            while(queue.isEmpty() && !closed) {
+                wait();
+            }
+            long deadlineMs = System.currentTimeMillis() + BATCH_TIMEOUT_MS;
+            long remainingMs;
+            while(queue.size() < batch && !closed && (remainingMs = deadlineMs - System.currentTimeMillis()) > 0) {
+                wait(remainingMs);
+            }
+            if(closed) {
+                return false;
+            }
+            for(int i = 0; i < batch && !queue.isEmpty(); i++) {
+                frames.add(queue.poll());
+            }
+            return true;
+        }
+
+
+        /* Encode and send a batch of frames in one write */
+        private void send(OutputStream out, List<SensorFrame> frames) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            if(format == FORMAT_RAW) {
+                for(SensorFrame frame : frames) {
+                    for(int shift = 56; shift >= 0; shift -= 8) {
+                        payload.write((int) (frame.receiveTimeNs >>> shift));
+                    }
+                    payload.write(frame.data.length >>> 8);
+                    payload.write(frame.data.length);
+                    payload.write(frame.data, 0, frame.data.length);
+                }
+            } else {
+                StringBuilder lines = new StringBuilder();
+                long dropped = getDroppedFrames();
+                if(dropped != reportedDroppedFrames) {
+                    reportedDroppedFrames = dropped;
+                    lines.append("#Dropped,").append(dropped).append('\n');
+                }
+                for(SensorFrame frame : frames) {
+                    appendDecoded(lines, frame);
+                }
+                if(lines.length() == 0) {
+                    return;
+                }
+                byte[] text = lines.toString().getBytes(UTF8);
+                payload.write(text, 0, text.length);
+            }
+            synchronized(out) {
+                if(webSocket) {
+                    writeWebSocketHeader(out, (format == FORMAT_RAW) ? 0x2 : 0x1, payload.size());
+                }
+                payload.writeTo(out);
+                out.flush();
+            }
+        }
+
+
+        /* Append the line of the values of a data frame as decoded on the pipeline thread, with the channel line of its plan
+         * first if the plan changed */
+        private void appendDecoded(StringBuilder lines, SensorFrame frame) {
+            if(!frame.isData()) {
+                return;
+            }
+            DecodePlan plan = frame.plan;
+            if(plan != sentPlan) {
+                sentPlan = plan;
+                lines.append("#Channels");
+                for(int channel = 0; channel < plan.channelCount; channel++) {
+                    lines.append(',').append(plan.getLabel(channel));
+                }
+                lines.append('\n');
+            }
+            lines.append(frame.receiveTimeNs);
+            for(int channel = 0; channel < frame.channelCount; channel++) {
+                lines.append(',').append(frame.plan.format(channel, frame.values[channel]));
+            }
+            lines.append('\n');
+        }
+    }
+
+
+    /* Format name out of a request, raw unless decoded is asked for */
+    private static int parseFormat(String name) {
+        return name.equalsIgnoreCase("decoded") ? FORMAT_DECODED : FORMAT_RAW;
+    }
+
+
+    /* Batch size out of a request, limited to 1..MAX_BATCH */
+    private static int parseBatch(String value) {
+        try {
+            return Math.max(1, Math.min(MAX_BATCH, Integer.parseInt(value)));
+        } catch(NumberFormatException ex) {
+            return 1;
+        }
+    }
+
+
+    /* Skip a number of bytes of a stream */
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while(count > 0) {
+            long skipped = in.skip(count);
+            if(skipped <= 0) {
+                if(in.read() == -1) {
+                    throw new IOException("End of stream");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+
+    /* Read a CRLF or LF terminated ASCII line, null at the end of the stream or if it is too long */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while((c = in.read()) != -1 && c != '\n') {
+            if(line.length() == MAX_REQUEST_LINE_LENGTH) {
+                return null;
+            }
+            if(c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return (c == -1 && line.length() == 0) ? null : line.toString();
+    }
+
+
+    /* Unmasked server to client WebSocket frame header with FIN set */
+    private static void writeWebSocketHeader(OutputStream out, int opcode, int length) throws IOException {
+        out.write(0x80 | opcode);
+        if(length < 126) {
+            out.write(length);
+        } else if(length < 65536) {
+            out.write(126);
+            out.write(length >>> 8);
+            out.write(length);
+        } else {
+            out.write(127);
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) length >>> shift));
+            }
+        }
+    }
+
+
+    /* Sec-WebSocket-Accept value for a client key */
+    private static String webSocketAccept(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(ASCII));
+            return base64(digest);
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /* Standard base64 with padding, java.util.Base64 needs API 26 and android.util.Base64 is not there in unit tests */
+    private static String base64(byte[] data) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder encoded = new StringBuilder();
+        for(int i = 0; i < data.length; i += 3) {
+            int remaining = data.length - i;
+            int bits = (data[i] & 0xFF) << 16;
+            if(remaining > 1) {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            if(remaining > 2) {
+                bits |= data[i + 2] & 0xFF;
+            }
+            encoded.append(alphabet.charAt((bits >> 18) & 0x3F));
+            encoded.append(alphabet.charAt((bits >> 12) & 0x3F));
+            encoded.append((remaining > 1) ? alphabet.charAt((bits >> 6) & 0x3F) : '=');
+            encoded.append((remaining > 2) ? alphabet.charAt(bits & 0x3F) : '=');
+        }
+        return encoded.toString();
+    }
+}
@@ -0,0 +1,142 @@
+package de.bananajoh.sv650overlay;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+
+/* Cells of the value grid, a label and a value each. The cells are only rebuilt when the channel layout changes, new
+ * values are written into the text views of the cells whose shown text changed, so updating at display refresh does not
+ * lay out the whole grid again. */
+public class ValueGridAdapter extends BaseAdapter {
+    private final LayoutInflater inflater;
+
+    private DecodePlan plan = null;
+    private String[] labels = new String[0];
+    private String[] units = new String[0];
+    /* Value last formatted and text shown per position, and the holder of the view bound to it */
+    private float[] shownValues = new float[0];
+    private String[] shownTexts = new String[0];
+    private CellHolder[] cellHolders = new CellHolder[0];
+
+
+    /* Views of one cell, position is the one it is currently bound to */
+    private static class CellHolder {
+        TextView label;
+        TextView value;
+        int position;
+    }
+
+
+    /* Constructor */
+    public ValueGridAdapter(Context context) {
+        inflater = LayoutInflater.from(context);
+    }
+
+
+    /* Forget the layout and empty the grid, the next values rebuild it */
+    public void clear() {
+        plan = null;
+        setCount(0);
+        notifyDataSetChanged();
+    }
+
+
+    /* Show the values of a frame decoded with the given plan, count being the number of valid values */
+    public void showValues(DecodePlan plan, float[] values, int count) {
+        if(plan != this.plan) {
+            setLayout(plan);
+        }
+        for(int pos = 0; pos < labels.length; pos++) {
+            int channel = plan.displayChannels[pos];
+            if(channel < 0 || channel >= count) {
+                updateCell(pos, "");
+            } else if(Float.floatToIntBits(values[channel]) != Float.floatToIntBits(shownValues[pos]) || shownTexts[pos].isEmpty()) {
+                shownValues[pos] = values[channel];
+                updateCell(pos, plan.format(channel, values[channel]) + units[pos]);
+            }
+        }
+    }
+
+
+    /* Take the labels of a new channel layout and rebuild the grid */
+    private void setLayout(DecodePlan plan) {
+        this.plan = plan;
+        setCount(plan.displayChannels.length);
+        for(int pos = 0; pos < labels.length; pos++) {
+            int channel = plan.displayChannels[pos];
+            boolean shown = (channel >= 0);
+            labels[pos] = shown ? plan.entries[channel].label : "";
+            units[pos] = shown ? plan.entries[channel].unit : "";
+        }
+        notifyDataSetChanged();
+    }
+
+
+    /* Allocate the per position arrays */
+    private void setCount(int count) {
+        labels = new String[count];
+        units = new String[count];
+        shownValues = new float[count];
+        shownTexts = new String[count];
+        cellHolders = new CellHolder[count];
+        for(int pos = 0; pos < count; pos++) {
+            shownValues[pos] = Float.NaN;
+            shownTexts[pos] = "";
+        }
+    }
+
+
+    /* Set the value text of a cell if it changed, cells not bound to a view get it when they are */
+    private void updateCell(int pos, String text) {
+        if(text.equals(shownTexts[pos])) {
+            return;
+        }
+        shownTexts[pos] = text;
+        CellHolder holder = cellHolders[pos];
+        if(holder != null && holder.position == pos) {
+            holder.value.setText(text);
+        }
+    }
+
+
+    @Override
+    public int getCount() {
+        return labels.length;
+    }
+
+
+    @Override
+    public Object getItem(int position) {
+        return shownTexts[position];
+    }
+
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        CellHolder holder;
+        if(convertView == null) {
+            convertView = inflater.inflate(R.layout.grid_view_entry, parent, false);
+            holder = new CellHolder();
+            holder.label = convertView.findViewById(R.id.grid_view_entry_label);
+            holder.value = convertView.findViewById(R.id.grid_view_entry_value);
+            convertView.setTag(holder);
+        } else {
+            holder = (CellHolder) convertView.getTag();
+        }
+        holder.position = position;
+        cellHolders[position] = holder;
+        holder.label.setText(labels[position]);
+        holder.value.setText(shownTexts[position]);
+        return convertView;
+    }
+}
@@ -0,0 +1,122 @@
+package de.bananajoh.sv650overlay;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the alert rules as evaluated on decoded frames: thresholds, minimum durations, hysteresis, raw 0 of zero-is-zero
+ * channels and rules on derived channels.
+ */
+public class AlertEngineTest {
+    private static final long ECT_HOT = 1L;
+    private static final long BATT_LOW = 1L << 1;
+    private static final long DOUBLE_LOW = 1L << 2;
+
+    private DecodePlan plan;
+    private DecodePlan.DerivedState derivedState;
+    private AlertEngine alertEngine;
+
+
+    /* Payload channels ECT 1:1 and BATT in 0.1 V with raw 0 as no reading, derived channel DOUBLE = ECT * 2 */
+    @Before
+    public void setUp() throws ParseException {
+        DataInfoEntry[] entries = new DataInfoEntry[3];
+        entries[0] = new DataInfoEntry("ECT", "C", -1);
+        entries[1] = new DataInfoEntry("BATT", "V", -1);
+        entries[1].div = 10;
+        entries[1].decimals = 1;
+        entries[1].zeroIsZero = true;
+        entries[2] = new DataInfoEntry("DOUBLE", "", -1);
+        entries[2].expression = ChannelExpression.compile("ECT * 2", entries, 2);
+        plan = new DecodePlan(entries, 4, -1);
+        derivedState = plan.newDerivedState();
+
+        AlertRule ectHot = new AlertRule("ECT", true, 100.0f, 0xFFFF0000);
+        ectHot.channel = 0;
+        ectHot.hysteresis = 5.0f;
+        AlertRule battLow = new AlertRule("BATT", false, 12.0f, 0xFFFFA000);
+        battLow.channel = 1;
+        battLow.hysteresis = 0.3f;
+        battLow.minDurationMs = 5000;
+        AlertRule doubleLow = new AlertRule("DOUBLE", false, 20.0f, 0xFFFF00FF);
+        doubleLow.channel = 2;
+        doubleLow.hysteresis = 4.0f;
+        doubleLow.blink = true;
+        alertEngine = new AlertEngine(plan, new AlertRule[] { ectHot, battLow, doubleLow });
+    }
+
+
+    /* Evaluate a data frame with raw ECT and BATT values */
+    private long evaluate(int ect, int batt, long nowMs) {
+        SensorFrame frame = SensorFrame.obtain(null, new byte[] { SensorFrame.TYPE_DATA, 4, (byte) ect, (byte) batt }, nowMs * 1000000, derivedState);
+        try {
+            return alertEngine.evaluate(frame, nowMs);
+        } finally {
+            frame.release();
+        }
+    }
+
+
+    @Test
+    public void thresholdFiresAfterMinimumDuration() {
+        assertEquals(0, evaluate(20, 125, 0));
+        assertEquals(0, evaluate(20, 115, 1000));
+        assertEquals(0, evaluate(20, 115, 5999));
+        assertEquals(BATT_LOW, evaluate(20, 115, 6000));
+        assertEquals(0xFFFFA000, alertEngine.getColor(BATT_LOW));
+        assertFalse(alertEngine.isBlinking(BATT_LOW));
+
+        /* Exactly at the threshold is not exceeded */
+        alertEngine.reset();
+        assertEquals(0, evaluate(100, 125, 7000));
+        assertEquals(ECT_HOT, evaluate(101, 125, 7001));
+    }
+
+
+    @Test
+    public void hysteresisHoldsTheAlertUntilClearlyBack() {
+        assertEquals(ECT_HOT, evaluate(101, 125, 0));
+        assertEquals(ECT_HOT, evaluate(99, 125, 100));
+        assertEquals(ECT_HOT, evaluate(96, 125, 200));
+        assertEquals(0, evaluate(95, 125, 300));
+        /* Below the threshold again, a new excess fires again */
+        assertEquals(0, evaluate(100, 125, 400));
+        assertEquals(ECT_HOT, evaluate(101, 125, 500));
+    }
+
+
+    @Test
+    public void zeroIsNoReading() {
+        /* No voltage reported yet never raises the battery alert */
+        for(long nowMs = 0; nowMs <= 10000; nowMs += 1000) {
+            assertEquals(0, evaluate(20, 0, nowMs));
+        }
+
+        /* Nor does it clear a pending or firing one */
+        assertEquals(0, evaluate(20, 115, 11000));
+        assertEquals(0, evaluate(20, 0, 13000));
+        assertEquals(BATT_LOW, evaluate(20, 0, 16000));
+        assertEquals(BATT_LOW, evaluate(20, 122, 17000));
+        assertEquals(0, evaluate(20, 123, 18000));
+    }
+
+
+    @Test
+    public void derivedChannelRules() {
+        assertEquals(0, evaluate(10, 125, 0));
+        assertEquals(DOUBLE_LOW, evaluate(9, 125, 100));
+        assertTrue(alertEngine.isBlinking(DOUBLE_LOW));
+        assertEquals(DOUBLE_LOW, evaluate(11, 125, 200));
+        assertEquals(0, evaluate(12, 125, 300));
+
+        /* Together with a payload channel rule the first rule gives the colour */
+        assertEquals(DOUBLE_LOW, evaluate(9, 115, 1000));
+        assertEquals(BATT_LOW | DOUBLE_LOW, evaluate(9, 115, 6000));
+        assertEquals(0xFFFFA000, alertEngine.getColor(BATT_LOW | DOUBLE_LOW));
+    }
+}
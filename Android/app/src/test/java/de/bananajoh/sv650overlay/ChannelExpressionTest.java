@@ -0,0 +1,95 @@
+package de.bananajoh.sv650overlay;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the derived channel expressions, compiled against a small channel layout and computed by a decode plan.
+ */
+public class ChannelExpressionTest {
+    private static final float DELTA = 1e-4f;
+
+
+    /* Payload channels A, B and RPM converted 1:1 */
+    private static DataInfoEntry[] createEntries(int derivedCount) {
+        DataInfoEntry[] entries = new DataInfoEntry[3 + derivedCount];
+        entries[0] = new DataInfoEntry("A", "", -1);
+        entries[1] = new DataInfoEntry("B", "", -1);
+        entries[2] = new DataInfoEntry("RPM", "rpm", -1);
+        return entries;
+    }
+
+
+    /* Evaluate a stateless expression on fixed channel values */
+    private static float evaluate(String text, float... values) throws ParseException {
+        DataInfoEntry[] entries = createEntries(0);
+        ChannelExpression expression = ChannelExpression.compile(text, entries, entries.length);
+        return expression.evaluate(values, new float[ChannelExpression.MAX_STACK_DEPTH], new float[expression.stateSize], 0, 0.0f, true);
+    }
+
+
+    @Test
+    public void arithmeticFollowsPrecedence() throws Exception {
+        assertEquals(14.0f, evaluate("A + B * 3", 2.0f, 4.0f, 0.0f), DELTA);
+        assertEquals(18.0f, evaluate("(A + B) * 3", 2.0f, 4.0f, 0.0f), DELTA);
+        assertEquals(-2.0f, evaluate("A - B", 2.0f, 4.0f, 0.0f), DELTA);
+        assertEquals(6.0f, evaluate("-A - -B * 2", 2.0f, 4.0f, 0.0f), DELTA);
+        assertEquals(0.5f, evaluate("A / B", 2.0f, 4.0f, 0.0f), DELTA);
+        assertEquals(2.0f, evaluate("abs(A - B)", 2.0f, 4.0f, 0.0f), DELTA);
+        assertEquals(4.0f, evaluate("max(A, min(B, 10.5))", 2.0f, 4.0f, 0.0f), DELTA);
+        assertEquals(50.0f, evaluate("A * RPM / 1200", 10.0f, 0.0f, 6000.0f), DELTA);
+    }
+
+
+    @Test
+    public void invalidExpressionsReportPosition() {
+        String[] invalid = { "A +", "C * 2", "foo(A)", "min(A)", "(A", "A B", "1.2.3" };
+        int[] positions = { 3, 0, 0, 5, 2, 2, 0 };
+        for(int i = 0; i < invalid.length; i++) {
+            try {
+                evaluate(invalid[i], 0.0f, 0.0f, 0.0f);
+                fail("Accepted " + invalid[i]);
+            } catch(ParseException e) {
+                assertEquals(invalid[i], positions[i], e.getErrorOffset());
+            }
+        }
+    }
+
+
+    @Test
+    public void planComputesRatesAndFiltersPerStream() throws Exception {
+        DataInfoEntry[] entries = createEntries(2);
+        entries[3] = new DataInfoEntry("ARATE", "", -1);
+        entries[3].expression = ChannelExpression.compile("rate(A)", entries, 3);
+        entries[4] = new DataInfoEntry("ASMOOTH", "", -1);
+        entries[4].expression = ChannelExpression.compile("smooth(ARATE, 0.1)", entries, 4);
+        DecodePlan plan = new DecodePlan(entries, 5, -1);
+        assertEquals(3, plan.payloadChannelCount);
+        assertEquals(5, plan.channelCount);
+
+        DecodePlan.DerivedState state = plan.newDerivedState();
+        float[] values = new float[plan.channelCount];
+        values[0] = 10.0f;
+        assertEquals(5, plan.derive(values, 3, 1000000000L, state));
+        assertEquals(0.0f, values[3], DELTA);
+        assertEquals(0.0f, values[4], DELTA);
+
+        /* 20 units in 100 ms, filtered with one time constant */
+        values[0] = 30.0f;
+        plan.derive(values, 3, 1100000000L, state);
+        assertEquals(200.0f, values[3], DELTA);
+        assertEquals(200.0f * (1.0f - (float) Math.exp(-1.0)), values[4], 0.01f);
+
+        /* Another stream starts over */
+        DecodePlan.DerivedState otherState = plan.newDerivedState();
+        plan.derive(values, 3, 1200000000L, otherState);
+        assertEquals(0.0f, values[3], DELTA);
+
+        /* Incomplete frames get no derived channels */
+        assertEquals(2, plan.derive(values, 2, 1300000000L, state));
+    }
+}
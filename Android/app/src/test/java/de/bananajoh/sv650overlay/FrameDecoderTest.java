@@ -0,0 +1,85 @@
+package de.bananajoh.sv650overlay;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the frame reassembly: frames split over chunks and resynchronization after bytes no frame of the protocol
+ * version in use can start with.
+ */
+public class FrameDecoderTest {
+    private final List<byte[]> frames = new ArrayList<>();
+    private FrameDecoder decoder;
+
+
+    @Before
+    public void setUp() {
+        decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            public void onFrame(byte[] frame, long receiveTimeNs) {
+                frames.add(frame);
+            }
+        });
+    }
+
+
+    /* Feed the given bytes as one chunk */
+    private void feed(int... bytes) {
+        byte[] chunk = new byte[bytes.length];
+        for(int i = 0; i < bytes.length; i++) {
+            chunk[i] = (byte) bytes[i];
+        }
+        decoder.feed(chunk, 0);
+    }
+
+
+    @Test
+    public void framesSplitOverChunks() {
+        feed(0x01, 5, 10);
+        feed(11, 12, 0x02, 3);
+        feed(65);
+        assertEquals(2, frames.size());
+        assertArrayEquals(new byte[] { 0x01, 5, 10, 11, 12 }, frames.get(0));
+        assertArrayEquals(new byte[] { 0x02, 3, 65 }, frames.get(1));
+        assertEquals(0, decoder.getDroppedBytes());
+    }
+
+
+    @Test
+    public void invalidTypesAreSkipped() {
+        feed(0x00, 0x7F, 0x05, 0x01, 3, 42);
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[] { 0x01, 3, 42 }, frames.get(0));
+        assertEquals(3, decoder.getDroppedBytes());
+    }
+
+
+    @Test
+    public void framesOfNewerProtocolVersionsAreInvalid() {
+        decoder.setProtocolVersion(DeviceSession.PROTOCOL_VERSION_FULL);
+        feed(0x03, 0x81, 0x01, 3, 9);
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[] { 0x01, 3, 9 }, frames.get(0));
+        assertEquals(2, decoder.getDroppedBytes());
+
+        decoder.setProtocolVersion(DeviceSession.PROTOCOL_VERSION_SEQUENCE);
+        feed(0x83, 5, 1, 0x01, 7);
+        assertEquals(2, frames.size());
+        assertArrayEquals(new byte[] { (byte) 0x83, 5, 1, 0x01, 7 }, frames.get(1));
+    }
+
+
+    @Test
+    public void tooShortLengthsResynchronize() {
+        /* A sequenced frame needs type, length, sequence number and payload */
+        feed(0x81, 3, 0x01, 2, 0x01, 3, 5);
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[] { 0x01, 3, 5 }, frames.get(0));
+        assertEquals(4, decoder.getDroppedBytes());
+    }
+}
@@ -0,0 +1,101 @@
+package de.bananajoh.sv650overlay;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.bananajoh.sv650overlay.livefeed.LiveFeed;
+import de.bananajoh.sv650overlay.livefeed.LiveFeedReader;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the live feed sequence lock with a publisher and a reader running concurrently on one region.
+ */
+public class LiveFeedTest {
+    private static final int FRAME_LENGTH = 64;
+    private static final int FRAMES = 200000;
+
+    private DecodePlan plan;
+
+
+    @Before
+    public void setUp() {
+        DataInfoEntry[] entries = new DataInfoEntry[FRAME_LENGTH - DecodePlan.PAYLOAD_OFFSET];
+        for(int i = 0; i < entries.length; i++) {
+            entries[i] = new DataInfoEntry(Integer.toString(i), "", -1);
+        }
+        plan = new DecodePlan(entries, FRAME_LENGTH, -1);
+    }
+
+
+    /* Every snapshot has to come from one frame: all payload bytes and values equal the low byte of its frame count */
+    @Test
+    public void readerNeverSeesTornFrames() throws Exception {
+        ByteBuffer region = ByteBuffer.allocateDirect(LiveFeed.REGION_SIZE);
+        final LiveFeedPublisher publisher = new LiveFeedPublisher(region);
+        publisher.setActive(true);
+        final LiveFeedReader reader = new LiveFeedReader(region);
+        assertTrue(reader.isValid());
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final long[] readerResults = new long[2];
+        final String[] tornSnapshot = new String[1];
+        Thread readerThread = new Thread(new Runnable() {
+            public void run() {
+                LiveFeedReader.Snapshot snapshot = new LiveFeedReader.Snapshot();
+                long reads = 0;
+                long lastFrameCount = 0;
+                while(!done.get() && tornSnapshot[0] == null) {
+                    if(!reader.read(snapshot)) {
+                        continue;
+                    }
+                    reads++;
+                    int expected = (int) (snapshot.frameCount & 0xFF);
+                    if(snapshot.frameCount < lastFrameCount || snapshot.frameLength != FRAME_LENGTH || snapshot.channelCount != FRAME_LENGTH - DecodePlan.PAYLOAD_OFFSET) {
+                        tornSnapshot[0] = "Frame " + snapshot.frameCount + " after " + lastFrameCount + ", length " + snapshot.frameLength;
+                    }
+                    for(int i = DecodePlan.PAYLOAD_OFFSET; i < snapshot.frameLength && tornSnapshot[0] == null; i++) {
+                        if((snapshot.frame[i] & 0xFF) != expected) {
+                            tornSnapshot[0] = "Frame " + snapshot.frameCount + " has byte " + (snapshot.frame[i] & 0xFF) + " at " + i;
+                        }
+                    }
+                    for(int channel = 0; channel < snapshot.channelCount && tornSnapshot[0] == null; channel++) {
+                        if(snapshot.values[channel] != expected) {
+                            tornSnapshot[0] = "Frame " + snapshot.frameCount + " has value " + snapshot.values[channel] + " in channel " + channel;
+                        }
+                    }
+                    lastFrameCount = snapshot.frameCount;
+                }
+                readerResults[0] = reads;
+                readerResults[1] = lastFrameCount;
+            }
+        });
+        readerThread.start();
+
+        DecodePlan.DerivedState derivedState = plan.newDerivedState();
+        for(int count = 1; count <= FRAMES && tornSnapshot[0] == null; count++) {
+            byte[] data = new byte[FRAME_LENGTH];
+            data[0] = SensorFrame.TYPE_DATA;
+            data[1] = FRAME_LENGTH;
+            for(int i = DecodePlan.PAYLOAD_OFFSET; i < FRAME_LENGTH; i++) {
+                data[i] = (byte) count;
+            }
+            SensorFrame frame = SensorFrame.obtain(null, data, count, derivedState);
+            publisher.publish(frame);
+            frame.release();
+        }
+        done.set(true);
+        readerThread.join();
+
+        assertNull(tornSnapshot[0], tornSnapshot[0]);
+        assertTrue("Reader got no snapshot", readerResults[0] > 0);
+        assertTrue(readerResults[1] <= FRAMES);
+        String[] labels = reader.getLabels();
+        assertEquals(FRAME_LENGTH - DecodePlan.PAYLOAD_OFFSET, labels.length);
+        assertEquals("0", labels[0]);
+    }
+}
@@ -0,0 +1,326 @@
+package de.bananajoh.sv650overlay;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Soak test of the receive -> decode -> log -> broadcast pipeline of a device session on a plain JVM, fed by the ride
+ * simulator through DeviceSession.startSimulation() at a high frame rate. The simulated frames are sent as protocol
+ * version 3 keyframes and delta frames, with some frames dropped to exercise the gap handling, so they take the same path
+ * through FrameDecoder, FrameSequencer and SessionLogger as frames received over Bluetooth. Every frame coming out of the
+ * session has to match a frame sent, in order. Heap after GC, thread count, open file handles and the backlog of the
+ * pipeline and main thread are sampled once per second. The test fails if the heap after GC grows by more than a fixed
+ * margin between the second and the last quarter of the run, if threads or file handles are left over, or if the
+ * pipeline falls behind the frame rate.
+ *
+ * The test is skipped in ordinary test runs, a soak is started with
+ * ./gradlew testDebugUnitTest --tests '*PipelineSoakTest' -Dsoak.durationSeconds=3600 -Dsoak.framesPerSecond=5000
+ */
+public class PipelineSoakTest {
+    private static final int FRAME_LENGTH = 59;
+    private static final int GEAR_OFFSET = 28;
+    private static final int KEYFRAME_INTERVAL = 20;
+    private static final double DROP_PROBABILITY = 0.001;
+    private static final long HEAP_GROWTH_LIMIT_BYTES = 8L * 1024 * 1024;
+    private static final int BACKLOG_LIMIT_FRAMES = 10000;
+    private static final double MIN_RATE_FRACTION = 0.9;
+
+    private DecodePlan savedPlan;
+    private final AtomicLong loggedFrames = new AtomicLong();
+    private final AtomicLong shownFrames = new AtomicLong();
+    /* Frames sent and not yet received, frames of the sent ones which never came out, pipeline thread only */
+    private final ConcurrentLinkedQueue<byte[]> sentFrames = new ConcurrentLinkedQueue<>();
+    private long skippedFrames = 0;
+    private String mismatch = null;
+    private volatile File closedLogFile = null;
+
+
+    /* One sample of the resource usage */
+    private static class Sample {
+        long heapBytes;
+        int threads;
+        int openFiles;
+        int backlog;
+    }
+
+
+    /* Ride simulator sending its frames the way the firmware does with protocol version 3, as complete wire frames */
+    private class WireSimulator extends RideSimulator {
+        private final Random random = new Random(1);
+        private byte[] previousFrame = null;
+        private int sequence = 0;
+        long sentFrameCount = 0;
+
+        WireSimulator(DecodePlan plan, DataInfoEntry[] entries) {
+            super(plan, entries, 1);
+        }
+
+        @Override
+        public byte[] nextFrame(long dtMs) {
+            byte[] frame = super.nextFrame(dtMs);
+            if(sentFrameCount % KEYFRAME_INTERVAL == 0) {
+                previousFrame = null;
+            }
+            /* The firmware takes every frame sent as reference for the next delta, whether it arrives or not */
+            byte[] wire = encode(frame, previousFrame, sequence);
+            previousFrame = frame;
+            sequence = (sequence + 1) & 0xFF;
+            sentFrameCount++;
+            sentFrames.add(frame);
+            if(random.nextDouble() < DROP_PROBABILITY) {
+                return new byte[0];
+            }
+            return wire;
+        }
+    }
+
+
+    @Before
+    public void setUp() {
+        savedPlan = DataInfo.PLAN;
+    }
+
+
+    @After
+    public void tearDown() {
+        DataInfo.PLAN = savedPlan;
+    }
+
+
+    /* Entries of the SV650 K7 profile needed by the simulator, alert rules and logger */
+    private static DataInfoEntry[] createEntries() {
+        DataInfoEntry[] entries = new DataInfoEntry[FRAME_LENGTH - DecodePlan.PAYLOAD_OFFSET];
+        for(int i = 0; i < entries.length; i++) {
+            entries[i] = new DataInfoEntry(Integer.toString(i), "", -1);
+        }
+        DataInfoEntry rpm = new DataInfoEntry("RPM", "", 0);
+        rpm.mul = 69;
+        rpm.div = 10;
+        rpm.step = 10;
+        entries[19 - DecodePlan.PAYLOAD_OFFSET] = rpm;
+        DataInfoEntry tps = new DataInfoEntry("TPS", "", 1);
+        tps.add = -58;
+        tps.mul = 6;
+        tps.div = 10;
+        entries[21 - DecodePlan.PAYLOAD_OFFSET] = tps;
+        DataInfoEntry ect = new DataInfoEntry("ECT", "", 3);
+        ect.add = -40;
+        entries[23 - DecodePlan.PAYLOAD_OFFSET] = ect;
+        DataInfoEntry iat = new DataInfoEntry("IAT", "", 4);
+        iat.add = -40;
+        entries[24 - DecodePlan.PAYLOAD_OFFSET] = iat;
+        DataInfoEntry batt = new DataInfoEntry("BATT", "", 2);
+        batt.add = 109;
+        batt.mul = 5;
+        batt.div = 100;
+        batt.decimals = 1;
+        batt.zeroIsZero = true;
+        entries[26 - DecodePlan.PAYLOAD_OFFSET] = batt;
+        DataInfoEntry neutral = new DataInfoEntry("N", "", 20);
+        neutral.discrete = true;
+        entries[55 - DecodePlan.PAYLOAD_OFFSET] = neutral;
+        return entries;
+    }
+
+
+    /* Encode a data frame the way the firmware sends it with protocol version 3: [type | 0x80, length, sequence, payload ...],
+     * as a delta against the previous frame sent, or as a keyframe if there is none */
+    private static byte[] encode(byte[] frame, byte[] previous, int sequence) {
+        if(previous == null) {
+            byte[] wire = new byte[frame.length + 1];
+            wire[0] = (byte) (0x01 | 0x80);
+            wire[1] = (byte) wire.length;
+            wire[2] = (byte) sequence;
+            System.arraycopy(frame, 2, wire, 3, frame.length - 2);
+            return wire;
+        }
+        int payloadSize = frame.length - 2;
+        int bitmapSize = (payloadSize + 7) / 8;
+        byte[] delta = new byte[3 + bitmapSize + payloadSize];
+        int valueIndex = 3 + bitmapSize;
+        for(int i = 0; i < payloadSize; i++) {
+            if(frame[2 + i] != previous[2 + i]) {
+                delta[3 + i / 8] |= 1 << (i % 8);
+                delta[valueIndex++] = frame[2 + i];
+            }
+        }
+        delta[0] = (byte) (0x03 | 0x80);
+        delta[1] = (byte) valueIndex;
+        delta[2] = (byte) sequence;
+        byte[] wire = new byte[valueIndex];
+        System.arraycopy(delta, 0, wire, 0, valueIndex);
+        return wire;
+    }
+
+
+    /* Number of open file handles of the process, -1 if not available (no /proc) */
+    private static int countOpenFiles() {
+        String[] handles = new File("/proc/self/fd").list();
+        return (handles != null) ? handles.length : -1;
+    }
+
+
+    /* Sample the resource usage after a full GC */
+    private static Sample takeSample(DeviceSession session, ThreadPoolExecutor pipeline, ThreadPoolExecutor main) {
+        System.gc();
+        Sample sample = new Sample();
+        sample.heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        sample.threads = Thread.activeCount();
+        sample.openFiles = countOpenFiles();
+        sample.backlog = session.getPendingFrameCount() + pipeline.getQueue().size() + main.getQueue().size();
+        return sample;
+    }
+
+
+    @Test
+    public void pipeline_doesNotGrow() throws Exception {
+        long durationMs = Long.getLong("soak.durationSeconds", 0) * 1000;
+        Assume.assumeTrue("Soak run needs -Dsoak.durationSeconds", durationMs > 0);
+        final long framesPerSecond = Long.getLong("soak.framesPerSecond", 5000);
+
+        final DataInfoEntry[] entries = createEntries();
+        DataInfo.PLAN = new DecodePlan(entries, FRAME_LENGTH, GEAR_OFFSET);
+        final DecodePlan plan = DataInfo.PLAN;
+        AlertRule[] rules = {
+                new AlertRule("ECT", true, 105.0f, 0xFFFF0000),
+                new AlertRule("RPM", true, 10500.0f, 0xFFFF00FF)
+        };
+        rules[0].channel = 23 - DecodePlan.PAYLOAD_OFFSET;
+        rules[1].channel = 19 - DecodePlan.PAYLOAD_OFFSET;
+        final AlertEngine alertEngine = new AlertEngine(plan, rules);
+        final PresentationBuffer presentationBuffer = new PresentationBuffer(plan);
+        final float[] shownValues = new float[plan.channelCount];
+
+        final File logFile = File.createTempFile("soak", ".log");
+        logFile.deleteOnExit();
+        SessionLogger.getOperatingPointMapFile(logFile).deleteOnExit();
+
+        int threadsBefore = Thread.activeCount();
+        int openFilesBefore = countOpenFiles();
+
+        /* Pipeline thread of the session and main thread of the app */
+        final ThreadPoolExecutor pipeline = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        final ThreadPoolExecutor main = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        Clock clock = new Clock() {
+            @Override
+            public long elapsedRealtimeNanos() {
+                return System.nanoTime();
+            }
+        };
+        DeviceSession session = new DeviceSession("SOAK", new DeviceSession.Listener() {
+            @Override
+            public void onFrame(DeviceSession session, final SensorFrame frame) {
+                /* Frames lost on the way and deltas dropped until the next keyframe are skipped */
+                byte[] expected;
+                while((expected = sentFrames.poll()) != null && !Arrays.equals(expected, frame.data)) {
+                    skippedFrames++;
+                }
+                if(expected == null && mismatch == null) {
+                    mismatch = "Frame " + loggedFrames.get() + " does not match any frame sent";
+                }
+                alertEngine.evaluate(frame, frame.receiveTimeNs / 1000000);
+                loggedFrames.incrementAndGet();
+
+                /* The main thread gets the decoded frame itself */
+                frame.retain();
+                main.execute(new Runnable() {
+                    public void run() {
+                        long nowMs = frame.receiveTimeNs / 1000000;
+                        presentationBuffer.push(frame.values, frame.channelCount, nowMs);
+                        presentationBuffer.sample(nowMs, shownValues);
+                        frame.release();
+                        shownFrames.incrementAndGet();
+                    }
+                });
+            }
+
+            @Override
+            public void onConnectionChanged(DeviceSession session, boolean connected) {
+            }
+
+            @Override
+            public void onLogClosed(DeviceSession session, File file) {
+                closedLogFile = file;
+            }
+        }, main, pipeline, clock);
+
+        WireSimulator simulator = new WireSimulator(plan, entries);
+        session.startDataLogging(logFile);
+        session.startSimulation(simulator, framesPerSecond, 100);
+        List<Sample> samples = new ArrayList<>();
+        long startMs = System.currentTimeMillis();
+        while(System.currentTimeMillis() - startMs < durationMs) {
+            Thread.sleep(1000 - (System.currentTimeMillis() - startMs) % 1000);
+            Sample sample = takeSample(session, pipeline, main);
+            samples.add(sample);
+            assertTrue("Pipeline cannot keep up, backlog of " + sample.backlog + " frames", sample.backlog < BACKLOG_LIMIT_FRAMES);
+        }
+        long elapsedMs = System.currentTimeMillis() - startMs;
+        session.close();
+        pipeline.shutdown();
+        assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+        main.shutdown();
+        assertTrue(main.awaitTermination(30, TimeUnit.SECONDS));
+
+        /* Growth checks: after a warm-up of a quarter of the run, the heap must stay within a fixed margin */
+        assertTrue("Too few samples", samples.size() >= 4);
+        long baselineHeapBytes = Long.MAX_VALUE;
+        long finalHeapBytes = Long.MAX_VALUE;
+        for(int i = samples.size() / 4; i < samples.size(); i++) {
+            long heapBytes = samples.get(i).heapBytes;
+            if(i < samples.size() / 2) {
+                baselineHeapBytes = Math.min(baselineHeapBytes, heapBytes);
+            } else if(i >= samples.size() * 3 / 4) {
+                finalHeapBytes = Math.min(finalHeapBytes, heapBytes);
+            }
+        }
+        assertTrue("Heap grew from " + baselineHeapBytes + " to " + finalHeapBytes + " bytes",
+                finalHeapBytes - baselineHeapBytes < HEAP_GROWTH_LIMIT_BYTES);
+        int maxThreads = 0;
+        for(Sample sample : samples) {
+            maxThreads = Math.max(maxThreads, sample.threads);
+        }
+        /* Pipeline, main, simulation and catalog thread */
+        assertTrue("Threads grew to " + maxThreads, maxThreads <= threadsBefore + 4);
+        for(int i = 0; i < 100 && Thread.activeCount() > threadsBefore; i++) {
+            /* Terminated pool threads may take a moment to exit */
+            Thread.sleep(10);
+        }
+        assertTrue("Threads leaked", Thread.activeCount() <= threadsBefore);
+        if(openFilesBefore > -1) {
+            assertTrue("File handles leaked", countOpenFiles() <= openFilesBefore);
+        }
+
+        /* Frame accounting: every frame lost costs at most the deltas up to the next keyframe */
+        long sentFrameCount = simulator.sentFrameCount;
+        assertTrue("Sent " + sentFrameCount + " frames in " + elapsedMs + " ms at " + framesPerSecond + " per second",
+                sentFrameCount >= (long) (elapsedMs * framesPerSecond / 1000 * MIN_RATE_FRACTION));
+        assertNull(mismatch, mismatch);
+        assertTrue("No frames got through", loggedFrames.get() > 0);
+        assertEquals(sentFrameCount, loggedFrames.get() + skippedFrames + sentFrames.size());
+        assertTrue("Only " + loggedFrames.get() + " of " + sentFrameCount + " frames got through",
+                skippedFrames + sentFrames.size() <= session.getLostFrames() * KEYFRAME_INTERVAL);
+        assertEquals(loggedFrames.get(), session.getReceivedFrames());
+        assertEquals(loggedFrames.get(), shownFrames.get());
+        assertEquals(0, session.getDuplicateFrames());
+        assertEquals(logFile, closedLogFile);
+        assertTrue("Log file not written", logFile.length() > 0);
+    }
+}
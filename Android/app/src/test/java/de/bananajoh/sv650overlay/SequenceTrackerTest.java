@@ -0,0 +1,169 @@
+package de.bananajoh.sv650overlay;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the sequence number checks of protocol version 3, on their own and as applied to frames by the sequencer.
+ */
+public class SequenceTrackerTest {
+
+    /* Track a run of sequence numbers, returns the results */
+    private static int[] track(SequenceTracker tracker, int... sequences) {
+        int[] results = new int[sequences.length];
+        for(int i = 0; i < sequences.length; i++) {
+            results[i] = tracker.track(sequences[i]);
+        }
+        return results;
+    }
+
+
+    /* Sequenced data frame [0x81, 5, sequence, value, value] */
+    private static byte[] dataFrame(int sequence, int value) {
+        return new byte[] { (byte) 0x81, 5, (byte) sequence, (byte) value, (byte) value };
+    }
+
+
+    /* Sequenced acknowledge of protocol version 3 */
+    private static byte[] protocolAcknowledge(int sequence) {
+        return new byte[] { (byte) 0x84, 5, (byte) sequence, DeviceSession.COMMAND_PROTOCOL_VERSION, 3 };
+    }
+
+
+    @Test
+    public void inOrderFramesWrapAround() {
+        SequenceTracker tracker = new SequenceTracker();
+        int[] results = track(tracker, 253, 254, 255, 0, 1, 2);
+        for(int result : results) {
+            assertEquals(SequenceTracker.IN_ORDER, result);
+        }
+        assertEquals(0, tracker.getLostFrames());
+        assertEquals(0, tracker.getDuplicateFrames());
+        assertEquals(0, tracker.getReorderedFrames());
+    }
+
+
+    @Test
+    public void gapsAreCountedAcrossWrapAround() {
+        SequenceTracker tracker = new SequenceTracker();
+        assertArrayEquals(new int[] { 0, 2, 0, 3 }, track(tracker, 10, 13, 14, 18));
+        assertEquals(5, tracker.getLostFrames());
+        tracker.reset();
+        assertArrayEquals(new int[] { 0, 1, 4 }, track(tracker, 250, 252, 1));
+        assertEquals(10, tracker.getLostFrames());
+    }
+
+
+    @Test
+    public void lateFramesCorrectTheLoss() {
+        SequenceTracker tracker = new SequenceTracker();
+        assertArrayEquals(new int[] { 0, 2 }, track(tracker, 254, 1));
+        assertEquals(2, tracker.getLostFrames());
+        assertEquals(SequenceTracker.REORDERED, tracker.track(0));
+        assertEquals(SequenceTracker.REORDERED, tracker.track(255));
+        assertEquals(0, tracker.getLostFrames());
+        assertEquals(2, tracker.getReorderedFrames());
+        /* Once received, the same number again is a duplicate */
+        assertEquals(SequenceTracker.DUPLICATE, tracker.track(0));
+        assertEquals(SequenceTracker.DUPLICATE, tracker.track(1));
+        assertEquals(2, tracker.getDuplicateFrames());
+        assertEquals(0, tracker.getLostFrames());
+        assertEquals(SequenceTracker.IN_ORDER, tracker.track(2));
+    }
+
+
+    @Test
+    public void restartShortlyBehindResyncs() {
+        SequenceTracker tracker = new SequenceTracker();
+        track(tracker, 100, 101, 102, 103, 104, 105);
+        /* The sender starts over at 100, the first frames look like duplicates */
+        assertArrayEquals(new int[] { SequenceTracker.DUPLICATE, SequenceTracker.DUPLICATE, SequenceTracker.DUPLICATE, SequenceTracker.RESYNCED },
+                track(tracker, 100, 101, 102, 103));
+        assertArrayEquals(new int[] { 0, 0, 0 }, track(tracker, 104, 105, 106));
+        assertEquals(0, tracker.getLostFrames());
+        assertEquals(1, tracker.getResyncs());
+    }
+
+
+    @Test
+    public void restartFarBehindResyncsWithoutLoss() {
+        SequenceTracker tracker = new SequenceTracker();
+        track(tracker, 200, 201, 202);
+        assertEquals(SequenceTracker.RESYNCED, tracker.track(100));
+        assertArrayEquals(new int[] { 0, 0 }, track(tracker, 101, 102));
+        assertEquals(0, tracker.getLostFrames());
+        assertEquals(1, tracker.getResyncs());
+    }
+
+
+    @Test
+    public void resetAcceptsAnyNumber() {
+        SequenceTracker tracker = new SequenceTracker();
+        track(tracker, 50, 51, 52);
+        tracker.reset();
+        assertArrayEquals(new int[] { 0, 0 }, track(tracker, 40, 41));
+        assertEquals(0, tracker.getDuplicateFrames());
+        assertEquals(0, tracker.getResyncs());
+    }
+
+
+    @Test
+    public void sequencerReportsGapsAndLateFramesOnce() {
+        final List<int[]> reports = new ArrayList<>();
+        FrameSequencer sequencer = new FrameSequencer(new FrameSequencer.Listener() {
+            @Override
+            public void onData(byte[] data, long receiveTimeNs, int missingFrames, int lateFrames) {
+                reports.add(new int[] { data[2], missingFrames, lateFrames });
+            }
+        });
+
+        sequencer.onFrame(dataFrame(10, 1), 0);
+        sequencer.onFrame(dataFrame(13, 2), 0);
+        /* 11 arrives late after the gap has been reported with 13 */
+        sequencer.onFrame(dataFrame(11, 3), 0);
+        sequencer.onFrame(dataFrame(14, 4), 0);
+        sequencer.onFrame(dataFrame(14, 5), 0);
+        sequencer.onFrame(dataFrame(15, 6), 0);
+
+        assertEquals(4, reports.size());
+        assertArrayEquals(new int[] { 1, 0, 0 }, reports.get(0));
+        assertArrayEquals(new int[] { 2, 2, 0 }, reports.get(1));
+        assertArrayEquals(new int[] { 4, 0, 1 }, reports.get(2));
+        assertArrayEquals(new int[] { 6, 0, 0 }, reports.get(3));
+        assertEquals(1, sequencer.getLostFrames());
+        int reportedLoss = 0;
+        for(int[] report : reports) {
+            reportedLoss += report[1] - report[2];
+        }
+        assertEquals(sequencer.getLostFrames(), reportedLoss);
+    }
+
+
+    @Test
+    public void protocolAcknowledgeStartsNumberingOver() {
+        final List<int[]> reports = new ArrayList<>();
+        FrameSequencer sequencer = new FrameSequencer(new FrameSequencer.Listener() {
+            @Override
+            public void onData(byte[] data, long receiveTimeNs, int missingFrames, int lateFrames) {
+                reports.add(new int[] { data[0], missingFrames });
+            }
+        });
+
+        sequencer.onFrame(dataFrame(100, 1), 0);
+        sequencer.onFrame(dataFrame(101, 1), 0);
+        sequencer.onFrame(protocolAcknowledge(98), 0);
+        sequencer.onFrame(dataFrame(99, 1), 0);
+
+        assertEquals(4, reports.size());
+        assertArrayEquals(new int[] { 0x04, 0 }, reports.get(2));
+        assertArrayEquals(new int[] { 0x01, 0 }, reports.get(3));
+        assertEquals(0, sequencer.getDuplicateFrames());
+        assertEquals(0, sequencer.getLostFrames());
+        assertEquals(0, sequencer.getResyncs());
+    }
+}
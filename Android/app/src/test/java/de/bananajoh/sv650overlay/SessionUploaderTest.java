@@ -0,0 +1,294 @@
+package de.bananajoh.sv650overlay;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the session uploader against a local HTTP stand-in of the collection server, which stores the chunks per file
+ * and can fail requests or lose acknowledgements.
+ */
+public class SessionUploaderTest {
+    private static final int CHUNK_SIZE = 4096;
+    private static final long TIMEOUT_MS = 10000;
+
+    private HttpServer server;
+    private String endpoint;
+    private final Map<String, ByteArrayOutputStream> received = new HashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+    /* Every n-th request fails with 503 (failEvery) or is stored without acknowledgement (loseAckEvery), 0 for never */
+    private volatile int failEvery = 0;
+    private volatile int loseAckEvery = 0;
+    /* Every request is rejected with 409 at the offset it was sent for */
+    private volatile boolean rejectAtOwnOffset = false;
+    private final MemoryStore store = new MemoryStore();
+    private SessionUploader uploader;
+    private final File directory = new File(System.getProperty("java.io.tmpdir"), "uploader" + System.nanoTime());
+
+
+    /* Upload state kept in memory */
+    private static class MemoryStore implements SessionUploader.Store {
+        final Map<String, Long> offsets = new HashMap<>();
+        final Map<String, Boolean> complete = new HashMap<>();
+
+        @Override
+        public synchronized long getUploadOffset(String name) {
+            return offsets.containsKey(name) ? offsets.get(name) : 0;
+        }
+
+        @Override
+        public synchronized void setUploadProgress(String name, long offset, boolean complete) {
+            offsets.put(name, offset);
+            this.complete.put(name, complete);
+        }
+
+        @Override
+        public synchronized boolean isUploaded(String name) {
+            return complete.containsKey(name) && complete.get(name);
+        }
+    }
+
+
+    /* Collection server: appends a chunk at the expected offset, answers 409 with its offset otherwise */
+    private class CollectionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int active = activeRequests.incrementAndGet();
+            maxActiveRequests.set(Math.max(maxActiveRequests.get(), active));
+            try {
+                int request = requests.incrementAndGet();
+                String name = exchange.getRequestURI().getPath().substring("/sessions/".length());
+                long offset = Long.parseLong(exchange.getRequestHeaders().getFirst(SessionUploader.HEADER_UPLOAD_OFFSET));
+                byte[] body = readAll(exchange.getRequestBody());
+                /* Slow enough for uploads to overlap */
+                Thread.sleep(5);
+                if(failEvery > 0 && request % failEvery == 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                if(rejectAtOwnOffset) {
+                    exchange.getResponseHeaders().set(SessionUploader.HEADER_UPLOAD_OFFSET, Long.toString(offset));
+                    exchange.sendResponseHeaders(409, -1);
+                    return;
+                }
+                long stored;
+                synchronized(received) {
+                    ByteArrayOutputStream file = received.get(name);
+                    if(file == null) {
+                        file = new ByteArrayOutputStream();
+                        received.put(name, file);
+                    }
+                    if(offset != file.size()) {
+                        exchange.getResponseHeaders().set(SessionUploader.HEADER_UPLOAD_OFFSET, Integer.toString(file.size()));
+                        exchange.sendResponseHeaders(409, -1);
+                        return;
+                    }
+                    file.write(body);
+                    stored = file.size();
+                }
+                if(loseAckEvery > 0 && request % loseAckEvery == 0) {
+                    /* Stored, but the connection drops before the acknowledgement */
+                    throw new IOException("Acknowledgement lost");
+                }
+                exchange.getResponseHeaders().set(SessionUploader.HEADER_UPLOAD_OFFSET, Long.toString(stored));
+                exchange.sendResponseHeaders(204, -1);
+            } catch(InterruptedException e) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                activeRequests.decrementAndGet();
+                exchange.close();
+            }
+        }
+    }
+
+
+    @Before
+    public void setUp() throws IOException {
+        assertTrue(directory.mkdirs());
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/sessions", new CollectionHandler());
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        endpoint = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/sessions/";
+        uploader = new SessionUploader(endpoint, store, 2, CHUNK_SIZE, 10);
+    }
+
+
+    @After
+    public void tearDown() {
+        uploader.shutdown();
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+
+    /* Session log with random content */
+    private File createLog(String name, int length, long seed) throws IOException {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+
+
+    /* Wait until the store has all files uploaded */
+    private void waitForUploads(File... files) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        for(File file : files) {
+            while(!store.isUploaded(file.getName()) && System.currentTimeMillis() < deadlineMs) {
+                Thread.sleep(10);
+            }
+            assertTrue(file.getName(), store.isUploaded(file.getName()));
+        }
+    }
+
+
+    /* Check that the server got the exact file content */
+    private void assertReceived(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        byte[] content = readAll(in);
+        in.close();
+        synchronized(received) {
+            assertArrayEquals(content, received.get(file.getName()).toByteArray());
+        }
+    }
+
+
+    @Test
+    public void uploadsFilesInChunksWithBoundedConcurrency() throws Exception {
+        File[] files = new File[5];
+        for(int i = 0; i < files.length; i++) {
+            files[i] = createLog("session" + i + ".log", 10 * CHUNK_SIZE + 123 * i, i);
+            uploader.enqueue(files[i]);
+        }
+        waitForUploads(files);
+        for(File file : files) {
+            assertReceived(file);
+        }
+        assertTrue(maxActiveRequests.get() <= 2);
+        assertEquals(0, uploader.getPendingCount());
+    }
+
+
+    @Test
+    public void resumesAfterFailuresAndLostAcknowledgements() throws Exception {
+        failEvery = 3;
+        loseAckEvery = 5;
+        File file = createLog("session.log", 20 * CHUNK_SIZE + 7, 42);
+        uploader.enqueue(file);
+        waitForUploads(file);
+        assertReceived(file);
+    }
+
+
+    @Test
+    public void resumesFromAcknowledgedOffset() throws Exception {
+        File file = createLog("session.log", 8 * CHUNK_SIZE, 7);
+        uploader.enqueue(file);
+        waitForUploads(file);
+        int requestsFirstUpload = requests.get();
+        assertEquals(8, requestsFirstUpload);
+
+        /* A new uploader after an interruption sends only the rest */
+        uploader.shutdown();
+        store.setUploadProgress(file.getName(), 6 * CHUNK_SIZE, false);
+        synchronized(received) {
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            partial.write(received.get(file.getName()).toByteArray(), 0, 6 * CHUNK_SIZE);
+            received.put(file.getName(), partial);
+        }
+        uploader = new SessionUploader(endpoint, store, 2, CHUNK_SIZE, 10);
+        uploader.enqueue(file);
+        waitForUploads(file);
+        assertReceived(file);
+        assertEquals(requestsFirstUpload + 2, requests.get());
+    }
+
+
+    @Test
+    public void uploadedFilesAreNotSentAgain() throws Exception {
+        File file = createLog("session.log", 3 * CHUNK_SIZE, 1);
+        uploader.enqueue(file);
+        waitForUploads(file);
+        int requestsAfterUpload = requests.get();
+
+        uploader.enqueue(file);
+        Thread.sleep(200);
+        assertEquals(requestsAfterUpload, requests.get());
+        assertEquals(0, uploader.getPendingCount());
+    }
+
+
+    @Test
+    public void conflictWithoutProgressBacksOff() throws Exception {
+        rejectAtOwnOffset = true;
+        File file = createLog("session.log", 3 * CHUNK_SIZE, 3);
+        uploader.enqueue(file);
+        /* Retry delays of 10, 20, 40, 80 and 160 ms instead of a request after the other */
+        Thread.sleep(300);
+        assertTrue(requests.get() <= 7);
+        assertEquals(1, uploader.getPendingCount());
+
+        rejectAtOwnOffset = false;
+        waitForUploads(file);
+        assertReceived(file);
+    }
+
+
+    @Test
+    public void pausedUploaderSendsNothing() throws Exception {
+        uploader.setPaused(true);
+        File file = createLog("session.log", 3 * CHUNK_SIZE, 2);
+        uploader.enqueue(file);
+        Thread.sleep(200);
+        assertEquals(0, requests.get());
+        assertEquals(1, uploader.getPendingCount());
+
+        uploader.setPaused(false);
+        waitForUploads(file);
+        assertReceived(file);
+    }
+}
@@ -0,0 +1,259 @@
+package de.bananajoh.sv650overlay;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests of the telemetry server against plain TCP and WebSocket clients on loopback.
+ */
+public class TelemetryServerTest {
+    private static final int FRAME_LENGTH = 8;
+    private static final long TIMEOUT_MS = 5000;
+
+    private DecodePlan savedPlan;
+    private TelemetryServer server;
+
+
+    @Before
+    public void setUp() throws IOException {
+        savedPlan = DataInfo.PLAN;
+        DataInfoEntry[] entries = new DataInfoEntry[FRAME_LENGTH - DecodePlan.PAYLOAD_OFFSET];
+        for(int i = 0; i < entries.length; i++) {
+            entries[i] = new DataInfoEntry(Integer.toString(i), "", -1);
+        }
+        DataInfoEntry ect = new DataInfoEntry("ECT", "", 0);
+        ect.add = -40;
+        entries[0] = ect;
+        DataInfo.PLAN = new DecodePlan(entries, FRAME_LENGTH, -1);
+
+        server = new TelemetryServer(0);
+        server.start();
+    }
+
+
+    @After
+    public void tearDown() {
+        server.stop();
+        DataInfo.PLAN = savedPlan;
+    }
+
+
+    /* Data frame with a counter in the first payload byte */
+    private static byte[] createFrame(int counter) {
+        byte[] frame = new byte[FRAME_LENGTH];
+        frame[0] = 0x01;
+        frame[1] = FRAME_LENGTH;
+        frame[2] = (byte) counter;
+        return frame;
+    }
+
+
+    /* Publish a data frame like the pipeline thread does */
+    private void publish(int counter, long receiveTimeNs) {
+        SensorFrame frame = SensorFrame.obtain(null, createFrame(counter), receiveTimeNs);
+        server.publish(frame);
+        frame.release();
+    }
+
+
+    /* Connect and send the request line, wait until the server streams to the client */
+    private Socket connect(String request) throws IOException, InterruptedException {
+        int clients = server.getClientCount();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout((int) TIMEOUT_MS);
+        socket.getOutputStream().write(request.getBytes(Charset.forName("US-ASCII")));
+        socket.getOutputStream().flush();
+        if(!request.startsWith("GET")) {
+            waitForClients(clients + 1);
+        }
+        return socket;
+    }
+
+
+    /* Wait until the server has a number of clients */
+    private void waitForClients(int count) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while(server.getClientCount() != count && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getClientCount());
+    }
+
+
+    /* Read an HTTP response header, returns its lines */
+    private static String readHttpHeader(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while(!header.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            assertNotEquals(-1, c);
+            header.append((char) c);
+        }
+        return header.toString();
+    }
+
+
+    /* Open a WebSocket streaming decoded frames, returns after the handshake */
+    private Socket connectWebSocket() throws IOException, InterruptedException {
+        int clients = server.getClientCount();
+        Socket socket = connect("GET /decoded HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n");
+        assertTrue(readHttpHeader(socket.getInputStream()).startsWith("HTTP/1.1 101"));
+        waitForClients(clients + 1);
+        return socket;
+    }
+
+
+    /* Send a short masked client to server frame */
+    private static void writeClientFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        byte[] mask = { 0x12, 0x34, 0x56, 0x78 };
+        out.write(0x80 | opcode);
+        out.write(0x80 | payload.length);
+        out.write(mask);
+        for(int i = 0; i < payload.length; i++) {
+            out.write(payload[i] ^ mask[i & 3]);
+        }
+        out.flush();
+    }
+
+
+    @Test
+    public void rawStreamDeliversAllFramesInOrder() throws Exception {
+        Socket socket = connect("STREAM raw 4\n");
+        for(int i = 0; i < 10; i++) {
+            publish(i, 1000 + i);
+        }
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        for(int i = 0; i < 10; i++) {
+            assertEquals(1000 + i, in.readLong());
+            assertEquals(FRAME_LENGTH, in.readUnsignedShort());
+            byte[] frame = new byte[FRAME_LENGTH];
+            in.readFully(frame);
+            assertArrayEquals(createFrame(i), frame);
+        }
+        socket.close();
+    }
+
+
+    @Test
+    public void webSocketStreamsDecodedFrames() throws Exception {
+        Socket socket = connect("GET /decoded?batch=2 HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n");
+        InputStream in = socket.getInputStream();
+        String header = readHttpHeader(in);
+        assertTrue(header.startsWith("HTTP/1.1 101"));
+        assertTrue(header.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        waitForClients(1);
+
+        publish(100, 5);
+        publish(101, 6);
+
+        DataInputStream data = new DataInputStream(in);
+        assertEquals(0x81, data.readUnsignedByte());
+        int length = data.readUnsignedByte();
+        assertTrue(length < 126);
+        byte[] payload = new byte[length];
+        data.readFully(payload);
+        String[] lines = new String(payload, Charset.forName("UTF-8")).split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("#Channels,ECT,"));
+        assertTrue(lines[1].startsWith("5,60,"));
+        assertTrue(lines[2].startsWith("6,61,"));
+        socket.close();
+    }
+
+
+    @Test
+    public void webSocketAnswersPingAndClose() throws Exception {
+        Socket socket = connectWebSocket();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        /* Text messages of the client are ignored */
+        writeClientFrame(out, 0x1, "hello".getBytes(Charset.forName("UTF-8")));
+        writeClientFrame(out, 0x9, new byte[] { 'p', 'i', 'n', 'g' });
+        assertEquals(0x8A, in.readUnsignedByte());
+        assertEquals(4, in.readUnsignedByte());
+        byte[] pong = new byte[4];
+        in.readFully(pong);
+        assertArrayEquals(new byte[] { 'p', 'i', 'n', 'g' }, pong);
+
+        /* Close with status 1000 is echoed, then the connection ends */
+        writeClientFrame(out, 0x8, new byte[] { 0x03, (byte) 0xE8 });
+        assertEquals(0x88, in.readUnsignedByte());
+        assertEquals(2, in.readUnsignedByte());
+        assertEquals(1000, in.readUnsignedShort());
+        assertEquals(-1, in.read());
+        waitForClients(0);
+        socket.close();
+    }
+
+
+    @Test
+    public void connectionsBeyondTheLimitAreClosed() throws Exception {
+        Socket[] sockets = new Socket[4];
+        for(int i = 0; i < sockets.length; i++) {
+            sockets[i] = connect("STREAM raw\n");
+        }
+        Socket rejected = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        rejected.setSoTimeout((int) TIMEOUT_MS);
+        assertEquals(-1, rejected.getInputStream().read());
+        rejected.close();
+        assertEquals(4, server.getClientCount());
+
+        /* A slot becomes free once the server noticed a client has gone, when sending to it fails */
+        sockets[0].close();
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        for(int i = 0; server.getClientCount() > 3 && System.currentTimeMillis() < deadlineMs; i++) {
+            publish(i, i);
+            Thread.sleep(10);
+        }
+        waitForClients(3);
+        sockets[0] = connect("STREAM raw\n");
+        for(Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+
+    @Test
+    public void slowClientDoesNotBlockPublishing() throws Exception {
+        Socket slowSocket = connect("STREAM raw\n");
+        Socket socket = connect("STREAM decoded 64\n");
+
+        /* Far more than the socket buffers hold, the slow client never reads */
+        long startMs = System.currentTimeMillis();
+        for(int i = 0; i < 200000; i++) {
+            publish(i, i);
+        }
+        assertTrue(System.currentTimeMillis() - startMs < TIMEOUT_MS);
+
+        /* The reading client keeps getting frames, possibly with drops reported */
+        publish(42, 200000);
+        InputStream in = socket.getInputStream();
+        StringBuilder text = new StringBuilder();
+        byte[] buffer = new byte[4096];
+        while(!text.toString().contains("\n200000,2,")) {
+            int count = in.read(buffer);
+            assertNotEquals(-1, count);
+            text.append(new String(buffer, 0, count, Charset.forName("UTF-8")));
+        }
+
+        slowSocket.close();
+        socket.close();
+        server.stop();
+        waitForClients(0);
+    }
+}
@@ -0,0 +1,109 @@
+package de.bananajoh.sv650overlay.livefeed;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+
+/* Layout of the shared memory region of the SV650overlay live feed. The region holds the latest data frame of the
+ * device shown in the overlay, its decoded values and the channel labels, guarded by a sequence lock: the writer makes
+ * the sequence odd before and even after an update, readers copy what they need and retry if the sequence was odd or
+ * has changed meanwhile. All numbers are little endian. */
+public final class LiveFeed {
+    public static final String SERVICE_PACKAGE = "de.bananajoh.sv650overlay";
+    public static final String ACTION_BIND = "de.bananajoh.sv650overlay.action.BIND_LIVE_FEED";
+    public static final String PERMISSION = "de.bananajoh.sv650overlay.permission.READ_LIVE_DATA";
+
+    /* Message to the service, answered with the SharedMemory of the region in the data bundle under KEY_REGION */
+    public static final int MSG_GET_REGION = 1;
+    public static final String KEY_REGION = "region";
+
+    public static final int MAGIC = 0x464C5653;
+    public static final int VERSION = 1;
+    public static final int MAX_FRAME_LENGTH = 256;
+    public static final int MAX_CHANNELS = 256;
+    public static final int MAX_LABELS_LENGTH = 4096;
+
+    /* Header */
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_VERSION = 4;
+    public static final int OFFSET_SEQUENCE = 8;
+    public static final int OFFSET_LAYOUT_GENERATION = 12;
+    public static final int OFFSET_FRAME_COUNT = 16;
+    public static final int OFFSET_RECEIVE_TIME_NS = 24;
+    public static final int OFFSET_GEAR = 32;
+    public static final int OFFSET_FRAME_LENGTH = 36;
+    public static final int OFFSET_CHANNEL_COUNT = 40;
+    public static final int OFFSET_LABELS_LENGTH = 44;
+
+    /* Raw frame [type, length, payload ...], one float per channel, then "label\tunit\n" per channel in UTF-8 */
+    public static final int OFFSET_FRAME = 64;
+    public static final int OFFSET_VALUES = OFFSET_FRAME + MAX_FRAME_LENGTH;
+    public static final int OFFSET_LABELS = OFFSET_VALUES + MAX_CHANNELS * 4;
+    public static final int REGION_SIZE = OFFSET_LABELS + MAX_LABELS_LENGTH;
+
+    /* Memory fences of sun.misc.Unsafe, not part of the SDK but present on ART since API 24 and on every JVM */
+    private static final Object UNSAFE;
+    private static final Method LOAD_FENCE;
+    private static final Method STORE_FENCE;
+    /* Fallback if the fences are not available, volatile accesses are fenced on both sides by ART */
+    private static volatile int fallbackFence = 0;
+
+    static {
+        Object unsafe = null;
+        Method loadFence = null;
+        Method storeFence = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field;
+            try {
+                field = unsafeClass.getDeclaredField("theUnsafe");
+            } catch(NoSuchFieldException ex) {
+                field = unsafeClass.getDeclaredField("THE_ONE");
+            }
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            loadFence = unsafeClass.getMethod("loadFence");
+            storeFence = unsafeClass.getMethod("storeFence");
+        } catch(Exception ex) {
+            ex.printStackTrace();
+            loadFence = null;
+            storeFence = null;
+        }
+        UNSAFE = unsafe;
+        LOAD_FENCE = loadFence;
+        STORE_FENCE = storeFence;
+    }
+
+
+    private LiveFeed() {
+    }
+
+
+    /* Load fence: loads before it are not reordered with loads and stores after it. Readers put it between reading the
+     * sequence and the data and between the data and reading the sequence again. The fence is a CPU barrier, so it
+     * orders the accesses to the shared memory as seen by the writer process as well. */
+    public static void loadFence() {
+        fence(LOAD_FENCE);
+    }
+
+
+    /* Store fence: loads and stores before it are not reordered with stores after it. The writer puts it between
+     * making the sequence odd and writing the data and between the data and making the sequence even. */
+    public static void storeFence() {
+        fence(STORE_FENCE);
+    }
+
+
+    /* Call a fence of Unsafe, or do a volatile access if it is not available */
+    private static void fence(Method method) {
+        if(method != null) {
+            try {
+                method.invoke(UNSAFE, (Object[]) null);
+                return;
+            } catch(Exception ex) {
+                /* Fall through to the volatile access */
+            }
+        }
+        fallbackFence = fallbackFence + 1;
+    }
+}
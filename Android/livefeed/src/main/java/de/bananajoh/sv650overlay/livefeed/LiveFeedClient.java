@@ -0,0 +1,143 @@
+package de.bananajoh.sv650overlay.livefeed;
+
+import android.annotation.TargetApi;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.nio.ByteBuffer;
+
+
+/* Connects to the live feed service of SV650overlay and maps its shared memory region read-only. The app using it needs
+ * the READ_LIVE_DATA permission granted and Android 8.1 (API 27) or later. Callbacks run on the main thread. */
+@TargetApi(Build.VERSION_CODES.O_MR1)
+public class LiveFeedClient {
+    private final Context context;
+    private final Listener listener;
+    private boolean bound = false;
+    private SharedMemory sharedMemory = null;
+    private ByteBuffer mapping = null;
+
+
+    /* Receiver of feed events */
+    public interface Listener {
+        /* Region mapped, the reader can be polled at any rate from now on */
+        void onConnected(LiveFeedReader reader);
+
+        /* Service gone or region not available, the reader must not be used anymore */
+        void onDisconnected();
+    }
+
+
+    /* Answer of the service carrying the region */
+    private final Messenger replyMessenger = new Messenger(new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message message) {
+            if(message.what != LiveFeed.MSG_GET_REGION || !bound) {
+                return false;
+            }
+            Bundle data = message.getData();
+            data.setClassLoader(SharedMemory.class.getClassLoader());
+            SharedMemory region = data.getParcelable(LiveFeed.KEY_REGION);
+            if(region == null) {
+                listener.onDisconnected();
+                return true;
+            }
+            try {
+                release();
+                sharedMemory = region;
+                mapping = region.mapReadOnly();
+            } catch(ErrnoException ex) {
+                release();
+                listener.onDisconnected();
+                return true;
+            }
+            LiveFeedReader reader = new LiveFeedReader(mapping);
+            if(!reader.isValid()) {
+                release();
+                listener.onDisconnected();
+                return true;
+            }
+            listener.onConnected(reader);
+            return true;
+        }
+    }));
+
+
+    /* Ask the service for the region once connected */
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            Message message = Message.obtain(null, LiveFeed.MSG_GET_REGION);
+            message.replyTo = replyMessenger;
+            try {
+                new Messenger(binder).send(message);
+            } catch(RemoteException ex) {
+                listener.onDisconnected();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            release();
+            listener.onDisconnected();
+        }
+    };
+
+
+    /* Constructor */
+    public LiveFeedClient(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+    }
+
+
+    /* Bind to the service, returns false if the app is not installed, the permission is missing or the API level is too low */
+    public boolean connect() {
+        if(bound || Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            return bound;
+        }
+        Intent intent = new Intent(LiveFeed.ACTION_BIND).setPackage(LiveFeed.SERVICE_PACKAGE);
+        try {
+            bound = context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+        } catch(SecurityException ex) {
+            bound = false;
+        }
+        return bound;
+    }
+
+
+    /* Unbind and unmap the region */
+    public void disconnect() {
+        if(!bound) {
+            return;
+        }
+        bound = false;
+        context.unbindService(serviceConnection);
+        release();
+    }
+
+
+    /* Unmap and close the region */
+    private void release() {
+        if(mapping != null) {
+            SharedMemory.unmap(mapping);
+            mapping = null;
+        }
+        if(sharedMemory != null) {
+            sharedMemory.close();
+            sharedMemory = null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package de.bananajoh.sv650overlay.livefeed;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+
+/* Reads consistent snapshots of the latest frame out of a mapped live feed region at the rate of the caller, without
+ * any IPC per frame. Not thread safe, use one reader per thread. */
+public class LiveFeedReader {
+    private static final int MAX_RETRIES = 100;
+
+    private final ByteBuffer region;
+    private final ByteBuffer view;
+    private final byte[] labelBytes = new byte[LiveFeed.MAX_LABELS_LENGTH];
+    private int layoutGeneration = -1;
+    private String[] labels = new String[0];
+    private String[] units = new String[0];
+
+
+    /* Copy of the latest frame */
+    public static class Snapshot {
+        public long frameCount = 0;
+        public long receiveTimeNs = 0;
+        public int gear = -1;
+        public int frameLength = 0;
+        public final byte[] frame = new byte[LiveFeed.MAX_FRAME_LENGTH];
+        public int channelCount = 0;
+        public final float[] values = new float[LiveFeed.MAX_CHANNELS];
+    }
+
+
+    /* Constructor, takes the mapped region */
+    public LiveFeedReader(ByteBuffer region) {
+        this.region = region.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view = region.duplicate();
+    }
+
+
+    /* Check if the region has the expected layout */
+    public boolean isValid() {
+        return region.capacity() >= LiveFeed.REGION_SIZE && region.getInt(LiveFeed.OFFSET_MAGIC) == LiveFeed.MAGIC && region.getInt(LiveFeed.OFFSET_VERSION) == LiveFeed.VERSION;
+    }
+
+
+    /* Copy the latest frame into a snapshot, returns false if there is no frame yet or the writer kept updating */
+    public boolean read(Snapshot snapshot) {
+        for(int retry = 0; retry < MAX_RETRIES; retry++) {
+            int sequence = region.getInt(LiveFeed.OFFSET_SEQUENCE);
+            if((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            /* Sequence before the data */
+            LiveFeed.loadFence();
+
+            int generation = region.getInt(LiveFeed.OFFSET_LAYOUT_GENERATION);
+            snapshot.frameCount = region.getLong(LiveFeed.OFFSET_FRAME_COUNT);
+            snapshot.receiveTimeNs = region.getLong(LiveFeed.OFFSET_RECEIVE_TIME_NS);
+            snapshot.gear = region.getInt(LiveFeed.OFFSET_GEAR);
+            snapshot.frameLength = Math.min(Math.max(region.getInt(LiveFeed.OFFSET_FRAME_LENGTH), 0), LiveFeed.MAX_FRAME_LENGTH);
+            snapshot.channelCount = Math.min(Math.max(region.getInt(LiveFeed.OFFSET_CHANNEL_COUNT), 0), LiveFeed.MAX_CHANNELS);
+            view.position(LiveFeed.OFFSET_FRAME);
+            view.get(snapshot.frame, 0, snapshot.frameLength);
+            for(int channel = 0; channel < snapshot.channelCount; channel++) {
+                snapshot.values[channel] = region.getFloat(LiveFeed.OFFSET_VALUES + channel * 4);
+            }
+            int labelsLength = 0;
+            if(generation != layoutGeneration) {
+                labelsLength = Math.min(Math.max(region.getInt(LiveFeed.OFFSET_LABELS_LENGTH), 0), LiveFeed.MAX_LABELS_LENGTH);
+                view.position(LiveFeed.OFFSET_LABELS);
+                view.get(labelBytes, 0, labelsLength);
+            }
+
+            /* Data before the sequence again */
+            LiveFeed.loadFence();
+            if(region.getInt(LiveFeed.OFFSET_SEQUENCE) != sequence) {
+                continue;
+            }
+            if(generation != layoutGeneration) {
+                parseLabels(labelsLength);
+                layoutGeneration = generation;
+            }
+            return snapshot.frameCount > 0;
+        }
+        return false;
+    }
+
+
+    /* Split the label block into labels and units */
+    private void parseLabels(int length) {
+        String[] lines = new String(labelBytes, 0, length, Charset.forName("UTF-8")).split("\n");
+        labels = new String[lines.length];
+        units = new String[lines.length];
+        for(int i = 0; i < lines.length; i++) {
+            int separator = lines[i].indexOf('\t');
+            labels[i] = (separator < 0) ? lines[i] : lines[i].substring(0, separator);
+            units[i] = (separator < 0) ? "" : lines[i].substring(separator + 1);
+        }
+    }
+
+
+    /* Labels of the channels, valid after a successful read */
+    public String[] getLabels() {
+        return labels;
+    }
+
+
+    /* Units of the channels, valid after a successful read */
+    public String[] getUnits() {
+        return units;
+    }
+}
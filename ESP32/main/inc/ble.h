@@ -8,18 +8,26 @@
 
 
 /* ================================================================================ Public defines */
+#define BLE_PROTOCOL_VERSION_FULL     1    /* Every data frame carries all values */
+#define BLE_PROTOCOL_VERSION_DELTA    2    /* Periodic keyframes, bitmap and changed values in between */
+#define BLE_PROTOCOL_VERSION_SEQUENCE 3    /* Delta frames, every frame numbered by a sequence byte after the size */
+#define BLE_FRAME_FLAG_SEQUENCE       0x80 /* Set in the content type of frames carrying a sequence byte */
 
 
 /* ================================================================================ Public types */
 typedef enum {
-	BLE_CONTENT_DATA = 0x01,
-	BLE_CONTENT_TEXT = 0x02
+	BLE_CONTENT_DATA  = 0x01,
+	BLE_CONTENT_TEXT  = 0x02,
+	BLE_CONTENT_DELTA = 0x03,
+	BLE_CONTENT_ACK   = 0x04
 } ble_content_type_t;
 
 
 /* ================================================================================ Public functions */
 extern int  ble_init();
 extern int  ble_send(ble_content_type_t type, const uint8_t* payload, uint8_t payload_size);
+extern int  ble_send_data(const uint8_t* payload, uint8_t payload_size);
+extern int  ble_set_protocol_version(uint8_t version);
 extern void ble_connected_callback();
 extern void ble_disconnected_callback();
 extern void ble_notify_changed_callback(bool enabled);
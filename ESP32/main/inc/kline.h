@@ -21,6 +21,7 @@ typedef enum {
 extern int  kline_init();
 extern int  kline_start();
 extern int  kline_stop();
+extern int  kline_set_post_frame_delay(uint32_t delay_us);
 extern void kline_data_received_callback(const uint8_t* data, uint8_t data_size);
 extern void kline_state_changed_callback(kline_state_t state);
 
@@ -18,6 +18,9 @@
 /* ================================================================================ Private defines */
 #define TX_BUFFER_SIZE                  70
 #define DEVICE_NAME                     "ESP_SV"
+#define ATT_NOTIFY_HEADER_SIZE          3              /* Opcode and attribute handle of a notification */
+#define DELTA_KEYFRAME_INTERVAL         20             /* Delta frames sent between two keyframes */
+#define DELTA_BITMAP_SIZE(size)         (((size) + 7) / 8)
 
 /* 16 Bit SPP Service and Characteristic UUIDs */
 #define SPP_SERVICE_UUID16              0xABF0
@@ -40,6 +43,21 @@ static uint16_t connection_handle_   = 0;
 static bool     connected_           = false;
 static bool     notify_enabled_      = false;
 
+/* Delta protocol state, reference is the last data frame handed over to the send queue. The reference is only used by
+ * ble_send_data, other contexts ask for a keyframe through force_keyframe_ under frame_lock_ */
+static volatile uint8_t protocol_version_               = BLE_PROTOCOL_VERSION_FULL;
+static uint8_t          delta_reference_[TX_BUFFER_SIZE] = { 0 };
+static uint8_t          delta_reference_size_           = 0;
+static uint8_t          delta_frame_counter_            = 0;
+static volatile bool    force_keyframe_                 = true;
+
+/* Sequence number of the next frame, counts every frame handed over to ble_send so queue overflows show up as gaps */
+static volatile uint8_t frame_sequence_                 = 0;
+
+/* Frames are sent from the K-line timer ISR, the NimBLE host task and the K-line state callbacks, numbering and
+ * queueing a frame has to happen in one go so no two frames get the same sequence number */
+static portMUX_TYPE     frame_lock_                     = portMUX_INITIALIZER_UNLOCKED;
+
 /* Define new custom service */
 static const struct ble_gatt_svc_def gatt_services_defintion_[] = {
 	{
@@ -69,16 +87,76 @@ static const struct ble_gatt_svc_def gatt_services_defintion_[] = {
 
 
 /* ================================================================================ Private functions */
+/* Enter the critical section of frame_lock_ from task or ISR context */
+static inline void frame_lock() {
+	if(xPortInIsrContext()) {
+		portENTER_CRITICAL_ISR(&frame_lock_);
+	} else {
+		portENTER_CRITICAL(&frame_lock_);
+	}
+}
+
+
+/* Leave the critical section of frame_lock_ */
+static inline void frame_unlock() {
+	if(xPortInIsrContext()) {
+		portEXIT_CRITICAL_ISR(&frame_lock_);
+	} else {
+		portEXIT_CRITICAL(&frame_lock_);
+	}
+}
+
+
+/* Make the next data frame a keyframe, callable from any context */
+static void ble_request_keyframe() {
+	frame_lock();
+	force_keyframe_ = true;
+	frame_unlock();
+}
+
+
+/* Take a pending keyframe request, only called by ble_send_data */
+static bool ble_take_keyframe_request() {
+	frame_lock();
+	bool requested  = force_keyframe_;
+	force_keyframe_ = false;
+	frame_unlock();
+
+	return requested;
+}
+
+
 static int ble_spp_send(uint8_t* message) {
 	if(!connected_ || !notify_enabled_ || !message) {
 		return -1;
 	}
 
-	/* Second element contains size */
-	struct os_mbuf *om = ble_hs_mbuf_from_flat(message, message[1]);
-	if(ble_gattc_notify_custom(connection_handle_, tx_value_handle_, om)) {
+	/* Split the message into notifications fitting the negotiated MTU, the app reassembles them by the size field */
+	uint16_t chunk_size = ble_att_mtu(connection_handle_);
+	if(chunk_size <= ATT_NOTIFY_HEADER_SIZE) {
 		return -2;
 	}
+	chunk_size -= ATT_NOTIFY_HEADER_SIZE;
+
+	/* Second element contains size */
+	uint16_t size   = message[1];
+	uint16_t offset = 0;
+	while(offset < size) {
+		uint16_t length = size - offset;
+		if(length > chunk_size) {
+			length = chunk_size;
+		}
+		/* A failing chunk aborts the frame, the remaining chunks are not sent. After the first chunk the remote device
+		 * holds a partial frame it can only drop once the following bytes make no valid frame */
+		struct os_mbuf *om = ble_hs_mbuf_from_flat(&message[offset], length);
+		if(!om) {
+			return offset ? -5 : -3;
+		}
+		if(ble_gattc_notify_custom(connection_handle_, tx_value_handle_, om)) {
+			return offset ? -5 : -4;
+		}
+		offset += length;
+	}
 
 	return 0;
 }
@@ -92,12 +170,38 @@ static void ble_send_task() {
 			continue;
 		}
 		if(ble_spp_send(message)) {
+			/* Remote device missed or only got part of a frame, so the next data frame has to be a keyframe again */
+			ble_request_keyframe();
 			continue;
 		}
 	}
 }
 
 
+/* Send a full data frame and use it as reference for following delta frames */
+static int ble_send_keyframe(const uint8_t* payload, uint8_t payload_size) {
+	if(ble_send(BLE_CONTENT_DATA, payload, payload_size)) {
+		delta_reference_size_ = 0;
+		return -1;
+	}
+	memcpy(delta_reference_, payload, payload_size);
+	delta_reference_size_ = payload_size;
+	delta_frame_counter_  = 0;
+
+	return 0;
+}
+
+
+/* Reset protocol to full frames, the remote device has to negotiate again after reconnecting */
+static void ble_reset_protocol() {
+	frame_lock();
+	protocol_version_ = BLE_PROTOCOL_VERSION_FULL;
+	force_keyframe_   = true;
+	frame_sequence_   = 0;
+	frame_unlock();
+}
+
+
 /* Callback function for custom service */
 static int spp_service_gatt_handler(uint16_t conn_handle, uint16_t attr_handle, struct ble_gatt_access_ctxt* ctxt, void* arg) {
 	switch(ctxt->op) {
@@ -124,6 +228,7 @@ static int ble_gap_event_callback(struct ble_gap_event* event, void* arg) {
 				connection_handle_ = event->connect.conn_handle;
 				connected_         = true;
 				notify_enabled_    = false;
+				ble_reset_protocol();
 				ble_connected_callback();
 			} else {
 				/* Connection failed, resume advertising */
@@ -137,6 +242,7 @@ static int ble_gap_event_callback(struct ble_gap_event* event, void* arg) {
 			/* Connection terminated, resume advertising */
 			connected_      = false;
 			notify_enabled_ = false;
+			ble_reset_protocol();
 			ble_advertise();
 			ble_disconnected_callback();
 			break;
@@ -173,7 +279,10 @@ static int ble_advertise() {
 		.tx_pwr_lvl            = BLE_HS_ADV_TX_PWR_LVL_AUTO,                          /* Let the stack fill it in automatically */
 		.name                  = (uint8_t *) DEVICE_NAME,
 		.name_len              = strlen(DEVICE_NAME),
-		.name_is_complete      = 1
+		.name_is_complete      = 1,
+		.uuids16               = (ble_uuid16_t[]) { BLE_UUID16_INIT(SPP_SERVICE_UUID16) },  /* SPP service, apps scan for it */
+		.num_uuids16           = 1,
+		.uuids16_is_complete   = 1
 	};
 	if(ble_gap_adv_set_fields(&fields)) {
 		return -1;
@@ -262,18 +371,77 @@ int ble_init() {
 
 /* Send a message to the remote device */
 int ble_send(ble_content_type_t type, const uint8_t* payload, uint8_t payload_size) {
-	if(payload_size > (0xFF - 2)) {
+	uint8_t header_size = (protocol_version_ >= BLE_PROTOCOL_VERSION_SEQUENCE) ? 3 : 2;
+	if(payload_size > (TX_BUFFER_SIZE - header_size)) {
 		return -1;
 	}
 
 	uint8_t message[TX_BUFFER_SIZE];
 	message[0] = type;
-	message[1] = payload_size + 2;
-	memcpy(&message[2], payload, payload_size);
-
-	if(xQueueSendFromISR(message_queue_, &message, NULL) != pdTRUE) {
+	message[1] = payload_size + header_size;
+	memcpy(&message[header_size], payload, payload_size);
+
+	/* Frames enter the queue in the order of their sequence numbers */
+	frame_lock();
+	if(header_size == 3) {
+		/* Sequenced frame: [type | flag, size, sequence, payload ...] */
+		message[0] |= BLE_FRAME_FLAG_SEQUENCE;
+		message[2]  = frame_sequence_++;
+	}
+	BaseType_t queued = xQueueSendFromISR(message_queue_, &message, NULL);
+	frame_unlock();
+	if(queued != pdTRUE) {
 		return -2;
 	}
 
 	return 0;
 }
+
+
+/* Send a sensor data frame, as delta to the previous one if negotiated */
+int ble_send_data(const uint8_t* payload, uint8_t payload_size) {
+	if(ble_take_keyframe_request()) {
+		delta_reference_size_ = 0;
+	}
+	if(protocol_version_ < BLE_PROTOCOL_VERSION_DELTA || payload_size != delta_reference_size_ || delta_frame_counter_ >= DELTA_KEYFRAME_INTERVAL) {
+		return ble_send_keyframe(payload, payload_size);
+	}
+
+	/* Delta frame: bitmap of changed values (LSB first), followed by the changed values in order */
+	uint8_t delta[TX_BUFFER_SIZE];
+	uint8_t delta_size = DELTA_BITMAP_SIZE(payload_size);
+	memset(delta, 0, delta_size);
+	for(uint8_t i = 0; i < payload_size; i++) {
+		if(payload[i] != delta_reference_[i]) {
+			if(delta_size >= payload_size) {
+				/* Delta frame would not be smaller than a keyframe */
+				return ble_send_keyframe(payload, payload_size);
+			}
+			delta[i / 8] |= (1 << (i % 8));
+			delta[delta_size++] = payload[i];
+		}
+	}
+
+	if(ble_send(BLE_CONTENT_DELTA, delta, delta_size)) {
+		delta_reference_size_ = 0;
+		return -1;
+	}
+	memcpy(delta_reference_, payload, payload_size);
+	delta_frame_counter_++;
+
+	return 0;
+}
+
+
+/* Select the protocol version for data frames, starts with a keyframe */
+int ble_set_protocol_version(uint8_t version) {
+	if(version < BLE_PROTOCOL_VERSION_FULL || version > BLE_PROTOCOL_VERSION_SEQUENCE) {
+		return -1;
+	}
+	frame_lock();
+	protocol_version_ = version;
+	force_keyframe_   = true;
+	frame_unlock();
+
+	return 0;
+}
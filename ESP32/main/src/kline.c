@@ -15,7 +15,9 @@
 #define T_01_US                  6000000        /* Initial delay in microseconds */
 #define T_02_US                  25000          /* Fast init pulse time in microseconds */
 #define T_03_US                  500000         /* Watchdog protocol timeout in microseconds */
-#define T_04_US                  200000         /* Post frame delay in microseconds */
+#define T_04_US                  200000         /* Default post frame delay in microseconds */
+#define T_04_MIN_US              50000          /* Minimum post frame delay in microseconds */
+#define T_04_MAX_US              2000000        /* Maximum post frame delay in microseconds */
 #define KLINE_ERROR_THRESHOLD    5              /* Threshold for checksum mismatches in a row before trying to restart session */
 
 /* Buffer sizes */
@@ -39,6 +41,7 @@ static int64_t       kline_last_eof_us_                    = 0;
 static int64_t       kline_fastinit_start_us_              = 0;
 static int64_t       kline_watchdog_us_                    = 0;
 static bool          kline_running_                        = false;
+static volatile int64_t kline_post_frame_delay_us_         = T_04_US;
 
 /* Counter and buffer variables */
 static uint8_t       kline_error_counter_                  = 0;
@@ -76,7 +79,7 @@ static int8_t kline_transmit(const char* command, size_t len) {
 	time_us_ = esp_timer_get_time();
 
 	/* Wait between frames */
-	if((kline_out_counter_ < len) && (time_us_ >= kline_last_eof_us_ + T_04_US)) {
+	if((kline_out_counter_ < len) && (time_us_ >= kline_last_eof_us_ + kline_post_frame_delay_us_)) {
 		/* Send next bytes */
 		int ret = uart_write_bytes(UART_NUM_1, command + kline_out_counter_, len - kline_out_counter_);
 		if(ret < 0) {
@@ -339,6 +342,17 @@ int kline_start() {
 }
 
 
+/* Set post frame delay (T_04) and thereby the polling rate, takes effect with the next request */
+int kline_set_post_frame_delay(uint32_t delay_us) {
+	if(delay_us < T_04_MIN_US || delay_us > T_04_MAX_US) {
+		return -1;
+	}
+	kline_post_frame_delay_us_ = delay_us;
+
+	return 0;
+}
+
+
 /* Stop K-line communication */
 int kline_stop() {
 	int ret = 0;
@@ -6,12 +6,22 @@
 
 
 /* ================================================================================ Private defines */
+#define COMMAND_RESET               0xFF
+#define COMMAND_GO                  0x01
+#define COMMAND_STOP                0x00
+#define COMMAND_PROTOCOL_VERSION    0x10
+#define COMMAND_POLL_PROFILE        0x11
+
+/* Post frame delays of the polling profiles in milliseconds (slow: overlay only, normal: default, fast: data display or logging) */
+#define POLL_PROFILE_COUNT          3
+#define POLL_PROFILE_DEFAULT        1
 
 
 /* ================================================================================ Private types */
 
 
 /* ================================================================================ Private variables */
+static const uint16_t POLL_PROFILE_DELAYS_MS_[POLL_PROFILE_COUNT] = { 400, 200, 100 };
 
 
 /* ================================================================================ Private functions */
@@ -41,6 +51,7 @@ void ble_connected_callback() {
 
 void ble_disconnected_callback() {
 	kline_stop();
+	kline_set_post_frame_delay(POLL_PROFILE_DELAYS_MS_[POLL_PROFILE_DEFAULT] * 1000UL);
 	led_on();
 }
 
@@ -53,19 +64,38 @@ void ble_notify_changed_callback(bool enabled) {
 
 
 void ble_data_received_callback(const uint8_t* data, uint16_t data_size) {
-	if(data_size == 1 && data[0] == 0xFF) {
+	if(data_size == 1 && data[0] == COMMAND_RESET) {
 		kline_stop();
 		esp_restart();
-	} else if(data_size == 1 && data[0] == 0x01) {
+	} else if(data_size == 1 && data[0] == COMMAND_GO) {
 		kline_start();
-	} else if(data_size == 1 && data[0] == 0x00) {
+	} else if(data_size == 1 && data[0] == COMMAND_STOP) {
 		kline_stop();
+	} else if(data_size == 2 && data[0] == COMMAND_PROTOCOL_VERSION) {
+		/* Acknowledge the protocol version which is active now */
+		uint8_t version = data[1];
+		if(ble_set_protocol_version(version)) {
+			version = BLE_PROTOCOL_VERSION_FULL;
+			ble_set_protocol_version(version);
+		}
+		uint8_t ack[2] = { COMMAND_PROTOCOL_VERSION, version };
+		ble_send(BLE_CONTENT_ACK, ack, 2);
+	} else if(data_size == 2 && data[0] == COMMAND_POLL_PROFILE) {
+		/* Acknowledge the profile and post frame delay which are active now */
+		uint8_t profile = data[1];
+		if(profile >= POLL_PROFILE_COUNT) {
+			profile = POLL_PROFILE_DEFAULT;
+		}
+		uint16_t delay_ms = POLL_PROFILE_DELAYS_MS_[profile];
+		kline_set_post_frame_delay(delay_ms * 1000UL);
+		uint8_t ack[4] = { COMMAND_POLL_PROFILE, profile, delay_ms >> 8, delay_ms & 0xFF };
+		ble_send(BLE_CONTENT_ACK, ack, 4);
 	}
 }
 
 
 void kline_data_received_callback(const uint8_t* data, uint8_t data_size) {
-	ble_send(BLE_CONTENT_DATA, data, data_size);
+	ble_send_data(data, data_size);
 }
 
 